@@ -0,0 +1,121 @@
+package com.mp3editor.benchmarks;
+
+import com.mpatric.mp3agic.ID3v1Tag;
+import com.mpatric.mp3agic.ID3v23Tag;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+// синтетические mp3 файлы для бенчмарков: тишина из одинаковых mpeg фреймов плюс теги нужного вида.
+// содержимое детерминировано, чтобы результаты разных запусков были сравнимы
+final class Mp3Fixtures {
+
+    // названия вариантов для @Param
+    static final String V2_SMALL = "v2-small";
+    static final String V2_LARGE_TEXT = "v2-large-text";
+    static final String V2_COVER_64K = "v2-cover-64k";
+    static final String V2_COVER_1M = "v2-cover-1m";
+    static final String V1_ONLY = "v1-only";
+    static final String NO_TAG = "no-tag";
+
+    // mpeg1 layer 3, 128 кбит/с, 44.1 кГц: 417 байт на фрейм, 1000 фреймов - около 26 секунд
+    private static final int FRAME_LENGTH = 417;
+    private static final int FRAME_COUNT = 1000;
+
+    private Mp3Fixtures() {
+    }
+
+    // создает файл варианта fixture в каталоге directory
+    static File create(File directory, String fixture) throws Exception {
+        File file = File.createTempFile(fixture + "-", ".mp3", directory);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+            switch (fixture) {
+                case V2_SMALL:
+                    out.write(id3v2(0, 0));
+                    break;
+                case V2_LARGE_TEXT:
+                    out.write(id3v2(16 * 1024, 0));
+                    break;
+                case V2_COVER_64K:
+                    out.write(id3v2(0, 64 * 1024));
+                    break;
+                case V2_COVER_1M:
+                    out.write(id3v2(0, 1024 * 1024));
+                    break;
+                case V1_ONLY:
+                case NO_TAG:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown fixture: " + fixture);
+            }
+            writeAudio(out);
+            if (!NO_TAG.equals(fixture)) {
+                out.write(id3v1());
+            }
+        }
+        return file;
+    }
+
+    private static byte[] id3v2(int commentLength, int coverLength) throws Exception {
+        ID3v23Tag tag = new ID3v23Tag();
+        tag.setTitle("Benchmark Title");
+        tag.setArtist("Benchmark Artist");
+        tag.setAlbum("Benchmark Album");
+        tag.setYear("2024");
+        tag.setGenreDescription("Rock");
+        if (commentLength > 0) {
+            char[] comment = new char[commentLength];
+            Arrays.fill(comment, 'x');
+            tag.setComment(new String(comment));
+        }
+        if (coverLength > 0) {
+            tag.setAlbumImage(cover(coverLength), "image/jpeg");
+        }
+        return tag.toBytes();
+    }
+
+    private static byte[] id3v1() {
+        ID3v1Tag tag = new ID3v1Tag();
+        tag.setTitle("Benchmark Title");
+        tag.setArtist("Benchmark Artist");
+        tag.setAlbum("Benchmark Album");
+        tag.setYear("2024");
+        return tag.toBytes();
+    }
+
+    // псевдо-jpeg: сигнатура ff d8 и случайные байты с фиксированным зерном
+    private static byte[] cover(int length) {
+        byte[] image = new byte[length];
+        new Random(length).nextBytes(image);
+        image[0] = (byte) 0xFF;
+        image[1] = (byte) 0xD8;
+        return image;
+    }
+
+    private static void writeAudio(OutputStream out) throws IOException {
+        byte[] frame = new byte[FRAME_LENGTH];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) 0x90;
+        frame[3] = 0x00;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            out.write(frame);
+        }
+    }
+
+    // удаляет каталог с фикстурами после прогона
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,70 @@
+package com.mp3editor.benchmarks;
+
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.service.MP3TagService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// чтение тегов: полное через Mp3File, быстрое по областям тегов и повторное через кэш
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    @Param({
+            Mp3Fixtures.V2_SMALL, Mp3Fixtures.V2_LARGE_TEXT, Mp3Fixtures.V2_COVER_64K,
+            Mp3Fixtures.V2_COVER_1M, Mp3Fixtures.V1_ONLY, Mp3Fixtures.NO_TAG
+    })
+    public String fixture;
+
+    private File directory;
+    private File file;
+    private MP3TagService tagService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mp3-read-bench").toFile();
+        file = Mp3Fixtures.create(directory, fixture);
+        tagService = new MP3TagService();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tagService.shutdown();
+        Mp3Fixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public MP3Metadata readMetadata() throws Exception {
+        return tagService.readMetadata(file);
+    }
+
+    @Benchmark
+    public MP3Metadata readMetadataFast() throws Exception {
+        return tagService.readMetadataFast(file);
+    }
+
+    // файл не меняется, поэтому после первого вызова это попадание в кэш
+    @Benchmark
+    public MP3Metadata readMetadataCached() throws Exception {
+        return tagService.readMetadataCached(file);
+    }
+}
@@ -0,0 +1,95 @@
+package com.mp3editor.benchmarks;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.service.MP3TagService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// запись тегов: в новый файл (потоковая перезапись с копированием аудио) и поверх исходного
+// (после первой записи тег с запасом padding правится на месте)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+    @Param({
+            Mp3Fixtures.V2_SMALL, Mp3Fixtures.V2_LARGE_TEXT, Mp3Fixtures.V2_COVER_64K,
+            Mp3Fixtures.V2_COVER_1M, Mp3Fixtures.V1_ONLY, Mp3Fixtures.NO_TAG
+    })
+    public String fixture;
+
+    private File directory;
+    private File source;
+    private File target;
+    private File inPlace;
+    private MP3TagService tagService;
+
+    // для записи в новый файл обложка остается ленивой ссылкой на неизменный источник
+    private MP3Metadata copyMetadata;
+    // при записи на месте файл меняется, поэтому обложка заранее загружена в память
+    private MP3Metadata[] inPlaceMetadata;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mp3-write-bench").toFile();
+        source = Mp3Fixtures.create(directory, fixture);
+        target = new File(directory, "target.mp3");
+        inPlace = Mp3Fixtures.create(directory, fixture);
+        tagService = new MP3TagService();
+
+        copyMetadata = edited(tagService.readMetadataFast(source), "Edited Title A");
+        MP3Metadata original = tagService.readMetadataFast(inPlace);
+        CoverArt cover = original.getCoverArt();
+        if (cover != null) {
+            original.setCoverArt(CoverArt.fromBytes(cover.readBytes(), cover.getMimeType()));
+        }
+        // заголовки одной длины, чтобы каждая следующая запись помещалась в тот же тег
+        inPlaceMetadata = new MP3Metadata[] {
+                edited(original, "Edited Title A"),
+                edited(original, "Edited Title B")
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tagService.shutdown();
+        Mp3Fixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void writeMetadataToNewFile() throws Exception {
+        tagService.writeMetadata(source, target, copyMetadata);
+    }
+
+    @Benchmark
+    public void writeMetadataInPlace() throws Exception {
+        tagService.writeMetadataInPlace(inPlace, inPlaceMetadata[counter++ & 1]);
+    }
+
+    private static MP3Metadata edited(MP3Metadata metadata, String title) {
+        MP3Metadata copy = new MP3Metadata(title, metadata.getArtist(), metadata.getAlbum(),
+                metadata.getGenre(), metadata.getYear(), metadata.getBpm());
+        copy.setCoverArt(metadata.getCoverArt());
+        return copy;
+    }
+}
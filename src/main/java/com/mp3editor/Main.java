@@ -1,11 +1,16 @@
 package com.mp3editor;
 
+import com.mp3editor.cli.TagCli;
 import com.mp3editor.ui.MainFrame;
 
 import javax.swing.SwingUtilities;
 
 public class Main {
     public static void main(String[] args) {
+        // с аргументами работаем как консольная утилита, без окна
+        if (args.length > 0) {
+            System.exit(TagCli.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             MainFrame frame = new MainFrame();
             frame.setVisible(true);
@@ -0,0 +1,319 @@
+package com.mp3editor.cli;
+
+import com.mp3editor.service.CoverArtProcessor;
+import com.mp3editor.service.FingerprintStore;
+import com.mp3editor.service.TagMetrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// разобранная командная строка: команда, значения полей, общие опции и список файлов
+final class CliOptions {
+
+    enum Command { READ, SET, COPY, CLEAR, BPM, REPLAYGAIN, DUPLICATES, IMPORT }
+
+    enum Format { JSON, CSV }
+
+    // поля тегов, которыми оперируют copy и clear
+    enum Field {
+        TITLE, ARTIST, ALBUM, GENRE, YEAR, BPM, COVER;
+
+        static Field parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown field: " + name);
+            }
+        }
+    }
+
+    Command command;
+    Format format = Format.JSON;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean dryRun;
+    // bpm: определять темп и для файлов, где он уже заполнен
+    boolean overwrite;
+    // --cover: наибольшая сторона изображения (0 - записать как есть) и качество jpeg в процентах
+    int coverSize = CoverArtProcessor.DEFAULT_MAX_DIMENSION;
+    int coverQuality = Math.round(CoverArtProcessor.DEFAULT_JPEG_QUALITY * 100);
+    private boolean coverOptions;
+    // файл со списком путей, "-" - стандартный ввод
+    String filesFrom;
+    // писать через временный файл с fsync и атомарной заменой даже там, где тег помещается на место
+    boolean atomic;
+    // журнал для продолжения прерванного запуска и ключ запуска (аргументы без самого --journal)
+    File journal;
+    String journalKey;
+    // метрики чтения и записи: сводка в stderr по ходу работы и в конце, плюс jmx
+    boolean metrics;
+    // duplicates: хранилище акустических отпечатков между запусками
+    File fingerprints = FingerprintStore.defaultLocation();
+    private boolean fingerprintsOption;
+    // import: таблица тегов и удаление полей с пустыми ячейками
+    File sheet;
+    boolean clearEmpty;
+
+    // значения для set: поле -> новое значение
+    final Map<Field, String> values = new LinkedHashMap<>();
+    // источник тегов для copy
+    File copySource;
+    // поля для copy и clear; по умолчанию все
+    Set<Field> fields = EnumSet.allOf(Field.class);
+
+    final List<String> targets = new ArrayList<>();
+
+    private CliOptions() {
+    }
+
+    // разбирает аргументы; ошибка в них - IllegalArgumentException с понятным сообщением
+    static CliOptions parse(String[] args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Missing command");
+        }
+        CliOptions options = new CliOptions();
+        try {
+            options.command = Command.valueOf(args[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+
+        boolean onlyTargets = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (onlyTargets || !arg.startsWith("--")) {
+                options.targets.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "--":
+                    onlyTargets = true;
+                    break;
+                case "--format":
+                    String format = value(args, ++i, arg).toUpperCase(Locale.ROOT);
+                    if (!format.equals("JSON") && !format.equals("CSV")) {
+                        throw new IllegalArgumentException("Unknown format: " + args[i]);
+                    }
+                    options.format = Format.valueOf(format);
+                    break;
+                case "--threads":
+                    options.threads = parsePositive(value(args, ++i, arg), arg);
+                    break;
+                case "--dry-run":
+                    options.dryRun = true;
+                    break;
+                case "--overwrite":
+                    options.overwrite = true;
+                    break;
+                case "--cover-size":
+                    String size = value(args, ++i, arg);
+                    options.coverSize = size.equals("0") ? 0 : parsePositive(size, arg);
+                    options.coverOptions = true;
+                    break;
+                case "--cover-quality":
+                    options.coverQuality = parsePositive(value(args, ++i, arg), arg);
+                    if (options.coverQuality > 100) {
+                        throw new IllegalArgumentException(arg + " must be between 1 and 100: " + args[i]);
+                    }
+                    options.coverOptions = true;
+                    break;
+                case "--files-from":
+                    options.filesFrom = value(args, ++i, arg);
+                    break;
+                case "--atomic":
+                    options.atomic = true;
+                    break;
+                case "--journal":
+                    options.journal = new File(value(args, ++i, arg));
+                    break;
+                case "--metrics":
+                    options.metrics = true;
+                    break;
+                case "--fingerprints":
+                    options.fingerprints = new File(value(args, ++i, arg));
+                    options.fingerprintsOption = true;
+                    break;
+                case "--sheet":
+                    options.sheet = new File(value(args, ++i, arg));
+                    break;
+                case "--clear-empty":
+                    options.clearEmpty = true;
+                    break;
+                case "--from":
+                    options.copySource = new File(value(args, ++i, arg));
+                    break;
+                case "--fields":
+                    options.fields = EnumSet.noneOf(Field.class);
+                    for (String name : value(args, ++i, arg).split(",")) {
+                        options.fields.add(Field.parse(name));
+                    }
+                    break;
+                case "--title":
+                case "--artist":
+                case "--album":
+                case "--genre":
+                case "--year":
+                case "--bpm":
+                case "--cover":
+                    options.values.put(Field.parse(arg.substring(2)), value(args, ++i, arg));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        options.validate();
+        if (options.journal != null) {
+            options.journalKey = journalKey(args);
+        }
+        return options;
+    }
+
+    // тот же запуск - те же аргументы; путь к журналу, число потоков и метрики на результат не влияют
+    private static String journalKey(String[] args) {
+        List<String> key = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--")) {
+                key.addAll(Arrays.asList(args).subList(i, args.length));
+                break;
+            }
+            if (args[i].equals("--journal") || args[i].equals("--threads")) {
+                i++;
+                continue;
+            }
+            if (args[i].equals("--metrics")) {
+                continue;
+            }
+            key.add(args[i]);
+        }
+        return String.join("\n", key);
+    }
+
+    // проверяет сочетание опций с командой
+    private void validate() {
+        if (command == Command.SET && values.isEmpty()) {
+            throw new IllegalArgumentException("set requires at least one of "
+                    + "--title, --artist, --album, --genre, --year, --bpm, --cover");
+        }
+        if (command != Command.SET && !values.isEmpty()) {
+            throw new IllegalArgumentException("Field values are only accepted by set");
+        }
+        if (command == Command.COPY && copySource == null) {
+            throw new IllegalArgumentException("copy requires --from <file>");
+        }
+        if (command != Command.COPY && copySource != null) {
+            throw new IllegalArgumentException("--from is only accepted by copy");
+        }
+        if (coverOptions && !values.containsKey(Field.COVER) && command != Command.IMPORT) {
+            throw new IllegalArgumentException("--cover-size and --cover-quality are only accepted with --cover");
+        }
+        if (command == Command.IMPORT && sheet == null) {
+            throw new IllegalArgumentException("import requires --sheet <file>");
+        }
+        if (command != Command.IMPORT && (sheet != null || clearEmpty)) {
+            throw new IllegalArgumentException("--sheet and --clear-empty are only accepted by import");
+        }
+        if (command == Command.IMPORT && journal != null) {
+            throw new IllegalArgumentException("--journal is not accepted by import");
+        }
+        if ((command == Command.READ || command == Command.DUPLICATES) && (atomic || journal != null)) {
+            throw new IllegalArgumentException("--atomic and --journal are only accepted by commands that write");
+        }
+        if (dryRun && journal != null) {
+            throw new IllegalArgumentException("--journal cannot be combined with --dry-run");
+        }
+        if (command != Command.BPM && overwrite) {
+            throw new IllegalArgumentException("--overwrite is only accepted by bpm");
+        }
+        if (command != Command.DUPLICATES && fingerprintsOption) {
+            throw new IllegalArgumentException("--fingerprints is only accepted by duplicates");
+        }
+        if (command == Command.DUPLICATES && dryRun) {
+            throw new IllegalArgumentException("--dry-run is not accepted by duplicates");
+        }
+        String bpm = values.get(Field.BPM);
+        if (bpm != null) {
+            parsePositive(bpm, "--bpm");
+        }
+        // import находит файлы по путям из таблицы, а файлы в аргументах нужны только для поиска по тегам
+        if (targets.isEmpty() && filesFrom == null && command != Command.IMPORT) {
+            throw new IllegalArgumentException("No files given");
+        }
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " requires a value");
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // сообщение ниже
+        }
+        throw new IllegalArgumentException(option + " must be a positive number: " + value);
+    }
+
+    static String usage() {
+        return String.join(System.lineSeparator(), Arrays.asList(
+                "Usage: java -jar mp3-tag-editor.jar <command> [options] <file|directory|glob>...",
+                "",
+                "Commands:",
+                "  read                      print tags",
+                "  set   --title T --artist A --album A --genre G --year Y --bpm N --cover IMAGE",
+                "                            change the given fields, other fields are kept",
+                "  copy  --from FILE         copy tags from FILE (all fields or --fields)",
+                "  clear                     remove tags (all fields or --fields)",
+                "  bpm   [--overwrite]       detect the tempo from the audio and write it to the bpm tag;",
+                "                            files that already have bpm are skipped unless --overwrite",
+                "  replaygain                measure track and album loudness (EBU R128) and write",
+                "                            ReplayGain 2.0 TXXX frames; files with the same album tag",
+                "                            form an album",
+                "  duplicates [--fingerprints FILE]",
+                "                            find the same recording under different names and tags by",
+                "                            its sound; prints one line per file with its group number.",
+                "                            fingerprints are kept in FILE (default ~/.mp3editor/fingerprints.bin)",
+                "                            so that reruns only decode new and changed files",
+                "  import --sheet FILE [--clear-empty] [file|directory|glob]...",
+                "                            apply tags from a CSV or JSON-lines sheet; columns path, title,",
+                "                            artist, album, genre, year, bpm, cover (image path). rows without",
+                "                            path are matched among the given files by match_title,",
+                "                            match_artist, match_album, or by their own artist and title.",
+                "                            empty cells keep the field unless --clear-empty; files whose",
+                "                            tags already match are not rewritten",
+                "",
+                "Options:",
+                "  --fields f1,f2            title, artist, album, genre, year, bpm, cover",
+                "  --cover-size N            downscale larger covers to N pixels, default "
+                        + CoverArtProcessor.DEFAULT_MAX_DIMENSION + " (0 - embed as is)",
+                "  --cover-quality Q         JPEG quality 1-100 for downscaled covers, default "
+                        + Math.round(CoverArtProcessor.DEFAULT_JPEG_QUALITY * 100),
+                "  --format json|csv         output format, default json (one object per line)",
+                "  --threads N               number of files processed in parallel",
+                "  --dry-run                 print the resulting tags without writing files",
+                "  --atomic                  always write through a temporary file that is synced",
+                "                            and renamed over the original, never patch in place",
+                "  --journal FILE            record finished files in FILE; rerunning the same command",
+                "                            with the same journal skips them (status already-done)",
+                "  --files-from FILE         read additional paths from FILE, one per line (- for stdin)",
+                "  --metrics                 collect latency, byte and failure metrics: exposed over JMX,",
+                "                            logged every " + TagMetrics.DEFAULT_LOG_PERIOD_SECONDS
+                        + " s and printed to stderr at the end",
+                "",
+                "Directories are scanned recursively for mp3 files; globs such as music/**/*.mp3",
+                "are expanded by the program. Results are printed in input order.",
+                "",
+                "Exit codes: 0 - success, 1 - some files failed, 2 - invalid arguments, 3 - no files matched"));
+    }
+}
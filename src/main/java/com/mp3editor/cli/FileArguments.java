@@ -0,0 +1,122 @@
+package com.mp3editor.cli;
+
+import com.mp3editor.service.FolderScanner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// превращает аргументы командной строки в список файлов: обычные пути, каталоги (рекурсивно),
+// шаблоны вида music/**/*.mp3 и списки путей из файла или стандартного ввода
+final class FileArguments {
+
+    private FileArguments() {
+    }
+
+    static List<File> expand(List<String> targets, String filesFrom) throws IOException {
+        List<String> arguments = new ArrayList<>(targets);
+        if (filesFrom != null) {
+            arguments.addAll(readList(filesFrom));
+        }
+
+        // порядок как в аргументах, повторы убираются
+        Set<File> files = new LinkedHashSet<>();
+        List<File> directories = new ArrayList<>();
+        for (String argument : arguments) {
+            if (isGlob(argument)) {
+                files.addAll(expandGlob(argument));
+                continue;
+            }
+            File file = new File(argument);
+            if (file.isDirectory()) {
+                directories.add(file);
+            } else {
+                // несуществующий файл остается в списке и попадет в вывод как ошибка
+                files.add(file);
+            }
+        }
+        if (!directories.isEmpty()) {
+            List<File> found = Collections.synchronizedList(new ArrayList<>());
+            new FolderScanner().scan(directories, found::addAll).completion().join();
+            List<File> sorted = new ArrayList<>(found);
+            Collections.sort(sorted);
+            files.addAll(sorted);
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static List<String> readList(String filesFrom) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = "-".equals(filesFrom)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(filesFrom), StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            // стандартный ввод не закрываем
+            if (!"-".equals(filesFrom)) {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    private static boolean isGlob(String argument) {
+        for (int i = 0; i < argument.length(); i++) {
+            char c = argument.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // раскрывает шаблон: каталог до первого спецсимвола обходится, остаток сравнивается с путями внутри него
+    private static List<File> expandGlob(String pattern) throws IOException {
+        String normalized = pattern.replace(File.separatorChar, '/');
+        int firstSpecial = 0;
+        while (firstSpecial < normalized.length() && "*?[{".indexOf(normalized.charAt(firstSpecial)) < 0) {
+            firstSpecial++;
+        }
+        int baseEnd = normalized.lastIndexOf('/', firstSpecial);
+        String base = baseEnd >= 0 ? normalized.substring(0, baseEnd + 1) : "";
+        String remainder = normalized.substring(baseEnd + 1);
+
+        Path basePath = Paths.get(base.isEmpty() ? "." : base);
+        if (!Files.isDirectory(basePath)) {
+            return Collections.emptyList();
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + remainder);
+        // без ** глубже числа компонентов шаблона не спускаемся
+        int maxDepth = remainder.contains("**") ? Integer.MAX_VALUE : remainder.split("/").length;
+
+        List<File> matched = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(basePath, maxDepth)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(basePath.relativize(path)))
+                    .forEach(path -> matched.add(base.isEmpty()
+                            ? basePath.relativize(path).toFile()
+                            : path.toFile()));
+        }
+        Collections.sort(matched);
+        return matched;
+    }
+}
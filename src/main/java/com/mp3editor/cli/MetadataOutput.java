@@ -0,0 +1,218 @@
+package com.mp3editor.cli;
+
+import com.mp3editor.model.AudioProperties;
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.model.ReplayGain;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// печать результатов по одному файлу на строку: json объект или строка csv
+final class MetadataOutput {
+
+    private static final String[] CSV_COLUMNS = {
+            "path", "status", "title", "artist", "album", "genre", "year", "bpm",
+            "cover_mime_type", "cover_length",
+            "duration_ms", "bitrate", "sample_rate", "channel_mode", "vbr", "duration_estimated",
+            "track_gain", "track_peak", "album_gain", "album_peak",
+            "error"
+    };
+
+    // свойства звука: числа и true/false печатаются в json без кавычек, кроме режима каналов
+    private static final List<String> AUDIO_COLUMNS = Arrays.asList(
+            "duration_ms", "bitrate", "sample_rate", "channel_mode", "vbr", "duration_estimated");
+    // значения replaygain есть только у файлов, которые анализировала команда replaygain
+    private static final List<String> REPLAY_GAIN_COLUMNS = Arrays.asList(
+            "track_gain", "track_peak", "album_gain", "album_peak");
+
+    private final CliOptions.Format format;
+    private final PrintStream out;
+
+    MetadataOutput(CliOptions.Format format, PrintStream out) {
+        this.format = format;
+        this.out = out;
+    }
+
+    // заголовок нужен только csv
+    void begin() {
+        if (format == CliOptions.Format.CSV) {
+            out.println(String.join(",", CSV_COLUMNS));
+        }
+    }
+
+    // заголовок вывода duplicates
+    void beginDuplicates() {
+        if (format == CliOptions.Format.CSV) {
+            out.println("group,path");
+        }
+    }
+
+    // заголовок вывода import
+    void beginImport() {
+        if (format == CliOptions.Format.CSV) {
+            out.println("line,path,status,error");
+        }
+    }
+
+    // итог одной строки таблицы import; file - null для строки, не сопоставленной с файлом
+    void printImport(int line, File file, String status, String error) {
+        if (format == CliOptions.Format.CSV) {
+            out.println(toCsv(new String[]{Integer.toString(line), file != null ? file.getPath() : null,
+                    status, error}));
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"line\":").append(line).append(",\"path\":");
+        if (file != null) {
+            appendJsonString(json, file.getPath());
+        } else {
+            json.append("null");
+        }
+        json.append(",\"status\":");
+        appendJsonString(json, status);
+        if (error != null) {
+            json.append(",\"error\":");
+            appendJsonString(json, error);
+        }
+        out.println(json.append('}'));
+    }
+
+    // один файл группы одинаковых записей; группы нумеруются с 1
+    void printDuplicate(int group, File file) {
+        if (format == CliOptions.Format.CSV) {
+            out.println(toCsv(new String[]{Integer.toString(group), file.getPath()}));
+        } else {
+            StringBuilder line = new StringBuilder("{\"group\":").append(group).append(",\"path\":");
+            appendJsonString(line, file.getPath());
+            out.println(line.append('}'));
+        }
+    }
+
+    // status - ok, dry-run или error; metadata может быть null для ошибок
+    void print(File file, String status, MP3Metadata metadata, String error) {
+        if (metadata == null) {
+            metadata = new MP3Metadata();
+        }
+        CoverArt cover = metadata.getCoverArt();
+        AudioProperties audio = metadata.getAudio();
+        ReplayGain gain = metadata.getReplayGain();
+        String[] values = {
+                file.getPath(), status,
+                metadata.getTitle(), metadata.getArtist(), metadata.getAlbum(),
+                metadata.getGenre(), metadata.getYear(),
+                metadata.getBpm() != null ? metadata.getBpm().toString() : null,
+                cover != null ? cover.getMimeType() : null,
+                cover != null ? Integer.toString(cover.getLength()) : null,
+                audio != null ? Long.toString(audio.getDurationMillis()) : null,
+                audio != null ? Integer.toString(audio.getBitrate()) : null,
+                audio != null ? Integer.toString(audio.getSampleRate()) : null,
+                audio != null ? audio.getChannelMode().name().toLowerCase(Locale.ROOT).replace('_', '-') : null,
+                audio != null ? Boolean.toString(audio.isVbr()) : null,
+                audio != null ? Boolean.toString(audio.isEstimated()) : null,
+                gain != null ? String.format(Locale.ROOT, "%.2f", gain.getTrackGain()) : null,
+                gain != null ? String.format(Locale.ROOT, "%.6f", gain.getTrackPeak()) : null,
+                gain != null && gain.getAlbumGain() != null
+                        ? String.format(Locale.ROOT, "%.2f", gain.getAlbumGain()) : null,
+                gain != null && gain.getAlbumPeak() != null
+                        ? String.format(Locale.ROOT, "%.6f", gain.getAlbumPeak()) : null,
+                error
+        };
+        out.println(format == CliOptions.Format.CSV ? toCsv(values) : toJson(values));
+    }
+
+    private static String toCsv(String[] values) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            String value = values[i];
+            if (value == null) {
+                continue;
+            }
+            // кавычки только там, где без них строка развалится
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String toJson(String[] values) {
+        StringBuilder line = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            String name = CSV_COLUMNS[i];
+            String value = values[i];
+            // пустые служебные поля, свойства звука и replaygain не печатаем, поля тегов печатаем всегда
+            if (value == null && (name.startsWith("cover") || name.equals("error") || AUDIO_COLUMNS.contains(name)
+                    || REPLAY_GAIN_COLUMNS.contains(name))) {
+                continue;
+            }
+            if (line.length() > 1) {
+                line.append(',');
+            }
+            line.append('"').append(toCamelCase(name)).append("\":");
+            if (value == null) {
+                line.append("null");
+            } else if (name.equals("bpm") || name.equals("cover_length")
+                    || (AUDIO_COLUMNS.contains(name) && !name.equals("channel_mode"))
+                    || REPLAY_GAIN_COLUMNS.contains(name)) {
+                line.append(value);
+            } else {
+                appendJsonString(line, value);
+            }
+        }
+        return line.append('}').toString();
+    }
+
+    private static String toCamelCase(String name) {
+        StringBuilder result = new StringBuilder(name.length());
+        boolean upper = false;
+        for (char c : name.toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                result.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return result.toString();
+    }
+
+    private static void appendJsonString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,484 @@
+package com.mp3editor.cli;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.model.ReplayGain;
+import com.mp3editor.service.BatchJournal;
+import com.mp3editor.service.BatchTagWriter;
+import com.mp3editor.service.BpmDetector;
+import com.mp3editor.service.CoverArtProcessor;
+import com.mp3editor.service.DuplicateFinder;
+import com.mp3editor.service.LoudnessAnalyzer;
+import com.mp3editor.service.MP3TagService;
+import com.mp3editor.service.TagImporter;
+import com.mp3editor.service.TagMetrics;
+
+import javax.management.JMException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// пакетный режим без окна: чтение и правка тегов из скриптов и cron.
+// классы awt и swing здесь не загружаются, поэтому работает и на серверах без дисплея
+public final class TagCli {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILURES = 1;
+    public static final int EXIT_USAGE = 2;
+    public static final int EXIT_NO_FILES = 3;
+
+    private final CliOptions options;
+    private final MP3TagService tagService = new MP3TagService();
+    private final BpmDetector bpmDetector = new BpmDetector();
+
+    // для copy - теги источника, для set - выбранная обложка
+    private MP3Metadata copySource;
+    private CoverArt newCover;
+    // null без --journal
+    private BatchJournal journal;
+    // для replaygain - значения всех файлов, посчитанные до записи
+    private Map<File, ReplayGain> replayGains;
+
+    private TagCli(CliOptions options) {
+        this.options = options;
+    }
+
+    // точка входа: выполняет команду и возвращает код завершения
+    public static int run(String[] args) {
+        // на всякий случай: если что-то все же тронет awt, он не будет искать дисплей
+        System.setProperty("java.awt.headless", "true");
+        PrintStream out;
+        try {
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024),
+                    false, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            return run(args, out, System.err);
+        } finally {
+            out.flush();
+        }
+    }
+
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length == 1 && (args[0].equals("--help") || args[0].equals("-h") || args[0].equals("help"))) {
+            out.println(CliOptions.usage());
+            return EXIT_OK;
+        }
+        CliOptions options;
+        try {
+            options = CliOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println("Error: " + e.getMessage());
+            err.println(CliOptions.usage());
+            return EXIT_USAGE;
+        }
+        return new TagCli(options).execute(out, err);
+    }
+
+    private int execute(PrintStream out, PrintStream err) {
+        if (options.metrics) {
+            startMetrics(err);
+        }
+        List<File> files;
+        try {
+            files = FileArguments.expand(options.targets, options.filesFrom);
+            prepare();
+        } catch (IOException | IllegalArgumentException e) {
+            err.println("Error: " + e.getMessage());
+            return EXIT_USAGE;
+        } catch (Exception e) {
+            err.println("Error: cannot read " + options.copySource + ": " + e.getMessage());
+            return EXIT_USAGE;
+        }
+        if (options.command == CliOptions.Command.IMPORT) {
+            return importSheet(files, out, err);
+        }
+        if (files.isEmpty()) {
+            err.println("No files matched");
+            return EXIT_NO_FILES;
+        }
+        if (options.command == CliOptions.Command.DUPLICATES) {
+            return findDuplicates(files, out, err);
+        }
+        tagService.setAtomicWrites(options.atomic);
+        if (options.journal != null) {
+            try {
+                journal = BatchJournal.open(options.journal, options.journalKey);
+            } catch (IOException e) {
+                err.println("Error: cannot open journal " + options.journal + ": " + e.getMessage());
+                return EXIT_USAGE;
+            }
+        }
+
+        if (options.command == CliOptions.Command.REPLAYGAIN) {
+            // альбомное значение известно только после всех треков альбома, поэтому сначала
+            // анализируются все файлы, а записываются они следующим проходом вместе с остальным
+            try {
+                replayGains = analyzeLoudness(files);
+            } catch (CompletionException e) {
+                err.println("Error: " + e.getCause().getMessage());
+                tagService.shutdown();
+                closeJournal(false, err);
+                return EXIT_FAILURES;
+            }
+        }
+
+        MetadataOutput output = new MetadataOutput(options.format, out);
+        output.begin();
+        int failed = 0;
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(
+                Math.min(options.threads, files.size()));
+        tagService.getMetrics().registerQueue("cli", () -> executor.getQueue().size());
+        try {
+            // файлы обрабатываются параллельно, а результаты печатаются в порядке входа по мере готовности
+            List<CompletableFuture<Result>> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                results.add(CompletableFuture.supplyAsync(() -> process(file), executor));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Result result = results.get(i).join();
+                output.print(files.get(i), result.status, result.metadata, result.error);
+                if (result.error != null) {
+                    failed++;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (options.metrics) {
+                err.println(tagService.getMetrics().getSummary());
+            }
+            tagService.shutdown();
+            closeJournal(failed == 0, err);
+        }
+        if (failed > 0) {
+            err.println(failed + " of " + files.size() + " files failed");
+            return EXIT_FAILURES;
+        }
+        return EXIT_OK;
+    }
+
+    // ищет одинаковые записи; отпечатки считаются параллельно по --threads
+    private int findDuplicates(List<File> files, PrintStream out, PrintStream err) {
+        DuplicateFinder finder = new DuplicateFinder(tagService, Math.min(options.threads, files.size()));
+        try {
+            List<List<File>> groups = finder.find(files, options.fingerprints, processed -> {
+            }).completion().join();
+            MetadataOutput output = new MetadataOutput(options.format, out);
+            output.beginDuplicates();
+            for (int i = 0; i < groups.size(); i++) {
+                for (File file : groups.get(i)) {
+                    output.printDuplicate(i + 1, file);
+                }
+            }
+            err.println(groups.size() + " groups of duplicates among " + files.size() + " files");
+            return EXIT_OK;
+        } catch (CompletionException e) {
+            err.println("Error: " + e.getCause().getMessage());
+            return EXIT_FAILURES;
+        } finally {
+            finder.shutdown();
+            if (options.metrics) {
+                err.println(tagService.getMetrics().getSummary());
+            }
+            tagService.shutdown();
+        }
+    }
+
+    // применяет таблицу тегов. строки читаются потоково и печатаются в порядке таблицы,
+    // а файлы пишутся параллельно по --threads; library - файлы для поиска строк без пути
+    private int importSheet(List<File> library, PrintStream out, PrintStream err) {
+        if (!options.sheet.isFile()) {
+            err.println("Error: no such sheet: " + options.sheet);
+            return EXIT_USAGE;
+        }
+        tagService.setAtomicWrites(options.atomic);
+        CoverArtProcessor coverProcessor = options.coverSize > 0
+                ? new CoverArtProcessor(options.coverSize, options.coverQuality / 100f, CoverArtProcessor.DEFAULT_MAX_BYTES)
+                : null;
+        BatchTagWriter writer = new BatchTagWriter(tagService, options.threads,
+                BatchTagWriter.DEFAULT_WRITES_PER_DEVICE, coverProcessor);
+        TagImporter importer = new TagImporter(tagService, writer, options.threads);
+        importer.setLibrary(library);
+        importer.setClearEmpty(options.clearEmpty);
+        importer.setDryRun(options.dryRun);
+        MetadataOutput output = new MetadataOutput(options.format, out);
+        output.beginImport();
+        TagImporter.Import job = importer.start(options.sheet, null, (line, file, status, error) ->
+                output.printImport(line, file, status.name().toLowerCase(Locale.ROOT).replace('_', '-'), error));
+        try {
+            job.completion().join();
+        } catch (CompletionException e) {
+            err.println("Error: " + e.getCause().getMessage());
+            return EXIT_FAILURES;
+        } finally {
+            importer.shutdown();
+            writer.shutdown();
+            if (options.metrics) {
+                err.println(tagService.getMetrics().getSummary());
+            }
+            tagService.shutdown();
+        }
+        err.println(job.getProcessed() + " rows: " + job.getWritten() + (options.dryRun ? " would change, " : " written, ")
+                + job.getUnchanged() + " unchanged, " + job.getProblems() + " not applied");
+        return job.getProblems() > 0 ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    // громкость всех файлов; файлы анализируются параллельно по --threads
+    private Map<File, ReplayGain> analyzeLoudness(List<File> files) {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer(tagService, Math.min(options.threads, files.size()));
+        try {
+            return analyzer.analyze(files, processed -> {
+            }).completion().join();
+        } finally {
+            analyzer.shutdown();
+        }
+    }
+
+    // включает метрики: jmx для подключения jconsole к долгому запуску и периодическая сводка в лог
+    private void startMetrics(PrintStream err) {
+        TagMetrics metrics = tagService.getMetrics();
+        metrics.setEnabled(true);
+        try {
+            metrics.registerMBean("cli");
+        } catch (JMException e) {
+            err.println("Warning: cannot register metrics MBean: " + e.getMessage());
+        }
+        metrics.startLogging(TagMetrics.DEFAULT_LOG_PERIOD_SECONDS);
+    }
+
+    // после полного успеха журнал больше не нужен; иначе он остается для повторного запуска
+    private void closeJournal(boolean success, PrintStream err) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (success) {
+                journal.finish();
+            } else {
+                journal.close();
+                err.println("Finished files are recorded in " + options.journal
+                        + "; rerun the same command to continue");
+            }
+        } catch (IOException e) {
+            err.println("Warning: cannot update journal " + options.journal + ": " + e.getMessage());
+        }
+    }
+
+    // читает то, что общее для всех файлов: теги источника и новую обложку
+    private void prepare() throws Exception {
+        if (options.copySource != null) {
+            copySource = tagService.readMetadataFast(options.copySource);
+        }
+        String coverPath = options.values.get(CliOptions.Field.COVER);
+        if (coverPath != null) {
+            newCover = CoverArt.fromImageFile(new File(coverPath));
+            if (newCover.getLength() == 0) {
+                throw new IllegalArgumentException("Cover image is empty: " + coverPath);
+            }
+            // обложка одна на все файлы, поэтому уменьшается и пережимается один раз
+            if (options.coverSize > 0) {
+                newCover = new CoverArtProcessor(options.coverSize, options.coverQuality / 100f,
+                        CoverArtProcessor.DEFAULT_MAX_BYTES).process(newCover);
+            }
+        }
+    }
+
+    // обрабатывает один файл: читает теги, для правок накладывает изменения и записывает
+    private Result process(File file) {
+        try {
+            MP3Metadata current = tagService.readMetadataFast(file);
+            if (options.command == CliOptions.Command.READ) {
+                return new Result("ok", current, null);
+            }
+            if (journal != null && journal.isCompleted(file)) {
+                // обработан прерванным запуском этой же команды
+                return new Result("already-done", current, null);
+            }
+            Result result;
+            if (options.command == CliOptions.Command.BPM) {
+                result = detectBpm(file, current);
+            } else if (options.command == CliOptions.Command.REPLAYGAIN) {
+                result = writeReplayGain(file, current);
+            } else {
+                MP3Metadata updated = apply(current);
+                if (!options.dryRun) {
+                    tagService.writeMetadataInPlace(file, updated);
+                }
+                result = new Result(options.dryRun ? "dry-run" : "ok", withoutEmptyValues(updated), null);
+            }
+            if (journal != null) {
+                journal.markCompleted(file);
+            }
+            return result;
+        } catch (NoSuchFileException e) {
+            return new Result("error", null, "No such file");
+        } catch (Exception e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return new Result("error", null, message);
+        }
+    }
+
+    // определяет темп по звуку и записывает его; анализ идет в том же рабочем потоке,
+    // так что файлы анализируются параллельно по --threads (по умолчанию по числу ядер)
+    private Result detectBpm(File file, MP3Metadata current) throws Exception {
+        if (current.getBpm() != null && !options.overwrite) {
+            return new Result("skipped", current, null);
+        }
+        Integer bpm = bpmDetector.detect(file);
+        if (bpm == null) {
+            return new Result("undetected", current, null);
+        }
+        MP3Metadata updated = copy(current);
+        updated.setBpm(bpm);
+        if (!options.dryRun) {
+            tagService.writeMetadataInPlace(file, updated);
+        }
+        return new Result(options.dryRun ? "dry-run" : "ok", updated, null);
+    }
+
+    // записывает посчитанные заранее значения replaygain; остальные теги файла не меняются
+    private Result writeReplayGain(File file, MP3Metadata current) throws Exception {
+        ReplayGain gain = replayGains.get(file);
+        if (gain == null) {
+            return new Result("undetected", current, null);
+        }
+        MP3Metadata updated = copy(current);
+        updated.setReplayGain(gain);
+        if (!options.dryRun) {
+            tagService.writeMetadataInPlace(file, updated);
+        }
+        return new Result(options.dryRun ? "dry-run" : "ok", updated, null);
+    }
+
+    // строит новые метаданные файла; пустая строка в поле означает удаление тега
+    private MP3Metadata apply(MP3Metadata current) {
+        MP3Metadata updated = copy(current);
+        switch (options.command) {
+            case SET:
+                for (Map.Entry<CliOptions.Field, String> value : options.values.entrySet()) {
+                    set(updated, value.getKey(), value.getValue());
+                }
+                break;
+            case COPY:
+                for (CliOptions.Field field : options.fields) {
+                    copyField(updated, field);
+                }
+                break;
+            case CLEAR:
+                for (CliOptions.Field field : options.fields) {
+                    set(updated, field, "");
+                }
+                break;
+            default:
+                break;
+        }
+        return updated;
+    }
+
+    private void set(MP3Metadata metadata, CliOptions.Field field, String value) {
+        switch (field) {
+            case TITLE:
+                metadata.setTitle(value);
+                break;
+            case ARTIST:
+                metadata.setArtist(value);
+                break;
+            case ALBUM:
+                metadata.setAlbum(value);
+                break;
+            case GENRE:
+                metadata.setGenre(value);
+                break;
+            case YEAR:
+                metadata.setYear(value);
+                break;
+            case BPM:
+                metadata.setBpm(value.isEmpty() ? 0 : Integer.valueOf(value));
+                break;
+            case COVER:
+                metadata.setCoverArt(value.isEmpty() ? null : newCover);
+                break;
+        }
+    }
+
+    // поле, которого нет в источнике, у цели тоже удаляется
+    private void copyField(MP3Metadata metadata, CliOptions.Field field) {
+        switch (field) {
+            case TITLE:
+                metadata.setTitle(orEmpty(copySource.getTitle()));
+                break;
+            case ARTIST:
+                metadata.setArtist(orEmpty(copySource.getArtist()));
+                break;
+            case ALBUM:
+                metadata.setAlbum(orEmpty(copySource.getAlbum()));
+                break;
+            case GENRE:
+                metadata.setGenre(orEmpty(copySource.getGenre()));
+                break;
+            case YEAR:
+                metadata.setYear(orEmpty(copySource.getYear()));
+                break;
+            case BPM:
+                metadata.setBpm(copySource.getBpm() != null ? copySource.getBpm() : 0);
+                break;
+            case COVER:
+                metadata.setCoverArt(copySource.getCoverArt());
+                break;
+        }
+    }
+
+    private static MP3Metadata copy(MP3Metadata source) {
+        MP3Metadata copy = new MP3Metadata(source.getTitle(), source.getArtist(), source.getAlbum(),
+                source.getGenre(), source.getYear(), source.getBpm());
+        copy.setCoverArt(source.getCoverArt());
+        return copy;
+    }
+
+    // в выводе удаленные поля показываем как отсутствующие, а не как пустые строки
+    private static MP3Metadata withoutEmptyValues(MP3Metadata metadata) {
+        MP3Metadata result = new MP3Metadata(nullIfEmpty(metadata.getTitle()), nullIfEmpty(metadata.getArtist()),
+                nullIfEmpty(metadata.getAlbum()), nullIfEmpty(metadata.getGenre()),
+                nullIfEmpty(metadata.getYear()),
+                metadata.getBpm() != null && metadata.getBpm() > 0 ? metadata.getBpm() : null);
+        result.setCoverArt(metadata.getCoverArt());
+        return result;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static String nullIfEmpty(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    // итог обработки одного файла
+    private static final class Result {
+
+        private final String status;
+        private final MP3Metadata metadata;
+        private final String error;
+
+        private Result(String status, MP3Metadata metadata, String error) {
+            this.status = status;
+            this.metadata = metadata;
+            this.error = error;
+        }
+    }
+}
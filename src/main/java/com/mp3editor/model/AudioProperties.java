@@ -0,0 +1,74 @@
+package com.mp3editor.model;
+
+// свойства звука mp3 файла: длительность, средний битрейт, частота, каналы и переменный ли битрейт.
+// только для чтения - теги на них не влияют, при записи они не используются
+public class AudioProperties {
+
+    public enum ChannelMode { STEREO, JOINT_STEREO, DUAL_CHANNEL, MONO }
+
+    private final long durationMillis;
+    // средний битрейт в кбит/с
+    private final int bitrate;
+    private final int sampleRate;
+    private final ChannelMode channelMode;
+    private final boolean vbr;
+    // длительность и битрейт оценены по выборке фреймов (vbr файл без заголовка xing/vbri)
+    private final boolean estimated;
+
+    public AudioProperties(long durationMillis, int bitrate, int sampleRate, ChannelMode channelMode,
+                           boolean vbr, boolean estimated) {
+        this.durationMillis = durationMillis;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.channelMode = channelMode;
+        this.vbr = vbr;
+        this.estimated = estimated;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public ChannelMode getChannelMode() {
+        return channelMode;
+    }
+
+    public boolean isVbr() {
+        return vbr;
+    }
+
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    // длительность как 3:05 или 1:02:07
+    public String formatDuration() {
+        long seconds = (durationMillis + 500) / 1000;
+        long hours = seconds / 3600;
+        long minutes = seconds / 60 % 60;
+        long rest = seconds % 60;
+        return hours > 0
+                ? String.format("%d:%02d:%02d", hours, minutes, rest)
+                : String.format("%d:%02d", minutes, rest);
+    }
+
+    @Override
+    public String toString() {
+        return "AudioProperties{" +
+                "durationMillis=" + durationMillis +
+                ", bitrate=" + bitrate +
+                ", sampleRate=" + sampleRate +
+                ", channelMode=" + channelMode +
+                ", vbr=" + vbr +
+                ", estimated=" + estimated +
+                '}';
+    }
+}
@@ -0,0 +1,168 @@
+package com.mp3editor.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+// обложка альбома. либо байты уже в памяти, либо ссылка на участок файла
+// (файл, смещение, длина, mime тип), которая читается только когда изображение действительно нужно
+public class CoverArt {
+
+    private final byte[] data;
+    private final String mimeType;
+    private final int length;
+
+    // источник для ленивой обложки и его состояние на момент чтения тегов
+    private final File file;
+    private final long offset;
+    private final long sourceLength;
+    private final long sourceModified;
+
+    private CoverArt(byte[] data, String mimeType, int length,
+                     File file, long offset, long sourceLength, long sourceModified) {
+        this.data = data;
+        this.mimeType = mimeType;
+        this.length = length;
+        this.file = file;
+        this.offset = offset;
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+    }
+
+    // обложка из байтов в памяти, mime тип определяется по сигнатуре
+    public static CoverArt fromBytes(byte[] data) {
+        return fromBytes(data, detectMimeType(data));
+    }
+
+    public static CoverArt fromBytes(byte[] data, String mimeType) {
+        return new CoverArt(data, mimeType, data.length, null, 0, 0, 0);
+    }
+
+    // ленивая обложка: участок файла, например payload apic фрейма внутри mp3
+    public static CoverArt fromFile(File file, long offset, int length, String mimeType) {
+        return fromFile(file, offset, length, mimeType, file.length(), file.lastModified());
+    }
+
+    // ленивая обложка с заранее известным отпечатком источника (размер и время изменения)
+    public static CoverArt fromFile(File file, long offset, int length, String mimeType,
+                                    long sourceLength, long sourceModified) {
+        return new CoverArt(null, mimeType, length, file, offset, sourceLength, sourceModified);
+    }
+
+    // ленивая обложка из отдельного файла изображения; читаются только байты сигнатуры
+    public static CoverArt fromImageFile(File imageFile) throws IOException {
+        long size = imageFile.length();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Image is too large: " + imageFile);
+        }
+        byte[] signature = new byte[(int) Math.min(8, size)];
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, ByteBuffer.wrap(signature), 0);
+        }
+        return fromFile(imageFile, 0, (int) size, detectMimeType(signature));
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    // файл-источник ленивой обложки; null для обложки в памяти
+    public File getFile() {
+        return file;
+    }
+
+    // смещение изображения в файле-источнике
+    public long getOffset() {
+        return offset;
+    }
+
+    // true если байты изображения уже лежат в памяти
+    public boolean isLoaded() {
+        return data != null;
+    }
+
+    // возвращает байты изображения, для ленивой обложки читает их с диска
+    public byte[] readBytes() throws IOException {
+        if (data != null) {
+            return data;
+        }
+        byte[] bytes = new byte[length];
+        try (FileChannel channel = openSource()) {
+            readFully(channel, ByteBuffer.wrap(bytes), offset);
+        }
+        return bytes;
+    }
+
+    // потоково копирует изображение в канал, не собирая его в памяти целиком
+    public void transferTo(WritableByteChannel target) throws IOException {
+        if (data != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return;
+        }
+        try (FileChannel channel = openSource()) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long copied = channel.transferTo(position, end - position, target);
+                if (copied <= 0) {
+                    throw new IOException("Cannot copy cover art from " + file);
+                }
+                position += copied;
+            }
+        }
+    }
+
+    // открывает источник ленивой обложки, проверяя что файл не менялся после чтения тегов
+    private FileChannel openSource() throws IOException {
+        if (file.length() != sourceLength || file.lastModified() != sourceModified) {
+            throw new IOException("Cover art source has changed since it was read: " + file);
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    // определяет mime тип изображения по первым байтам файла
+    public static String detectMimeType(byte[] imageData) {
+        // слишком короткие данные считаем jpeg
+        if (imageData.length < 8) return "image/jpeg";
+
+        // jpeg начинается с ff d8
+        if (imageData[0] == (byte) 0xFF && imageData[1] == (byte) 0xD8) {
+            return "image/jpeg";
+        }
+        // png начинается с 89 50 4e 47
+        else if (imageData[0] == (byte) 0x89 && imageData[1] == 'P') {
+            return "image/png";
+        }
+        // по умолчанию jpeg
+        return "image/jpeg";
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at position " + position);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CoverArt{" +
+                "mimeType='" + mimeType + '\'' +
+                ", length=" + length +
+                (file != null ? ", file=" + file + ", offset=" + offset : "") +
+                '}';
+    }
+}
@@ -7,18 +7,41 @@ public class MP3Metadata {
     private String album;
     private String genre;
     private String year;
+    // при записи null оставляет bpm файла как есть, 0 удаляет его
     private Integer bpm;
 
-    private byte[] coverArt;
+    private CoverArt coverArt;
 
-    public byte[] getCoverArt() {
+    // свойства звука; заполняются при чтении файла, при записи не используются. null - неизвестны
+    private AudioProperties audio;
+
+    // громкость для записи во фреймы replaygain; из файла не читается. null оставляет фреймы файла как есть
+    private ReplayGain replayGain;
+
+    public CoverArt getCoverArt() {
         return coverArt;
     }
 
-    public void setCoverArt(byte[] coverArt) {
+    public void setCoverArt(CoverArt coverArt) {
         this.coverArt = coverArt;
     }
 
+    public AudioProperties getAudio() {
+        return audio;
+    }
+
+    public void setAudio(AudioProperties audio) {
+        this.audio = audio;
+    }
+
+    public ReplayGain getReplayGain() {
+        return replayGain;
+    }
+
+    public void setReplayGain(ReplayGain replayGain) {
+        this.replayGain = replayGain;
+    }
+
     public MP3Metadata() {
     }
 
@@ -88,6 +111,8 @@ public class MP3Metadata {
                 ", genre='" + genre + '\'' +
                 ", year='" + year + '\'' +
                 ", bpm=" + bpm +
+                ", audio=" + audio +
+                ", replayGain=" + replayGain +
                 '}';
     }
 }
@@ -0,0 +1,44 @@
+package com.mp3editor.model;
+
+// результат анализа громкости для записи в теги replaygain: усиление в дб до опорной громкости
+// и пиковый уровень отсчетов (1.0 - полная шкала). альбомные значения null, если у трека нет альбома
+public class ReplayGain {
+
+    private final double trackGain;
+    private final double trackPeak;
+    private final Double albumGain;
+    private final Double albumPeak;
+
+    public ReplayGain(double trackGain, double trackPeak, Double albumGain, Double albumPeak) {
+        this.trackGain = trackGain;
+        this.trackPeak = trackPeak;
+        this.albumGain = albumGain;
+        this.albumPeak = albumPeak;
+    }
+
+    public double getTrackGain() {
+        return trackGain;
+    }
+
+    public double getTrackPeak() {
+        return trackPeak;
+    }
+
+    public Double getAlbumGain() {
+        return albumGain;
+    }
+
+    public Double getAlbumPeak() {
+        return albumPeak;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayGain{" +
+                "trackGain=" + trackGain +
+                ", trackPeak=" + trackPeak +
+                ", albumGain=" + albumGain +
+                ", albumPeak=" + albumPeak +
+                '}';
+    }
+}
@@ -0,0 +1,156 @@
+package com.mp3editor.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+// журнал пакета для продолжения после сбоя: в него попадает каждый уже записанный файл вместе
+// с размером и временем изменения после записи. повторный запуск того же пакета (ключ совпадает)
+// пропускает такие файлы, если они с тех пор не менялись. журнал хранит только один пакет и
+// удаляется после его успешного завершения, поэтому не растет больше числа файлов пакета.
+// запись сбрасывается в ос после каждого файла - переживает падение процесса; при сбое питания
+// может потеряться хвост, и несколько файлов просто запишутся повторно
+public class BatchJournal implements Closeable {
+
+    // "MPBJ" и версия формата
+    private static final int MAGIC = 0x4D50424A;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File journalFile;
+    // путь -> отпечаток файла после записи
+    private final Map<String, long[]> completed = new HashMap<>();
+    private DataOutputStream log;
+
+    private BatchJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    // расположение журнала по умолчанию: ~/.mp3editor/batch-journal.bin
+    public static File defaultLocation() {
+        return new File(new File(System.getProperty("user.home"), ".mp3editor"), "batch-journal.bin");
+    }
+
+    // открывает журнал пакета batchKey: если прошлый запуск того же пакета не завершился,
+    // его записанные файлы загружаются; журнал другого пакета отбрасывается
+    public static BatchJournal open(File journalFile, String batchKey) throws IOException {
+        BatchJournal journal = new BatchJournal(journalFile);
+        File directory = journalFile.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        if (journalFile.exists() && journal.load(batchKey)) {
+            journal.log = openLog(journalFile, true);
+        } else {
+            journal.completed.clear();
+            journal.log = openLog(journalFile, false);
+            journal.log.writeInt(MAGIC);
+            journal.log.writeInt(FORMAT_VERSION);
+            journal.log.writeUTF(batchKey);
+            journal.log.flush();
+        }
+        return journal;
+    }
+
+    // файл уже записан этим пакетом и с тех пор не изменился
+    public synchronized boolean isCompleted(File file) {
+        long[] fingerprint = completed.get(file.getAbsolutePath());
+        if (fingerprint == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attributes.size() == fingerprint[0] && attributes.lastModifiedTime().toMillis() == fingerprint[1];
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // отмечает файл записанным; вызывается после того, как запись файла завершена
+    public synchronized void markCompleted(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        long[] fingerprint = {attributes.size(), attributes.lastModifiedTime().toMillis()};
+        completed.put(path, fingerprint);
+        log.writeUTF(path);
+        log.writeLong(fingerprint[0]);
+        log.writeLong(fingerprint[1]);
+        log.flush();
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    // пакет завершен полностью - продолжать нечего, журнал удаляется
+    public synchronized void finish() throws IOException {
+        close();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    // закрывает журнал, оставляя его для продолжения пакета
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    // загружает записи, если журнал принадлежит пакету batchKey
+    private boolean load(String batchKey) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(journalFile.toPath()), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(batchKey)) {
+                return false;
+            }
+            while (true) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                completed.put(path, new long[]{in.readLong(), in.readLong()});
+            }
+        } catch (EOFException e) {
+            // оборванная последняя запись: файл будет записан повторно.
+            // дописывать после обрывка нельзя, поэтому журнал начинается заново с уже известными файлами
+            rewrite(batchKey);
+        }
+        return true;
+    }
+
+    // переписывает журнал целиком текущими записями
+    private void rewrite(String batchKey) throws IOException {
+        try (DataOutputStream out = openLog(journalFile, false)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(batchKey);
+            for (Map.Entry<String, long[]> entry : completed.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        }
+    }
+
+    private static DataOutputStream openLog(File file, boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 8 * 1024));
+    }
+}
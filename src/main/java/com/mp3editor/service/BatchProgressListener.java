@@ -0,0 +1,22 @@
+package com.mp3editor.service;
+
+// получает уведомления о ходе пакетной записи; вызывается из рабочих потоков,
+// поэтому ui должен сам переключаться на поток swing
+public interface BatchProgressListener {
+
+    // файл успешно записан; completed учитывает и успешные, и неудачные задачи
+    default void jobCompleted(TagWriteJob job, int completed, int total) {
+    }
+
+    // файл не записывался: его теги уже совпадают с правкой; completed учитывает и пропущенные
+    default void jobSkipped(TagWriteJob job, int completed, int total) {
+    }
+
+    // запись файла завершилась ошибкой, остальные задачи продолжают выполняться
+    default void jobFailed(TagWriteJob job, Exception error, int completed, int total) {
+    }
+
+    // пакет завершен: все задачи выполнены или пакет отменен
+    default void batchFinished(int succeeded, int failed, boolean cancelled) {
+    }
+}
@@ -0,0 +1,350 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// пакетная запись тегов в пуле рабочих потоков с ограничением параллелизма на каждый диск
+public class BatchTagWriter {
+
+    // сколько файлов одновременно пишется на одно устройство (больше - только лишние seek'и)
+    public static final int DEFAULT_WRITES_PER_DEVICE = 2;
+
+    private final MP3TagService tagService;
+    // обработка новых обложек перед записью; null - обложки пишутся как есть
+    private final CoverArtProcessor coverProcessor;
+    private final ExecutorService executor;
+    private final int writesPerDevice;
+
+    // семафоры по устройствам (FileStore) и кэш соответствия каталог -> устройство
+    private final Map<FileStore, Semaphore> deviceLimits = new ConcurrentHashMap<>();
+    private final Map<Path, FileStore> storeByDirectory = new ConcurrentHashMap<>();
+    // общий лимит для каталогов, устройство которых определить не удалось
+    private final Semaphore unknownDeviceLimit;
+
+    public BatchTagWriter(MP3TagService tagService) {
+        this(tagService, Runtime.getRuntime().availableProcessors(), DEFAULT_WRITES_PER_DEVICE);
+    }
+
+    public BatchTagWriter(MP3TagService tagService, int threads, int writesPerDevice) {
+        this(tagService, threads, writesPerDevice, new CoverArtProcessor());
+    }
+
+    public BatchTagWriter(MP3TagService tagService, int threads, int writesPerDevice, CoverArtProcessor coverProcessor) {
+        if (threads < 1 || writesPerDevice < 1) {
+            throw new IllegalArgumentException("Thread and per-device limits must be positive");
+        }
+        this.tagService = tagService;
+        this.coverProcessor = coverProcessor;
+        this.writesPerDevice = writesPerDevice;
+        this.unknownDeviceLimit = new Semaphore(writesPerDevice);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DaemonThreadFactory("tag-writer"));
+        // простаивающие потоки не держим, пока нет пакетов
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        tagService.getMetrics().registerQueue("tag-writer", () -> pool.getQueue().size());
+    }
+
+    // запускает пакет и сразу возвращает управление; прогресс приходит в listener
+    public Batch submit(List<TagWriteJob> jobs, BatchProgressListener listener) {
+        return submit(jobs, listener, (BatchJournal) null);
+    }
+
+    // то же с журналом: файлы, записанные прерванным запуском того же пакета, пропускаются,
+    // а каждый записанный сейчас отмечается в журнале. после успешного завершения журнал удаляется
+    public Batch submit(List<TagWriteJob> jobs, BatchProgressListener listener, BatchJournal journal) {
+        return submit(jobs, listener, journal, null);
+    }
+
+    // то же с историей правок: разница полей каждого файла, записанного на месте, сохраняется
+    // в recording, а пакет отмены или повтора по завершении меняет состояние пакета в истории
+    public Batch submit(List<TagWriteJob> jobs, BatchProgressListener listener, EditHistory.Recording recording) {
+        return submit(jobs, listener, null, recording);
+    }
+
+    private Batch submit(List<TagWriteJob> jobs, BatchProgressListener listener, BatchJournal journal,
+                         EditHistory.Recording recording) {
+        Batch batch = new Batch(new ArrayList<>(jobs), listener, journal, recording);
+        if (batch.jobs.isEmpty()) {
+            batch.finish();
+            return batch;
+        }
+        for (TagWriteJob job : batch.jobs) {
+            executor.execute(() -> batch.run(job));
+        }
+        return batch;
+    }
+
+    // останавливает пул после завершения уже принятых задач
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // ждет, пока пул после shutdown() допишет файлы; false - время вышло раньше
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    // записывает один файл, удерживая разрешение устройства, на которое идет запись.
+    // обложка готовится и теги сверяются до захвата разрешения, чтобы эта работа не держала диск.
+    // false - файл пропущен, потому что правка ничего в нем не меняет
+    private boolean write(TagWriteJob job, Batch batch) throws Exception {
+        MP3Metadata metadata;
+        MP3Metadata current = null;
+        TagChanges changes = job.getChanges();
+        if (changes != null) {
+            // теги файла обычно уже в кэше - таблица читала их для показа
+            CoverArt cover = changes.isCoverChanged()
+                    ? processCover(job.getInputFile(), changes.getCoverArt(), batch) : null;
+            current = tagService.readMetadataCached(job.getInputFile());
+            metadata = changes.diff(current, cover);
+            if (metadata == null) {
+                return false;
+            }
+        } else {
+            metadata = prepareCover(job, batch);
+        }
+        // в историю попадает только правка на месте: у копии в новый файл нечего отменять
+        EditHistory.Edit edit = null;
+        if (batch.recording != null && job.getInputFile().equals(job.getOutputFile())) {
+            if (current == null) {
+                current = tagService.readMetadataCached(job.getInputFile());
+            }
+            edit = batch.recording.prepare(job.getInputFile(), current, metadata);
+        }
+        Semaphore limit = deviceLimit(job.getOutputFile());
+        limit.acquire();
+        try {
+            tagService.writeMetadata(job.getInputFile(), job.getOutputFile(), metadata);
+        } finally {
+            limit.release();
+        }
+        if (edit != null) {
+            try {
+                batch.recording.commit(edit);
+            } catch (IOException e) {
+                // файл записан; без записи в истории эту правку просто нельзя будет отменить
+            }
+        }
+        return true;
+    }
+
+    private MP3Metadata prepareCover(TagWriteJob job, Batch batch) throws IOException {
+        MP3Metadata metadata = job.getMetadata();
+        CoverArt cover = metadata.getCoverArt();
+        CoverArt processed = processCover(job.getInputFile(), cover, batch);
+        if (processed == cover) {
+            return metadata;
+        }
+        MP3Metadata copy = new MP3Metadata(metadata.getTitle(), metadata.getArtist(), metadata.getAlbum(),
+                metadata.getGenre(), metadata.getYear(), metadata.getBpm());
+        copy.setCoverArt(processed);
+        copy.setReplayGain(metadata.getReplayGain());
+        return copy;
+    }
+
+    // новая обложка проходит через процессор один раз на пакет: задачи альбома обычно делят
+    // один объект CoverArt, а разные объекты с одинаковыми байтами склеивает кэш процессора
+    private CoverArt processCover(File inputFile, CoverArt cover, Batch batch) throws IOException {
+        // собственную обложку файла не трогаем - она уже записана и переносится как есть.
+        // обложка из истории правок тоже уже была в файле и возвращается байт в байт
+        if (coverProcessor == null || cover == null || inputFile.equals(cover.getFile())
+                || (batch.recording != null && batch.recording.isStoredCover(cover))) {
+            return cover;
+        }
+        CoverArt processed;
+        synchronized (batch.processedCovers) {
+            processed = batch.processedCovers.get(cover);
+        }
+        if (processed == null) {
+            TagMetrics metrics = tagService.getMetrics();
+            long start = metrics.start();
+            try {
+                processed = coverProcessor.process(cover);
+            } catch (IOException | RuntimeException e) {
+                metrics.recordFailure(TagMetrics.Operation.COVER, e);
+                throw e;
+            }
+            metrics.record(TagMetrics.Operation.COVER, start, null);
+            synchronized (batch.processedCovers) {
+                batch.processedCovers.put(cover, processed);
+            }
+        }
+        return processed;
+    }
+
+    // находит семафор устройства, на котором лежит целевой каталог
+    private Semaphore deviceLimit(File outputFile) {
+        Path directory = outputFile.getAbsoluteFile().toPath().getParent();
+        FileStore store = storeByDirectory.computeIfAbsent(directory, dir -> {
+            try {
+                return Files.getFileStore(dir);
+            } catch (IOException e) {
+                // каталог недоступен - ошибка всплывет при записи, лимит берем общий
+                return null;
+            }
+        });
+        if (store == null) {
+            return unknownDeviceLimit;
+        }
+        return deviceLimits.computeIfAbsent(store, s -> new Semaphore(writesPerDevice));
+    }
+
+    // один запущенный пакет: счетчики, отмена и ожидание завершения
+    public class Batch {
+
+        private final List<TagWriteJob> jobs;
+        private final BatchProgressListener listener;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger remaining;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        // исходная обложка -> подготовленная к записи, по идентичности объекта
+        private final Map<CoverArt, CoverArt> processedCovers = new IdentityHashMap<>();
+        // null - пакет без журнала
+        private final BatchJournal journal;
+        // null - пакет без истории правок
+        private final EditHistory.Recording recording;
+
+        private Batch(List<TagWriteJob> jobs, BatchProgressListener listener, BatchJournal journal,
+                      EditHistory.Recording recording) {
+            this.jobs = jobs;
+            this.listener = listener;
+            this.journal = journal;
+            this.recording = recording;
+            this.remaining = new AtomicInteger(jobs.size());
+        }
+
+        // отменяет еще не начатые задачи; файлы, которые уже пишутся, дописываются до конца
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        // блокирует поток до завершения пакета
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        public int getTotal() {
+            return jobs.size();
+        }
+
+        public int getSucceeded() {
+            return succeeded.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        // файлы, которые не пришлось писать: правка в них ничего не меняла
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        private void run(TagWriteJob job) {
+            try {
+                if (cancelled.get()) {
+                    return;
+                }
+                try {
+                    if (journal != null && journal.isCompleted(job.getOutputFile())) {
+                        // записан прерванным запуском этого же пакета
+                        skipped.incrementAndGet();
+                        listener.jobSkipped(job, completed.incrementAndGet(), jobs.size());
+                        return;
+                    }
+                    boolean written = write(job, this);
+                    markCompleted(job);
+                    if (written) {
+                        succeeded.incrementAndGet();
+                        listener.jobCompleted(job, completed.incrementAndGet(), jobs.size());
+                    } else {
+                        skipped.incrementAndGet();
+                        listener.jobSkipped(job, completed.incrementAndGet(), jobs.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled.set(true);
+                } catch (Exception e) {
+                    // ошибка одного файла не останавливает остальные
+                    failed.incrementAndGet();
+                    listener.jobFailed(job, e, completed.incrementAndGet(), jobs.size());
+                }
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        }
+
+        private void markCompleted(TagWriteJob job) {
+            if (journal == null) {
+                return;
+            }
+            try {
+                journal.markCompleted(job.getOutputFile());
+            } catch (IOException e) {
+                // без записи в журнале файл просто обработается еще раз при продолжении
+            }
+        }
+
+        private void finish() {
+            try {
+                closeJournal();
+                if (recording != null) {
+                    recording.finish(failed.get(), cancelled.get());
+                }
+                listener.batchFinished(succeeded.get(), failed.get(), cancelled.get());
+            } finally {
+                done.countDown();
+            }
+        }
+
+        // журнал остается, только если пакет есть что продолжать: он отменен или часть файлов не записалась
+        private void closeJournal() {
+            if (journal == null) {
+                return;
+            }
+            try {
+                if (cancelled.get() || failed.get() > 0) {
+                    journal.close();
+                } else {
+                    journal.finish();
+                }
+            } catch (IOException e) {
+                // журнал не удалился - следующий пакет с другим ключом его перезапишет
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.mp3editor.service;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// определение темпа по звуку: отрывок трека потоково декодируется в моно pcm, по спектру строится
+// огибающая начал нот (spectral flux), а период ударов ищется автокорреляцией этой огибающей.
+// весь трек в памяти не держится - только текущее окно fft и огибающая (несколько тысяч чисел)
+public final class BpmDetector {
+
+    // диапазон, в котором ищется темп
+    public static final int MIN_BPM = 60;
+    public static final int MAX_BPM = 200;
+
+    // огибающая считается примерно 100 раз в секунду
+    private static final int ENVELOPE_RATE = 100;
+    // анализируется не больше 16 секунд звука: это два десятка тактов даже на 60 bpm, а декодирование
+    // занимает большую часть времени анализа
+    private static final int ANALYSIS_SECONDS = 16;
+    // отрывок берется с трети трека: во вступлении ритм часто еще не начался
+    private static final double ANALYSIS_START = 0.3;
+
+    // сжатие амплитуд спектра: log(1 + k*|X|) выравнивает вклад тихих и громких нот
+    private static final float COMPRESSION = 100f;
+    // окно сглаживания огибающей, которое вычитается из нее (около секунды)
+    private static final int MEAN_WINDOW = ENVELOPE_RATE;
+
+    // сколько кратных периода учитывается при оценке кандидата
+    private static final int HARMONICS = 4;
+    // шаг перебора периода в отсчетах огибающей
+    private static final double LAG_STEP = 0.1;
+    // априорный темп и разброс вокруг него в октавах: из кандидатов в 2 раза быстрее или
+    // медленнее выбирается тот, что ближе к типичному темпу
+    private static final double PRIOR_BPM = 125;
+    private static final double PRIOR_OCTAVES = 1.0;
+    // доля автокорреляции в нуле, ниже которой пик считается шумом, а не ритмом
+    private static final double MIN_CONFIDENCE = 0.1;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private ExecutorService executor;
+
+    // определяет темп файла; null - ритм не найден (тишина, речь, слишком короткий трек)
+    public Integer detect(File file) throws IOException {
+        return detect(file.toPath());
+    }
+
+    // асинхронное определение в пуле размером по числу ядер: декодирование и fft грузят процессор,
+    // поэтому пакет из тысяч файлов обрабатывается по одному файлу на ядро
+    public CompletableFuture<Integer> detectAsync(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return detect(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor());
+    }
+
+    // останавливает пул после завершения уже принятых файлов
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("bpm-analysis"));
+        }
+        return executor;
+    }
+
+    static Integer detect(Path path) throws IOException {
+        long size = Files.size(path);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE)) {
+            OnsetEnvelope envelope = decodeEnvelope(new Bitstream(in), size);
+            if (envelope == null) {
+                return null;
+            }
+            double bpm = estimateTempo(envelope.values, envelope.length, envelope.rate());
+            return Double.isNaN(bpm) ? null : (int) Math.round(bpm);
+        }
+    }
+
+    // декодирует отрывок потока и строит по нему огибающую; null - в потоке нет mpeg фреймов
+    private static OnsetEnvelope decodeEnvelope(Bitstream bitstream, long size) {
+        OnsetEnvelope envelope = null;
+        try {
+            Header header = bitstream.readFrame();
+            if (header == null) {
+                return null;
+            }
+            int sampleRate = header.frequency();
+            // длину трека оцениваем по размеру файла и первому фрейму, для vbr это приблизительно
+            int totalFrames = header.max_number_of_frames((int) Math.min(size, Integer.MAX_VALUE));
+            int windowFrames = (int) Math.ceil(ANALYSIS_SECONDS * 1000 / header.ms_per_frame());
+            int skipFrames = Math.max(0, Math.min((int) (totalFrames * ANALYSIS_START), totalFrames - windowFrames));
+
+            // пропущенные фреймы только читаются, без декодирования
+            for (int i = 0; i < skipFrames && header != null; i++) {
+                bitstream.closeFrame();
+                header = bitstream.readFrame();
+            }
+
+            Decoder decoder = new Decoder();
+            short[] mono = new short[Obuffer.OBUFFERSIZE];
+            envelope = new OnsetEnvelope(sampleRate);
+            for (int i = 0; i < windowFrames && header != null; i++) {
+                if (header.frequency() == sampleRate) {
+                    try {
+                        SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+                        envelope.add(mono, PcmDownmix.downmix(output, mono));
+                    } catch (DecoderException | ArrayIndexOutOfBoundsException e) {
+                        // битый фрейм пропускаем, остальные декодируются как обычно
+                    }
+                }
+                bitstream.closeFrame();
+                header = bitstream.readFrame();
+            }
+        } catch (BitstreamException e) {
+            // поток оборвался - анализируем то, что успели декодировать
+        }
+        return envelope;
+    }
+
+    // темп по огибающей начал нот с частотой rate; NaN - ритм не найден
+    static double estimateTempo(float[] envelope, int length, double rate) {
+        double minLag = 60 * rate / MAX_BPM;
+        double maxLag = 60 * rate / MIN_BPM;
+        // для устойчивой оценки нужно хотя бы по два повтора самого длинного кратного периода
+        if (length < 2 * maxLag * HARMONICS) {
+            return Double.NaN;
+        }
+
+        // вычитаем скользящее среднее и оставляем только всплески над ним
+        float[] onsets = new float[length];
+        double sum = 0;
+        int half = MEAN_WINDOW / 2;
+        for (int i = 0; i < Math.min(half, length); i++) {
+            sum += envelope[i];
+        }
+        for (int i = 0; i < length; i++) {
+            int add = i + half;
+            int remove = i - half - 1;
+            if (add < length) sum += envelope[add];
+            if (remove >= 0) sum -= envelope[remove];
+            int count = Math.min(length - 1, add) - Math.max(0, remove + 1) + 1;
+            onsets[i] = (float) Math.max(0, envelope[i] - sum / count);
+        }
+
+        // несмещенная автокорреляция до самого длинного кратного периода
+        int lagLimit = (int) Math.ceil(maxLag * HARMONICS) + 1;
+        double[] correlation = new double[lagLimit + 1];
+        for (int lag = 0; lag <= lagLimit; lag++) {
+            double value = 0;
+            for (int i = 0, n = length - lag; i < n; i++) {
+                value += onsets[i] * onsets[i + lag];
+            }
+            correlation[lag] = value / (length - lag);
+        }
+        if (correlation[0] <= 0) {
+            return Double.NaN;
+        }
+
+        // перебираем период с дробным шагом; кандидат оценивается суммой автокорреляции
+        // в его кратных, поэтому период в 2 раза короче настоящего проигрывает
+        int candidates = (int) ((maxLag - minLag) / LAG_STEP) + 1;
+        double[] scores = new double[candidates];
+        int best = -1;
+        double bestWeighted = 0;
+        for (int c = 0; c < candidates; c++) {
+            double lag = minLag + c * LAG_STEP;
+            double score = 0;
+            for (int k = 1; k <= HARMONICS; k++) {
+                score += interpolate(correlation, lag * k);
+            }
+            scores[c] = score / HARMONICS;
+            double octaves = Math.log(60 * rate / lag / PRIOR_BPM) / Math.log(2) / PRIOR_OCTAVES;
+            double weighted = scores[c] * Math.exp(-0.5 * octaves * octaves);
+            if (weighted > bestWeighted) {
+                bestWeighted = weighted;
+                best = c;
+            }
+        }
+        if (best < 0 || scores[best] < MIN_CONFIDENCE * correlation[0]) {
+            return Double.NaN;
+        }
+
+        // уточняем вершину параболой по соседним кандидатам
+        double offset = 0;
+        if (best > 0 && best < candidates - 1) {
+            double left = scores[best - 1];
+            double right = scores[best + 1];
+            double denominator = left - 2 * scores[best] + right;
+            if (denominator < 0) {
+                offset = 0.5 * (left - right) / denominator;
+            }
+        }
+        double lag = minLag + (best + offset) * LAG_STEP;
+        return 60 * rate / lag;
+    }
+
+    private static double interpolate(double[] values, double position) {
+        int index = (int) position;
+        if (index + 1 >= values.length) {
+            return values[values.length - 1];
+        }
+        double fraction = position - index;
+        return values[index] * (1 - fraction) + values[index + 1] * fraction;
+    }
+
+    // потоковая огибающая начал нот: каждые hop отсчетов берется окно fft по последним отсчетам
+    // и считается суммарный рост сжатых амплитуд спектра по сравнению с прошлым окном
+    static final class OnsetEnvelope {
+
+        private final int sampleRate;
+        private final int hop;
+        private final int size;
+        private final int mask;
+        private final float[] window;
+        private final float[] ring;
+        private final RealFft fft;
+        private final float[] magnitudes;
+        private final float[] previous;
+        private int position;
+        private int filled;
+        private int sinceHop;
+
+        float[] values = new float[ANALYSIS_SECONDS * ENVELOPE_RATE + ENVELOPE_RATE];
+        int length;
+
+        OnsetEnvelope(int sampleRate) {
+            this.sampleRate = sampleRate;
+            hop = Math.max(1, Math.round(sampleRate / (float) ENVELOPE_RATE));
+            // окно - ближайшая степень двойки не меньше двух шагов
+            int windowSize = Integer.highestOneBit(2 * hop - 1) << 1;
+            size = Math.max(windowSize, 8);
+            mask = size - 1;
+            window = new float[size];
+            for (int i = 0; i < size; i++) {
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+            }
+            ring = new float[size];
+            fft = new RealFft(size);
+            magnitudes = new float[size / 2];
+            previous = new float[size / 2];
+        }
+
+        // частота огибающей в отсчетах за секунду
+        double rate() {
+            return sampleRate / (double) hop;
+        }
+
+        void add(short[] samples, int count) {
+            for (int i = 0; i < count; i++) {
+                ring[position] = samples[i] / 32768f;
+                position = (position + 1) & mask;
+                if (filled < size) {
+                    filled++;
+                }
+                if (++sinceHop == hop) {
+                    sinceHop = 0;
+                    if (filled == size) {
+                        append(flux());
+                    }
+                }
+            }
+        }
+
+        private float flux() {
+            // position указывает на самый старый отсчет окна
+            fft.magnitudes(ring, position, window, magnitudes);
+            float flux = 0;
+            for (int k = 1; k < magnitudes.length; k++) {
+                float magnitude = (float) Math.log1p(COMPRESSION * magnitudes[k]);
+                float rise = magnitude - previous[k];
+                if (rise > 0) {
+                    flux += rise;
+                }
+                previous[k] = magnitude;
+            }
+            return flux;
+        }
+
+        private void append(float value) {
+            if (length == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[length++] = value;
+        }
+    }
+
+    // fft действительного сигнала длины n через комплексное fft длины n/2
+    static final class RealFft {
+
+        private final int n;
+        private final int half;
+        private final int[] reverse;
+        private final float[] cos;
+        private final float[] sin;
+        private final float[] unpackCos;
+        private final float[] unpackSin;
+        private final float[] re;
+        private final float[] im;
+
+        RealFft(int n) {
+            this.n = n;
+            this.half = n / 2;
+            reverse = new int[half];
+            int bits = Integer.numberOfTrailingZeros(half);
+            for (int i = 0; i < half; i++) {
+                reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+            cos = new float[half / 2];
+            sin = new float[half / 2];
+            for (int i = 0; i < half / 2; i++) {
+                cos[i] = (float) Math.cos(2 * Math.PI * i / half);
+                sin[i] = (float) Math.sin(2 * Math.PI * i / half);
+            }
+            unpackCos = new float[half];
+            unpackSin = new float[half];
+            for (int k = 0; k < half; k++) {
+                unpackCos[k] = (float) Math.cos(2 * Math.PI * k / n);
+                unpackSin[k] = (float) Math.sin(2 * Math.PI * k / n);
+            }
+            re = new float[half];
+            im = new float[half];
+        }
+
+        // амплитуды бинов 0..n/2-1 окна из кольцевого буфера ring, начиная с отсчета start
+        void magnitudes(float[] ring, int start, float[] window, float[] out) {
+            int mask = n - 1;
+            // четные отсчеты - в действительную часть, нечетные - в мнимую
+            for (int i = 0; i < half; i++) {
+                int j = reverse[i];
+                int even = 2 * i;
+                re[j] = ring[(start + even) & mask] * window[even];
+                im[j] = ring[(start + even + 1) & mask] * window[even + 1];
+            }
+            transform();
+
+            for (int k = 0; k < half; k++) {
+                int mirror = k == 0 ? 0 : half - k;
+                float a = re[k];
+                float b = im[k];
+                float c = re[mirror];
+                float d = im[mirror];
+                // спектры четной и нечетной половин сигнала
+                float evenRe = 0.5f * (a + c);
+                float evenIm = 0.5f * (b - d);
+                float oddRe = 0.5f * (b + d);
+                float oddIm = -0.5f * (a - c);
+                float wr = unpackCos[k];
+                float wi = unpackSin[k];
+                float xr = evenRe + wr * oddRe + wi * oddIm;
+                float xi = evenIm + wr * oddIm - wi * oddRe;
+                out[k] = (float) Math.sqrt(xr * xr + xi * xi);
+            }
+        }
+
+        // итеративное fft по основанию 2 над уже переставленными re/im
+        private void transform() {
+            for (int length = 2; length <= half; length <<= 1) {
+                int step = half / length;
+                int middle = length / 2;
+                for (int start = 0; start < half; start += length) {
+                    for (int i = 0; i < middle; i++) {
+                        float wr = cos[i * step];
+                        float wi = -sin[i * step];
+                        int p = start + i;
+                        int q = p + middle;
+                        float tr = re[q] * wr - im[q] * wi;
+                        float ti = re[q] * wi + im[q] * wr;
+                        re[q] = re[p] - tr;
+                        im[q] = im[p] - ti;
+                        re[p] += tr;
+                        im[p] += ti;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// подготовка обложки к записи: слишком большое (по размеру в пикселях или в байтах) изображение
+// уменьшается и пережимается в jpeg. одинаковые по содержимому обложки (ключ - sha-256 байтов)
+// обрабатываются один раз, результат кэшируется и отдается всем файлам альбома
+public class CoverArtProcessor {
+
+    public static final int DEFAULT_MAX_DIMENSION = 1000;
+    public static final float DEFAULT_JPEG_QUALITY = 0.9f;
+    // jpeg или png в пределах размера, но тяжелее этого, тоже пережимается
+    public static final int DEFAULT_MAX_BYTES = 512 * 1024;
+
+    // сколько разных обложек помнить (обычно это число альбомов в пакете)
+    private static final int MAX_CACHED = 64;
+
+    private final int maxDimension;
+    private final float jpegQuality;
+    private final int maxBytes;
+
+    // sha-256 исходных байтов -> обработанная обложка. future, чтобы параллельные задачи
+    // с одной и той же обложкой ждали одну обработку, а не запускали свою
+    private final LinkedHashMap<ByteBuffer, CompletableFuture<CoverArt>> cache =
+            new LinkedHashMap<ByteBuffer, CompletableFuture<CoverArt>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CompletableFuture<CoverArt>> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    public CoverArtProcessor() {
+        this(DEFAULT_MAX_DIMENSION, DEFAULT_JPEG_QUALITY, DEFAULT_MAX_BYTES);
+    }
+
+    public CoverArtProcessor(int maxDimension, float jpegQuality, int maxBytes) {
+        if (maxDimension < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Cover size limits must be positive");
+        }
+        if (jpegQuality <= 0 || jpegQuality > 1) {
+            throw new IllegalArgumentException("JPEG quality must be in (0, 1]: " + jpegQuality);
+        }
+        this.maxDimension = maxDimension;
+        this.jpegQuality = jpegQuality;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    // возвращает обложку, готовую к записи: уменьшенную копию в памяти либо исходные байты,
+    // если изображение и так укладывается в ограничения или его формат не удалось разобрать
+    public CoverArt process(CoverArt cover) throws IOException {
+        if (cover == null || cover.getLength() == 0) {
+            return cover;
+        }
+        byte[] bytes = cover.readBytes();
+        ByteBuffer key = ByteBuffer.wrap(sha256(bytes));
+
+        CompletableFuture<CoverArt> result;
+        boolean owner = false;
+        synchronized (cache) {
+            result = cache.get(key);
+            if (result == null) {
+                result = new CompletableFuture<>();
+                cache.put(key, result);
+                owner = true;
+            }
+        }
+        if (owner) {
+            try {
+                result.complete(normalize(bytes, cover.getMimeType()));
+            } catch (IOException | RuntimeException e) {
+                // неудачу не кэшируем: следующий вызов попробует снова
+                synchronized (cache) {
+                    cache.remove(key, result);
+                }
+                result.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CoverArt normalize(byte[] bytes, String mimeType) throws IOException {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                // не изображение, которое понимает ImageIO - записываем как есть
+                return CoverArt.fromBytes(bytes, mimeType);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+                boolean embeddable = format.equals("jpeg") || format.equals("png");
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                boolean oversized = Math.max(width, height) > maxDimension;
+                if (embeddable && !oversized && bytes.length <= maxBytes) {
+                    return CoverArt.fromBytes(bytes, "image/" + format);
+                }
+
+                // огромные изображения декодируем сразу с прореживанием - меньше памяти и времени
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * maxDimension));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                double scale = Math.min(1.0, maxDimension / (double) Math.max(image.getWidth(), image.getHeight()));
+                byte[] jpeg = encodeJpeg(resize(image,
+                        Math.max(1, (int) Math.round(image.getWidth() * scale)),
+                        Math.max(1, (int) Math.round(image.getHeight() * scale))));
+                // пережатие без уменьшения, которое ничего не выиграло, не нужно
+                if (embeddable && !oversized && jpeg.length >= bytes.length) {
+                    return CoverArt.fromBytes(bytes, "image/" + format);
+                }
+                return CoverArt.fromBytes(jpeg, "image/jpeg");
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            // например cmyk jpeg, который ImageIO не декодирует: обложка останется исходной
+            return CoverArt.fromBytes(bytes, mimeType);
+        }
+    }
+
+    // уменьшение шагами не больше чем в 2 раза: билинейная интерполяция на каждом шаге
+    // дает почти качество бикубической при заметно меньшей цене
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage current = toRgb(image);
+        int currentWidth = current.getWidth();
+        int currentHeight = current.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    // jpeg без альфа-канала: прозрачные области png заливаются белым
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try (MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // sha-256 обязателен в любой реализации java
+            throw new IllegalStateException(e);
+        }
+    }
+}
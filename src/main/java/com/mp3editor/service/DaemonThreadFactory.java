@@ -0,0 +1,23 @@
+package com.mp3editor.service;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// создает именованные daemon потоки для фоновых пулов сервиса
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+        // фоновые потоки не должны мешать завершению приложения
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,585 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.AudioProperties;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+// поиск одной и той же записи под разными именами и тегами. у каждого файла потоково декодируются
+// первые секунды звука после тишины и строится акустический отпечаток: на каждый шаг 25 мс
+// 32 бита - знаки изменения разности энергий соседних полос спектра во времени. такой отпечаток
+// почти не меняется от перекодирования в другой битрейт или частоту. пары-кандидаты ищутся через
+// lsh (одинаковые значения отпечатка с частью бит под маской), поэтому сравниваются не все пары,
+// а только совпавшие в корзинах; кандидат подтверждается долей различающихся бит
+public final class DuplicateFinder {
+
+    // версия алгоритма: отпечатки другой версии в хранилище пересчитываются
+    static final int FINGERPRINT_VERSION = 1;
+
+    // значений отпечатка в секунду и длина отпечатка
+    private static final int FRAME_RATE = 40;
+    private static final int FINGERPRINT_SECONDS = 10;
+    static final int MAX_FINGERPRINT_LENGTH = FRAME_RATE * FINGERPRINT_SECONDS;
+    // у более коротких треков отпечаток не строится - на нескольких секундах много случайных совпадений
+    private static final int MIN_FINGERPRINT_LENGTH = FRAME_RATE * 4;
+    // тишина в начале пропускается (у разных кодировщиков разная задержка), но не дольше этого
+    private static final int MAX_SILENCE_SECONDS = 30;
+    // порог тишины, примерно -40 дБ от полной шкалы
+    private static final int SILENCE_LEVEL = 328;
+    // окно fft около 0.2 с: сдвиг на пол-шага между копиями почти не меняет спектр
+    private static final double WINDOW_SECONDS = 0.2;
+    // 33 полосы в логарифмической шкале дают 32 разности - по биту на каждую
+    private static final int BANDS = 33;
+    private static final double MIN_FREQUENCY = 300;
+    private static final double MAX_FREQUENCY = 2000;
+
+    // lsh: в каждой таблице ключ - значение отпечатка без 10 бит по своей маске
+    private static final int TABLES = 6;
+    private static final int MASKED_BITS = 10;
+    // в таблицы идет только каждое 4-е значение, выбранное по самому значению, а не по позиции:
+    // у копий выбираются те же значения, а память и сортировка в 4 раза меньше
+    private static final int KEY_SAMPLING_BITS = 2;
+    // корзины больше этого - частые значения (ровный тон, шум), они не различают файлы
+    private static final int MAX_BUCKET = 32;
+    // сколько совпавших ключей с одним сдвигом во времени нужно паре, чтобы ее сравнить
+    private static final int MIN_VOTES = 2;
+    // упаковка совпадения в long: номера двух файлов, сдвиг и позиция значения в первом отпечатке
+    private static final int POSITION_BITS = 9;
+    private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+    private static final int SHIFT_BITS = 6;
+    private static final int FILE_BITS = 21;
+    static final int MAX_FILES = 1 << FILE_BITS;
+
+    // подтверждение пары: сдвиг копий друг относительно друга до полсекунды
+    private static final int MAX_SHIFT = FRAME_RATE / 2;
+    private static final int MIN_OVERLAP = MIN_FINGERPRINT_LENGTH - MAX_SHIFT;
+    // доля различающихся бит: у разных записей около 0.5, у перекодированной копии меньше 0.2
+    private static final double MAX_BIT_ERROR_RATE = 0.3;
+    // одинаковое начало у разных версий трека (сингл и альбомная версия) отсекается по длительности
+    private static final long MAX_DURATION_DIFFERENCE_MILLIS = 3000;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int[] KEY_MASKS = keyMasks();
+
+    private final MP3TagService tagService;
+    private final int threads;
+    private ExecutorService executor;
+
+    // длительность берется из тегового сервиса (кэш и индекс), отпечатки считаются в пуле по числу ядер
+    public DuplicateFinder(MP3TagService tagService) {
+        this(tagService, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DuplicateFinder(MP3TagService tagService, int threads) {
+        this.tagService = tagService;
+        this.threads = threads;
+    }
+
+    // запускает поиск и сразу возвращает управление. storeFile - хранилище отпечатков (null - без него);
+    // progress получает число обработанных файлов из рабочих потоков
+    public Search find(List<File> files, File storeFile, IntConsumer progress) {
+        Search search = new Search(new ArrayList<>(files), progress);
+        ExecutorService executor = executor();
+        CompletableFuture.runAsync(() -> search.openStore(storeFile), executor)
+                .thenCompose(ignored -> {
+                    CompletableFuture<?>[] tasks = new CompletableFuture<?>[search.files.size()];
+                    for (int i = 0; i < tasks.length; i++) {
+                        int index = i;
+                        tasks[i] = CompletableFuture.runAsync(() -> search.process(index), executor);
+                    }
+                    return CompletableFuture.allOf(tasks);
+                })
+                .thenApply(ignored -> search.groups())
+                .whenComplete((groups, error) -> {
+                    search.closeStore();
+                    if (error != null) {
+                        search.completion.completeExceptionally(error);
+                    } else {
+                        search.completion.complete(groups);
+                    }
+                });
+        return search;
+    }
+
+    // останавливает пул после завершения уже принятых файлов
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("fingerprint"));
+        }
+        return executor;
+    }
+
+    // один запущенный поиск: отмена, счетчик обработанных файлов и итоговые группы
+    public final class Search {
+
+        private final List<File> files;
+        private final IntConsumer progress;
+        private final int[][] fingerprints;
+        // длительность по заголовкам, -1 - неизвестна
+        private final long[] durations;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final CompletableFuture<List<List<File>>> completion = new CompletableFuture<>();
+        private FingerprintStore store;
+
+        private Search(List<File> files, IntConsumer progress) {
+            this.files = files;
+            this.progress = progress;
+            fingerprints = new int[files.size()][];
+            durations = new long[files.size()];
+        }
+
+        // останавливает декодирование; дубликаты ищутся среди уже обработанных файлов
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public int getTotal() {
+            return files.size();
+        }
+
+        public int getProcessed() {
+            return processed.get();
+        }
+
+        // группы одинаковых записей по две и больше в порядке входного списка
+        public CompletableFuture<List<List<File>>> completion() {
+            return completion;
+        }
+
+        private void openStore(File storeFile) {
+            if (storeFile == null) {
+                return;
+            }
+            try {
+                store = FingerprintStore.open(storeFile);
+            } catch (IOException e) {
+                // без хранилища все отпечатки просто считаются заново
+                store = null;
+            }
+        }
+
+        private void closeStore() {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    // недописанный хвост журнала отбросится при следующем открытии
+                }
+            }
+        }
+
+        // отпечаток и длительность одного файла; нечитаемый файл просто не участвует в поиске
+        private void process(int index) {
+            if (cancelled.get()) {
+                return;
+            }
+            File file = files.get(index);
+            durations[index] = duration(file);
+            long length = file.length();
+            long lastModified = file.lastModified();
+            int[] fingerprint = store != null ? store.get(file, length, lastModified) : null;
+            if (fingerprint == null) {
+                try {
+                    fingerprint = fingerprint(file.toPath());
+                } catch (IOException e) {
+                    fingerprint = null;
+                }
+                if (fingerprint != null && store != null) {
+                    try {
+                        store.put(file, length, lastModified, fingerprint);
+                    } catch (IOException e) {
+                        // хранилище - только ускорение следующего поиска
+                    }
+                }
+            }
+            fingerprints[index] = fingerprint;
+            progress.accept(processed.incrementAndGet());
+        }
+
+        private long duration(File file) {
+            try {
+                AudioProperties audio = tagService.readMetadataCached(file).getAudio();
+                return audio != null ? audio.getDurationMillis() : -1;
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        // подтверждает пары-кандидаты и склеивает их в группы
+        private List<List<File>> groups() {
+            int[] parents = new int[files.size()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = i;
+            }
+            for (long pair : candidatePairs(fingerprints)) {
+                int first = (int) (pair >>> 32);
+                int second = (int) pair;
+                if (durations[first] >= 0 && durations[second] >= 0
+                        && Math.abs(durations[first] - durations[second]) > MAX_DURATION_DIFFERENCE_MILLIS) {
+                    continue;
+                }
+                if (bitErrorRate(fingerprints[first], fingerprints[second]) <= MAX_BIT_ERROR_RATE) {
+                    parents[root(parents, first)] = root(parents, second);
+                }
+            }
+
+            // группы в порядке первого файла, файлы внутри - в порядке входа
+            Map<Integer, List<File>> groups = new HashMap<>();
+            List<List<File>> result = new ArrayList<>();
+            for (int i = 0; i < parents.length; i++) {
+                int root = root(parents, i);
+                List<File> group = groups.get(root);
+                if (group == null) {
+                    group = new ArrayList<>(2);
+                    groups.put(root, group);
+                    result.add(group);
+                }
+                group.add(files.get(i));
+            }
+            result.removeIf(group -> group.size() < 2);
+            return result;
+        }
+    }
+
+    private static int root(int[] parents, int index) {
+        while (parents[index] != index) {
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    // пары файлов (первый << 32 | второй), у которых хотя бы MIN_VOTES совпадений ключей с одним
+    // и тем же сдвигом во времени. в каждой таблице ключи всех файлов сортируются одним массивом,
+    // совпавшие идут подряд; совпадения тоже собираются в массив и сортируются, без хэш-таблиц.
+    // время почти линейное по числу файлов, пока корзины маленькие
+    static long[] candidatePairs(int[][] fingerprints) {
+        if (fingerprints.length > MAX_FILES) {
+            throw new IllegalArgumentException("Too many files: " + fingerprints.length);
+        }
+        long[] matches = new long[1024];
+        int matchCount = 0;
+        for (int mask : KEY_MASKS) {
+            int count = 0;
+            for (int[] fingerprint : fingerprints) {
+                if (fingerprint == null) {
+                    continue;
+                }
+                for (int value : fingerprint) {
+                    if (isSampled(value & mask)) {
+                        count++;
+                    }
+                }
+            }
+            // ключ в старших 32 битах, файл и позиция значения в отпечатке - в младших
+            long[] keys = new long[count];
+            count = 0;
+            for (int file = 0; file < fingerprints.length; file++) {
+                if (fingerprints[file] == null) {
+                    continue;
+                }
+                int[] fingerprint = fingerprints[file];
+                for (int position = 0; position < fingerprint.length; position++) {
+                    int key = fingerprint[position] & mask;
+                    if (isSampled(key)) {
+                        keys[count++] = (long) key << 32 | (long) file << POSITION_BITS | position;
+                    }
+                }
+            }
+            Arrays.sort(keys);
+
+            for (int start = 0, end; start < count; start = end) {
+                long key = keys[start] >>> 32;
+                for (end = start; end < count && keys[end] >>> 32 == key; end++) {
+                    // ищем конец корзины
+                }
+                if (end - start > MAX_BUCKET) {
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    int first = (int) (keys[i] & 0xFFFFFFFFL) >>> POSITION_BITS;
+                    int firstPosition = (int) keys[i] & POSITION_MASK;
+                    for (int j = i + 1; j < end; j++) {
+                        int second = (int) (keys[j] & 0xFFFFFFFFL) >>> POSITION_BITS;
+                        int shift = ((int) keys[j] & POSITION_MASK) - firstPosition;
+                        // сравнение проверяет только сдвиги до MAX_SHIFT - остальные совпадения случайны
+                        if (second == first || Math.abs(shift) > MAX_SHIFT) {
+                            continue;
+                        }
+                        if (matchCount == matches.length) {
+                            matches = Arrays.copyOf(matches, matches.length * 2);
+                        }
+                        matches[matchCount++] = (long) first << (FILE_BITS + SHIFT_BITS + POSITION_BITS)
+                                | (long) second << (SHIFT_BITS + POSITION_BITS)
+                                | (long) (shift + MAX_SHIFT) << POSITION_BITS
+                                | firstPosition;
+                    }
+                }
+            }
+        }
+
+        // одно и то же значение может совпасть в нескольких таблицах - такие повторы не голосуют.
+        // голоса пары считаются в окне сдвигов шириной 3 шага
+        Arrays.sort(matches, 0, matchCount);
+        long[] pairs = new long[64];
+        int pairCount = 0;
+        int pairShift = SHIFT_BITS + POSITION_BITS;
+        for (int start = 0, end; start < matchCount; start = end) {
+            long pair = matches[start] >>> pairShift;
+            for (end = start; end < matchCount && matches[end] >>> pairShift == pair; end++) {
+                // ищем конец совпадений пары
+            }
+            int best = 0;
+            int votes = 0;
+            int windowStart = start;
+            for (int i = start; i < end; i++) {
+                if (i > start && matches[i] == matches[i - 1]) {
+                    continue;
+                }
+                votes++;
+                while (shiftOf(matches[i]) - shiftOf(matches[windowStart]) > 2) {
+                    if (windowStart == start || matches[windowStart] != matches[windowStart - 1]) {
+                        votes--;
+                    }
+                    windowStart++;
+                }
+                best = Math.max(best, votes);
+            }
+            if (best >= MIN_VOTES) {
+                if (pairCount == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[pairCount++] = (pair >>> FILE_BITS) << 32 | (pair & ((1L << FILE_BITS) - 1));
+            }
+        }
+        return Arrays.copyOf(pairs, pairCount);
+    }
+
+    private static int shiftOf(long match) {
+        return (int) (match >>> POSITION_BITS) & ((1 << SHIFT_BITS) - 1);
+    }
+
+    private static boolean isSampled(int key) {
+        return (key * 0x9E3779B9) >>> (32 - KEY_SAMPLING_BITS) == 0;
+    }
+
+    // маски таблиц: в каждой сброшены свои MASKED_BITS случайных бит из 32
+    private static int[] keyMasks() {
+        Random random = new Random(FINGERPRINT_VERSION);
+        int[] masks = new int[TABLES];
+        List<Integer> bits = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            bits.add(i);
+        }
+        for (int table = 0; table < TABLES; table++) {
+            Collections.shuffle(bits, random);
+            int mask = -1;
+            for (int i = 0; i < MASKED_BITS; i++) {
+                mask &= ~(1 << bits.get(i));
+            }
+            masks[table] = mask;
+        }
+        return masks;
+    }
+
+    // наименьшая доля различающихся бит по сдвигам до MAX_SHIFT; 1 - отпечатки несравнимы
+    static double bitErrorRate(int[] first, int[] second) {
+        double best = 1;
+        for (int shift = -MAX_SHIFT; shift <= MAX_SHIFT; shift++) {
+            int from = Math.max(0, -shift);
+            int to = Math.min(first.length, second.length - shift);
+            int overlap = to - from;
+            if (overlap < MIN_OVERLAP) {
+                continue;
+            }
+            int errors = 0;
+            for (int i = from; i < to; i++) {
+                errors += Integer.bitCount(first[i] ^ second[i + shift]);
+            }
+            best = Math.min(best, errors / (32.0 * overlap));
+        }
+        return best;
+    }
+
+    // отпечаток файла; пустой массив - звука для отпечатка нет (тишина, слишком короткий трек)
+    static int[] fingerprint(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE)) {
+            Bitstream bitstream = new Bitstream(in);
+            Fingerprinter fingerprinter = null;
+            try {
+                Header header = bitstream.readFrame();
+                if (header == null) {
+                    return new int[0];
+                }
+                int sampleRate = header.frequency();
+                Decoder decoder = new Decoder();
+                short[] mono = new short[Obuffer.OBUFFERSIZE];
+                fingerprinter = new Fingerprinter(sampleRate);
+                // декодируется только начало трека: тишина и окно отпечатка
+                int maxFrames = (int) Math.ceil((MAX_SILENCE_SECONDS + FINGERPRINT_SECONDS + 1) * 1000
+                        / header.ms_per_frame());
+                for (int i = 0; i < maxFrames && header != null && !fingerprinter.isComplete(); i++) {
+                    if (header.frequency() == sampleRate) {
+                        try {
+                            SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+                            fingerprinter.add(mono, PcmDownmix.downmix(output, mono));
+                        } catch (DecoderException | ArrayIndexOutOfBoundsException e) {
+                            // битый фрейм пропускаем, остальные декодируются как обычно
+                        }
+                    }
+                    bitstream.closeFrame();
+                    header = bitstream.readFrame();
+                }
+            } catch (BitstreamException e) {
+                // поток оборвался - отпечаток из того, что успели декодировать
+            }
+            return fingerprinter != null ? fingerprinter.result() : new int[0];
+        }
+    }
+
+    // потоковый отпечаток: после первой громкой выборки каждые hop отсчетов считается окно fft
+    // по последним отсчетам, энергии полос и 32 бита по сравнению с предыдущим окном
+    static final class Fingerprinter {
+
+        private final int hop;
+        private final int size;
+        private final int mask;
+        private final float[] window;
+        private final float[] ring;
+        private final BpmDetector.RealFft fft;
+        private final float[] magnitudes;
+        // границы полос в бинах fft
+        private final int[] edges = new int[BANDS + 1];
+        private final double[] differences = new double[BANDS - 1];
+        private final double[] previous = new double[BANDS - 1];
+        private boolean hasPrevious;
+        private final int maxSilence;
+        private int silence;
+        private boolean started;
+        private int position;
+        private int filled;
+        private int sinceHop;
+
+        private final int[] values = new int[MAX_FINGERPRINT_LENGTH];
+        private int length;
+
+        Fingerprinter(int sampleRate) {
+            hop = Math.max(1, Math.round(sampleRate / (float) FRAME_RATE));
+            size = Math.max(256, Integer.highestOneBit((int) (sampleRate * WINDOW_SECONDS)));
+            mask = size - 1;
+            window = new float[size];
+            for (int i = 0; i < size; i++) {
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+            }
+            ring = new float[size];
+            fft = new BpmDetector.RealFft(size);
+            magnitudes = new float[size / 2];
+            for (int band = 0; band <= BANDS; band++) {
+                double frequency = MIN_FREQUENCY * Math.pow(MAX_FREQUENCY / MIN_FREQUENCY, band / (double) BANDS);
+                int bin = (int) Math.round(frequency * size / sampleRate);
+                // у низких частот дискретизации полосы уже бина - каждая хотя бы в один бин
+                edges[band] = Math.min(magnitudes.length - BANDS - 1 + band,
+                        band > 0 ? Math.max(bin, edges[band - 1] + 1) : bin);
+            }
+            maxSilence = MAX_SILENCE_SECONDS * sampleRate;
+        }
+
+        boolean isComplete() {
+            return length == values.length || silence > maxSilence;
+        }
+
+        int[] result() {
+            return length >= MIN_FINGERPRINT_LENGTH ? Arrays.copyOf(values, length) : new int[0];
+        }
+
+        void add(short[] samples, int count) {
+            for (int i = 0; i < count && !isComplete(); i++) {
+                short sample = samples[i];
+                if (!started) {
+                    if (Math.abs(sample) < SILENCE_LEVEL) {
+                        silence++;
+                        continue;
+                    }
+                    started = true;
+                }
+                ring[position] = sample / 32768f;
+                position = (position + 1) & mask;
+                if (filled < size) {
+                    filled++;
+                }
+                if (++sinceHop == hop) {
+                    sinceHop = 0;
+                    if (filled == size) {
+                        frame();
+                    }
+                }
+            }
+        }
+
+        private void frame() {
+            // position указывает на самый старый отсчет окна
+            fft.magnitudes(ring, position, window, magnitudes);
+            double energy = bandEnergy(0);
+            for (int band = 0; band < BANDS - 1; band++) {
+                double next = bandEnergy(band + 1);
+                differences[band] = energy - next;
+                energy = next;
+            }
+            if (hasPrevious) {
+                int bits = 0;
+                for (int band = 0; band < BANDS - 1; band++) {
+                    if (differences[band] - previous[band] > 0) {
+                        bits |= 1 << band;
+                    }
+                }
+                values[length++] = bits;
+            }
+            System.arraycopy(differences, 0, previous, 0, differences.length);
+            hasPrevious = true;
+        }
+
+        private double bandEnergy(int band) {
+            double energy = 0;
+            for (int bin = edges[band]; bin < edges[band + 1]; bin++) {
+                energy += magnitudes[bin] * magnitudes[bin];
+            }
+            return energy;
+        }
+    }
+}
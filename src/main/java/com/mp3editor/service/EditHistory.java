@@ -0,0 +1,860 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// история правок тегов для отмены, повтора и отката целого пакета. каждый записанный файл
+// хранится как разница: старое и новое значение только изменившихся полей. обложки лежат
+// отдельно, в каталоге с именами по sha-256 содержимого, а в журнале остается только хэш -
+// обложка альбома на тысячу файлов хранится один раз. формат - журнал с дозаписью, как у индекса
+// тегов; пути файлов пишутся в него один раз и дальше идут номерами. в памяти держатся только
+// пакеты и смещения их записей, сами значения читаются с диска, когда пакет отменяют
+public class EditHistory implements Closeable {
+
+    // "MPHS" и версия формата
+    private static final int MAGIC = 0x4D504853;
+    private static final int FORMAT_VERSION = 1;
+
+    // типы записей журнала
+    private static final int RECORD_PATH = 1;
+    private static final int RECORD_CHANGE = 2;
+    private static final int RECORD_EDIT = 3;
+    private static final int RECORD_STATE = 4;
+
+    // биты полей в правке файла: текстовые поля по порядку, затем bpm и обложка
+    private static final int TEXT_FIELDS = 5;
+    private static final int FIELD_BPM = 1 << TEXT_FIELDS;
+    private static final int FIELD_COVER = 1 << (TEXT_FIELDS + 1);
+
+    // сколько правок файлов хранит история. старые пакеты отбрасываются при сжатии журнала,
+    // которое начинается, когда правок становится в полтора раза больше
+    private static final int MAX_EDITS = 100_000;
+
+    private final File logFile;
+    private final File coverDirectory;
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> pathIds = new HashMap<>();
+    // пакеты от старых к новым
+    private final List<Change> changes = new ArrayList<>();
+    private final Map<Integer, Change> changesById = new HashMap<>();
+    // отмененные пакеты, которые можно повторить, последний - ближайший.
+    // новый пакет правок очищает стек, как в любом редакторе
+    private final List<Change> redoStack = new ArrayList<>();
+    private int nextChangeId = 1;
+    private int editCount;
+    private boolean damaged;
+    private DataOutputStream log;
+    // смещение начала log в файле журнала
+    private long logBase;
+
+    private EditHistory(File logFile) {
+        this.logFile = logFile;
+        String name = logFile.getName();
+        int dot = name.lastIndexOf('.');
+        this.coverDirectory = new File(logFile.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + "-covers");
+    }
+
+    // расположение по умолчанию: ~/.mp3editor/history.bin, обложки - в ~/.mp3editor/history-covers
+    public static File defaultLocation() {
+        return new File(new File(System.getProperty("user.home"), ".mp3editor"), "history.bin");
+    }
+
+    // открывает историю, загружая из журнала список пакетов. здесь же отбрасываются лишние
+    // старые пакеты и удаляются обложки, на которые больше не ссылается ни одна правка
+    public static EditHistory open(File logFile) throws IOException {
+        EditHistory history = new EditHistory(logFile);
+        Files.createDirectories(history.coverDirectory.toPath());
+        if (logFile.exists()) {
+            history.load();
+        }
+        if (!logFile.exists() || history.damaged || history.editCount > MAX_EDITS) {
+            history.compact(true);
+        } else {
+            history.logBase = logFile.length();
+            history.log = openLog(logFile, true);
+        }
+        return history;
+    }
+
+    // пакеты истории от старых к новым
+    public synchronized List<Change> getChanges() {
+        return new ArrayList<>(changes);
+    }
+
+    // пакет, который отменит undo(), или null
+    public synchronized Change getUndoTarget() {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            if (!changes.get(i).undone) {
+                return changes.get(i);
+            }
+        }
+        return null;
+    }
+
+    // пакет, который повторит redo(), или null
+    public synchronized Change getRedoTarget() {
+        return redoStack.isEmpty() ? null : redoStack.get(redoStack.size() - 1);
+    }
+
+    // новый пакет правок: передается в BatchTagWriter.submit, который сохраняет разницу
+    // каждого записанного файла. пакет появляется в истории с первой реально измененной записью
+    public Recording record(String description) {
+        return new Recording(description, null, false, Collections.emptyList());
+    }
+
+    // отмена последнего неотмененного пакета или null, если отменять нечего. задачи возвращают
+    // файлам старые значения полей; пакет отмечается отмененным, если все они записались
+    public synchronized Recording undo() throws IOException {
+        Change target = getUndoTarget();
+        return target != null ? new Recording(null, target, true, jobs(target, true)) : null;
+    }
+
+    // повтор последнего отмененного пакета или null
+    public synchronized Recording redo() throws IOException {
+        Change target = getRedoTarget();
+        return target != null ? new Recording(null, target, false, jobs(target, false)) : null;
+    }
+
+    // откат любого пакета из истории: старые значения его полей записываются новым пакетом,
+    // который сам попадает в историю и отменяется как обычная правка
+    public synchronized Recording revert(Change change) throws IOException {
+        if (changesById.get(change.id) != change) {
+            throw new IOException("Change is no longer in the history: " + change.description);
+        }
+        return new Recording("Revert: " + change.description, null, false, jobs(change, true));
+    }
+
+    // сбрасывает буфер журнала на диск
+    public synchronized void flush() throws IOException {
+        log.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    // задачи, которые приводят файлы пакета к старым (restore) или новым значениям. это правки
+    // полей: файл, уже находящийся в нужном состоянии, не пишется, остальные получают только
+    // отличающиеся фреймы
+    private List<TagWriteJob> jobs(Change change, boolean restore) throws IOException {
+        // файл, записанный в пакете дважды, получает одно значение: при отмене самое старое
+        Map<String, Edit> byPath = new LinkedHashMap<>();
+        for (Edit edit : readEdits(change)) {
+            if (restore) {
+                byPath.putIfAbsent(edit.path, edit);
+            } else {
+                byPath.put(edit.path, edit);
+            }
+        }
+        List<TagWriteJob> jobs = new ArrayList<>(byPath.size());
+        for (Edit edit : byPath.values()) {
+            String[] text = restore ? edit.oldText : edit.newText;
+            TagChanges tagChanges = new TagChanges();
+            // пустая строка в TagChanges удаляет поле - этим и восстанавливается отсутствующее значение
+            if ((edit.fields & 1) != 0) {
+                tagChanges.setTitle(text[0]);
+            }
+            if ((edit.fields & 1 << 1) != 0) {
+                tagChanges.setArtist(text[1]);
+            }
+            if ((edit.fields & 1 << 2) != 0) {
+                tagChanges.setAlbum(text[2]);
+            }
+            if ((edit.fields & 1 << 3) != 0) {
+                tagChanges.setGenre(text[3]);
+            }
+            if ((edit.fields & 1 << 4) != 0) {
+                tagChanges.setYear(text[4]);
+            }
+            if ((edit.fields & FIELD_BPM) != 0) {
+                tagChanges.setBpm(restore ? edit.oldBpm : edit.newBpm);
+            }
+            if ((edit.fields & FIELD_COVER) != 0) {
+                StoredCover cover = restore ? edit.oldCover : edit.newCover;
+                tagChanges.setCoverArt(cover != null
+                        ? CoverArt.fromFile(new File(coverDirectory, cover.hash), 0, cover.length, cover.mimeType)
+                        : null);
+            }
+            jobs.add(new TagWriteJob(new File(edit.path), tagChanges));
+        }
+        return jobs;
+    }
+
+    // читает правки пакета из журнала по смещениям
+    private List<Edit> readEdits(Change change) throws IOException {
+        log.flush();
+        List<Edit> edits = new ArrayList<>(change.size);
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < change.size; i++) {
+                edits.add(readEdit(channel, change.offsets[i]));
+            }
+        }
+        return edits;
+    }
+
+    private Edit readEdit(FileChannel channel, long offset) throws IOException {
+        channel.position(offset);
+        // правка обычно короткая: маленький буфер на запись, чтобы не читать лишнего
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 512));
+        if (in.read() != RECORD_EDIT) {
+            throw new IOException("History log is damaged at offset " + offset);
+        }
+        in.readInt();
+        return readEdit(in);
+    }
+
+    // отмечает пакет отмененным или повторенным
+    private void setUndone(Change change, boolean undone) throws IOException {
+        if (!changesById.containsKey(change.id) || change.undone == undone) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(8);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            writeState(out, change.id, undone);
+        }
+        record.writeTo(log);
+        applyState(change, undone);
+    }
+
+    private void applyState(Change change, boolean undone) {
+        change.undone = undone;
+        redoStack.remove(change);
+        if (undone) {
+            redoStack.add(change);
+        }
+    }
+
+    // дописывает правку файла в журнал. пакет и путь файла пишутся перед первой своей правкой
+    private void append(Recording recording, Edit edit) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        Change change = recording.change;
+        Integer pathId = pathIds.get(edit.path);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            if (change == null) {
+                change = new Change(nextChangeId, recording.time, recording.description);
+                writeChange(out, change);
+            }
+            if (pathId == null) {
+                pathId = paths.size();
+                out.writeByte(RECORD_PATH);
+                out.writeUTF(edit.path);
+            }
+            long offset = logBase + log.size() + out.size();
+            writeEdit(out, change.id, pathId, edit);
+            change.add(offset);
+        } catch (UTFDataFormatException e) {
+            // значение длиннее 64 кб - такую правку просто не сохраняем
+            return;
+        }
+        record.writeTo(log);
+        if (recording.change == null) {
+            recording.change = change;
+            nextChangeId++;
+            changes.add(change);
+            changesById.put(change.id, change);
+            redoStack.clear();
+        }
+        if (pathId == paths.size()) {
+            paths.add(edit.path);
+            pathIds.put(edit.path, pathId);
+        }
+        editCount++;
+        if (editCount > MAX_EDITS + MAX_EDITS / 2) {
+            // обложки здесь не собираем: на них могут ссылаться правки, которые пишутся прямо сейчас
+            compact(false);
+        }
+    }
+
+    // загружает из журнала пакеты, таблицу путей и смещения правок
+    private void load() throws IOException {
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                Files.newInputStream(logFile.toPath()), 64 * 1024));
+             DataInputStream in = new DataInputStream(counter)) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                // чужой формат - начинаем с пустой истории
+                damaged = true;
+                return;
+            }
+            while (true) {
+                long offset = counter.position;
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type == RECORD_PATH) {
+                    String path = in.readUTF();
+                    pathIds.put(path, paths.size());
+                    paths.add(path);
+                } else if (type == RECORD_CHANGE) {
+                    Change change = new Change(in.readInt(), in.readLong(), in.readUTF());
+                    boolean undone = in.readBoolean();
+                    change.undone = undone;
+                    changes.add(change);
+                    changesById.put(change.id, change);
+                    nextChangeId = Math.max(nextChangeId, change.id + 1);
+                    redoStack.clear();
+                } else if (type == RECORD_EDIT) {
+                    Change change = changesById.get(in.readInt());
+                    skipEdit(in);
+                    if (change != null) {
+                        change.add(offset);
+                        editCount++;
+                    }
+                } else if (type == RECORD_STATE) {
+                    Change change = changesById.get(in.readInt());
+                    boolean undone = in.readBoolean();
+                    if (change != null) {
+                        applyState(change, undone);
+                    }
+                } else {
+                    throw new EOFException("Unknown history record " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // журнал оборван на середине записи - все полные записи уже загружены
+            damaged = true;
+        }
+    }
+
+    // переписывает журнал: остаются только новые пакеты в пределах MAX_EDITS правок,
+    // пути перенумеровываются. collectCovers - заодно удалить обложки без ссылок
+    private void compact(boolean collectCovers) throws IOException {
+        int first = changes.size();
+        int kept = 0;
+        while (first > 0 && (first == changes.size() || kept + changes.get(first - 1).size <= MAX_EDITS)) {
+            first--;
+            kept += changes.get(first).size;
+        }
+        for (Change dropped : changes.subList(0, first)) {
+            changesById.remove(dropped.id);
+            redoStack.remove(dropped);
+        }
+        changes.subList(0, first).clear();
+
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        List<String> newPaths = new ArrayList<>();
+        Map<String, Integer> newIds = new HashMap<>();
+        Set<String> covers = new HashSet<>();
+        Path target = logFile.toPath();
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), logFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = openLog(temp.toFile(), false);
+                 FileChannel old = changes.isEmpty() ? null : FileChannel.open(target, StandardOpenOption.READ)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                for (Change change : changes) {
+                    writeChange(out, change);
+                    long[] offsets = new long[Math.max(4, change.size)];
+                    for (int i = 0; i < change.size; i++) {
+                        Edit edit = readEdit(old, change.offsets[i]);
+                        Integer pathId = newIds.get(edit.path);
+                        if (pathId == null) {
+                            pathId = newPaths.size();
+                            newPaths.add(edit.path);
+                            newIds.put(edit.path, pathId);
+                            out.writeByte(RECORD_PATH);
+                            out.writeUTF(edit.path);
+                        }
+                        offsets[i] = out.size();
+                        writeEdit(out, change.id, pathId, edit);
+                        if (edit.oldCover != null) {
+                            covers.add(edit.oldCover.hash);
+                        }
+                        if (edit.newCover != null) {
+                            covers.add(edit.newCover.hash);
+                        }
+                    }
+                    change.offsets = offsets;
+                }
+                // стек повтора восстанавливается при загрузке в том же порядке
+                for (Change change : redoStack) {
+                    writeState(out, change.id, true);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        paths.clear();
+        paths.addAll(newPaths);
+        pathIds.clear();
+        pathIds.putAll(newIds);
+        editCount = kept;
+        damaged = false;
+        logBase = logFile.length();
+        log = openLog(logFile, true);
+
+        if (collectCovers) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(coverDirectory.toPath())) {
+                for (Path file : files) {
+                    if (!covers.contains(file.getFileName().toString())) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    // тело записи правки после номера пакета; путь берется из таблицы путей по номеру
+    private Edit readEdit(DataInputStream in) throws IOException {
+        int pathId = in.readInt();
+        if (pathId < 0 || pathId >= paths.size()) {
+            throw new EOFException("Invalid path id " + pathId);
+        }
+        Edit edit = new Edit(paths.get(pathId));
+        edit.fields = in.readUnsignedByte();
+        for (int i = 0; i < TEXT_FIELDS; i++) {
+            if ((edit.fields & 1 << i) != 0) {
+                edit.oldText[i] = readText(in);
+                edit.newText[i] = readText(in);
+            }
+        }
+        if ((edit.fields & FIELD_BPM) != 0) {
+            edit.oldBpm = in.readInt();
+            edit.newBpm = in.readInt();
+        }
+        if ((edit.fields & FIELD_COVER) != 0) {
+            edit.oldCover = readCover(in);
+            edit.newCover = readCover(in);
+        }
+        return edit;
+    }
+
+    // пропускает тело правки при загрузке, не собирая строк: значения понадобятся только при отмене
+    private void skipEdit(DataInputStream in) throws IOException {
+        int pathId = in.readInt();
+        if (pathId < 0 || pathId >= paths.size()) {
+            throw new EOFException("Invalid path id " + pathId);
+        }
+        int fields = in.readUnsignedByte();
+        for (int i = 0; i < TEXT_FIELDS; i++) {
+            if ((fields & 1 << i) != 0) {
+                for (int j = 0; j < 2; j++) {
+                    if (in.readBoolean()) {
+                        skipUtf(in);
+                    }
+                }
+            }
+        }
+        if ((fields & FIELD_BPM) != 0) {
+            skipFully(in, 8);
+        }
+        if ((fields & FIELD_COVER) != 0) {
+            for (int i = 0; i < 2; i++) {
+                if (in.readBoolean()) {
+                    skipUtf(in);
+                    skipUtf(in);
+                    skipFully(in, 4);
+                }
+            }
+        }
+    }
+
+    // строка writeUTF - длина и байты
+    private static void skipUtf(DataInputStream in) throws IOException {
+        skipFully(in, in.readUnsignedShort());
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        if (in.skipBytes(count) != count) {
+            throw new EOFException();
+        }
+    }
+
+    private static void writeEdit(DataOutputStream out, int changeId, int pathId, Edit edit) throws IOException {
+        out.writeByte(RECORD_EDIT);
+        out.writeInt(changeId);
+        out.writeInt(pathId);
+        out.writeByte(edit.fields);
+        for (int i = 0; i < TEXT_FIELDS; i++) {
+            if ((edit.fields & 1 << i) != 0) {
+                writeText(out, edit.oldText[i]);
+                writeText(out, edit.newText[i]);
+            }
+        }
+        if ((edit.fields & FIELD_BPM) != 0) {
+            out.writeInt(edit.oldBpm);
+            out.writeInt(edit.newBpm);
+        }
+        if ((edit.fields & FIELD_COVER) != 0) {
+            writeCover(out, edit.oldCover);
+            writeCover(out, edit.newCover);
+        }
+    }
+
+    private static void writeChange(DataOutputStream out, Change change) throws IOException {
+        out.writeByte(RECORD_CHANGE);
+        out.writeInt(change.id);
+        out.writeLong(change.time);
+        out.writeUTF(change.description);
+        out.writeBoolean(change.undone);
+    }
+
+    private static void writeState(DataOutputStream out, int changeId, boolean undone) throws IOException {
+        out.writeByte(RECORD_STATE);
+        out.writeInt(changeId);
+        out.writeBoolean(undone);
+    }
+
+    // отсутствующее значение - false без строки
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeCover(DataOutputStream out, StoredCover cover) throws IOException {
+        out.writeBoolean(cover != null);
+        if (cover != null) {
+            out.writeUTF(cover.hash);
+            out.writeUTF(cover.mimeType);
+            out.writeInt(cover.length);
+        }
+    }
+
+    private static StoredCover readCover(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new StoredCover(in.readUTF(), in.readUTF(), in.readInt()) : null;
+    }
+
+    private static DataOutputStream openLog(File file, boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 64 * 1024));
+    }
+
+    // кладет изображение в каталог обложек под именем sha-256; одинаковые байты хранятся один раз
+    private StoredCover storeCover(CoverArt cover) throws IOException {
+        byte[] data = cover.readBytes();
+        String hash = sha256(data);
+        Path file = new File(coverDirectory, hash).toPath();
+        if (!Files.exists(file)) {
+            Path temp = Files.createTempFile(coverDirectory.toPath(), hash, ".tmp");
+            try {
+                Files.write(temp, data);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return new StoredCover(hash, cover.getMimeType(), data.length);
+    }
+
+    private static String sha256(byte[] bytes) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // sha-256 обязателен в любой реализации java
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // пустая строка и отсутствующее поле в истории - одно и то же
+    private static String nullIfEmpty(String value) {
+        return value != null && !value.isEmpty() ? value : null;
+    }
+
+    private static String[] texts(MP3Metadata metadata) {
+        return new String[]{metadata.getTitle(), metadata.getArtist(), metadata.getAlbum(),
+                metadata.getGenre(), metadata.getYear()};
+    }
+
+    private static boolean sameCover(CoverArt a, CoverArt b) throws IOException {
+        if (a == b) {
+            return true;
+        }
+        // две ссылки на один участок одного файла
+        if (a != null && b != null && a.getFile() != null && a.getFile().equals(b.getFile())
+                && a.getOffset() == b.getOffset() && a.getLength() == b.getLength()) {
+            return true;
+        }
+        return TagChanges.sameImage(a, b);
+    }
+
+    // один пакет правок в истории
+    public static final class Change {
+
+        private final int id;
+        private final long time;
+        private final String description;
+        // смещения правок файлов в журнале
+        private long[] offsets = new long[4];
+        private volatile int size;
+        private volatile boolean undone;
+
+        private Change(int id, long time, String description) {
+            this.id = id;
+            this.time = time;
+            this.description = description;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public int getFileCount() {
+            return size;
+        }
+
+        public boolean isUndone() {
+            return undone;
+        }
+
+        private void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" +
+                    "id=" + id +
+                    ", description='" + description + '\'' +
+                    ", files=" + size +
+                    ", undone=" + undone +
+                    '}';
+        }
+    }
+
+    // сторона истории у одного пакета записи: новый пакет правок, откат или отмена/повтор
+    // существующего пакета. задачи записи для отмены и повтора уже собраны в getJobs()
+    public final class Recording {
+
+        // null - записи пакета в историю не попадают (отмена и повтор)
+        private final String description;
+        private final long time = System.currentTimeMillis();
+        // пакет, который отменяется (undo = true) или повторяется
+        private final Change target;
+        private final boolean undo;
+        private final List<TagWriteJob> jobs;
+        // пакет в истории, создается при первой правке
+        private Change change;
+        // уже сохраненные новые обложки по идентичности: задачи альбома делят один объект
+        private final Map<CoverArt, StoredCover> storedCovers = new IdentityHashMap<>();
+
+        private Recording(String description, Change target, boolean undo, List<TagWriteJob> jobs) {
+            this.description = description;
+            this.target = target;
+            this.undo = undo;
+            this.jobs = jobs;
+        }
+
+        public List<TagWriteJob> getJobs() {
+            return jobs;
+        }
+
+        // обложка из каталога истории: ее байты уже были в файле, и писать их нужно как есть
+        boolean isStoredCover(CoverArt cover) {
+            return cover != null && cover.getFile() != null
+                    && coverDirectory.equals(cover.getFile().getParentFile());
+        }
+
+        // сравнивает теги файла до записи с записываемыми и сохраняет обложки изменившейся
+        // правки; вызывается до записи, пока старая обложка еще лежит в файле. null - сохранять нечего
+        Edit prepare(File file, MP3Metadata before, MP3Metadata written) throws IOException {
+            if (description == null) {
+                return null;
+            }
+            Edit edit = new Edit(file.getAbsolutePath());
+            String[] oldText = texts(before);
+            String[] newText = texts(written);
+            for (int i = 0; i < TEXT_FIELDS; i++) {
+                // null в записываемых метаданных - поле не меняется
+                if (newText[i] == null) {
+                    continue;
+                }
+                String oldValue = nullIfEmpty(oldText[i]);
+                String newValue = nullIfEmpty(newText[i]);
+                if (!Objects.equals(oldValue, newValue)) {
+                    edit.fields |= 1 << i;
+                    edit.oldText[i] = oldValue;
+                    edit.newText[i] = newValue;
+                }
+            }
+            if (written.getBpm() != null) {
+                int oldBpm = before.getBpm() != null ? before.getBpm() : 0;
+                int newBpm = Math.max(0, written.getBpm());
+                if (oldBpm != newBpm) {
+                    edit.fields |= FIELD_BPM;
+                    edit.oldBpm = oldBpm;
+                    edit.newBpm = newBpm;
+                }
+            }
+            // writer всегда пишет переданную обложку, так что null здесь тоже значение
+            CoverArt oldCover = before.getCoverArt();
+            CoverArt newCover = written.getCoverArt();
+            if (!sameCover(oldCover, newCover)) {
+                edit.fields |= FIELD_COVER;
+                edit.oldCover = oldCover != null && oldCover.getLength() > 0 ? storeCover(oldCover) : null;
+                edit.newCover = newCover != null && newCover.getLength() > 0 ? storeNewCover(newCover) : null;
+            }
+            return edit.fields != 0 ? edit : null;
+        }
+
+        private StoredCover storeNewCover(CoverArt cover) throws IOException {
+            synchronized (storedCovers) {
+                StoredCover stored = storedCovers.get(cover);
+                if (stored == null) {
+                    stored = storeCover(cover);
+                    storedCovers.put(cover, stored);
+                }
+                return stored;
+            }
+        }
+
+        // сохраняет правку файла, который записан успешно
+        void commit(Edit edit) throws IOException {
+            synchronized (EditHistory.this) {
+                if (log != null) {
+                    append(this, edit);
+                }
+            }
+        }
+
+        // пакет записи завершен: отмена и повтор меняют состояние пакета, только если все
+        // файлы записались - иначе их можно запустить еще раз, уже записанные файлы пропустятся
+        void finish(int failed, boolean cancelled) {
+            synchronized (EditHistory.this) {
+                if (log == null) {
+                    return;
+                }
+                try {
+                    if (target != null && failed == 0 && !cancelled) {
+                        setUndone(target, undo);
+                    }
+                    log.flush();
+                } catch (IOException e) {
+                    // файлы уже записаны, теряется только возможность их отменить
+                }
+            }
+        }
+    }
+
+    // правка одного файла: старые и новые значения полей, отмеченных в fields
+    static final class Edit {
+
+        private final String path;
+        private int fields;
+        private final String[] oldText = new String[TEXT_FIELDS];
+        private final String[] newText = new String[TEXT_FIELDS];
+        // 0 - bpm нет
+        private int oldBpm;
+        private int newBpm;
+        // null - обложки нет
+        private StoredCover oldCover;
+        private StoredCover newCover;
+
+        private Edit(String path) {
+            this.path = path;
+        }
+    }
+
+    // обложка в каталоге истории: имя файла - sha-256 байтов
+    private static final class StoredCover {
+
+        private final String hash;
+        private final String mimeType;
+        private final int length;
+
+        private StoredCover(String hash, String mimeType, int length) {
+            this.hash = hash;
+            this.mimeType = mimeType;
+            this.length = length;
+        }
+    }
+
+    // считает прочитанные байты, чтобы знать смещение каждой записи журнала
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long position;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                position++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            position += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.mp3editor.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// акустические отпечатки файлов на диске с отпечатком файла (размер + время изменения), чтобы
+// повторный поиск дубликатов декодировал только новые и измененные файлы. формат - журнал
+// с дозаписью, как у индекса тегов; последняя запись для пути побеждает
+public class FingerprintStore implements Closeable {
+
+    // "MPFP" и версия формата; отпечаток другой версии алгоритма несравним с новыми, поэтому
+    // при смене DuplicateFinder.FINGERPRINT_VERSION все отпечатки считаются заново
+    private static final int MAGIC = 0x4D504650;
+    private static final int FORMAT_VERSION = 1;
+
+    // журнал сжимается, когда мертвых записей становится больше живых (но не раньше этого порога)
+    private static final int COMPACTION_THRESHOLD = 1_000;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private DataOutputStream log;
+    private int logRecords;
+
+    private FingerprintStore(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    // расположение по умолчанию: ~/.mp3editor/fingerprints.bin
+    public static File defaultLocation() {
+        return new File(new File(System.getProperty("user.home"), ".mp3editor"), "fingerprints.bin");
+    }
+
+    // открывает хранилище, загружая журнал целиком. отпечатки удаленных с диска файлов
+    // отбрасываются здесь же: других поводов их убрать у хранилища нет
+    public static FingerprintStore open(File indexFile) throws IOException {
+        FingerprintStore store = new FingerprintStore(indexFile);
+        File directory = indexFile.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        if (indexFile.exists()) {
+            store.load();
+        }
+        boolean removed = false;
+        for (Iterator<String> paths = store.entries.keySet().iterator(); paths.hasNext(); ) {
+            if (!new File(paths.next()).isFile()) {
+                paths.remove();
+                removed = true;
+            }
+        }
+        if (!indexFile.exists() || removed || store.logRecords < 0
+                || store.logRecords > Math.max(COMPACTION_THRESHOLD, 2 * store.entries.size())) {
+            store.compact();
+        } else {
+            store.log = openLog(indexFile, true);
+        }
+        return store;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // отпечаток файла, если он посчитан для текущего состояния файла на диске; иначе null.
+    // пустой массив - файл уже пробовали, но звука для отпечатка в нем нет
+    public synchronized int[] get(File file, long length, long lastModified) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+            return null;
+        }
+        return entry.fingerprint;
+    }
+
+    // запоминает отпечаток файла вместе с отпечатком его состояния на диске
+    public synchronized void put(File file, long length, long lastModified, int[] fingerprint) throws IOException {
+        String path = file.getAbsolutePath();
+        // запись собираем заранее, чтобы ошибка сериализации не оставила в журнале обрывок
+        ByteArrayOutputStream record = new ByteArrayOutputStream(16 + 4 * fingerprint.length + path.length());
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeUTF(path);
+            writeEntry(out, length, lastModified, fingerprint);
+        } catch (UTFDataFormatException e) {
+            // путь длиннее 64 кб - такой файл просто не сохраняем
+            return;
+        }
+        entries.put(path, new Entry(length, lastModified, fingerprint));
+        record.writeTo(log);
+        logRecords++;
+        if (logRecords > Math.max(COMPACTION_THRESHOLD, 2 * entries.size())) {
+            log.close();
+            compact();
+        }
+    }
+
+    // сбрасывает буфер журнала на диск
+    public synchronized void flush() throws IOException {
+        log.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    // загружает журнал в память
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(indexFile.toPath()), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != DuplicateFinder.FINGERPRINT_VERSION) {
+                // чужой формат или старый алгоритм - начинаем с пустого хранилища
+                entries.clear();
+                logRecords = -1;
+                return;
+            }
+            while (true) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                entries.put(path, readEntry(in));
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            // журнал оборван на середине записи - все полные записи уже загружены
+            logRecords = -1;
+        }
+    }
+
+    // переписывает журнал снимком текущего состояния через временный файл
+    private void compact() throws IOException {
+        Path target = indexFile.toPath();
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), indexFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = openLog(temp.toFile(), false)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(DuplicateFinder.FINGERPRINT_VERSION);
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    writeEntry(out, entry.length, entry.lastModified, entry.fingerprint);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        logRecords = entries.size();
+        log = openLog(indexFile, true);
+    }
+
+    private static DataOutputStream openLog(File file, boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 64 * 1024));
+    }
+
+    private static void writeEntry(DataOutputStream out, long length, long lastModified,
+                                   int[] fingerprint) throws IOException {
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.writeInt(fingerprint.length);
+        for (int value : fingerprint) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > DuplicateFinder.MAX_FINGERPRINT_LENGTH) {
+            throw new EOFException("Invalid fingerprint length " + count);
+        }
+        int[] fingerprint = new int[count];
+        for (int i = 0; i < count; i++) {
+            fingerprint[i] = in.readInt();
+        }
+        return new Entry(length, lastModified, fingerprint);
+    }
+
+    private static final class Entry {
+
+        private final long length;
+        private final long lastModified;
+        private final int[] fingerprint;
+
+        private Entry(long length, long lastModified, int[] fingerprint) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
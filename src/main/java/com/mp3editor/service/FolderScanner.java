@@ -0,0 +1,210 @@
+package com.mp3editor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// рекурсивный поиск mp3 файлов в каталогах: каждый подкаталог обходится отдельной fork-join задачей,
+// найденные файлы отдаются потребителю пачками, а не по одному
+public class FolderScanner {
+
+    // сколько файлов копить перед отправкой пачки
+    public static final int DEFAULT_CHUNK_SIZE = 512;
+    // пачка отправляется и по времени, чтобы список рос на глазах даже при медленном обходе
+    private static final long FLUSH_INTERVAL_NANOS = 200_000_000L;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public FolderScanner() {
+        // обход каталогов упирается в ввод-вывод, поэтому потоков больше, чем ядер
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2), DEFAULT_CHUNK_SIZE);
+    }
+
+    public FolderScanner(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    // запускает обход и сразу возвращает управление; пачки приходят в consumer из рабочих потоков
+    public Scan scan(List<File> roots, Consumer<List<File>> chunkConsumer) {
+        Scan scan = new Scan(chunkConsumer);
+        CompletableFuture.runAsync(() -> {
+            List<DirectoryTask> tasks = new ArrayList<>();
+            for (File root : roots) {
+                tasks.add(new DirectoryTask(root.toPath(), scan));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }, pool).whenComplete((ignored, error) -> {
+            // остаток отдаем в любом случае, даже если обход прерван
+            scan.flush();
+            if (error != null) {
+                scan.completion.completeExceptionally(error);
+            } else {
+                scan.completion.complete(scan.found.get());
+            }
+        });
+        return scan;
+    }
+
+    // проверяет, что файл действительно mp3: id3v2 заголовок или синхрослово mpeg фрейма
+    public static boolean isMp3(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            byte[] magic = buffer.array();
+            if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+                return true;
+            }
+            return isFrameHeader(magic);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // 11 бит синхронизации, допустимые layer, битрейт и частота дискретизации
+    private static boolean isFrameHeader(byte[] header) {
+        if ((header[0] & 0xFF) != 0xFF || (header[1] & 0xE0) != 0xE0) {
+            return false;
+        }
+        int version = (header[1] >> 3) & 0x03;
+        int layer = (header[1] >> 1) & 0x03;
+        int bitrateIndex = (header[2] >> 4) & 0x0F;
+        int sampleRateIndex = (header[2] >> 2) & 0x03;
+        return version != 1 && layer != 0 && bitrateIndex != 0x0F && sampleRateIndex != 0x03;
+    }
+
+    private static boolean hasMp3Extension(Path path) {
+        String name = path.getFileName().toString();
+        return name.length() > 4 && name.regionMatches(true, name.length() - 4, ".mp3", 0, 4);
+    }
+
+    // один запущенный обход: счетчик найденных файлов, отмена и буфер пачки
+    public class Scan {
+
+        private final Consumer<List<File>> chunkConsumer;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger found = new AtomicInteger();
+        private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+
+        private List<File> buffer = new ArrayList<>();
+        private long lastFlush = System.nanoTime();
+
+        private Scan(Consumer<List<File>> chunkConsumer) {
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        // останавливает обход; уже найденные файлы все равно будут отданы
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public int getFound() {
+            return found.get();
+        }
+
+        // завершается числом найденных файлов после отправки последней пачки
+        public CompletableFuture<Integer> completion() {
+            return completion;
+        }
+
+        private void add(File file) {
+            found.incrementAndGet();
+            List<File> ready = null;
+            synchronized (this) {
+                buffer.add(file);
+                if (buffer.size() >= chunkSize || System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                    ready = takeBuffer();
+                }
+            }
+            // потребителя вызываем вне блокировки, остальные потоки продолжают копить
+            if (ready != null) {
+                chunkConsumer.accept(ready);
+            }
+        }
+
+        private void flush() {
+            List<File> ready;
+            synchronized (this) {
+                ready = takeBuffer();
+            }
+            if (!ready.isEmpty()) {
+                chunkConsumer.accept(ready);
+            }
+        }
+
+        private List<File> takeBuffer() {
+            List<File> ready = buffer;
+            buffer = new ArrayList<>();
+            lastFlush = System.nanoTime();
+            return ready;
+        }
+    }
+
+    // обход одного каталога: файлы проверяются сразу, подкаталоги уходят в отдельные задачи
+    private static class DirectoryTask extends RecursiveAction {
+
+        private final Path directory;
+        private final Scan scan;
+
+        DirectoryTask(Path directory, Scan scan) {
+            this.directory = directory;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            if (scan.isCancelled()) {
+                return;
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (scan.isCancelled()) {
+                        break;
+                    }
+                    BasicFileAttributes attributes;
+                    try {
+                        // по символическим ссылкам на каталоги не ходим, чтобы не зациклиться
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new DirectoryTask(entry, scan));
+                    } else if (hasMp3Extension(entry) && isMp3(entry)) {
+                        scan.add(entry.toFile());
+                    }
+                }
+            } catch (IOException e) {
+                // недоступный каталог пропускаем, остальные обходим дальше
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.mp3editor.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// низкоуровневое чтение сырых тегов из начала и конца mp3 файла без сканирования аудиофреймов
+final class ID3TagReader {
+
+    // размер заголовка (и футера) id3v2
+    static final int ID3V2_HEADER_LENGTH = 10;
+    // фиксированный размер тега id3v1 в конце файла
+    static final int ID3V1_LENGTH = 128;
+
+    // размер заголовка фрейма в id3v2.3 и id3v2.4
+    static final int FRAME_HEADER_LENGTH = 10;
+
+    // флаги заголовка id3v2
+    static final int UNSYNCHRONISATION_FLAG = 0x80;
+    static final int EXTENDED_HEADER_FLAG = 0x40;
+    static final int FOOTER_FLAG = 0x10;
+
+    // сколько байт тега читать первым запросом
+    private static final int CHUNK_LENGTH = 16 * 1024;
+    // сколько байт начала apic фрейма читать, чтобы найти mime тип и описание
+    static final int PICTURE_PREFIX_LENGTH = 1024;
+
+    private ID3TagReader() {
+    }
+
+    // читает id3v2 тег из начала файла; null если тега нет.
+    // байты изображения первого apic фрейма не читаются: вместо них запоминается их положение в файле
+    static Id3v2Region readId3v2Region(FileChannel channel) throws IOException {
+        if (channel.size() < ID3V2_HEADER_LENGTH) {
+            return null;
+        }
+
+        // читаем только 10 байт заголовка, чтобы узнать размер тега
+        ByteBuffer header = ByteBuffer.allocate(ID3V2_HEADER_LENGTH);
+        readFully(channel, header, 0);
+        byte[] headerBytes = header.array();
+        if (!isId3v2Header(headerBytes)) {
+            return null;
+        }
+
+        int tagEnd = ID3V2_HEADER_LENGTH + unpackSynchsafe(headerBytes, 6);
+        boolean footer = (headerBytes[5] & FOOTER_FLAG) != 0;
+        int regionLength = footer ? tagEnd + ID3V2_HEADER_LENGTH : tagEnd;
+        // битый заголовок, указывающий за конец файла - считаем что тега нет
+        if (regionLength > channel.size()) {
+            return null;
+        }
+
+        // первые килобайты тега читаем одним запросом - обычно там все текстовые фреймы
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(tagEnd, CHUNK_LENGTH));
+        readFully(channel, chunk, 0);
+        byte[] chunkBytes = chunk.array();
+
+        // фреймы разбираем сами только для 2.3/2.4 без общей десинхронизации и расширенного заголовка
+        int majorVersion = headerBytes[3];
+        boolean walkable = (majorVersion == 3 || majorVersion == 4)
+                && (headerBytes[5] & (UNSYNCHRONISATION_FLAG | EXTENDED_HEADER_FLAG)) == 0;
+        if (!walkable) {
+            byte[] tagBytes = readRange(channel, chunkBytes, 0, regionLength);
+            return new Id3v2Region(tagBytes, regionLength, footer, -1, 0, null);
+        }
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(chunkBytes.length);
+        // футер не копируем, поэтому и флаг его наличия снимаем
+        frames.write(headerBytes, 0, 5);
+        frames.write(headerBytes[5] & ~FOOTER_FLAG);
+        frames.write(headerBytes, 6, 4);
+
+        long pictureOffset = -1;
+        int pictureLength = 0;
+        String pictureMimeType = null;
+        boolean pictureKept = false;
+
+        int position = ID3V2_HEADER_LENGTH;
+        while (position + FRAME_HEADER_LENGTH <= tagEnd) {
+            byte[] frameHeader = readRange(channel, chunkBytes, position, FRAME_HEADER_LENGTH);
+            // нулевой байт вместо id фрейма - начался padding
+            if (frameHeader[0] == 0) {
+                break;
+            }
+            int frameSize = majorVersion == 4
+                    ? unpackSynchsafe(frameHeader, 4)
+                    : ByteBuffer.wrap(frameHeader, 4, 4).getInt();
+            int frameEnd = position + FRAME_HEADER_LENGTH + frameSize;
+            // битый размер фрейма: остальное не разбираем
+            if (frameSize < 0 || frameEnd > tagEnd) {
+                break;
+            }
+
+            if (isPictureFrame(frameHeader)) {
+                // остальные изображения модель не использует - пропускаем, не читая
+                if (pictureKept) {
+                    position = frameEnd;
+                    continue;
+                }
+                pictureKept = true;
+                // первую обложку без сжатия и шифрования оставляем на диске
+                if (frameHeader[9] == 0) {
+                    int payloadStart = position + FRAME_HEADER_LENGTH;
+                    byte[] prefix = readRange(channel, chunkBytes, payloadStart,
+                            Math.min(frameSize, PICTURE_PREFIX_LENGTH));
+                    int dataStart = pictureDataStart(prefix);
+                    if (dataStart >= 0) {
+                        pictureOffset = payloadStart + dataStart;
+                        pictureLength = frameSize - dataStart;
+                        pictureMimeType = pictureMimeType(prefix);
+                        position = frameEnd;
+                        continue;
+                    }
+                }
+                // нестандартный фрейм копируем как есть - его разберет mp3agic
+            }
+
+            frames.write(readRange(channel, chunkBytes, position, frameEnd - position));
+            position = frameEnd;
+        }
+
+        // размер в заголовке теперь описывает только скопированные фреймы
+        byte[] tagBytes = frames.toByteArray();
+        ID3TagWriter.packSynchsafe(tagBytes.length - ID3V2_HEADER_LENGTH, tagBytes, 6);
+        return new Id3v2Region(tagBytes, regionLength, footer, pictureOffset, pictureLength, pictureMimeType);
+    }
+
+    // читает 128 байт id3v1 тега в конце файла; null если тега нет
+    static byte[] readId3v1Bytes(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < ID3V1_LENGTH) {
+            return null;
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(ID3V1_LENGTH);
+        readFully(channel, trailer, size - ID3V1_LENGTH);
+        byte[] bytes = trailer.array();
+        // id3v1 всегда начинается с сигнатуры "TAG"
+        if (bytes[0] != 'T' || bytes[1] != 'A' || bytes[2] != 'G') {
+            return null;
+        }
+        return bytes;
+    }
+
+    // id фрейма "APIC" (изображение)
+    private static boolean isPictureFrame(byte[] frameHeader) {
+        return frameHeader[0] == 'A' && frameHeader[1] == 'P' && frameHeader[2] == 'I' && frameHeader[3] == 'C';
+    }
+
+    // смещение байтов изображения внутри apic фрейма; -1 если служебная часть не поместилась в префикс
+    static int pictureDataStart(byte[] payload) {
+        return ID3v2FrameReader.pictureDataStart(payload, 0, payload.length, false);
+    }
+
+    // mime тип из начала apic фрейма
+    static String pictureMimeType(byte[] payload) {
+        return ID3v2FrameReader.pictureMimeType(payload, 0, payload.length, false);
+    }
+
+    // отдает участок тега из уже прочитанного начала или дочитывает его с диска
+    private static byte[] readRange(FileChannel channel, byte[] chunk, int position, int length) throws IOException {
+        if (position + length <= chunk.length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(chunk, position, bytes, 0, length);
+            return bytes;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, position);
+        return buffer.array();
+    }
+
+    // проверяет сигнатуру "ID3" и корректность полей заголовка
+    static boolean isId3v2Header(byte[] header) {
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return false;
+        }
+        // версия и ревизия не могут быть 0xFF
+        if (header[3] == (byte) 0xFF || header[4] == (byte) 0xFF) {
+            return false;
+        }
+        // в synchsafe размере старший бит каждого байта всегда 0
+        for (int i = 6; i < 10; i++) {
+            if ((header[i] & 0x80) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // разбирает 28-битное synchsafe число (по 7 бит в каждом байте)
+    static int unpackSynchsafe(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0x7F) << 21)
+                | ((bytes[offset + 1] & 0x7F) << 14)
+                | ((bytes[offset + 2] & 0x7F) << 7)
+                | (bytes[offset + 3] & 0x7F);
+    }
+
+    // дочитывает буфер до конца начиная с указанной позиции файла
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += read;
+        }
+    }
+
+    // id3v2 тег, прочитанный из начала файла
+    static final class Id3v2Region {
+
+        // заголовок + фреймы без вынесенной обложки, пригодно для ID3v2TagFactory
+        final byte[] tagBytes;
+        // полный размер тега в файле вместе с padding и футером
+        final int regionLength;
+        final boolean footer;
+
+        // положение байтов изображения в файле; -1 если обложка не вынесена
+        final long pictureOffset;
+        final int pictureLength;
+        final String pictureMimeType;
+
+        Id3v2Region(byte[] tagBytes, int regionLength, boolean footer,
+                    long pictureOffset, int pictureLength, String pictureMimeType) {
+            this.tagBytes = tagBytes;
+            this.regionLength = regionLength;
+            this.footer = footer;
+            this.pictureOffset = pictureOffset;
+            this.pictureLength = pictureLength;
+            this.pictureMimeType = pictureMimeType;
+        }
+    }
+}
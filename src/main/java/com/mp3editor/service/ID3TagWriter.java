@@ -0,0 +1,404 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.model.ReplayGain;
+import com.mpatric.mp3agic.AbstractID3v2Tag;
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.NotSupportedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// низкоуровневая запись тегов: перезапись области тега на месте или потоковое копирование аудио
+final class ID3TagWriter {
+
+    // запас padding по умолчанию при полной перезаписи, чтобы следующие правки шли на месте
+    static final int DEFAULT_PADDING_RESERVE = 2048;
+
+    // тип картинки "передняя обложка" в apic фрейме
+    private static final byte PICTURE_TYPE_FRONT_COVER = 3;
+    // максимальный размер тега, который помещается в 28-битное synchsafe поле
+    private static final long MAX_TAG_LENGTH = 0x0FFFFFFFL;
+    // права нового файла, если права исходного прочитать не удалось: rw-r--r--
+    private static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+    // общее начало описаний txxx фреймов replaygain
+    private static final String REPLAY_GAIN_PREFIX = "REPLAYGAIN_";
+
+    private ID3TagWriter() {
+    }
+
+    // сериализует тег без padding и футера: заголовок + фреймы
+    static byte[] serialize(ID3v2 tag) throws NotSupportedException {
+        AbstractID3v2Tag abstractTag = (AbstractID3v2Tag) tag;
+        abstractTag.setPadding(false);
+        abstractTag.setFooter(false);
+        return abstractTag.toBytes();
+    }
+
+    // собирает тег из фреймов старого: поля модели со значением заменяют свои фреймы (пустая строка
+    // и bpm <= 0 просто удаляют их), null оставляет фрейм как есть, остальные фреймы копируются байт в байт.
+    // изображения всегда удаляются - обложка дописывается отдельным apic фреймом.
+    // заданный replaygain заменяет все txxx фреймы replaygain старого тега.
+    // тег, который нельзя пересобрать (v2.2), переводится в v2.4: из него сохраняются только поля модели
+    static byte[] buildTag(ID3v2FrameReader.Tag oldTag, MP3Metadata metadata) {
+        boolean copyFrames = oldTag != null && oldTag.isRewritable();
+        if (oldTag != null && !copyFrames) {
+            metadata = withOldValues(metadata, oldTag);
+        }
+        int majorVersion = copyFrames ? oldTag.majorVersion : 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        // заголовок без флагов: расширенный заголовок (с устаревшим crc) и футер не переносим
+        out.write('I');
+        out.write('D');
+        out.write('3');
+        out.write(majorVersion);
+        out.write(0);
+        out.write(0);
+        out.writeBytes(new byte[4]);
+
+        if (copyFrames) {
+            for (ID3v2FrameReader.RawFrame frame : oldTag.frames) {
+                if (frame.isDiscardedOnTagAlter() || isReplaced(frame, metadata)) {
+                    continue;
+                }
+                out.writeBytes(frame.bytes);
+            }
+        }
+        writeTextFrame(out, majorVersion, "TIT2", metadata.getTitle());
+        writeTextFrame(out, majorVersion, "TPE1", metadata.getArtist());
+        writeTextFrame(out, majorVersion, "TALB", metadata.getAlbum());
+        writeTextFrame(out, majorVersion, majorVersion == 4 ? "TDRC" : "TYER", metadata.getYear());
+        writeTextFrame(out, majorVersion, "TCON", metadata.getGenre());
+        Integer bpm = metadata.getBpm();
+        writeTextFrame(out, majorVersion, "TBPM", bpm != null && bpm > 0 ? bpm.toString() : null);
+        if (metadata.getReplayGain() != null) {
+            for (Map.Entry<String, String> field : replayGainFields(metadata.getReplayGain()).entrySet()) {
+                writeFrame(out, majorVersion, "TXXX", userTextFrameData(field.getKey(), field.getValue()));
+            }
+        }
+
+        byte[] tag = out.toByteArray();
+        packSynchsafe(tag.length - ID3TagReader.ID3V2_HEADER_LENGTH, tag, 6);
+        return tag;
+    }
+
+    // незаданные поля модели берутся из старого тега
+    private static MP3Metadata withOldValues(MP3Metadata metadata, ID3v2FrameReader.Tag oldTag) {
+        MP3Metadata merged = new MP3Metadata(
+                metadata.getTitle() != null ? metadata.getTitle() : oldTag.title,
+                metadata.getArtist() != null ? metadata.getArtist() : oldTag.artist,
+                metadata.getAlbum() != null ? metadata.getAlbum() : oldTag.album,
+                metadata.getGenre() != null ? metadata.getGenre() : oldTag.genre,
+                metadata.getYear() != null ? metadata.getYear() : oldTag.getYear(),
+                metadata.getBpm() != null ? metadata.getBpm() : oldTag.bpm);
+        merged.setCoverArt(metadata.getCoverArt());
+        merged.setReplayGain(metadata.getReplayGain());
+        return merged;
+    }
+
+    // фрейм поля, для которого в модели задано новое значение
+    private static boolean isReplaced(ID3v2FrameReader.RawFrame frame, MP3Metadata metadata) {
+        return (metadata.getTitle() != null && frame.hasId("TIT2"))
+                || (metadata.getArtist() != null && frame.hasId("TPE1"))
+                || (metadata.getAlbum() != null && frame.hasId("TALB"))
+                || (metadata.getYear() != null && (frame.hasId("TYER") || frame.hasId("TDRC")))
+                || (metadata.getGenre() != null && frame.hasId("TCON"))
+                || (metadata.getBpm() != null && frame.hasId("TBPM"))
+                || (metadata.getReplayGain() != null && frame.isReplayGain());
+    }
+
+    // описание txxx фрейма, который относится к replaygain (в том числе от других программ)
+    static boolean isReplayGainDescription(String description) {
+        return description.regionMatches(true, 0, REPLAY_GAIN_PREFIX, 0, REPLAY_GAIN_PREFIX.length());
+    }
+
+    // описания и значения txxx фреймов replaygain в общепринятом виде: "-6.52 dB" и "0.988553";
+    // альбомные фреймы пишутся только для трека с альбомом
+    static Map<String, String> replayGainFields(ReplayGain replayGain) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("REPLAYGAIN_TRACK_GAIN", formatGain(replayGain.getTrackGain()));
+        fields.put("REPLAYGAIN_TRACK_PEAK", formatPeak(replayGain.getTrackPeak()));
+        if (replayGain.getAlbumGain() != null && replayGain.getAlbumPeak() != null) {
+            fields.put("REPLAYGAIN_ALBUM_GAIN", formatGain(replayGain.getAlbumGain()));
+            fields.put("REPLAYGAIN_ALBUM_PEAK", formatPeak(replayGain.getAlbumPeak()));
+        }
+        return fields;
+    }
+
+    private static String formatGain(double gain) {
+        return String.format(Locale.ROOT, "%.2f dB", gain);
+    }
+
+    private static String formatPeak(double peak) {
+        return String.format(Locale.ROOT, "%.6f", peak);
+    }
+
+    // данные txxx фрейма: описание и значение в iso-8859-1 (у replaygain они всегда латиницей)
+    static byte[] userTextFrameData(String description, String value) {
+        byte[] descriptionBytes = description.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[1 + descriptionBytes.length + 1 + valueBytes.length];
+        System.arraycopy(descriptionBytes, 0, data, 1, descriptionBytes.length);
+        System.arraycopy(valueBytes, 0, data, 2 + descriptionBytes.length, valueBytes.length);
+        return data;
+    }
+
+    // текстовый фрейм: латиница в iso-8859-1, остальное в utf-8 (v2.4) или utf-16 с bom (v2.3)
+    private static void writeTextFrame(ByteArrayOutputStream out, int majorVersion, String id, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        byte encoding;
+        byte[] text;
+        if (StandardCharsets.ISO_8859_1.newEncoder().canEncode(value)) {
+            encoding = 0;
+            text = value.getBytes(StandardCharsets.ISO_8859_1);
+        } else if (majorVersion == 4) {
+            encoding = 3;
+            text = value.getBytes(StandardCharsets.UTF_8);
+        } else {
+            encoding = 1;
+            // utf-16 с bom little endian
+            byte[] body = value.getBytes(StandardCharsets.UTF_16LE);
+            text = new byte[body.length + 2];
+            text[0] = (byte) 0xFF;
+            text[1] = (byte) 0xFE;
+            System.arraycopy(body, 0, text, 2, body.length);
+        }
+
+        byte[] data = new byte[1 + text.length];
+        data[0] = encoding;
+        System.arraycopy(text, 0, data, 1, text.length);
+        writeFrame(out, majorVersion, id, data);
+    }
+
+    // фрейм v2.3/2.4 без флагов: заголовок и данные
+    private static void writeFrame(ByteArrayOutputStream out, int majorVersion, String id, byte[] data) {
+        byte[] header = new byte[ID3TagReader.FRAME_HEADER_LENGTH];
+        for (int i = 0; i < 4; i++) {
+            header[i] = (byte) id.charAt(i);
+        }
+        if (majorVersion == 4) {
+            packSynchsafe(data.length, header, 4);
+        } else {
+            ByteBuffer.wrap(header, 4, 4).putInt(data.length);
+        }
+        out.writeBytes(header);
+        out.writeBytes(data);
+    }
+
+    // можно ли дописать обложку к сериализованному тегу своим apic фреймом.
+    // для id3v2.2 и тегов с десинхронизацией обложку записывает сама mp3agic
+    static boolean canAppendPicture(ID3v2 tag) {
+        AbstractID3v2Tag abstractTag = (AbstractID3v2Tag) tag;
+        String version = abstractTag.getVersion();
+        return ("3.0".equals(version) || "4.0".equals(version)) && !abstractTag.hasUnsynchronisation();
+    }
+
+    // заголовок apic фрейма и его служебная часть; байты изображения идут следом
+    static byte[] pictureFrameHeader(byte[] newTag, CoverArt cover) {
+        byte[] mimeType = cover.getMimeType().getBytes(StandardCharsets.ISO_8859_1);
+        // кодировка + mime + 0 + тип картинки + пустое описание с завершающим нулем
+        int prefixLength = 1 + mimeType.length + 1 + 1 + 1;
+        byte[] header = new byte[ID3TagReader.FRAME_HEADER_LENGTH + prefixLength];
+        header[0] = 'A';
+        header[1] = 'P';
+        header[2] = 'I';
+        header[3] = 'C';
+        int frameSize = prefixLength + cover.getLength();
+        if (newTag[3] == 4) {
+            packSynchsafe(frameSize, header, 4);
+        } else {
+            ByteBuffer.wrap(header, 4, 4).putInt(frameSize);
+        }
+        int index = ID3TagReader.FRAME_HEADER_LENGTH;
+        // iso-8859-1, описание пустое
+        header[index++] = 0;
+        System.arraycopy(mimeType, 0, header, index, mimeType.length);
+        index += mimeType.length;
+        header[index++] = 0;
+        header[index] = PICTURE_TYPE_FRONT_COVER;
+        return header;
+    }
+
+    // полный размер apic фрейма вместе с изображением
+    static int pictureFrameLength(byte[] newTag, CoverArt cover) {
+        if (cover == null) {
+            return 0;
+        }
+        return pictureFrameHeader(newTag, cover).length + cover.getLength();
+    }
+
+    // новый тег с обложкой помещается в старую область (тег + padding), если она есть и без футера
+    static boolean fitsInPlace(int oldRegionLength, boolean oldFooter, byte[] newTag, CoverArt cover) {
+        if (oldRegionLength == 0 || oldFooter) {
+            return false;
+        }
+        if ((long) newTag.length + pictureFrameLength(newTag, cover) > oldRegionLength) {
+            return false;
+        }
+        // размер padding в расширенном заголовке мы не пересчитываем
+        return (newTag[5] & ID3TagReader.EXTENDED_HEADER_FLAG) == 0;
+    }
+
+    // перезаписывает только область тега в начале файла, остаток заполняется нулевым padding.
+    // обложка может лежать в этой же области, поэтому ее байты читаются до начала записи
+    static void writeInPlace(FileChannel channel, byte[] newTag, CoverArt cover, int regionLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(regionLength);
+        buffer.put(newTag);
+        if (cover != null) {
+            buffer.put(pictureFrameHeader(newTag, cover));
+            buffer.put(cover.readBytes());
+        }
+        // размер в заголовке теперь покрывает всю старую область вместе с padding
+        packSynchsafe(regionLength - ID3TagReader.ID3V2_HEADER_LENGTH, buffer.array(), 6);
+        buffer.rewind();
+        writeFully(channel, buffer, 0);
+    }
+
+    // записывает id3v1 поверх старого трейлера или дописывает в конец файла
+    static void writeId3v1(FileChannel channel, byte[] id3v1, boolean replaceExisting) throws IOException {
+        long position = replaceExisting ? channel.size() - ID3TagReader.ID3V1_LENGTH : channel.size();
+        writeFully(channel, ByteBuffer.wrap(id3v1), position);
+    }
+
+    // потоковая перезапись: новый тег, обложка, запас padding, затем аудио без изменений, затем id3v1.
+    // пишем во временный файл рядом с целевым и заменяем его, так что source может совпадать с target.
+    // при падении процесса или питания на диске остается либо старый файл целиком, либо новый
+    static void rewrite(File source, File target, byte[] newTag, CoverArt cover, int paddingReserve,
+                        long audioStart, long audioEnd, byte[] id3v1) throws IOException {
+        Path targetPath = target.toPath().toAbsolutePath();
+        Path tempPath = Files.createTempFile(targetPath.getParent(), target.getName(), ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] pictureHeader = cover != null ? pictureFrameHeader(newTag, cover) : new byte[0];
+                long tagLength = (long) newTag.length + pictureFrameLength(newTag, cover) + paddingReserve;
+                if (tagLength > MAX_TAG_LENGTH) {
+                    throw new IOException("ID3v2 tag is too large: " + tagLength + " bytes");
+                }
+
+                byte[] header = newTag.clone();
+                packSynchsafe((int) tagLength - ID3TagReader.ID3V2_HEADER_LENGTH, header, 6);
+                writeFully(out, ByteBuffer.wrap(header), 0);
+                writeFully(out, ByteBuffer.wrap(pictureHeader), newTag.length);
+                if (cover != null) {
+                    // изображение копируется потоком и не собирается в памяти
+                    out.position(newTag.length + pictureHeader.length);
+                    cover.transferTo(out);
+                }
+                writeFully(out, ByteBuffer.allocate(paddingReserve), tagLength - paddingReserve);
+
+                // аудиоданные копируются средствами ос, без разбора фреймов
+                long position = audioStart;
+                long outPosition = tagLength;
+                while (position < audioEnd) {
+                    long copied = in.transferTo(position, audioEnd - position, out.position(outPosition));
+                    if (copied <= 0) {
+                        throw new IOException("Cannot copy audio data from " + source);
+                    }
+                    position += copied;
+                    outPosition += copied;
+                }
+
+                if (id3v1 != null) {
+                    writeFully(out, ByteBuffer.wrap(id3v1), outPosition);
+                }
+                // данные должны оказаться на диске раньше, чем переименование их опубликует
+                out.force(true);
+            }
+            copyAttributes(source.toPath(), targetPath, tempPath);
+            replace(tempPath, targetPath);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    // createTempFile создает файл с правами 0600, и после переименования файл библиотеки стал бы
+    // недоступен другим пользователям и медиасерверу. временный файл получает права, владельца и
+    // группу заменяемого файла; новый файл - права исходного, как при обычном копировании
+    private static void copyAttributes(Path source, Path target, Path temp) throws IOException {
+        PosixFileAttributeView tempView = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (tempView == null) {
+            // не posix (windows) - права наследуются от каталога
+            return;
+        }
+        boolean replacing = Files.exists(target);
+        Set<PosixFilePermission> permissions = DEFAULT_PERMISSIONS;
+        try {
+            PosixFileAttributes attributes = Files.readAttributes(replacing ? target : source,
+                    PosixFileAttributes.class);
+            permissions = attributes.permissions();
+            if (replacing) {
+                // сменить владельца может только root, группу - член этой группы; иначе оставляем свои
+                try {
+                    tempView.setGroup(attributes.group());
+                } catch (IOException e) {
+                    // файл останется в группе по умолчанию
+                }
+                try {
+                    tempView.setOwner(attributes.owner());
+                } catch (IOException e) {
+                    // файл останется за текущим пользователем
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // права недоступны - берем права по умолчанию
+        }
+        tempView.setPermissions(permissions);
+    }
+
+    // атомарно заменяет target готовым файлом и сбрасывает на диск запись каталога
+    static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // файловая система без атомарного переименования - заменяем как раньше
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getParent());
+    }
+
+    // без этого после сбоя питания каталог может еще указывать на старый файл
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // windows не открывает каталоги как файлы; там rename сам сбрасывает метаданные
+        }
+    }
+
+    // упаковывает число в 28-битный synchsafe формат
+    static void packSynchsafe(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) ((value >> 21) & 0x7F);
+        bytes[offset + 1] = (byte) ((value >> 14) & 0x7F);
+        bytes[offset + 2] = (byte) ((value >> 7) & 0x7F);
+        bytes[offset + 3] = (byte) (value & 0x7F);
+    }
+
+    // пишет буфер целиком начиная с указанной позиции файла
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
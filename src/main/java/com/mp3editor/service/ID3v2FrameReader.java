@@ -0,0 +1,678 @@
+package com.mp3editor.service;
+
+import com.mpatric.mp3agic.ID3v1Genres;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// собственный разбор id3v2.2/2.3/2.4 прямо по ByteBuffer без mp3agic.
+// декодируются только фреймы, которые нужны MP3Metadata; текст читается из окна над файлом
+// без промежуточных копий, остальные фреймы пропускаются не читая (или копируются как есть для записи).
+// поддерживаются десинхронизация (всего тега и отдельных фреймов), расширенный заголовок,
+// сжатые фреймы и футер v2.4
+final class ID3v2FrameReader {
+
+    // заголовок фрейма id3v2.2: 3 байта id + 3 байта размера, без флагов
+    private static final int V22_FRAME_HEADER_LENGTH = 6;
+
+    // флаги формата фрейма v2.3
+    private static final int V23_COMPRESSION = 0x80;
+    private static final int V23_ENCRYPTION = 0x40;
+    private static final int V23_GROUPING = 0x20;
+    // флаги формата фрейма v2.4
+    private static final int V24_GROUPING = 0x40;
+    private static final int V24_COMPRESSION = 0x08;
+    private static final int V24_ENCRYPTION = 0x04;
+    private static final int V24_UNSYNCHRONISATION = 0x02;
+    private static final int V24_DATA_LENGTH = 0x01;
+
+    // флаг статуса "при изменении тега фрейм нужно удалить"
+    private static final int V23_DISCARD_ON_TAG_ALTER = 0x80;
+    private static final int V24_DISCARD_ON_TAG_ALTER = 0x40;
+
+    // фреймы, которые нужны модели
+    private static final int OTHER = 0;
+    private static final int TITLE = 1;
+    private static final int ARTIST = 2;
+    private static final int ALBUM = 3;
+    private static final int YEAR = 4;
+    private static final int RECORDING_TIME = 5;
+    private static final int GENRE = 6;
+    private static final int PICTURE = 7;
+    private static final int BPM = 8;
+
+    // размер окна чтения: обычно весь тег без обложки помещается в одно чтение
+    private static final int WINDOW_LENGTH = 16 * 1024;
+    // больше такого размера сжатый фрейм не распаковываем
+    private static final int MAX_INFLATED_LENGTH = 16 * 1024 * 1024;
+
+    // окно переиспользуется потоком, так что чтение тега почти не выделяет памяти
+    private static final ThreadLocal<ByteBuffer> WINDOWS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(WINDOW_LENGTH));
+
+    private ID3v2FrameReader() {
+    }
+
+    // читает id3v2 тег из начала файла; null если тега нет.
+    // keepFrames - дополнительно сохранить все фреймы, кроме изображений, для перезаписи тега
+    static Tag read(FileChannel channel, boolean keepFrames) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < ID3TagReader.ID3V2_HEADER_LENGTH) {
+            return null;
+        }
+        Window window = new Window(channel, fileSize, WINDOWS.get());
+        window.ensure(0, ID3TagReader.ID3V2_HEADER_LENGTH);
+        byte[] header = new byte[ID3TagReader.ID3V2_HEADER_LENGTH];
+        System.arraycopy(window.array(), window.index(0), header, 0, header.length);
+        if (!ID3TagReader.isId3v2Header(header)) {
+            return null;
+        }
+
+        int majorVersion = header[3];
+        int flags = header[5] & 0xFF;
+        int tagEnd = ID3TagReader.ID3V2_HEADER_LENGTH + ID3TagReader.unpackSynchsafe(header, 6);
+        boolean footer = majorVersion == 4 && (flags & ID3TagReader.FOOTER_FLAG) != 0;
+        int regionLength = footer ? tagEnd + ID3TagReader.ID3V2_HEADER_LENGTH : tagEnd;
+        // битый заголовок, указывающий за конец файла - считаем что тега нет
+        if (regionLength > fileSize) {
+            return null;
+        }
+        Tag tag = new Tag(majorVersion, flags, regionLength, footer, keepFrames);
+        // неизвестная версия или сжатый целиком тег v2.2: фреймы не разбираем
+        if (majorVersion < 2 || majorVersion > 4 || (majorVersion == 2 && (flags & 0x40) != 0)) {
+            return tag;
+        }
+        window.limit = tagEnd;
+
+        // в v2.2 и v2.3 десинхронизирован весь тег: раскодируем его в память,
+        // смещения внутри такого тега уже не совпадают с файлом
+        boolean addressable = true;
+        if (majorVersion < 4 && (flags & ID3TagReader.UNSYNCHRONISATION_FLAG) != 0) {
+            int bodyLength = tagEnd - ID3TagReader.ID3V2_HEADER_LENGTH;
+            window.ensure(ID3TagReader.ID3V2_HEADER_LENGTH, bodyLength);
+            byte[] body = resynchronise(window.array(), window.index(ID3TagReader.ID3V2_HEADER_LENGTH), bodyLength);
+            window = new Window(body, ID3TagReader.ID3V2_HEADER_LENGTH);
+            addressable = false;
+        }
+
+        long position = ID3TagReader.ID3V2_HEADER_LENGTH;
+        if (majorVersion > 2 && (flags & ID3TagReader.EXTENDED_HEADER_FLAG) != 0) {
+            if (!window.ensure(position, 4)) {
+                return tag;
+            }
+            byte[] array = window.array();
+            int index = window.index(position);
+            // в v2.3 размер не включает свои 4 байта, в v2.4 - synchsafe и включает
+            position += majorVersion == 3
+                    ? 4 + ByteBuffer.wrap(array, index, 4).getInt()
+                    : ID3TagReader.unpackSynchsafe(array, index);
+        }
+
+        int frameHeaderLength = majorVersion == 2 ? V22_FRAME_HEADER_LENGTH : ID3TagReader.FRAME_HEADER_LENGTH;
+        boolean tagUnsynchronised = majorVersion == 4 && (flags & ID3TagReader.UNSYNCHRONISATION_FLAG) != 0;
+        while (window.ensure(position, frameHeaderLength)) {
+            byte[] array = window.array();
+            int index = window.index(position);
+            // нулевой байт вместо id фрейма - начался padding
+            if (array[index] == 0) {
+                break;
+            }
+            int frameSize;
+            int statusFlags = 0;
+            int formatFlags = 0;
+            if (majorVersion == 2) {
+                frameSize = ((array[index + 3] & 0xFF) << 16) | ((array[index + 4] & 0xFF) << 8)
+                        | (array[index + 5] & 0xFF);
+            } else {
+                frameSize = majorVersion == 4
+                        ? ID3TagReader.unpackSynchsafe(array, index + 4)
+                        : ByteBuffer.wrap(array, index + 4, 4).getInt();
+                statusFlags = array[index + 8] & 0xFF;
+                formatFlags = array[index + 9] & 0xFF;
+                if (tagUnsynchronised) {
+                    formatFlags |= V24_UNSYNCHRONISATION;
+                }
+            }
+            long payloadStart = position + frameHeaderLength;
+            long frameEnd = payloadStart + frameSize;
+            // битый размер фрейма: остальное не разбираем
+            if (frameSize < 0 || frameEnd > window.limit) {
+                break;
+            }
+
+            int type = frameType(array, index, majorVersion);
+            if (type == PICTURE) {
+                // модель хранит одну обложку - первую
+                if (!tag.hasPicture()) {
+                    readPicture(window, tag, payloadStart, frameSize, formatFlags, addressable);
+                }
+            } else {
+                if (type != OTHER) {
+                    ByteBuffer payload = payload(window, payloadStart, frameSize, majorVersion, formatFlags);
+                    if (payload != null) {
+                        tag.setText(type, decodeText(payload));
+                    }
+                }
+                if (keepFrames) {
+                    int frameLength = (int) (frameEnd - position);
+                    window.ensure(position, frameLength);
+                    byte[] bytes = new byte[frameLength];
+                    System.arraycopy(window.array(), window.index(position), bytes, 0, frameLength);
+                    tag.frames.add(new RawFrame(bytes, statusFlags, majorVersion));
+                }
+            }
+            position = frameEnd;
+        }
+        return tag;
+    }
+
+    // тип фрейма по его id; сравниваем байты, не создавая строк
+    private static int frameType(byte[] array, int index, int majorVersion) {
+        if (majorVersion == 2) {
+            if (matches(array, index, "TT2")) return TITLE;
+            if (matches(array, index, "TP1")) return ARTIST;
+            if (matches(array, index, "TAL")) return ALBUM;
+            if (matches(array, index, "TYE")) return YEAR;
+            if (matches(array, index, "TCO")) return GENRE;
+            if (matches(array, index, "TBP")) return BPM;
+            if (matches(array, index, "PIC")) return PICTURE;
+            return OTHER;
+        }
+        if (matches(array, index, "TIT2")) return TITLE;
+        if (matches(array, index, "TPE1")) return ARTIST;
+        if (matches(array, index, "TALB")) return ALBUM;
+        if (matches(array, index, "TYER")) return YEAR;
+        if (matches(array, index, "TDRC")) return RECORDING_TIME;
+        if (matches(array, index, "TCON")) return GENRE;
+        if (matches(array, index, "TBPM")) return BPM;
+        if (matches(array, index, "APIC")) return PICTURE;
+        return OTHER;
+    }
+
+    private static boolean matches(byte[] array, int index, String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (array[index + i] != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // полезные данные фрейма без служебных байтов флагов; null если фрейм зашифрован или битый.
+    // для фреймов без флагов это срез окна без копирования
+    private static ByteBuffer payload(Window window, long start, int size, int majorVersion,
+                                      int formatFlags) throws IOException {
+        window.ensure(start, size);
+        byte[] array = window.array();
+        int offset = window.index(start);
+        int length = size;
+        if (formatFlags == 0 || majorVersion == 2) {
+            return ByteBuffer.wrap(array, offset, length).slice();
+        }
+
+        int inflatedLength = -1;
+        boolean compressed;
+        boolean unsynchronised = false;
+        if (majorVersion == 3) {
+            // порядок дополнительных байтов: размер после распаковки, метод шифрования, группа
+            compressed = (formatFlags & V23_COMPRESSION) != 0;
+            if (compressed) {
+                if (length < 4) return null;
+                inflatedLength = ByteBuffer.wrap(array, offset, 4).getInt();
+                offset += 4;
+                length -= 4;
+            }
+            if ((formatFlags & V23_ENCRYPTION) != 0) {
+                return null;
+            }
+            if ((formatFlags & V23_GROUPING) != 0) {
+                offset++;
+                length--;
+            }
+        } else {
+            // порядок дополнительных байтов: группа, метод шифрования, исходная длина
+            if ((formatFlags & V24_GROUPING) != 0) {
+                offset++;
+                length--;
+            }
+            if ((formatFlags & V24_ENCRYPTION) != 0) {
+                return null;
+            }
+            if ((formatFlags & V24_DATA_LENGTH) != 0) {
+                if (length < 4) return null;
+                inflatedLength = ID3TagReader.unpackSynchsafe(array, offset);
+                offset += 4;
+                length -= 4;
+            }
+            compressed = (formatFlags & V24_COMPRESSION) != 0;
+            unsynchronised = (formatFlags & V24_UNSYNCHRONISATION) != 0;
+        }
+        if (length < 0) {
+            return null;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(array, offset, length).slice();
+        if (unsynchronised) {
+            data = ByteBuffer.wrap(resynchronise(array, offset, length));
+        }
+        if (compressed) {
+            data = inflate(data, inflatedLength);
+        }
+        return data;
+    }
+
+    // распаковывает сжатый zlib фрейм
+    private static ByteBuffer inflate(ByteBuffer data, int inflatedLength) {
+        if (data == null || inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            byte[] result = new byte[inflatedLength];
+            int length = inflater.inflate(result);
+            return ByteBuffer.wrap(result, 0, length);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // убирает десинхронизацию: после каждого 0xFF вставленный 0x00 выбрасывается
+    static byte[] resynchronise(byte[] array, int offset, int length) {
+        byte[] result = new byte[length];
+        int count = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            result[count++] = array[i];
+            if (array[i] == (byte) 0xFF && i + 1 < end && array[i + 1] == 0) {
+                i++;
+            }
+        }
+        if (count == length) {
+            return result;
+        }
+        byte[] trimmed = new byte[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    // первая строка текстового фрейма; пустой текст - null
+    private static String decodeText(ByteBuffer payload) {
+        if (payload == null || payload.remaining() < 1) {
+            return null;
+        }
+        byte[] array = payload.array();
+        int start = payload.arrayOffset() + payload.position();
+        int end = start + payload.remaining();
+        int encoding = array[start++];
+        boolean wide = encoding == 1 || encoding == 2;
+        // несколько значений разделяются нулем - берем первое
+        int textEnd = terminator(array, start, end, wide);
+        if (textEnd <= start) {
+            return null;
+        }
+        String text = new String(array, start, textEnd - start, charset(encoding));
+        return text.isEmpty() ? null : text;
+    }
+
+    // описание фрейма txxx (текст до первого завершающего нуля) по его данным; null если данных нет
+    static String userTextDescription(byte[] array, int start, int end) {
+        if (end - start < 1) {
+            return null;
+        }
+        int encoding = array[start++];
+        int textEnd = terminator(array, start, end, encoding == 1 || encoding == 2);
+        return new String(array, start, textEnd - start, charset(encoding));
+    }
+
+    // позиция завершающего нуля (для utf-16 - двух нулей на четной позиции) или конец данных
+    private static int terminator(byte[] array, int start, int end, boolean wide) {
+        if (wide) {
+            for (int i = start; i + 1 < end; i += 2) {
+                if (array[i] == 0 && array[i + 1] == 0) {
+                    return i;
+                }
+            }
+            // нечетный хвост utf-16 отбрасываем
+            return start + ((end - start) & ~1);
+        }
+        for (int i = start; i < end; i++) {
+            if (array[i] == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static Charset charset(int encoding) {
+        switch (encoding) {
+            case 1:
+            case 2:
+                // utf-16 с bom, без него - big endian; некоторые программы пишут bom и в кодировке 2
+                return StandardCharsets.UTF_16;
+            case 3:
+                return StandardCharsets.UTF_8;
+            default:
+                return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    // разбирает обложку. если фрейм лежит в файле как есть, запоминается только положение
+    // изображения, иначе (сжатие, десинхронизация) изображение раскодируется в память
+    private static void readPicture(Window window, Tag tag, long start, int size, int formatFlags,
+                                    boolean addressable) throws IOException {
+        boolean legacy = tag.majorVersion == 2;
+        if (addressable && formatFlags == 0) {
+            int prefixLength = Math.min(size, ID3TagReader.PICTURE_PREFIX_LENGTH);
+            window.ensure(start, prefixLength);
+            byte[] array = window.array();
+            int index = window.index(start);
+            int dataStart = pictureDataStart(array, index, prefixLength, legacy);
+            if (dataStart >= 0) {
+                tag.pictureOffset = start + dataStart;
+                tag.pictureLength = size - dataStart;
+                tag.pictureMimeType = pictureMimeType(array, index, prefixLength, legacy);
+                return;
+            }
+        }
+        ByteBuffer payload = payload(window, start, size, tag.majorVersion, formatFlags);
+        if (payload == null) {
+            return;
+        }
+        byte[] array = payload.array();
+        int index = payload.arrayOffset() + payload.position();
+        int length = payload.remaining();
+        int dataStart = pictureDataStart(array, index, length, legacy);
+        if (dataStart < 0) {
+            return;
+        }
+        byte[] data = new byte[length - dataStart];
+        System.arraycopy(array, index + dataStart, data, 0, data.length);
+        tag.pictureData = data;
+        tag.pictureLength = data.length;
+        tag.pictureMimeType = pictureMimeType(array, index, length, legacy);
+    }
+
+    // смещение байтов изображения внутри фрейма: кодировка, mime тип (в v2.2 - три буквы формата),
+    // тип картинки, описание. -1 если служебная часть не поместилась в данные
+    static int pictureDataStart(byte[] array, int offset, int length, boolean legacy) {
+        if (length < 1) {
+            return -1;
+        }
+        int end = offset + length;
+        int encoding = array[offset];
+        int index;
+        if (legacy) {
+            // кодировка + формат + тип картинки
+            index = offset + 5;
+        } else {
+            // mime тип - всегда латиница с завершающим нулем, затем байт типа картинки
+            index = offset + 1;
+            while (index < end && array[index] != 0) {
+                index++;
+            }
+            index += 2;
+        }
+        // описание в utf-16 завершается двумя нулями, в однобайтных кодировках - одним
+        boolean wide = encoding == 1 || encoding == 2;
+        while (index < end) {
+            if (!wide && array[index] == 0) {
+                return index + 1 - offset;
+            }
+            if (wide && index + 1 < end && array[index] == 0 && array[index + 1] == 0) {
+                return index + 2 - offset;
+            }
+            index += wide ? 2 : 1;
+        }
+        return -1;
+    }
+
+    // mime тип изображения из начала фрейма
+    static String pictureMimeType(byte[] array, int offset, int length, boolean legacy) {
+        if (legacy) {
+            String format = length >= 4
+                    ? new String(array, offset + 1, 3, StandardCharsets.ISO_8859_1).trim().toLowerCase()
+                    : "";
+            if (format.equals("jpg") || format.isEmpty()) {
+                return "image/jpeg";
+            }
+            return "image/" + format;
+        }
+        int end = offset + 1;
+        while (end < offset + length && array[end] != 0) {
+            end++;
+        }
+        String mimeType = new String(array, offset + 1, Math.max(0, end - offset - 1), StandardCharsets.ISO_8859_1);
+        // старые теги иногда пишут только формат ("jpg", "png")
+        if (!mimeType.contains("/")) {
+            mimeType = mimeType.isEmpty() ? "image/jpeg" : "image/" + mimeType.toLowerCase();
+        }
+        return mimeType;
+    }
+
+    // жанр: "(17)", "17", "(17)Rock" - номер из таблицы id3v1, иначе текст как есть
+    static String decodeGenre(String text) {
+        if (text == null) {
+            return null;
+        }
+        int start = text.startsWith("(") ? 1 : 0;
+        int end = start;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        boolean numeric = end > start && end - start <= 3
+                && (start == 0 ? end == text.length() : end < text.length() && text.charAt(end) == ')');
+        if (numeric) {
+            int number = Integer.parseInt(text.substring(start, end));
+            if (number < ID3v1Genres.GENRES.length) {
+                return ID3v1Genres.GENRES[number];
+            }
+            String rest = start == 1 ? text.substring(end + 1) : "";
+            return rest.isEmpty() ? null : rest;
+        }
+        if (text.startsWith("(RX)")) return "Remix";
+        if (text.startsWith("(CR)")) return "Cover";
+        return text;
+    }
+
+    // bpm по стандарту целое, но встречаются "128.00" и "127,5" - округляем; мусор и ноль отбрасываем
+    static Integer parseBpm(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            long bpm = Math.round(Double.parseDouble(text.trim().replace(',', '.')));
+            return bpm > 0 && bpm <= Integer.MAX_VALUE ? (int) bpm : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // окно над участком файла: гарантирует, что нужные байты лежат в одном heap буфере
+    private static final class Window {
+
+        // null - тег целиком уже в памяти
+        private final FileChannel channel;
+        private ByteBuffer buffer;
+        // позиция в файле первого байта буфера и число прочитанных байтов
+        private long start;
+        private int length;
+        // конец области, за которую читать нельзя
+        private long limit;
+
+        private Window(FileChannel channel, long limit, ByteBuffer buffer) {
+            this.channel = channel;
+            this.limit = limit;
+            this.buffer = buffer;
+        }
+
+        // окно над уже раскодированным тегом; позиции продолжают отсчитываться как в файле
+        private Window(byte[] bytes, long start) {
+            this.channel = null;
+            this.buffer = ByteBuffer.wrap(bytes);
+            this.start = start;
+            this.length = bytes.length;
+            this.limit = start + bytes.length;
+        }
+
+        // гарантирует, что [position, position + count) лежит в буфере; false если это за концом области
+        private boolean ensure(long position, int count) throws IOException {
+            if (position < 0 || position + count > limit) {
+                return false;
+            }
+            if (position >= start && position + count <= start + length) {
+                return true;
+            }
+            if (channel == null) {
+                return false;
+            }
+            if (count > buffer.capacity()) {
+                // большой фрейм: буфер побольше только для этого чтения, общий не раздуваем
+                buffer = ByteBuffer.allocate(count);
+            }
+            int toRead = (int) Math.min(buffer.capacity(), limit - position);
+            buffer.clear().limit(toRead);
+            ID3TagReader.readFully(channel, buffer, position);
+            start = position;
+            length = toRead;
+            return true;
+        }
+
+        private byte[] array() {
+            return buffer.array();
+        }
+
+        private int index(long position) {
+            return (int) (position - start);
+        }
+    }
+
+    // разобранный тег: значения нужных полей, положение обложки и (для записи) остальные фреймы
+    static final class Tag {
+
+        final int majorVersion;
+        final int flags;
+        // полный размер тега в файле вместе с padding и футером
+        final int regionLength;
+        final boolean footer;
+
+        String title;
+        String artist;
+        String album;
+        String genre;
+        Integer bpm;
+        private String year;
+        private String recordingTime;
+
+        // обложка либо на диске (смещение >= 0), либо уже в памяти
+        long pictureOffset = -1;
+        int pictureLength;
+        String pictureMimeType;
+        byte[] pictureData;
+
+        // все фреймы, кроме изображений, в исходном виде; null если не запрашивались
+        final List<RawFrame> frames;
+
+        private Tag(int majorVersion, int flags, int regionLength, boolean footer, boolean keepFrames) {
+            this.majorVersion = majorVersion;
+            this.flags = flags;
+            this.regionLength = regionLength;
+            this.footer = footer;
+            this.frames = keepFrames ? new ArrayList<>() : null;
+        }
+
+        // версия, которую мы умеем разбирать
+        boolean isSupported() {
+            return majorVersion >= 2 && majorVersion <= 4;
+        }
+
+        // тег можно пересобрать из исходных фреймов: v2.3/2.4 без общей десинхронизации
+        boolean isRewritable() {
+            return (majorVersion == 3 || majorVersion == 4)
+                    && (flags & ID3TagReader.UNSYNCHRONISATION_FLAG) == 0;
+        }
+
+        boolean hasPicture() {
+            return pictureOffset >= 0 || pictureData != null;
+        }
+
+        // год: в v2.4 основной фрейм tdrc, в более старых - tyer
+        String getYear() {
+            if (majorVersion == 4 && recordingTime != null) {
+                return recordingTime;
+            }
+            return year != null ? year : recordingTime;
+        }
+
+        private void setText(int type, String text) {
+            switch (type) {
+                case TITLE:
+                    if (title == null) title = text;
+                    break;
+                case ARTIST:
+                    if (artist == null) artist = text;
+                    break;
+                case ALBUM:
+                    if (album == null) album = text;
+                    break;
+                case YEAR:
+                    if (year == null) year = text;
+                    break;
+                case RECORDING_TIME:
+                    if (recordingTime == null) recordingTime = text;
+                    break;
+                case GENRE:
+                    if (genre == null) genre = decodeGenre(text);
+                    break;
+                case BPM:
+                    if (bpm == null) bpm = parseBpm(text);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // фрейм в исходном виде вместе с заголовком
+    static final class RawFrame {
+
+        final byte[] bytes;
+        private final int statusFlags;
+        private final int majorVersion;
+
+        private RawFrame(byte[] bytes, int statusFlags, int majorVersion) {
+            this.bytes = bytes;
+            this.statusFlags = statusFlags;
+            this.majorVersion = majorVersion;
+        }
+
+        boolean hasId(String id) {
+            return matches(bytes, 0, id);
+        }
+
+        // txxx фрейм replaygain: описание вида replaygain_track_gain в любом регистре.
+        // сжатые и зашифрованные фреймы не разбираем - их описание не прочитать без распаковки
+        boolean isReplayGain() {
+            if (!hasId("TXXX") || bytes[9] != 0) {
+                return false;
+            }
+            String description = userTextDescription(bytes, ID3TagReader.FRAME_HEADER_LENGTH, bytes.length);
+            return description != null && ID3TagWriter.isReplayGainDescription(description);
+        }
+
+        // фрейм просит удалить себя, если тег изменяется
+        boolean isDiscardedOnTagAlter() {
+            int flag = majorVersion == 4 ? V24_DISCARD_ON_TAG_ALTER : V23_DISCARD_ON_TAG_ALTER;
+            return (statusFlags & flag) != 0;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+// поисковый индекс библиотеки в памяти: инвертированный индекс слов из названия, исполнителя,
+// альбома, жанра, года и имени файла плюс упорядоченные индексы года и bpm для диапазонов.
+// обновляется по одному файлу при чтении и записи тегов, запрос по 100k файлов - миллисекунды.
+// синтаксис запроса - условия через пробел, подходят файлы, для которых выполнены все:
+//   lov              слово, содержащее "lov" (условие из 1-2 символов - начало слова)
+//   "love song"      слова целиком
+//   year:1999        год; year:1990-1999, year:1990-, year:-1999 - диапазон
+//   bpm:120-130      темп, так же как год
+public class LibrarySearchIndex {
+
+    // длина n-граммы; условие короче ищется по началу слова
+    private static final int GRAM = 3;
+
+    private static final String YEAR_PREFIX = "year:";
+    private static final String BPM_PREFIX = "bpm:";
+
+    // документы - файлы библиотеки; номер документа не переиспользуется после удаления
+    private final List<Doc> docs = new ArrayList<>();
+    // абсолютный путь -> номер документа
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final BitSet live = new BitSet();
+
+    // словарь: слово -> номер слова
+    private final Map<String, Integer> terms = new HashMap<>();
+    private final List<String> termList = new ArrayList<>();
+    // номер слова -> номера документов, в которых оно встречается
+    private final List<IntList> postings = new ArrayList<>();
+    // триграмма -> номера слов, содержащих ее (поиск подстроки без перебора словаря)
+    private final Map<String, IntList> grams = new HashMap<>();
+    // первые 1-2 символа -> номера слов, которые с них начинаются
+    private final Map<String, IntList> prefixes = new HashMap<>();
+
+    // значение -> номера документов
+    private final TreeMap<Integer, IntList> years = new TreeMap<>();
+    private final TreeMap<Integer, IntList> bpms = new TreeMap<>();
+
+    // растет при каждом изменении, чтобы фильтр знал, что его пора пересчитать
+    private long version;
+
+    // добавляет файлы в индекс; пока теги не прочитаны, файл находится только по имени
+    public synchronized void addFiles(Collection<File> files) {
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            if (docIds.containsKey(path)) {
+                continue;
+            }
+            int id = docs.size();
+            Doc doc = new Doc(file);
+            docs.add(doc);
+            docIds.put(path, id);
+            live.set(id);
+            index(id, doc, null);
+            version++;
+        }
+    }
+
+    public void addFile(File file) {
+        addFiles(Collections.singletonList(file));
+    }
+
+    // заменяет проиндексированные теги файла; файлы вне индекса игнорируются
+    public synchronized void update(File file, MP3Metadata metadata) {
+        Integer id = docIds.get(file.getAbsolutePath());
+        if (id == null) {
+            return;
+        }
+        Doc doc = docs.get(id);
+        // кэш тегов отдает один и тот же объект, пока файл не изменился - индексировать нечего
+        if (doc.metadata == metadata) {
+            return;
+        }
+        index(id, doc, metadata);
+        version++;
+    }
+
+    public synchronized void removeFiles(Collection<File> files) {
+        for (File file : files) {
+            Integer id = docIds.remove(file.getAbsolutePath());
+            if (id == null) {
+                continue;
+            }
+            unindex(id, docs.get(id));
+            docs.set(id, null);
+            live.clear(id);
+            version++;
+        }
+    }
+
+    public void removeFile(File file) {
+        removeFiles(Collections.singletonList(file));
+    }
+
+    public synchronized boolean contains(File file) {
+        return docIds.containsKey(file.getAbsolutePath());
+    }
+
+    // теги файла уже в индексе
+    public synchronized boolean hasMetadata(File file) {
+        Integer id = docIds.get(file.getAbsolutePath());
+        return id != null && docs.get(id).metadata != null;
+    }
+
+    public synchronized int size() {
+        return docIds.size();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // файлы, подходящие под запрос; null для пустого запроса (фильтра нет)
+    public synchronized Set<File> search(String query) {
+        List<String> conditions = splitQuery(query);
+        if (conditions.isEmpty()) {
+            return null;
+        }
+        BitSet result = (BitSet) live.clone();
+        for (String condition : conditions) {
+            if (result.isEmpty()) {
+                break;
+            }
+            BitSet matched = match(condition);
+            if (matched != null) {
+                result.and(matched);
+            }
+        }
+
+        Set<File> files = new HashSet<>(Math.max(16, result.cardinality() * 4 / 3 + 1));
+        for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+            files.add(docs.get(id).file);
+        }
+        return files;
+    }
+
+    // документы, подходящие под одно условие запроса; null - условие не разобрано и не ограничивает
+    private BitSet match(String condition) {
+        if (condition.startsWith(YEAR_PREFIX)) {
+            return matchRange(years, condition.substring(YEAR_PREFIX.length()));
+        }
+        if (condition.startsWith(BPM_PREFIX)) {
+            return matchRange(bpms, condition.substring(BPM_PREFIX.length()));
+        }
+        boolean exact = condition.startsWith("\"");
+        List<String> words = new ArrayList<>();
+        tokenize(exact ? condition.substring(1) : condition, words);
+        if (words.isEmpty()) {
+            return null;
+        }
+        BitSet matched = null;
+        for (String word : words) {
+            BitSet wordMatched = exact ? matchTerm(word) : matchSubstring(word);
+            if (matched == null) {
+                matched = wordMatched;
+            } else {
+                matched.and(wordMatched);
+            }
+        }
+        return matched;
+    }
+
+    private BitSet matchTerm(String word) {
+        BitSet matched = new BitSet();
+        Integer termId = terms.get(word);
+        if (termId != null) {
+            postings.get(termId).addTo(matched);
+        }
+        return matched;
+    }
+
+    private BitSet matchSubstring(String word) {
+        BitSet matched = new BitSet();
+        if (word.length() < GRAM) {
+            IntList termIds = prefixes.get(word);
+            if (termIds != null) {
+                for (int termId : termIds.toArray()) {
+                    postings.get(termId).addTo(matched);
+                }
+            }
+            return matched;
+        }
+
+        // слова-кандидаты содержат все триграммы условия; начинаем с самого короткого списка
+        List<IntList> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM <= word.length(); i++) {
+            IntList list = grams.get(word.substring(i, i + GRAM));
+            if (list == null) {
+                return matched;
+            }
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        int[] candidates = lists.get(0).toArray();
+        int count = candidates.length;
+        for (int i = 1; i < lists.size() && count > 0; i++) {
+            count = lists.get(i).retainIn(candidates, count);
+        }
+        for (int i = 0; i < count; i++) {
+            // триграммы могут стоять в слове в другом порядке - проверяем подстроку целиком
+            if (termList.get(candidates[i]).contains(word)) {
+                postings.get(candidates[i]).addTo(matched);
+            }
+        }
+        return matched;
+    }
+
+    // диапазон "a-b", "a-", "-b" или одно значение
+    private static BitSet matchRange(NavigableMap<Integer, IntList> values, String range) {
+        int dash = range.indexOf('-');
+        Integer from;
+        Integer to;
+        if (dash < 0) {
+            from = parseNumber(range);
+            to = from;
+        } else {
+            from = dash == 0 ? Integer.valueOf(Integer.MIN_VALUE) : parseNumber(range.substring(0, dash));
+            to = dash == range.length() - 1 ? Integer.valueOf(Integer.MAX_VALUE) : parseNumber(range.substring(dash + 1));
+        }
+        if (from == null || to == null) {
+            // недописанное условие (например, "year:") пока ничего не ограничивает
+            return null;
+        }
+        BitSet matched = new BitSet();
+        if (from <= to) {
+            for (IntList list : values.subMap(from, true, to, true).values()) {
+                list.addTo(matched);
+            }
+        }
+        return matched;
+    }
+
+    // индексирует документ с новыми тегами; списки трогаются только для слов и значений,
+    // которые действительно изменились (перечитанный файл обычно меняется в одном-двух полях)
+    private void index(int id, Doc doc, MP3Metadata metadata) {
+        Set<String> words = new LinkedHashSet<>();
+        String name = doc.file.getName();
+        int dot = name.lastIndexOf('.');
+        tokenize(dot > 0 ? name.substring(0, dot) : name, words);
+        int year = 0;
+        int bpm = 0;
+        if (metadata != null) {
+            tokenize(metadata.getTitle(), words);
+            tokenize(metadata.getArtist(), words);
+            tokenize(metadata.getAlbum(), words);
+            tokenize(metadata.getGenre(), words);
+            tokenize(metadata.getYear(), words);
+            year = parseYear(metadata.getYear());
+            bpm = metadata.getBpm() != null && metadata.getBpm() > 0 ? metadata.getBpm() : 0;
+        }
+
+        int[] termIds = new int[words.size()];
+        int count = 0;
+        for (String word : words) {
+            termIds[count++] = termId(word);
+        }
+        Arrays.sort(termIds);
+
+        // слияние двух упорядоченных наборов слов: старое без пары удаляется, новое без пары добавляется
+        int[] oldTermIds = doc.terms != null ? doc.terms : new int[0];
+        int i = 0;
+        int j = 0;
+        while (i < oldTermIds.length || j < termIds.length) {
+            if (j == termIds.length || (i < oldTermIds.length && oldTermIds[i] < termIds[j])) {
+                postings.get(oldTermIds[i++]).remove(id);
+            } else if (i == oldTermIds.length || termIds[j] < oldTermIds[i]) {
+                postings.get(termIds[j++]).add(id);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        doc.terms = termIds;
+        doc.metadata = metadata;
+
+        if (doc.year != year) {
+            removeValue(years, doc.year, id);
+            addValue(years, year, id);
+            doc.year = year;
+        }
+        if (doc.bpm != bpm) {
+            removeValue(bpms, doc.bpm, id);
+            addValue(bpms, bpm, id);
+            doc.bpm = bpm;
+        }
+    }
+
+    private void unindex(int id, Doc doc) {
+        for (int termId : doc.terms) {
+            postings.get(termId).remove(id);
+        }
+        removeValue(years, doc.year, id);
+        removeValue(bpms, doc.bpm, id);
+    }
+
+    private static void addValue(Map<Integer, IntList> values, int value, int id) {
+        if (value > 0) {
+            values.computeIfAbsent(value, key -> new IntList()).add(id);
+        }
+    }
+
+    private static void removeValue(Map<Integer, IntList> values, int value, int id) {
+        if (value <= 0) {
+            return;
+        }
+        IntList list = values.get(value);
+        if (list != null) {
+            list.remove(id);
+            if (list.size == 0) {
+                values.remove(value);
+            }
+        }
+    }
+
+    // номер слова в словаре; новое слово регистрируется вместе с его триграммами.
+    // слова, которые больше нигде не встречаются, остаются в словаре с пустым списком
+    private int termId(String word) {
+        Integer termId = terms.get(word);
+        if (termId != null) {
+            return termId;
+        }
+        int id = termList.size();
+        terms.put(word, id);
+        termList.add(word);
+        postings.add(new IntList());
+        for (int i = 0; i + GRAM <= word.length(); i++) {
+            grams.computeIfAbsent(word.substring(i, i + GRAM), key -> new IntList()).add(id);
+        }
+        for (int length = 1; length < GRAM && length <= word.length(); length++) {
+            prefixes.computeIfAbsent(word.substring(0, length), key -> new IntList()).add(id);
+        }
+        return id;
+    }
+
+    // делит запрос на условия по пробелам; текст в кавычках - одно условие с пометкой '"'
+    private static List<String> splitQuery(String query) {
+        List<String> conditions = new ArrayList<>();
+        if (query == null) {
+            return conditions;
+        }
+        String text = query.toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = text.length();
+                }
+                conditions.add(text.substring(i, end));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                conditions.add(text.substring(i, end));
+                i = end;
+            }
+        }
+        return conditions;
+    }
+
+    // слова текста: последовательности букв и цифр в нижнем регистре, 'ё' приравнена к 'е'
+    private static void tokenize(String text, Collection<String> words) {
+        if (text == null) {
+            return;
+        }
+        String normalized = text.toLowerCase(Locale.ROOT).replace('\u0451', '\u0435');
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    // год из начала строки ("1999", "1999-05-01"); 0 если его нет
+    private static int parseYear(String year) {
+        if (year == null) {
+            return 0;
+        }
+        String value = year.trim();
+        int length = 0;
+        while (length < value.length() && length < 4 && Character.isDigit(value.charAt(length))) {
+            length++;
+        }
+        return length == 4 ? Integer.parseInt(value.substring(0, 4)) : 0;
+    }
+
+    private static Integer parseNumber(String value) {
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static final class Doc {
+
+        private final File file;
+        // null - теги еще не прочитаны
+        private MP3Metadata metadata;
+        private int[] terms;
+        // 0 - значения нет
+        private int year;
+        private int bpm;
+
+        private Doc(File file) {
+            this.file = file;
+        }
+    }
+
+    // упорядоченный набор номеров: пока он короткий - массив, длинный переводится в битовую карту,
+    // иначе вставка в середину списка частого слова (жанр, год) копировала бы тысячи элементов
+    private static final class IntList {
+
+        private static final int DENSE_THRESHOLD = 1024;
+
+        private int[] values = new int[2];
+        private int size;
+        // не null - набор хранится здесь, а values не используется
+        private BitSet bits;
+
+        private void add(int value) {
+            if (bits != null) {
+                if (!bits.get(value)) {
+                    bits.set(value);
+                    size++;
+                }
+                return;
+            }
+            int index = size;
+            if (size > 0 && values[size - 1] >= value) {
+                index = Arrays.binarySearch(values, 0, size, value);
+                if (index >= 0) {
+                    return;
+                }
+                index = -index - 1;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            if (size > DENSE_THRESHOLD) {
+                BitSet dense = new BitSet();
+                addTo(dense);
+                bits = dense;
+                values = null;
+            }
+        }
+
+        private void remove(int value) {
+            if (bits != null) {
+                if (bits.get(value)) {
+                    bits.clear(value);
+                    size--;
+                }
+                return;
+            }
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, size - index - 1);
+                size--;
+            }
+        }
+
+        private void addTo(BitSet target) {
+            if (bits != null) {
+                target.or(bits);
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                target.set(values[i]);
+            }
+        }
+
+        private int[] toArray() {
+            return bits != null ? bits.stream().toArray() : Arrays.copyOf(values, size);
+        }
+
+        // оставляет в начале candidates (упорядоченного) только номера из этого набора, возвращает их число
+        private int retainIn(int[] candidates, int count) {
+            int kept = 0;
+            if (bits != null) {
+                for (int i = 0; i < count; i++) {
+                    if (bits.get(candidates[i])) {
+                        candidates[kept++] = candidates[i];
+                    }
+                }
+                return kept;
+            }
+            int j = 0;
+            for (int i = 0; i < count && j < size; i++) {
+                while (j < size && values[j] < candidates[i]) {
+                    j++;
+                }
+                if (j < size && values[j] == candidates[i]) {
+                    candidates[kept++] = candidates[i];
+                }
+            }
+            return kept;
+        }
+    }
+}
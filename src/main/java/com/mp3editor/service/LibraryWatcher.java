@@ -0,0 +1,284 @@
+package com.mp3editor.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// следит за каталогами файлов библиотеки и сообщает об изменениях, сделанных другими программами.
+// регистрируется каталог, а не файл: на десятки тысяч файлов обычно приходится несколько тысяч
+// каталогов, и каждый стоит одну регистрацию в ос. события копятся, пока не наступит пауза
+// (или не пройдет MAX_DELAY_MILLIS), и схлопываются по пути: файл, который за это время
+// переписали несколько раз или удалили и создали заново, обрабатывается один раз по тому,
+// что лежит на диске в момент обработки. измененные файлы перечитываются через MP3TagService
+// (кэш, индекс библиотеки и поиск обновляются там же), удаленные убираются из них пачкой
+public class LibraryWatcher implements Closeable {
+
+    // пауза в событиях, после которой накопленное обрабатывается
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 300;
+    // при непрерывных событиях (копирование альбома) обработка все равно не откладывается дольше
+    private static final long MAX_DELAY_MILLIS = 2000;
+
+    // получает результат обработки пачки событий в потоке наблюдения
+    public interface Listener {
+
+        // changed - файлы, теги которых перечитаны (или не читаются после изменения),
+        // deleted - файлы, которых больше нет на диске; они уже убраны из кэша и индексов
+        void libraryChanged(List<File> changed, List<File> deleted);
+    }
+
+    private final MP3TagService tagService;
+    private final Listener listener;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    // каталог -> его регистрация и имена отслеживаемых файлов в нем
+    private final Map<Path, Directory> directories = new HashMap<>();
+    private final Map<WatchKey, Directory> directoriesByKey = new HashMap<>();
+    // каталоги, чья регистрация стала недействительной (каталог удален или переименован)
+    private final Set<Directory> lost = new HashSet<>();
+    // пути с событиями, ждущие обработки; только поток наблюдения
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private volatile boolean closed;
+
+    private LibraryWatcher(MP3TagService tagService, Listener listener, long debounceMillis) throws IOException {
+        this.tagService = tagService;
+        this.listener = listener;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new DaemonThreadFactory("library-watch").newThread(this::run);
+    }
+
+    public static LibraryWatcher start(MP3TagService tagService, Listener listener) throws IOException {
+        return start(tagService, listener, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    public static LibraryWatcher start(MP3TagService tagService, Listener listener, long debounceMillis)
+            throws IOException {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("Debounce must not be negative: " + debounceMillis);
+        }
+        LibraryWatcher watcher = new LibraryWatcher(tagService, listener, debounceMillis);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    // начинает следить за файлами; каталог регистрируется при появлении в нем первого файла
+    public synchronized void addFiles(Collection<File> files) {
+        if (closed) {
+            return;
+        }
+        for (File file : files) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent == null) {
+                continue;
+            }
+            Path path = parent.toPath();
+            Directory directory = directories.get(path);
+            if (directory == null) {
+                directory = new Directory(path);
+                directories.put(path, directory);
+                register(directory);
+            }
+            directory.names.add(file.getName());
+        }
+    }
+
+    // перестает следить за файлами; каталог без отслеживаемых файлов снимается с регистрации
+    public synchronized void removeFiles(Collection<File> files) {
+        for (File file : files) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            Directory directory = parent != null ? directories.get(parent.toPath()) : null;
+            if (directory == null || !directory.names.remove(file.getName()) || !directory.names.isEmpty()) {
+                continue;
+            }
+            directories.remove(directory.path);
+            lost.remove(directory);
+            if (directory.key != null) {
+                directory.key.cancel();
+                directoriesByKey.remove(directory.key);
+            }
+        }
+    }
+
+    // число каталогов, зарегистрированных в ос
+    public synchronized int getWatchedDirectoryCount() {
+        return directoriesByKey.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+        synchronized (this) {
+            directories.clear();
+            directoriesByKey.clear();
+            lost.clear();
+        }
+    }
+
+    // регистрация может не удаться (каталог уже удален, исчерпан лимит ос на число наблюдений) -
+    // тогда файлы каталога просто остаются без наблюдения
+    private void register(Directory directory) {
+        try {
+            directory.key = directory.path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            directoriesByKey.put(directory.key, directory);
+        } catch (IOException | ClosedWatchServiceException e) {
+            directory.key = null;
+        }
+    }
+
+    private void run() {
+        long firstEvent = 0;
+        long lastEvent = 0;
+        try {
+            while (!closed) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long now = System.nanoTime();
+                    long deadline = Math.min(lastEvent + TimeUnit.MILLISECONDS.toNanos(debounceMillis),
+                            firstEvent + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS));
+                    key = deadline > now ? watchService.poll(deadline - now, TimeUnit.NANOSECONDS) : null;
+                }
+                if (key != null) {
+                    boolean wasEmpty = pending.isEmpty();
+                    collect(key);
+                    if (!pending.isEmpty()) {
+                        lastEvent = System.nanoTime();
+                        if (wasEmpty) {
+                            firstEvent = lastEvent;
+                        }
+                    }
+                    continue;
+                }
+                process();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // наблюдение остановлено
+        }
+    }
+
+    // переносит события ключа в ожидающие пути; события чужих файлов (временных, обложек) отбрасываются
+    private void collect(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        synchronized (this) {
+            Directory directory = directoriesByKey.get(key);
+            if (directory == null) {
+                // каталог уже снят с наблюдения
+                key.reset();
+                return;
+            }
+            for (WatchEvent<?> event : events) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // ос потеряла часть событий: проверяем все файлы каталога
+                    for (String name : directory.names) {
+                        pending.add(directory.path.resolve(name));
+                    }
+                    continue;
+                }
+                String name = event.context().toString();
+                if (directory.names.contains(name)) {
+                    pending.add(directory.path.resolve(name));
+                }
+            }
+            if (!key.reset()) {
+                // каталог удален или переименован: его файлы проверятся и, скорее всего, окажутся удаленными
+                directoriesByKey.remove(key);
+                directory.key = null;
+                lost.add(directory);
+                for (String name : directory.names) {
+                    pending.add(directory.path.resolve(name));
+                }
+            }
+        }
+    }
+
+    // обрабатывает накопленные пути по текущему состоянию диска
+    private void process() {
+        List<Path> paths = new ArrayList<>(pending);
+        pending.clear();
+
+        List<File> changed = new ArrayList<>();
+        List<File> deleted = new ArrayList<>();
+        for (Path path : paths) {
+            File file = path.toFile();
+            if (!isTracked(path)) {
+                // файл успели убрать из библиотеки
+                continue;
+            }
+            if (!Files.exists(path)) {
+                deleted.add(file);
+                continue;
+            }
+            try {
+                if (tagService.refreshMetadata(file)) {
+                    changed.add(file);
+                }
+            } catch (Exception e) {
+                // файл еще дописывается или испорчен: таблица перечитает его при показе и покажет ошибку
+                tagService.getMetadataCache().invalidate(file);
+                changed.add(file);
+            }
+        }
+        if (!deleted.isEmpty()) {
+            removeFiles(deleted);
+            tagService.forgetFiles(deleted);
+        }
+        reregisterLost();
+        if (!changed.isEmpty() || !deleted.isEmpty()) {
+            listener.libraryChanged(changed, deleted);
+        }
+    }
+
+    private synchronized boolean isTracked(Path path) {
+        Directory directory = directories.get(path.getParent());
+        return directory != null && directory.names.contains(path.getFileName().toString());
+    }
+
+    // каталог, потерявший регистрацию, но с оставшимися на диске файлами (например, удаленный
+    // и созданный заново синхронизацией), регистрируется снова. каталог, которого нет, ждет,
+    // пока его файлы не уберут из библиотеки как удаленные
+    private synchronized void reregisterLost() {
+        Iterator<Directory> iterator = lost.iterator();
+        while (iterator.hasNext()) {
+            Directory directory = iterator.next();
+            if (Files.isDirectory(directory.path)) {
+                register(directory);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Directory {
+
+        private final Path path;
+        // имена, а не полные пути: на каждый файл в памяти только короткая строка
+        private final Set<String> names = new HashSet<>();
+        private WatchKey key;
+
+        private Directory(Path path) {
+            this.path = path;
+        }
+    }
+}
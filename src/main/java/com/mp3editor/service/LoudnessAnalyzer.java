@@ -0,0 +1,479 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.ReplayGain;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+// громкость треков и альбомов для replaygain 2.0 по ebu r128 (itu-r bs.1770). каждый файл один раз
+// потоково декодируется целиком: отсчеты проходят k-фильтр, энергия копится по 100 мс, а громкость
+// блоков 400 мс с перекрытием 75% складывается в гистограмму с шагом 0.1 lu. памяти на трек нужно
+// столько же, сколько на гистограмму, независимо от длины, а громкость альбома - это та же формула
+// над суммой гистограмм его треков. альбом определяется полем album тегов
+public final class LoudnessAnalyzer {
+
+    // опорная громкость replaygain 2.0: усиление приводит трек к ней
+    static final double REFERENCE_LOUDNESS = -18;
+
+    // стробирование: блоки тише абсолютного порога не учитываются, затем отбрасываются блоки
+    // на 10 lu тише средней громкости оставшихся
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    // гистограмма от абсолютного порога до +10 lufs; громче не бывает даже у клиппированного трека
+    private static final double MAX_LOUDNESS = 10;
+    private static final double BIN_WIDTH = 0.1;
+    private static final int BINS = (int) Math.round((MAX_LOUDNESS - ABSOLUTE_GATE) / BIN_WIDTH);
+    // подблоки по 100 мс, блок из четырех подблоков
+    private static final int SUB_BLOCKS_PER_SECOND = 10;
+    private static final int SUB_BLOCKS_PER_BLOCK = 4;
+    // состояние фильтров ниже этого обнуляется: на тишине оно иначе затухает до denormal-чисел,
+    // арифметика с которыми в разы медленнее
+    private static final double DENORMAL_LIMIT = 1e-25;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MP3TagService tagService;
+    private final int threads;
+    private ExecutorService executor;
+
+    // альбомы берутся из тегового сервиса (кэш и индекс), файлы анализируются в пуле по числу ядер
+    public LoudnessAnalyzer(MP3TagService tagService) {
+        this(tagService, Runtime.getRuntime().availableProcessors());
+    }
+
+    public LoudnessAnalyzer(MP3TagService tagService, int threads) {
+        this.tagService = tagService;
+        this.threads = threads;
+    }
+
+    // запускает анализ и сразу возвращает управление; progress получает число обработанных файлов
+    // из рабочих потоков. файлы одного альбома ставятся в очередь подряд, так что гистограммы
+    // держатся в памяти только для альбомов, которые анализируются прямо сейчас
+    public Analysis analyze(List<File> files, IntConsumer progress) {
+        Analysis analysis = new Analysis(new ArrayList<>(files), progress);
+        ExecutorService executor = executor();
+        CompletableFuture.supplyAsync(analysis::queueOrder, executor)
+                .thenCompose(order -> {
+                    CompletableFuture<?>[] tasks = new CompletableFuture<?>[order.size()];
+                    for (int i = 0; i < tasks.length; i++) {
+                        int index = order.get(i);
+                        tasks[i] = CompletableFuture.runAsync(() -> analysis.process(index), executor);
+                    }
+                    return CompletableFuture.allOf(tasks);
+                })
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        analysis.completion.completeExceptionally(error);
+                    } else if (analysis.isCancelled()) {
+                        analysis.completion.completeExceptionally(new CancellationException("Analysis cancelled"));
+                    } else {
+                        analysis.completion.complete(analysis.results());
+                    }
+                });
+        return analysis;
+    }
+
+    // останавливает пул после завершения уже принятых файлов
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("loudness"));
+        }
+        return executor;
+    }
+
+    // один запущенный анализ: отмена, счетчик обработанных файлов и итоговые значения
+    public final class Analysis {
+
+        private final List<File> files;
+        private final IntConsumer progress;
+        private final Track[] tracks;
+        // альбом каждого файла; null - файл без альбома
+        private final Album[] albums;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final CompletableFuture<Map<File, ReplayGain>> completion = new CompletableFuture<>();
+
+        private Analysis(List<File> files, IntConsumer progress) {
+            this.files = files;
+            this.progress = progress;
+            tracks = new Track[files.size()];
+            albums = new Album[files.size()];
+        }
+
+        // останавливает декодирование; альбомные значения без части треков неверны,
+        // поэтому отмененный анализ завершается CancellationException без результатов
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public int getTotal() {
+            return files.size();
+        }
+
+        public int getProcessed() {
+            return processed.get();
+        }
+
+        // значения replaygain в порядке входного списка; файлов без звука в нем нет
+        public CompletableFuture<Map<File, ReplayGain>> completion() {
+            return completion;
+        }
+
+        // раскладывает файлы по альбомам и возвращает порядок анализа: альбом за альбомом,
+        // затем файлы без альбома
+        private List<Integer> queueOrder() {
+            Map<String, List<Integer>> byAlbum = new LinkedHashMap<>();
+            List<Integer> withoutAlbum = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                String album = album(files.get(i));
+                if (album == null) {
+                    withoutAlbum.add(i);
+                } else {
+                    byAlbum.computeIfAbsent(album, key -> new ArrayList<>()).add(i);
+                }
+            }
+            List<Integer> order = new ArrayList<>(files.size());
+            for (List<Integer> indexes : byAlbum.values()) {
+                Album album = new Album(indexes.size());
+                for (int index : indexes) {
+                    albums[index] = album;
+                }
+                order.addAll(indexes);
+            }
+            order.addAll(withoutAlbum);
+            return order;
+        }
+
+        private String album(File file) {
+            try {
+                String album = tagService.readMetadataCached(file).getAlbum();
+                return album != null && !album.isBlank() ? album.trim() : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        // громкость одного файла; нечитаемый файл просто остается без результата
+        private void process(int index) {
+            Histogram histogram = null;
+            double peak = 0;
+            if (!cancelled.get()) {
+                try {
+                    LoudnessMeter meter = measure(files.get(index).toPath(), cancelled);
+                    if (meter != null) {
+                        histogram = meter.histogram;
+                        peak = meter.peak();
+                        double loudness = histogram.integratedLoudness();
+                        if (!Double.isNaN(loudness)) {
+                            tracks[index] = new Track(REFERENCE_LOUDNESS - loudness, peak);
+                        }
+                    }
+                } catch (IOException e) {
+                    // файл не участвует ни в своем альбоме, ни в результате
+                }
+            }
+            Album album = albums[index];
+            if (album != null) {
+                album.add(histogram, peak);
+            }
+            progress.accept(processed.incrementAndGet());
+        }
+
+        private Map<File, ReplayGain> results() {
+            Map<File, ReplayGain> results = new LinkedHashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                Track track = tracks[i];
+                if (track == null) {
+                    continue;
+                }
+                Album album = albums[i];
+                boolean withAlbum = album != null && !Double.isNaN(album.gain);
+                results.put(files.get(i), new ReplayGain(track.gain, track.peak,
+                        withAlbum ? album.gain : null, withAlbum ? album.peak : null));
+            }
+            return results;
+        }
+    }
+
+    // декодирует файл целиком и меряет громкость; null - в потоке нет mpeg фреймов
+    static LoudnessMeter measure(Path path, AtomicBoolean cancelled) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE)) {
+            Bitstream bitstream = new Bitstream(in);
+            LoudnessMeter meter = null;
+            try {
+                Header header = bitstream.readFrame();
+                if (header == null) {
+                    return null;
+                }
+                int sampleRate = header.frequency();
+                Decoder decoder = new Decoder();
+                while (header != null && !cancelled.get()) {
+                    if (header.frequency() == sampleRate) {
+                        try {
+                            SampleBuffer output = (SampleBuffer) decoder.decodeFrame(header, bitstream);
+                            if (meter == null) {
+                                meter = new LoudnessMeter(sampleRate, output.getChannelCount());
+                            }
+                            meter.add(output.getBuffer(), output.getBufferLength());
+                        } catch (DecoderException | ArrayIndexOutOfBoundsException e) {
+                            // битый фрейм пропускаем, остальные декодируются как обычно
+                        }
+                    }
+                    bitstream.closeFrame();
+                    header = bitstream.readFrame();
+                }
+            } catch (BitstreamException e) {
+                // поток оборвался - меряем то, что успели декодировать
+            }
+            return meter;
+        }
+    }
+
+    // громкость по энергии блока (сумма средних квадратов каналов после k-фильтра)
+    private static double loudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    // потоковый измеритель одного трека: k-фильтр по каналам, подблоки по 100 мс и гистограмма блоков
+    static final class LoudnessMeter {
+
+        private final int sampleRate;
+        private final int channels;
+        // k-фильтр: полочный фильтр верхних частот (модель головы) и фильтр среза ниже 38 гц
+        private final double shelfB0;
+        private final double shelfB1;
+        private final double shelfB2;
+        private final double shelfA1;
+        private final double shelfA2;
+        private final double highPassA1;
+        private final double highPassA2;
+        // состояние обоих звеньев по каналам (транспонированная вторая прямая форма)
+        private final double[] shelfState1;
+        private final double[] shelfState2;
+        private final double[] highPassState1;
+        private final double[] highPassState2;
+
+        // энергия и длина последних подблоков по кругу
+        private final double[] subBlockEnergy = new double[SUB_BLOCKS_PER_BLOCK];
+        private final long[] subBlockLength = new long[SUB_BLOCKS_PER_BLOCK];
+        private long subBlocks;
+        private double energy;
+        private long frames;
+        private long subBlockStart;
+        private long subBlockEnd;
+        private int maxSample;
+
+        final Histogram histogram = new Histogram();
+
+        LoudnessMeter(int sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            // коэффициенты bs.1770 заданы для 48 кгц; для любой частоты они получаются
+            // билинейным преобразованием аналоговых прототипов с теми же параметрами
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            shelfB0 = (vh + vb * k / q + k * k) / a0;
+            shelfB1 = 2 * (k * k - vh) / a0;
+            shelfB2 = (vh - vb * k / q + k * k) / a0;
+            shelfA1 = 2 * (k * k - 1) / a0;
+            shelfA2 = (1 - k / q + k * k) / a0;
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1 + k / q + k * k;
+            highPassA1 = 2 * (k * k - 1) / a0;
+            highPassA2 = (1 - k / q + k * k) / a0;
+            shelfState1 = new double[channels];
+            shelfState2 = new double[channels];
+            highPassState1 = new double[channels];
+            highPassState2 = new double[channels];
+            subBlockEnd = nextSubBlockEnd();
+        }
+
+        // отсчеты идут чередованием по каналам, count - общее число отсчетов
+        void add(short[] samples, int count) {
+            for (int i = 0; i < count; ) {
+                for (int c = 0; c < channels; c++, i++) {
+                    int sample = samples[i];
+                    int magnitude = sample < 0 ? -sample : sample;
+                    if (magnitude > maxSample) {
+                        maxSample = magnitude;
+                    }
+                    double x = sample / 32768.0;
+                    double y = shelfB0 * x + shelfState1[c];
+                    shelfState1[c] = shelfB1 * x - shelfA1 * y + shelfState2[c];
+                    shelfState2[c] = shelfB2 * x - shelfA2 * y;
+                    // у фильтра среза числитель 1, -2, 1
+                    double z = y + highPassState1[c];
+                    highPassState1[c] = -2 * y - highPassA1 * z + highPassState2[c];
+                    highPassState2[c] = y - highPassA2 * z;
+                    energy += z * z;
+                }
+                if (++frames == subBlockEnd) {
+                    finishSubBlock();
+                }
+            }
+        }
+
+        // пиковый уровень отсчетов, 1.0 - полная шкала
+        double peak() {
+            return maxSample / 32768.0;
+        }
+
+        private void finishSubBlock() {
+            int slot = (int) (subBlocks % SUB_BLOCKS_PER_BLOCK);
+            subBlockEnergy[slot] = energy;
+            subBlockLength[slot] = frames - subBlockStart;
+            subBlocks++;
+            energy = 0;
+            subBlockStart = frames;
+            subBlockEnd = nextSubBlockEnd();
+            if (subBlocks >= SUB_BLOCKS_PER_BLOCK) {
+                double blockEnergy = 0;
+                long blockLength = 0;
+                for (int i = 0; i < SUB_BLOCKS_PER_BLOCK; i++) {
+                    blockEnergy += subBlockEnergy[i];
+                    blockLength += subBlockLength[i];
+                }
+                histogram.add(blockEnergy / blockLength);
+            }
+            flushDenormals(shelfState1);
+            flushDenormals(shelfState2);
+            flushDenormals(highPassState1);
+            flushDenormals(highPassState2);
+        }
+
+        // граница подблока считается от начала трека: при частоте 11025 гц подблок не целое число отсчетов
+        private long nextSubBlockEnd() {
+            return (subBlocks + 1) * sampleRate / SUB_BLOCKS_PER_SECOND;
+        }
+
+        private static void flushDenormals(double[] state) {
+            for (int i = 0; i < state.length; i++) {
+                if (Math.abs(state[i]) < DENORMAL_LIMIT) {
+                    state[i] = 0;
+                }
+            }
+        }
+    }
+
+    // распределение громкости блоков выше абсолютного порога. вместе с числом блоков в корзине
+    // хранится их суммарная энергия, так что средняя энергия считается точно, а шаг корзины
+    // влияет только на блоки у самого относительного порога
+    static final class Histogram {
+
+        private final long[] counts = new long[BINS];
+        private final double[] energies = new double[BINS];
+
+        void add(double energy) {
+            double loudness = loudness(energy);
+            if (!(loudness > ABSOLUTE_GATE)) {
+                return;
+            }
+            int bin = Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE) / BIN_WIDTH));
+            counts[bin]++;
+            energies[bin] += energy;
+        }
+
+        void addAll(Histogram other) {
+            for (int i = 0; i < BINS; i++) {
+                counts[i] += other.counts[i];
+                energies[i] += other.energies[i];
+            }
+        }
+
+        // интегральная громкость в lufs; NaN - громких блоков нет (тишина или трек короче 400 мс)
+        double integratedLoudness() {
+            long count = 0;
+            double energy = 0;
+            for (int i = 0; i < BINS; i++) {
+                count += counts[i];
+                energy += energies[i];
+            }
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double threshold = loudness(energy / count) + RELATIVE_GATE;
+            long gatedCount = 0;
+            double gatedEnergy = 0;
+            for (int i = 0; i < BINS; i++) {
+                if (counts[i] > 0 && loudness(energies[i] / counts[i]) > threshold) {
+                    gatedCount += counts[i];
+                    gatedEnergy += energies[i];
+                }
+            }
+            return gatedCount > 0 ? loudness(gatedEnergy / gatedCount) : Double.NaN;
+        }
+    }
+
+    private static final class Track {
+
+        private final double gain;
+        private final double peak;
+
+        private Track(double gain, double peak) {
+            this.gain = gain;
+            this.peak = peak;
+        }
+    }
+
+    // общая гистограмма альбома; освобождается, как только проанализирован последний трек
+    private static final class Album {
+
+        private int remaining;
+        private Histogram histogram;
+        private double peak;
+        private double gain = Double.NaN;
+
+        private Album(int tracks) {
+            this.remaining = tracks;
+        }
+
+        private synchronized void add(Histogram track, double trackPeak) {
+            if (track != null) {
+                if (histogram == null) {
+                    histogram = new Histogram();
+                }
+                histogram.addAll(track);
+                peak = Math.max(peak, trackPeak);
+            }
+            if (--remaining == 0 && histogram != null) {
+                gain = REFERENCE_LOUDNESS - histogram.integratedLoudness();
+                histogram = null;
+            }
+        }
+    }
+}
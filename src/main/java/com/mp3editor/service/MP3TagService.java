@@ -1,154 +1,684 @@
 package com.mp3editor.service;
 
+import com.mp3editor.model.AudioProperties;
+import com.mp3editor.model.CoverArt;
 import com.mp3editor.model.MP3Metadata;
+import com.mpatric.mp3agic.AbstractID3v2Tag;
 import com.mpatric.mp3agic.ID3v1;
 import com.mpatric.mp3agic.ID3v1Tag;
 import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.ID3v24Frame;
 import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.ID3v2Frame;
+import com.mpatric.mp3agic.ID3v2FrameSet;
+import com.mpatric.mp3agic.ID3v2TagFactory;
 import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.MpegFrame;
+import com.mpatric.mp3agic.NoSuchTagException;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class MP3TagService {
 
+    // число потоков фонового ввода-вывода для асинхронных операций
+    private static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    // запас padding при полной перезаписи тега (байт)
+    private int paddingReserve = ID3TagWriter.DEFAULT_PADDING_RESERVE;
+
+    // true - любой файл пишется через временный файл с fsync и атомарным переименованием,
+    // даже если новый тег помещается на место старого: сбой посреди записи не оставит
+    // наполовину записанный тег. дороже правки на месте, так как копируется все аудио
+    private volatile boolean atomicWrites;
+
+    // пул для асинхронного чтения и записи, создается при первом обращении
+    private ExecutorService ioExecutor;
+
+    // кэш прочитанных метаданных, сбрасывается для файлов, в которые мы пишем
+    private final MetadataCache metadataCache;
+
+    // постоянный индекс библиотеки; null - работаем без него
+    private volatile TagIndex tagIndex;
+
+    // поисковый индекс библиотеки, обновляется при каждом чтении и записи тегов; null - без поиска
+    private volatile LibrarySearchIndex searchIndex;
+
+    // метрики чтения и записи, по умолчанию выключены
+    private final TagMetrics metrics;
+
+    public MP3TagService() {
+        this(new MetadataCache());
+    }
+
+    public MP3TagService(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        this.metrics = new TagMetrics(metadataCache);
+    }
+
     // основной публичный метод: читает все доступные теги из mp3 файла
     public MP3Metadata readMetadata(File file) throws Exception {
-        // открываем mp3 файл через библиотеку mp3agic
-        Mp3File mp3File = new Mp3File(file.getAbsolutePath());
-
-        // приоритет id3v2 (современный формат, содержит обложку и больше информации)
-        if (mp3File.hasId3v2Tag()) {
-            // получаем теги id3v2
-            ID3v2 id3v2 = mp3File.getId3v2Tag();
-            // создаем объект с метаданными
-            MP3Metadata metadata = new MP3Metadata();
-
-            // извлекаем текстовые теги
-            metadata.setTitle(id3v2.getTitle());
-            metadata.setArtist(id3v2.getArtist());
-            metadata.setAlbum(id3v2.getAlbum());
-            metadata.setYear(id3v2.getYear());
-            metadata.setGenre(id3v2.getGenreDescription());
-
-            // bpm пока не поддерживается библиотекой напрямую
-            metadata.setBpm(null);
-
-            // извлекаем обложку как массив байтов
-            byte[] coverImageData = id3v2.getAlbumImage();
-            metadata.setCoverArt(coverImageData);
+        long start = metrics.start();
+        try {
+            // открываем mp3 файл через библиотеку mp3agic
+            Mp3File mp3File = new Mp3File(file.getAbsolutePath());
+            // mp3agic проходит файл целиком ради битрейта и длительности
+            metrics.addBytesRead(mp3File.getLength());
+
+            MP3Metadata metadata;
+            if (mp3File.hasId3v2Tag()) {
+                // приоритет id3v2 (современный формат, содержит обложку и больше информации)
+                metadata = fromId3v2(mp3File.getId3v2Tag());
+            } else if (mp3File.hasId3v1Tag()) {
+                // fallback на id3v1 если id3v2 отсутствует (для старых mp3 файлов)
+                metadata = fromId3v1(mp3File.getId3v1Tag());
+            } else {
+                // если тегов нет вообще - возвращаем пустой объект
+                metadata = new MP3Metadata();
+            }
+            metadata.setAudio(audioOf(mp3File));
+            metrics.record(TagMetrics.Operation.PARSE, start, file);
             return metadata;
+        } catch (Exception e) {
+            metrics.recordFailure(TagMetrics.Operation.PARSE, e);
+            throw e;
         }
+    }
 
-        // fallback на id3v1 если id3v2 отсутствует (для старых mp3 файлов)
-        if (mp3File.hasId3v1Tag()) {
-            // получаем теги id3v1
-            ID3v1 id3v1 = mp3File.getId3v1Tag();
-            MP3Metadata metadata = new MP3Metadata();
-
-            // извлекаем базовые текстовые теги (id3v1 не поддерживает обложку)
-            metadata.setTitle(id3v1.getTitle());
-            metadata.setArtist(id3v1.getArtist());
-            metadata.setAlbum(id3v1.getAlbum());
-            metadata.setYear(id3v1.getYear());
-            metadata.setGenre(id3v1.getGenreDescription());
-            // id3v1 не поддерживает bpm и обложку
-            metadata.setBpm(null);
-            return metadata;
+    // быстрое чтение тегов: разбирает только id3v2 в начале файла и 128 байт id3v1 в конце,
+    // без сканирования mpeg фреймов (Mp3File читает весь файл ради битрейта и длительности).
+    // id3v2 разбирается собственным парсером: декодируются только нужные модели фреймы
+    public MP3Metadata readMetadataFast(File file) throws Exception {
+        long start = metrics.start();
+        MP3Metadata metadata;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // приоритет id3v2, как и в полном чтении
+            ID3v2FrameReader.Tag tag = ID3v2FrameReader.read(channel, false);
+            metrics.addBytesRead(tagBytesRead(tag));
+            if (tag != null && tag.isSupported()) {
+                metadata = fromFrames(file, tag);
+            } else {
+                // fallback на id3v1
+                byte[] id3v1Bytes = ID3TagReader.readId3v1Bytes(channel);
+                metrics.addBytesRead(ID3TagReader.ID3V1_LENGTH);
+                // если тегов нет вообще - возвращаем пустой объект
+                metadata = id3v1Bytes != null ? fromId3v1(new ID3v1Tag(id3v1Bytes)) : new MP3Metadata();
+            }
+
+            // свойства звука - по первому фрейму за тегом и его заголовку xing/vbri
+            MpegAudioReader audioReader = new MpegAudioReader(channel);
+            metadata.setAudio(audioReader.read(tag != null ? tag.regionLength : 0));
+            metrics.addBytesRead(audioReader.getBytesRead());
+        } catch (Exception e) {
+            metrics.recordFailure(TagMetrics.Operation.PARSE, e);
+            throw e;
+        }
+        metrics.record(TagMetrics.Operation.PARSE, start, file);
+        return metadata;
+    }
+
+    // свойства звука, которые mp3agic уже посчитала полным проходом по фреймам
+    private static AudioProperties audioOf(Mp3File mp3File) {
+        if (mp3File.getSampleRate() <= 0) {
+            return null;
+        }
+        AudioProperties.ChannelMode channelMode;
+        switch (String.valueOf(mp3File.getChannelMode())) {
+            case MpegFrame.CHANNEL_MODE_MONO:
+                channelMode = AudioProperties.ChannelMode.MONO;
+                break;
+            case MpegFrame.CHANNEL_MODE_DUAL_MONO:
+                channelMode = AudioProperties.ChannelMode.DUAL_CHANNEL;
+                break;
+            case MpegFrame.CHANNEL_MODE_JOINT_STEREO:
+                channelMode = AudioProperties.ChannelMode.JOINT_STEREO;
+                break;
+            default:
+                channelMode = AudioProperties.ChannelMode.STEREO;
+        }
+        return new AudioProperties(mp3File.getLengthInMilliseconds(), mp3File.getBitrate(), mp3File.getSampleRate(),
+                channelMode, mp3File.isVbr(), false);
+    }
+
+    // сколько байтов тега прочитал разбор: область тега без пропущенной не читая обложки
+    // (или только заголовок, если тега нет)
+    private static long tagBytesRead(ID3v2FrameReader.Tag tag) {
+        if (tag == null) {
+            return ID3TagReader.ID3V2_HEADER_LENGTH;
+        }
+        return tag.regionLength - (tag.pictureOffset >= 0 ? tag.pictureLength : 0);
+    }
+
+    // быстрое чтение через кэш и постоянный индекс: повторный выбор неизмененного файла не читает диск
+    public MP3Metadata readMetadataCached(File file) throws Exception {
+        MetadataCache.Key key = MetadataCache.keyFor(file);
+        MP3Metadata metadata = metadataCache.get(key);
+        if (metadata == null) {
+            TagIndex index = tagIndex;
+            if (index != null) {
+                metadata = index.get(file, key.getLength(), key.getLastModified());
+            }
+            if (metadata == null) {
+                // ключ взят до чтения: если файл изменится во время чтения, запись просто не найдется
+                metadata = readMetadataFast(file);
+                if (index != null) {
+                    try {
+                        index.put(file, key.getLength(), key.getLastModified(), metadata);
+                    } catch (IOException e) {
+                        // индекс - только ускорение, ошибка его записи не мешает чтению тегов
+                    }
+                }
+            }
+            metadataCache.put(key, metadata);
+        }
+        LibrarySearchIndex search = searchIndex;
+        if (search != null) {
+            search.update(file, metadata);
+        }
+        return metadata;
+    }
+
+    // перечитывает файл после сообщения о его изменении на диске. возвращает false, если файл
+    // в этом состоянии уже прочитан (например, изменение - наша же запись) и диск не читался
+    public boolean refreshMetadata(File file) throws Exception {
+        MetadataCache.Key key = MetadataCache.keyFor(file);
+        if (metadataCache.get(key) != null) {
+            return false;
+        }
+        // теги прежней версии файла больше не нужны ни кэшу, ни таблице
+        metadataCache.invalidate(file);
+        readMetadataCached(file);
+        return true;
+    }
+
+    // убирает удаленные с диска файлы из кэша, индекса библиотеки и поиска
+    public void forgetFiles(Collection<File> files) {
+        for (File file : files) {
+            metadataCache.invalidate(file);
+        }
+        TagIndex index = tagIndex;
+        if (index != null) {
+            try {
+                index.removeFiles(files);
+            } catch (IOException e) {
+                // индекс - только ускорение, при следующем запуске файл отсеется сверкой
+            }
+        }
+        LibrarySearchIndex search = searchIndex;
+        if (search != null) {
+            search.removeFiles(files);
+        }
+    }
+
+    public boolean isAtomicWrites() {
+        return atomicWrites;
+    }
+
+    public void setAtomicWrites(boolean atomicWrites) {
+        this.atomicWrites = atomicWrites;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public TagMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
+    public void setTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    public LibrarySearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public void setSearchIndex(LibrarySearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    // сверяет индекс с диском по отпечаткам: неизмененные файлы не открываются,
+    // измененные перечитываются, пропавшие удаляются из индекса и возвращаются
+    public List<File> refreshIndex() throws IOException {
+        TagIndex index = tagIndex;
+        LibrarySearchIndex search = searchIndex;
+        List<File> missing = new ArrayList<>();
+        if (index == null) {
+            return missing;
         }
+        for (File file : index.files()) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                index.remove(file);
+                if (search != null) {
+                    search.removeFile(file);
+                }
+                missing.add(file);
+                continue;
+            }
+            MP3Metadata indexed = index.get(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+            if (indexed == null) {
+                try {
+                    readMetadataCached(file);
+                } catch (Exception e) {
+                    // битый файл остается в библиотеке, ошибка покажется при его выборе
+                }
+            } else if (search != null) {
+                // неизмененный файл: теги из индекса сразу доступны поиску
+                search.update(file, indexed);
+            }
+        }
+        index.flush();
+        return missing;
+    }
 
-        // если тегов нет вообще - возвращаем пустой объект
-        return new MP3Metadata();
+    // асинхронная сверка индекса в пуле ввода-вывода
+    public CompletableFuture<List<File>> refreshIndexAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return refreshIndex();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor());
     }
 
-    // основной публичный метод: записывает метаданные в новый mp3 файл
+    // асинхронное чтение тегов (через кэш) в пуле ввода-вывода (не блокирует поток swing)
+    public CompletableFuture<MP3Metadata> readMetadataAsync(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return readMetadataCached(file);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor());
+    }
+
+    // асинхронное чтение тегов нескольких файлов одной задачей, например страницы списка библиотеки.
+    // результат по позициям совпадает с files; для файла, который не удалось прочитать, - null
+    public CompletableFuture<List<MP3Metadata>> readMetadataAsync(List<File> files) {
+        List<File> snapshot = new ArrayList<>(files);
+        return CompletableFuture.supplyAsync(() -> {
+            List<MP3Metadata> result = new ArrayList<>(snapshot.size());
+            for (File file : snapshot) {
+                try {
+                    result.add(readMetadataCached(file));
+                } catch (Exception e) {
+                    result.add(null);
+                }
+            }
+            return result;
+        }, ioExecutor());
+    }
+
+    // фоновое чтение тегов файлов, которых еще нет в поисковом индексе (например, только что
+    // найденных при обходе каталога), чтобы поиск находил их не только по имени. ошибки чтения пропускаются
+    public CompletableFuture<Void> indexMetadataAsync(List<File> files) {
+        List<File> snapshot = new ArrayList<>(files);
+        return CompletableFuture.runAsync(() -> {
+            LibrarySearchIndex search = searchIndex;
+            if (search == null) {
+                return;
+            }
+            for (File file : snapshot) {
+                if (search.contains(file) && !search.hasMetadata(file)) {
+                    try {
+                        readMetadataCached(file);
+                    } catch (Exception e) {
+                        // файл останется находимым по имени
+                    }
+                }
+            }
+        }, ioExecutor());
+    }
+
+    // асинхронная запись тегов в пуле ввода-вывода
+    public CompletableFuture<Void> writeMetadataAsync(File inputFile, File outputFile, MP3Metadata metadata) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writeMetadata(inputFile, outputFile, metadata);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor());
+    }
+
+    // останавливает пул ввода-вывода после завершения уже принятых операций
+    public synchronized void shutdown() {
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+        }
+        metrics.close();
+    }
+
+    private synchronized ExecutorService ioExecutor() {
+        if (ioExecutor == null) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(IO_THREADS,
+                    new DaemonThreadFactory("tag-io"));
+            metrics.registerQueue("tag-io", () -> executor.getQueue().size());
+            ioExecutor = executor;
+        }
+        return ioExecutor;
+    }
+
+    // переносит поля id3v2 тега в модель метаданных
+    private MP3Metadata fromId3v2(ID3v2 id3v2) {
+        // создаем объект с метаданными
+        MP3Metadata metadata = new MP3Metadata();
+
+        // извлекаем текстовые теги
+        metadata.setTitle(id3v2.getTitle());
+        metadata.setArtist(id3v2.getArtist());
+        metadata.setAlbum(id3v2.getAlbum());
+        metadata.setYear(id3v2.getYear());
+        // в v2.4 год хранится в tdrc, mp3agic читает из него только getRecordingTime
+        if (metadata.getYear() == null && id3v2 instanceof ID3v24Tag) {
+            metadata.setYear(((ID3v24Tag) id3v2).getRecordingTime());
+        }
+        metadata.setGenre(id3v2.getGenreDescription());
+        metadata.setBpm(readBpm(id3v2));
+
+        // извлекаем обложку, если она была разобрана вместе с тегом
+        byte[] coverImageData = id3v2.getAlbumImage();
+        if (coverImageData != null && coverImageData.length > 0) {
+            String mimeType = id3v2.getAlbumImageMimeType();
+            metadata.setCoverArt(mimeType != null
+                    ? CoverArt.fromBytes(coverImageData, mimeType)
+                    : CoverArt.fromBytes(coverImageData));
+        }
+        return metadata;
+    }
+
+    // переносит разобранные фреймы id3v2 в модель метаданных
+    private MP3Metadata fromFrames(File file, ID3v2FrameReader.Tag tag) {
+        MP3Metadata metadata = new MP3Metadata();
+        metadata.setTitle(tag.title);
+        metadata.setArtist(tag.artist);
+        metadata.setAlbum(tag.album);
+        metadata.setYear(tag.getYear());
+        metadata.setGenre(tag.genre);
+        metadata.setBpm(tag.bpm);
+
+        // байты обложки, лежащей в файле как есть, не читались - отдаем ссылку на них
+        if (tag.pictureOffset >= 0 && tag.pictureLength > 0) {
+            metadata.setCoverArt(CoverArt.fromFile(file, tag.pictureOffset, tag.pictureLength, tag.pictureMimeType));
+        } else if (tag.pictureData != null && tag.pictureData.length > 0) {
+            metadata.setCoverArt(CoverArt.fromBytes(tag.pictureData, tag.pictureMimeType));
+        }
+        return metadata;
+    }
+
+    // tbpm через mp3agic: дробное значение она обрезает, на мусоре бросает исключение
+    private static Integer readBpm(ID3v2 id3v2) {
+        try {
+            int bpm = id3v2.getBPM();
+            return bpm > 0 ? bpm : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // переносит поля id3v1 тега в модель метаданных
+    private MP3Metadata fromId3v1(ID3v1 id3v1) {
+        MP3Metadata metadata = new MP3Metadata();
+
+        // извлекаем базовые текстовые теги (id3v1 не поддерживает обложку)
+        metadata.setTitle(id3v1.getTitle());
+        metadata.setArtist(id3v1.getArtist());
+        metadata.setAlbum(id3v1.getAlbum());
+        metadata.setYear(id3v1.getYear());
+        metadata.setGenre(id3v1.getGenreDescription());
+        // id3v1 не поддерживает bpm и обложку
+        metadata.setBpm(null);
+        return metadata;
+    }
+
+    // основной публичный метод: записывает метаданные в новый mp3 файл.
+    // если outputFile совпадает с inputFile, файл правится на месте
     public void writeMetadata(File inputFile, File outputFile, MP3Metadata metadata) throws Exception {
-        // открываем исходный mp3 файл для чтения аудиоданных
-        Mp3File mp3File = new Mp3File(inputFile.getAbsolutePath());
-
-        // получаем или создаем теги id3v2 (приоритетный современный формат)
-        ID3v2 id3v2Tag;
-        if (mp3File.hasId3v2Tag()) {
-            // используем существующие теги
-            id3v2Tag = mp3File.getId3v2Tag();
-        } else {
-            // создаем новые теги id3v2.4
-            id3v2Tag = new ID3v24Tag();
-            mp3File.setId3v2Tag(id3v2Tag);
+        long start = metrics.start();
+        try {
+            writeTags(inputFile, outputFile, metadata);
+            metrics.record(TagMetrics.Operation.SAVE, start, outputFile);
+        } catch (Exception e) {
+            metrics.recordFailure(TagMetrics.Operation.SAVE, e);
+            throw e;
+        } finally {
+            // целевой файл перезаписан (или испорчен) - закэшированные теги больше не верны
+            metadataCache.invalidate(outputFile);
+        }
+        // поиск должен видеть новые теги сразу, а не после следующего показа файла
+        LibrarySearchIndex search = searchIndex;
+        if (search != null && search.contains(outputFile)) {
+            try {
+                readMetadataCached(outputFile);
+            } catch (Exception e) {
+                // теги записаны; индекс обновится при следующем чтении файла
+            }
         }
+    }
+
+    // записывает метаданные поверх исходного файла. если новый тег помещается в старый
+    // (вместе с его padding) - перезаписываются только первые килобайты файла и id3v1 трейлер,
+    // иначе (и всегда в режиме atomicWrites) файл переписывается потоково с запасом padding для следующих правок
+    public void writeMetadataInPlace(File file, MP3Metadata metadata) throws Exception {
+        writeMetadata(file, file, metadata);
+    }
+
+    // читает старые теги без аудио и обложки, применяет к ним метаданные и выбирает способ записи
+    private void writeTags(File inputFile, File outputFile, MP3Metadata metadata) throws Exception {
+        boolean sameFile = isSameFile(inputFile, outputFile);
+        ID3v2FrameReader.Tag oldTag;
+        byte[] oldId3v1;
+        byte[] newTag;
+        CoverArt cover;
+        long fileSize;
+
+        try (FileChannel channel = sameFile
+                ? FileChannel.open(inputFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            oldTag = ID3v2FrameReader.read(channel, true);
+            oldId3v1 = ID3TagReader.readId3v1Bytes(channel);
+            metrics.addBytesRead(tagBytesRead(oldTag) + ID3TagReader.ID3V1_LENGTH);
+
+            // обложку дописываем отдельным фреймом, копируя изображение потоком
+            cover = metadata.getCoverArt();
+            if (cover != null && cover.getLength() == 0) {
+                cover = null;
+            }
+
+            if (oldTag == null || oldTag.isRewritable() || oldTag.majorVersion == 2) {
+                // v2.3/2.4: тег собирается из исходных фреймов без разбора их mp3agic;
+                // v2.2 mp3agic сохранять не умеет, такой тег переводится в v2.4
+                newTag = ID3TagWriter.buildTag(oldTag, metadata);
+            } else {
+                // десинхронизированный тег пока пишет mp3agic;
+                // существующий тег берем целиком, чтобы не потерять фреймы, которые мы не редактируем
+                ID3TagReader.Id3v2Region region = oldTag != null ? ID3TagReader.readId3v2Region(channel) : null;
+                ID3v2 id3v2Tag = region != null ? ID3v2TagFactory.createTag(region.tagBytes) : new ID3v24Tag();
+                applyId3v2(id3v2Tag, metadata);
+                if (cover != null && !ID3TagWriter.canAppendPicture(id3v2Tag)) {
+                    // для старых форматов обложку пишет mp3agic, ей нужны байты в памяти
+                    long coverStart = metrics.start();
+                    id3v2Tag.setAlbumImage(cover.readBytes(), cover.getMimeType());
+                    metrics.record(TagMetrics.Operation.COVER, coverStart, null);
+                    cover = null;
+                }
+                newTag = ID3TagWriter.serialize(id3v2Tag);
+            }
+
+            int oldRegionLength = oldTag != null ? oldTag.regionLength : 0;
+            if (sameFile && !atomicWrites && ID3TagWriter.fitsInPlace(oldRegionLength, oldTag != null && oldTag.footer, newTag, cover)) {
+                ID3TagWriter.writeInPlace(channel, newTag, cover, oldRegionLength);
+                // синхронизируем базовые теги в id3v1 для совместимости
+                long syncStart = metrics.start();
+                ID3TagWriter.writeId3v1(channel, buildId3v1(oldId3v1, metadata), oldId3v1 != null);
+                metrics.record(TagMetrics.Operation.ID3V1_SYNC, syncStart, null);
+                channel.force(false);
+                metrics.addBytesWritten(oldRegionLength + ID3TagReader.ID3V1_LENGTH);
+                return;
+            }
+        }
+
+        // новый файл или тег не помещается - потоковая перезапись через временный файл
+        long syncStart = metrics.start();
+        byte[] newId3v1 = buildId3v1(oldId3v1, metadata);
+        metrics.record(TagMetrics.Operation.ID3V1_SYNC, syncStart, null);
+        long audioStart = oldTag != null ? oldTag.regionLength : 0;
+        long audioEnd = oldId3v1 != null ? fileSize - ID3TagReader.ID3V1_LENGTH : fileSize;
+        ID3TagWriter.rewrite(inputFile, outputFile, newTag, cover, paddingReserve, audioStart, audioEnd, newId3v1);
+        // аудио копируется целиком: читается и пишется весь файл
+        metrics.addBytesRead(audioEnd - audioStart);
+        metrics.addBytesWritten(outputFile.length());
+    }
+
+    // id3v1 трейлер с базовыми тегами: старый, если был, с примененными метаданными
+    private byte[] buildId3v1(byte[] oldId3v1, MP3Metadata metadata) throws NoSuchTagException {
+        ID3v1Tag id3v1Tag = oldId3v1 != null ? new ID3v1Tag(oldId3v1) : new ID3v1Tag();
+        applyId3v1(id3v1Tag, metadata);
+        return id3v1Tag.toBytes();
+    }
+
+    // размер запаса padding, который резервируется при полной перезаписи тега
+    public int getPaddingReserve() {
+        return paddingReserve;
+    }
+
+    public void setPaddingReserve(int paddingReserve) {
+        if (paddingReserve < 0) {
+            throw new IllegalArgumentException("Padding reserve must not be negative: " + paddingReserve);
+        }
+        this.paddingReserve = paddingReserve;
+    }
+
+    // переносит поля модели в id3v2 тег: null оставляет поле как есть, пустая строка удаляет его
+    private void applyId3v2(ID3v2 id3v2Tag, MP3Metadata metadata) {
+        AbstractID3v2Tag tag = (AbstractID3v2Tag) id3v2Tag;
+        // во фреймах id3v2.2 трехбуквенные идентификаторы
+        boolean obsolete = "2.0".equals(tag.getVersion());
 
         // записываем основные текстовые теги
-        id3v2Tag.setTitle(metadata.getTitle());
-        id3v2Tag.setArtist(metadata.getArtist());
-        id3v2Tag.setAlbum(metadata.getAlbum());
-        id3v2Tag.setYear(metadata.getYear());
+        if (isEmpty(metadata.getTitle())) {
+            clearFrames(tag, metadata.getTitle(), obsolete ? AbstractID3v2Tag.ID_TITLE_OBSELETE : AbstractID3v2Tag.ID_TITLE);
+        } else {
+            id3v2Tag.setTitle(metadata.getTitle());
+        }
+        if (isEmpty(metadata.getArtist())) {
+            clearFrames(tag, metadata.getArtist(), obsolete ? AbstractID3v2Tag.ID_ARTIST_OBSELETE : AbstractID3v2Tag.ID_ARTIST);
+        } else {
+            id3v2Tag.setArtist(metadata.getArtist());
+        }
+        if (isEmpty(metadata.getAlbum())) {
+            clearFrames(tag, metadata.getAlbum(), obsolete ? AbstractID3v2Tag.ID_ALBUM_OBSELETE : AbstractID3v2Tag.ID_ALBUM);
+        } else {
+            id3v2Tag.setAlbum(metadata.getAlbum());
+        }
+        if (isEmpty(metadata.getYear())) {
+            // год в v2.4 может лежать и в tdrc
+            clearFrames(tag, metadata.getYear(), obsolete ? AbstractID3v2Tag.ID_YEAR_OBSELETE : AbstractID3v2Tag.ID_YEAR,
+                    ID3v24Tag.ID_RECTIME);
+        } else {
+            id3v2Tag.setYear(metadata.getYear());
+        }
 
         // жанр записываем только если указан
-        if (metadata.getGenre() != null) {
+        if (isEmpty(metadata.getGenre())) {
+            clearFrames(tag, metadata.getGenre(), obsolete ? AbstractID3v2Tag.ID_GENRE_OBSELETE : AbstractID3v2Tag.ID_GENRE);
+        } else {
             id3v2Tag.setGenreDescription(metadata.getGenre());
         }
 
-        // bpm сохраняем в комментарий (библиотека не поддерживает прямую запись bpm)
+        // bpm в своем фрейме tbpm; ноль и отрицательное значение удаляют его
         if (metadata.getBpm() != null) {
-            String comment = id3v2Tag.getComment();
-            if (comment == null) {
-                comment = "";
+            if (metadata.getBpm() > 0) {
+                id3v2Tag.setBPM(metadata.getBpm());
+            } else {
+                tag.clearFrameSet(obsolete ? AbstractID3v2Tag.ID_BPM_OBSELETE : AbstractID3v2Tag.ID_BPM);
             }
-            // добавляем bpm к существующему комментарию
-            comment = comment + " BPM=" + metadata.getBpm();
-            id3v2Tag.setComment(comment.trim());
         }
 
-        // обработка обложки
-        if (metadata.getCoverArt() != null && metadata.getCoverArt().length > 0) {
-            // определяем mime тип изображения
-            String mimeType = detectMimeType(metadata.getCoverArt());
-            // сохраняем обложку в тег
-            id3v2Tag.setAlbumImage(metadata.getCoverArt(), mimeType);
-        } else {
-            // удаляем обложку если её не нужно сохранять
-            id3v2Tag.clearAlbumImage();
+        if (metadata.getReplayGain() != null) {
+            applyReplayGain(tag, metadata);
         }
 
-        // синхронизируем базовые теги в id3v1 для совместимости
-        syncId3v1Tag(mp3File, metadata);
+        // старую обложку удаляем; новая (если есть) записывается отдельным фреймом
+        id3v2Tag.clearAlbumImage();
+    }
 
-        // сохраняем результат в новый файл (исходный файл остается неизменным)
-        mp3File.save(outputFile.getAbsolutePath());
+    // заменяет txxx фреймы replaygain: у mp3agic нет для них сеттеров, поэтому правим набор фреймов
+    private static void applyReplayGain(AbstractID3v2Tag tag, MP3Metadata metadata) {
+        ID3v2FrameSet frameSet = tag.getFrameSets().computeIfAbsent("TXXX", ID3v2FrameSet::new);
+        frameSet.getFrames().removeIf(frame -> {
+            byte[] data = frame.getData();
+            String description = data != null ? ID3v2FrameReader.userTextDescription(data, 0, data.length) : null;
+            return description != null && ID3TagWriter.isReplayGainDescription(description);
+        });
+        boolean v24 = tag instanceof ID3v24Tag;
+        for (Map.Entry<String, String> field : ID3TagWriter.replayGainFields(metadata.getReplayGain()).entrySet()) {
+            byte[] data = ID3TagWriter.userTextFrameData(field.getKey(), field.getValue());
+            frameSet.addFrame(v24 ? new ID3v24Frame("TXXX", data) : new ID3v2Frame("TXXX", data));
+        }
     }
 
-    // определяет mime тип изображения по первым байтам файла
-    private String detectMimeType(byte[] imageData) {
-        // слишком короткие данные считаем jpeg
-        if (imageData.length < 8) return "image/jpeg";
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
 
-        // jpeg начинается с ff d8
-        if (imageData[0] == (byte) 0xFF && imageData[1] == (byte) 0xD8) {
-            return "image/jpeg";
+    // сеттеры mp3agic пустые строки игнорируют, поэтому очищенное поле удаляем вместе с фреймами
+    private static void clearFrames(AbstractID3v2Tag tag, String value, String... frameIds) {
+        if (value == null) {
+            return;
         }
-        // png начинается с 89 50 4e 47
-        else if (imageData[0] == (byte) 0x89 && imageData[1] == 'P') {
-            return "image/png";
+        for (String frameId : frameIds) {
+            tag.clearFrameSet(frameId);
         }
-        // по умолчанию jpeg
-        return "image/jpeg";
     }
 
-    // синхронизирует базовые теги id3v1 для совместимости со старыми плеерами
-    private void syncId3v1Tag(Mp3File mp3File, MP3Metadata metadata) {
-        ID3v1 id3v1Tag;
-        if (mp3File.hasId3v1Tag()) {
-            // используем существующий тег id3v1
-            id3v1Tag = mp3File.getId3v1Tag();
-        } else {
-            // создаем новый тег id3v1
-            id3v1Tag = new ID3v1Tag();
-            mp3File.setId3v1Tag(id3v1Tag);
+    // проверяет, указывают ли два пути на один и тот же файл
+    private boolean isSameFile(File first, File second) throws IOException {
+        if (second.exists()) {
+            return Files.isSameFile(first.toPath(), second.toPath());
         }
+        return first.getCanonicalFile().equals(second.getCanonicalFile());
+    }
 
+    // синхронизирует базовые теги id3v1 для совместимости со старыми плеерами.
+    // как и в id3v2, null оставляет поле как есть, пустая строка очищает его
+    private void applyId3v1(ID3v1 id3v1Tag, MP3Metadata metadata) {
         // копируем только базовые поля (id3v1 не поддерживает жанр, bpm, обложку)
-        id3v1Tag.setTitle(metadata.getTitle());
-        id3v1Tag.setArtist(metadata.getArtist());
-        id3v1Tag.setAlbum(metadata.getAlbum());
-        id3v1Tag.setYear(metadata.getYear());
+        if (metadata.getTitle() != null) {
+            id3v1Tag.setTitle(metadata.getTitle());
+        }
+        if (metadata.getArtist() != null) {
+            id3v1Tag.setArtist(metadata.getArtist());
+        }
+        if (metadata.getAlbum() != null) {
+            id3v1Tag.setAlbum(metadata.getAlbum());
+        }
+        if (metadata.getYear() != null) {
+            id3v1Tag.setYear(metadata.getYear());
+        }
     }
 }
@@ -0,0 +1,199 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// lru кэш прочитанных метаданных. ключ - канонический путь + размер + время изменения,
+// поэтому измененный на диске файл никогда не вернется из кэша устаревшим.
+// вытеснение и по числу записей, и по суммарному весу (обложки занимают основную память).
+// возвращаемые объекты общие для всех вызывающих и не должны изменяться
+public class MetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 2000;
+    public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+    // примерные накладные расходы на запись кэша и объект метаданных
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final int maxEntries;
+    private final long maxWeight;
+
+    // accessOrder = true: при чтении запись переносится в конец, вытесняем с начала
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // канонический путь -> актуальный ключ, для инвалидации без знания размера и времени
+    private final Map<String, Key> keysByPath = new HashMap<>();
+    private long totalWeight;
+
+    private long hits;
+    private long misses;
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    public MetadataCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    // строит ключ по текущему состоянию файла на диске
+    public static Key keyFor(File file) throws IOException {
+        return new Key(file.getCanonicalPath(), file.length(), file.lastModified());
+    }
+
+    // возвращает метаданные для ключа или null
+    public synchronized MP3Metadata get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.metadata;
+    }
+
+    // запоминает метаданные; старая версия того же файла удаляется
+    public synchronized void put(Key key, MP3Metadata metadata) {
+        Key previous = keysByPath.put(key.canonicalPath, key);
+        if (previous != null) {
+            removeEntry(previous);
+        }
+        Entry entry = new Entry(metadata, weigh(metadata));
+        entries.put(key, entry);
+        totalWeight += entry.weight;
+        evict();
+    }
+
+    // удаляет файл из кэша, например после записи тегов
+    public void invalidate(File file) {
+        String canonicalPath;
+        try {
+            canonicalPath = file.getCanonicalPath();
+        } catch (IOException e) {
+            canonicalPath = file.getAbsolutePath();
+        }
+        synchronized (this) {
+            Key key = keysByPath.remove(canonicalPath);
+            if (key != null) {
+                removeEntry(key);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keysByPath.clear();
+        totalWeight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // вытесняет самые давно использованные записи, пока не уложимся в оба лимита
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            totalWeight -= eldest.getValue().weight;
+            keysByPath.remove(eldest.getKey().canonicalPath, eldest.getKey());
+        }
+    }
+
+    private void removeEntry(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    // оценка занимаемой памяти: строки в utf-16 плюс байты обложки, если она загружена
+    private static long weigh(MP3Metadata metadata) {
+        long weight = ENTRY_OVERHEAD;
+        weight += 2L * length(metadata.getTitle());
+        weight += 2L * length(metadata.getArtist());
+        weight += 2L * length(metadata.getAlbum());
+        weight += 2L * length(metadata.getGenre());
+        weight += 2L * length(metadata.getYear());
+        // ленивая обложка в памяти занимает только ссылку на файл
+        if (metadata.getCoverArt() != null && metadata.getCoverArt().isLoaded()) {
+            weight += metadata.getCoverArt().getLength();
+        }
+        return weight;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    // ключ кэша: файл в конкретном состоянии на диске
+    public static final class Key {
+
+        private final String canonicalPath;
+        private final long length;
+        private final long lastModified;
+
+        Key(String canonicalPath, long length, long lastModified) {
+            this.canonicalPath = canonicalPath;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return length == key.length
+                    && lastModified == key.lastModified
+                    && canonicalPath.equals(key.canonicalPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(canonicalPath, length, lastModified);
+        }
+    }
+
+    private static final class Entry {
+
+        private final MP3Metadata metadata;
+        private final long weight;
+
+        private Entry(MP3Metadata metadata, long weight) {
+            this.metadata = metadata;
+            this.weight = weight;
+        }
+    }
+}
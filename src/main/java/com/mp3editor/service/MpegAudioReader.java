@@ -0,0 +1,349 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.AudioProperties;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// свойства звука без прохода по всем фреймам (так делает Mp3File из mp3agic): читается первый
+// mpeg фрейм после тега и заголовок xing/info или vbri внутри него. в xing есть число фреймов
+// и байтов, а в расширении lame - задержка кодера и добивка, так что длительность точная до сэмпла.
+// у файла без заголовка фреймы читаются короткими сериями в нескольких точках: одинаковый битрейт
+// везде - это cbr и длительность считается по размеру, иначе длительность оценивается по среднему
+final class MpegAudioReader {
+
+    // насколько далеко за тегом искать первый фрейм (мусор, недописанные теги)
+    private static final int SEARCH_LENGTH = 64 * 1024;
+    // самый длинный фрейм: layer II, 384 кбит/с, 8 кГц (mpeg 2.5 не бывает больше)
+    private static final int MAX_FRAME_LENGTH = 2881;
+    // выборка фреймов файла без заголовка: точки по файлу и окно чтения в каждой
+    private static final int SAMPLE_POINTS = 6;
+    private static final int SAMPLE_WINDOW = 8 * 1024;
+    private static final int APE_FOOTER_LENGTH = 32;
+
+    // битрейты в кбит/с: [mpeg1 layer I, II, III, mpeg2/2.5 layer I, II и III][индекс]
+    private static final int[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[][] SAMPLE_RATES = {
+            {44100, 48000, 32000},
+            {22050, 24000, 16000},
+            {11025, 12000, 8000},
+    };
+    private static final AudioProperties.ChannelMode[] CHANNEL_MODES = AudioProperties.ChannelMode.values();
+
+    private final FileChannel channel;
+    private long bytesRead;
+
+    MpegAudioReader(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // сколько байтов прочитано при разборе (для метрик)
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    // свойства звука в области [audioStart, конец файла без id3v1 и ape тегов); null - фреймы не найдены
+    AudioProperties read(long audioStart) throws IOException {
+        long audioEnd = audioEnd();
+        if (audioEnd - audioStart < 4) {
+            return null;
+        }
+        ByteBuffer buffer = read(audioStart, (int) Math.min(SEARCH_LENGTH + MAX_FRAME_LENGTH, audioEnd - audioStart));
+        int offset = findFrame(buffer, 0, SEARCH_LENGTH);
+        if (offset < 0) {
+            return null;
+        }
+        Frame first = Frame.parse(buffer.getInt(offset));
+        long firstFrame = audioStart + offset;
+
+        AudioProperties properties = readXing(buffer, offset, first, firstFrame, audioEnd);
+        if (properties == null) {
+            properties = readVbri(buffer, offset, first, firstFrame, audioEnd);
+        }
+        if (properties == null) {
+            properties = sample(buffer, offset, first, firstFrame, audioEnd);
+        }
+        return properties;
+    }
+
+    // конец звука: перед id3v1 и перед ape тегом, если они есть; оба ищутся одним чтением хвоста
+    private long audioEnd() throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, ID3TagReader.ID3V1_LENGTH + APE_FOOTER_LENGTH);
+        long tailStart = size - tailLength;
+        ByteBuffer tail = read(tailStart, tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        long end = size;
+        if (tailLength >= ID3TagReader.ID3V1_LENGTH && matches(tail, tailLength - ID3TagReader.ID3V1_LENGTH, "TAG")) {
+            end -= ID3TagReader.ID3V1_LENGTH;
+        }
+        int footer = (int) (end - tailStart) - APE_FOOTER_LENGTH;
+        if (footer < 0 || !matches(tail, footer, "APETAGEX")) {
+            return end;
+        }
+        // размер в футере включает сам футер, но не заголовок (он есть, если стоит старший бит флагов)
+        long tagLength = tail.getInt(footer + 12) & 0xFFFFFFFFL;
+        if ((tail.getInt(footer + 20) & 0x80000000) != 0) {
+            tagLength += APE_FOOTER_LENGTH;
+        }
+        return tagLength <= end ? end - tagLength : end;
+    }
+
+    // заголовок xing (vbr) или info (cbr) от lame и совместимых кодеров; только layer III
+    private static AudioProperties readXing(ByteBuffer buffer, int offset, Frame frame, long frameStart, long audioEnd) {
+        if (frame.layer != 3) {
+            return null;
+        }
+        int position = offset + 4 + frame.sideInfoLength();
+        if (position + 8 > buffer.limit() || !(matches(buffer, position, "Xing") || matches(buffer, position, "Info"))) {
+            return null;
+        }
+        boolean vbr = matches(buffer, position, "Xing");
+        int flags = buffer.getInt(position + 4);
+        position += 8;
+        long frames = -1;
+        long bytes = -1;
+        if ((flags & 1) != 0 && position + 4 <= buffer.limit()) {
+            frames = buffer.getInt(position) & 0xFFFFFFFFL;
+            position += 4;
+        }
+        if ((flags & 2) != 0 && position + 4 <= buffer.limit()) {
+            bytes = buffer.getInt(position) & 0xFFFFFFFFL;
+            position += 4;
+        }
+        if (frames <= 0) {
+            return null;
+        }
+        // таблица перемотки и качество
+        position += ((flags & 4) != 0 ? 100 : 0) + ((flags & 8) != 0 ? 4 : 0);
+
+        long samples = frames * frame.samples;
+        // расширение lame: способ кодирования и 12+12 бит задержки кодера и добивки в конце
+        if (position + 24 <= buffer.limit() && (matches(buffer, position, "LAME")
+                || matches(buffer, position, "Lavf") || matches(buffer, position, "Lavc"))) {
+            int method = buffer.get(position + 9) & 0x0F;
+            if (method == 1 || method == 8) {
+                // cbr, записанный с заголовком xing
+                vbr = false;
+            } else if (method >= 2 && method <= 6 || method == 9) {
+                vbr = true;
+            }
+            int delay = ((buffer.get(position + 21) & 0xFF) << 4) | ((buffer.get(position + 22) & 0xFF) >> 4);
+            int padding = ((buffer.get(position + 22) & 0x0F) << 8) | (buffer.get(position + 23) & 0xFF);
+            if (samples > delay + padding) {
+                samples -= delay + padding;
+            }
+        }
+        long durationMillis = samples * 1000 / frame.sampleRate;
+        // сам фрейм с заголовком звука не несет
+        long audioBytes = bytes > 0 ? bytes : audioEnd - frameStart - frame.length;
+        return new AudioProperties(durationMillis, bitrate(audioBytes, durationMillis), frame.sampleRate,
+                frame.channelMode(), vbr, false);
+    }
+
+    // заголовок vbri (кодер fraunhofer): всегда ровно через 32 байта после заголовка фрейма
+    private static AudioProperties readVbri(ByteBuffer buffer, int offset, Frame frame, long frameStart, long audioEnd) {
+        int position = offset + 4 + 32;
+        if (position + 18 > buffer.limit() || !matches(buffer, position, "VBRI")) {
+            return null;
+        }
+        long bytes = buffer.getInt(position + 10) & 0xFFFFFFFFL;
+        long frames = buffer.getInt(position + 14) & 0xFFFFFFFFL;
+        if (frames <= 0) {
+            return null;
+        }
+        long durationMillis = frames * frame.samples * 1000 / frame.sampleRate;
+        long audioBytes = bytes > 0 ? bytes : audioEnd - frameStart - frame.length;
+        return new AudioProperties(durationMillis, bitrate(audioBytes, durationMillis), frame.sampleRate,
+                frame.channelMode(), true, false);
+    }
+
+    // файл без заголовка: серии фреймов в начале и в нескольких точках файла
+    private AudioProperties sample(ByteBuffer buffer, int offset, Frame first, long firstFrame, long audioEnd)
+            throws IOException {
+        long audioBytes = audioEnd - firstFrame;
+        long[] sum = new long[2];
+        boolean constant = walk(buffer, offset, first, sum);
+        // сначала середина файла: у cbr битрейт тот же, и остальные точки уже не нужны,
+        // а у vbr он почти наверняка отличается уже в одной серии
+        for (int i = 0; i < SAMPLE_POINTS - 1; i++) {
+            if (constant && i > 0) {
+                break;
+            }
+            int point = i == 0 ? SAMPLE_POINTS / 2 : i < SAMPLE_POINTS / 2 ? i : i + 1;
+            long position = firstFrame + audioBytes * point / SAMPLE_POINTS;
+            int length = (int) Math.min(SAMPLE_WINDOW, audioEnd - position);
+            if (length < 4) {
+                continue;
+            }
+            ByteBuffer window = read(position, length);
+            int start = findFrame(window, 0, length - 4, first);
+            if (start >= 0) {
+                constant &= walk(window, start, first, sum);
+            }
+        }
+        if (constant) {
+            long durationMillis = audioBytes * 8 / first.bitrate;
+            return new AudioProperties(durationMillis, first.bitrate, first.sampleRate, first.channelMode(), false, false);
+        }
+        int average = (int) (sum[0] / sum[1]);
+        long durationMillis = audioBytes * 8 / average;
+        return new AudioProperties(durationMillis, average, first.sampleRate, first.channelMode(), true, true);
+    }
+
+    // проходит подряд идущие фреймы окна, копя сумму и число битрейтов; true - у всех битрейт первого фрейма
+    private static boolean walk(ByteBuffer buffer, int offset, Frame first, long[] sum) {
+        boolean constant = true;
+        int position = offset;
+        while (position + 4 <= buffer.limit()) {
+            Frame frame = Frame.parse(buffer.getInt(position));
+            if (frame == null || !frame.sameStream(first)) {
+                break;
+            }
+            sum[0] += frame.bitrate;
+            sum[1]++;
+            constant &= frame.bitrate == first.bitrate;
+            position += frame.length;
+        }
+        return constant;
+    }
+
+    // первый правдоподобный фрейм: за его заголовком через длину фрейма идет заголовок того же потока
+    private static int findFrame(ByteBuffer buffer, int from, int to) {
+        return findFrame(buffer, from, to, null);
+    }
+
+    private static int findFrame(ByteBuffer buffer, int from, int to, Frame stream) {
+        int last = Math.min(to, buffer.limit() - 4);
+        for (int offset = from; offset <= last; offset++) {
+            if ((buffer.get(offset) & 0xFF) != 0xFF || (buffer.get(offset + 1) & 0xE0) != 0xE0) {
+                continue;
+            }
+            Frame frame = Frame.parse(buffer.getInt(offset));
+            if (frame == null || (stream != null && !frame.sameStream(stream))) {
+                continue;
+            }
+            int next = offset + frame.length;
+            if (next + 4 > buffer.limit()) {
+                // следующий заголовок за окном: принимаем, только если это конец звука
+                if (next == buffer.limit() && stream == null) {
+                    return offset;
+                }
+                continue;
+            }
+            Frame following = Frame.parse(buffer.getInt(next));
+            if (following != null && following.sameStream(frame)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // средний битрейт в кбит/с: биты на миллисекунду
+    private static int bitrate(long audioBytes, long durationMillis) {
+        return durationMillis > 0 ? (int) (audioBytes * 8 / durationMillis) : 0;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, String id) {
+        if (position + id.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (buffer.get(position + i) != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        ID3TagReader.readFully(channel, buffer, position);
+        bytesRead += length;
+        buffer.flip();
+        return buffer;
+    }
+
+    // разобранный заголовок mpeg фрейма
+    private static final class Frame {
+
+        // 1 - mpeg 1, 2 - mpeg 2, 3 - mpeg 2.5
+        private final int version;
+        private final int layer;
+        private final int bitrate;
+        private final int sampleRate;
+        private final int mode;
+        private final int length;
+        private final int samples;
+
+        private Frame(int version, int layer, int bitrate, int sampleRate, int mode, int length, int samples) {
+            this.version = version;
+            this.layer = layer;
+            this.bitrate = bitrate;
+            this.sampleRate = sampleRate;
+            this.mode = mode;
+            this.length = length;
+            this.samples = samples;
+        }
+
+        // null - не заголовок (нет синхронизации, зарезервированные значения, free format)
+        static Frame parse(int header) {
+            if ((header & 0xFFE00000) != 0xFFE00000) {
+                return null;
+            }
+            int versionBits = (header >>> 19) & 3;
+            int layerBits = (header >>> 17) & 3;
+            int bitrateIndex = (header >>> 12) & 15;
+            int sampleRateIndex = (header >>> 10) & 3;
+            if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                    || sampleRateIndex == 3 || (header & 3) == 2) {
+                return null;
+            }
+            int version = versionBits == 3 ? 1 : versionBits == 2 ? 2 : 3;
+            int layer = 4 - layerBits;
+            int bitrate = BITRATES[version == 1 ? layer - 1 : layer == 1 ? 3 : 4][bitrateIndex];
+            int sampleRate = SAMPLE_RATES[version - 1][sampleRateIndex];
+            int padding = (header >>> 9) & 1;
+            int mode = (header >>> 6) & 3;
+
+            int length;
+            int samples;
+            if (layer == 1) {
+                length = (12 * bitrate * 1000 / sampleRate + padding) * 4;
+                samples = 384;
+            } else if (layer == 2 || version == 1) {
+                length = 144 * bitrate * 1000 / sampleRate + padding;
+                samples = 1152;
+            } else {
+                length = 72 * bitrate * 1000 / sampleRate + padding;
+                samples = 576;
+            }
+            return new Frame(version, layer, bitrate, sampleRate, mode, length, samples);
+        }
+
+        // фреймы одного потока: битрейт и добивка могут отличаться, остальное - нет
+        boolean sameStream(Frame other) {
+            return version == other.version && layer == other.layer && sampleRate == other.sampleRate;
+        }
+
+        // длина side info layer III, за которой лежит заголовок xing
+        int sideInfoLength() {
+            boolean mono = mode == 3;
+            if (version == 1) {
+                return mono ? 17 : 32;
+            }
+            return mono ? 9 : 17;
+        }
+
+        AudioProperties.ChannelMode channelMode() {
+            return CHANNEL_MODES[mode];
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.mp3editor.service;
+
+import javazoom.jl.decoder.SampleBuffer;
+
+// сведение декодированных jlayer фреймов в моно для анализа звука. OutputChannels.DOWNMIX
+// в jlayer для layer III не работает: буфер остается двухканальным и стерео всегда приходит
+// чередованием l, r, поэтому каналы сводятся по getChannelCount() после декодирования
+final class PcmDownmix {
+
+    private PcmDownmix() {
+    }
+
+    // сводит фрейм в mono (длиной не меньше Obuffer.OBUFFERSIZE / 2) и возвращает число отсчетов
+    static int downmix(SampleBuffer output, short[] mono) {
+        short[] samples = output.getBuffer();
+        int channels = output.getChannelCount();
+        int count = output.getBufferLength() / channels;
+        if (channels == 1) {
+            System.arraycopy(samples, 0, mono, 0, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                mono[i] = (short) ((samples[2 * i] + samples[2 * i + 1]) >> 1);
+            }
+        }
+        return count;
+    }
+}
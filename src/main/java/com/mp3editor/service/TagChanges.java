@@ -0,0 +1,128 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// правка части полей, одна на много файлов: задаются только поля, которые пользователь изменил.
+// для каждого файла из нее строятся метаданные только с отличающимися полями - остальные
+// фреймы writer копирует как есть, а файл, где все уже совпадает, не пишется вовсе
+public class TagChanges {
+
+    // значения измененных полей; null - поле не меняется, пустая строка и bpm 0 - удалить
+    private final MP3Metadata values = new MP3Metadata();
+    private boolean coverChanged;
+    private CoverArt coverArt;
+
+    public void setTitle(String title) {
+        values.setTitle(emptyIfNull(title));
+    }
+
+    public void setArtist(String artist) {
+        values.setArtist(emptyIfNull(artist));
+    }
+
+    public void setAlbum(String album) {
+        values.setAlbum(emptyIfNull(album));
+    }
+
+    public void setGenre(String genre) {
+        values.setGenre(emptyIfNull(genre));
+    }
+
+    public void setYear(String year) {
+        values.setYear(emptyIfNull(year));
+    }
+
+    public void setBpm(Integer bpm) {
+        values.setBpm(bpm != null && bpm > 0 ? bpm : 0);
+    }
+
+    // null удаляет обложку
+    public void setCoverArt(CoverArt coverArt) {
+        this.coverChanged = true;
+        this.coverArt = coverArt;
+    }
+
+    public boolean isCoverChanged() {
+        return coverChanged;
+    }
+
+    public CoverArt getCoverArt() {
+        return coverArt;
+    }
+
+    public boolean isEmpty() {
+        return values.getTitle() == null && values.getArtist() == null && values.getAlbum() == null
+                && values.getGenre() == null && values.getYear() == null && values.getBpm() == null
+                && !coverChanged;
+    }
+
+    // метаданные для записи в файл с текущими тегами current или null, если файл уже такой.
+    // cover - новая обложка в том виде, в каком она будет записана (после уменьшения),
+    // сравнивается с обложкой файла по байтам; без изменения обложки файлу остается своя
+    public MP3Metadata diff(MP3Metadata current, CoverArt cover) throws IOException {
+        MP3Metadata result = new MP3Metadata();
+        boolean changed = false;
+        if (differs(values.getTitle(), current.getTitle())) {
+            result.setTitle(values.getTitle());
+            changed = true;
+        }
+        if (differs(values.getArtist(), current.getArtist())) {
+            result.setArtist(values.getArtist());
+            changed = true;
+        }
+        if (differs(values.getAlbum(), current.getAlbum())) {
+            result.setAlbum(values.getAlbum());
+            changed = true;
+        }
+        if (differs(values.getGenre(), current.getGenre())) {
+            result.setGenre(values.getGenre());
+            changed = true;
+        }
+        if (differs(values.getYear(), current.getYear())) {
+            result.setYear(values.getYear());
+            changed = true;
+        }
+        Integer bpm = values.getBpm();
+        int currentBpm = current.getBpm() != null ? current.getBpm() : 0;
+        if (bpm != null && bpm != currentBpm) {
+            result.setBpm(bpm);
+            changed = true;
+        }
+
+        // writer всегда пересобирает обложку, поэтому неизменную передаем обратно ссылкой на файл
+        CoverArt currentCover = current.getCoverArt();
+        if (coverChanged && !sameImage(cover, currentCover)) {
+            result.setCoverArt(cover);
+            changed = true;
+        } else {
+            result.setCoverArt(currentCover);
+        }
+        return changed ? result : null;
+    }
+
+    // null в новом значении - поле не меняется; отсутствующее и пустое значения равны
+    private static boolean differs(String value, String current) {
+        return value != null && !value.equals(emptyIfNull(current));
+    }
+
+    static boolean sameImage(CoverArt a, CoverArt b) throws IOException {
+        int lengthA = a != null ? a.getLength() : 0;
+        int lengthB = b != null ? b.getLength() : 0;
+        if (lengthA != lengthB) {
+            return false;
+        }
+        if (lengthA == 0) {
+            return true;
+        }
+        // байты читаем только при совпадении длины - у разных изображений она почти всегда разная
+        return Arrays.equals(a.readBytes(), b.readBytes());
+    }
+
+    private static String emptyIfNull(String value) {
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,616 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// импорт тегов из таблицы csv или json lines. таблица читается потоково, строка за строкой:
+// поток импорта сопоставляет строку с файлом (по пути или по текущим тегам) и собирает правку
+// полей, а сверка с тегами файла и запись идут в потоках BatchTagWriter. правки уходят пачками
+// по CHUNK_SIZE строк, и пока пишутся предыдущие пачки, читаются следующие строки - так импорт
+// упирается в диск, а не в разбор таблицы. файл, где все поля уже совпадают, не пишется
+public final class TagImporter {
+
+    // колонки таблицы: путь файла, новые значения полей и ключи поиска файла по текущим тегам
+    private static final String[] COLUMNS = {
+            "path", "title", "artist", "album", "genre", "year", "bpm", "cover",
+            "match_title", "match_artist", "match_album"
+    };
+    private static final int PATH = 0;
+    private static final int TITLE = 1;
+    private static final int ARTIST = 2;
+    private static final int ALBUM = 3;
+    private static final int GENRE = 4;
+    private static final int YEAR = 5;
+    private static final int BPM = 6;
+    private static final int COVER = 7;
+    private static final int MATCH_TITLE = 8;
+    private static final int MATCH_ARTIST = 9;
+    private static final int MATCH_ALBUM = 10;
+
+    // строк в одной пачке записи и сколько пачек может быть в работе одновременно:
+    // этого хватает, чтобы очередь записи не пустела, пока читается следующая пачка
+    private static final int CHUNK_SIZE = 256;
+    private static final int MAX_PENDING_CHUNKS = 4;
+
+    private static final Pattern BPM_VALUE = Pattern.compile("\\d{1,6}");
+
+    // итог строки таблицы
+    public enum Status {
+        // файл записан
+        OK,
+        // все поля файла уже совпадают со строкой
+        UNCHANGED,
+        // --dry-run: файл изменился бы
+        DRY_RUN,
+        // файла по пути нет или теги не совпали ни с одним файлом
+        UNMATCHED,
+        // теги совпали с несколькими файлами - какой из них имелся в виду, неизвестно
+        AMBIGUOUS,
+        // строка не разобрана или значение в ней неверно
+        INVALID,
+        // ошибка чтения или записи файла
+        ERROR
+    }
+
+    // результаты строк приходят в порядке таблицы из потока импорта
+    public interface Listener {
+        // line - строка файла таблицы; file - null, если строка не сопоставлена
+        void rowFinished(int line, File file, Status status, String error);
+    }
+
+    private static final Map<String, Integer> COLUMN_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            COLUMN_INDEX.put(TagSheetReader.normalize(COLUMNS[i]), i);
+        }
+        COLUMN_INDEX.put("file", PATH);
+        COLUMN_INDEX.put("filename", PATH);
+    }
+
+    private final MP3TagService tagService;
+    private final BatchTagWriter writer;
+    private final int threads;
+    private ExecutorService pool;
+    private Collection<File> library = Collections.emptyList();
+    private boolean clearEmpty;
+    private boolean dryRun;
+
+    public TagImporter(MP3TagService tagService, BatchTagWriter writer) {
+        this(tagService, writer, Runtime.getRuntime().availableProcessors());
+    }
+
+    // threads - потоки для чтения тегов библиотеки и сверки в режиме dry run
+    public TagImporter(MP3TagService tagService, BatchTagWriter writer, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.tagService = tagService;
+        this.writer = writer;
+        this.threads = threads;
+    }
+
+    // файлы, среди которых ищутся строки без пути. теги читаются при первой такой строке
+    public void setLibrary(Collection<File> library) {
+        this.library = new ArrayList<>(library);
+    }
+
+    // пустая ячейка (null в json) удаляет поле; по умолчанию оставляет его как есть,
+    // чтобы таблица с незаполненными колонками ничего не стирала
+    public void setClearEmpty(boolean clearEmpty) {
+        this.clearEmpty = clearEmpty;
+    }
+
+    // только сверить строки с файлами, ничего не записывая
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    // запускает импорт в отдельном потоке и сразу возвращает управление.
+    // recording - история правок для записанных файлов (null - без истории)
+    public Import start(File sheet, EditHistory.Recording recording, Listener listener) {
+        Import job = new Import(sheet, recording, listener, dryRun, clearEmpty, new ArrayList<>(library));
+        Thread thread = new DaemonThreadFactory("tag-import").newThread(job::run);
+        thread.start();
+        return job;
+    }
+
+    // останавливает потоки после завершения уже принятых задач
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("tag-import-worker"));
+        }
+        return pool;
+    }
+
+    // один запущенный импорт: отмена, счетчики строк и ожидание завершения
+    public final class Import {
+
+        private final File sheet;
+        private final EditHistory.Recording recording;
+        private final Listener listener;
+        private final boolean dryRun;
+        private final boolean clearEmpty;
+        private final List<File> library;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger problems = new AtomicInteger();
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        // пачки в работе в порядке таблицы и файлы в них: второй раз файл попадает в запись
+        // только после того, как первая правка записана, иначе две записи одного файла пересеклись бы
+        private final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+        private final Set<File> pendingFiles = new HashSet<>();
+        // изображения обложек по пути: обложка альбома читается один раз на всю таблицу
+        private final Map<String, CoverArt> covers = new HashMap<>();
+        // теги библиотеки для поиска строк без пути; читаются при первой такой строке
+        private String[][] libraryTags;
+        // индексы по набору колонок поиска: ключ из значений -> номер файла, -1 - файлов несколько
+        private final Map<Integer, Map<String, Integer>> tagIndexes = new HashMap<>();
+        // пачка, которая сейчас собирается
+        private Chunk current = new Chunk();
+
+        private Import(File sheet, EditHistory.Recording recording, Listener listener, boolean dryRun,
+                       boolean clearEmpty, List<File> library) {
+            this.sheet = sheet;
+            this.recording = recording;
+            this.listener = listener;
+            this.dryRun = dryRun;
+            this.clearEmpty = clearEmpty;
+            this.library = library;
+        }
+
+        // останавливает чтение таблицы и еще не начатые записи; файлы, которые уже пишутся,
+        // дописываются до конца
+        public void cancel() {
+            cancelled.set(true);
+            synchronized (pending) {
+                for (Chunk chunk : pending) {
+                    if (chunk.batch != null) {
+                        chunk.batch.cancel();
+                    }
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        // строк обработано (результат отправлен в listener)
+        public int getProcessed() {
+            return processed.get();
+        }
+
+        public int getWritten() {
+            return written.get();
+        }
+
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        // строки, которые не удалось применить: не найден файл, ошибка в строке или при записи
+        public int getProblems() {
+            return problems.get();
+        }
+
+        // завершается после последней строки; отмененный импорт - CancellationException,
+        // нечитаемая таблица - IOException
+        public CompletableFuture<Void> completion() {
+            return completion;
+        }
+
+        private void run() {
+            try (TagSheetReader reader = TagSheetReader.open(sheet, COLUMN_INDEX, COLUMNS.length)) {
+                String[] row;
+                while (!cancelled.get() && (row = reader.next()) != null) {
+                    if (reader.getError() != null) {
+                        current.finish(current.add(reader.getLine()), null, Status.INVALID, reader.getError());
+                    } else {
+                        prepare(reader.getLine(), row);
+                    }
+                    if (current.size == CHUNK_SIZE) {
+                        submit(current);
+                        current = new Chunk();
+                    }
+                }
+                submit(current);
+                while (!pending.isEmpty()) {
+                    emit();
+                }
+                if (cancelled.get()) {
+                    completion.completeExceptionally(new CancellationException());
+                } else {
+                    completion.complete(null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completion.completeExceptionally(new CancellationException());
+            } catch (Exception e) {
+                cancel();
+                completion.completeExceptionally(e);
+            }
+        }
+
+        // сопоставляет строку с файлом и добавляет в пачку правку его полей
+        private void prepare(int line, String[] row) throws Exception {
+            Chunk chunk = current;
+            int slot = chunk.add(line);
+            File file;
+            String path = row[PATH];
+            if (path != null && !path.isEmpty()) {
+                file = resolve(path);
+                if (!file.isFile()) {
+                    chunk.finish(slot, file, Status.UNMATCHED, "No such file");
+                    return;
+                }
+            } else {
+                int match = findByTags(row);
+                if (match == -2) {
+                    chunk.finish(slot, null, Status.INVALID,
+                            "Row has no path and no tags to match: give path, or artist and title");
+                    return;
+                }
+                if (match == -1) {
+                    chunk.finish(slot, null, Status.AMBIGUOUS, "Tags match several files");
+                    return;
+                }
+                if (match < 0) {
+                    chunk.finish(slot, null, Status.UNMATCHED, "No file with these tags");
+                    return;
+                }
+                file = library.get(match);
+            }
+
+            TagChanges changes;
+            try {
+                changes = changes(row);
+            } catch (IllegalArgumentException | IOException e) {
+                chunk.finish(slot, file, Status.INVALID, e.getMessage());
+                return;
+            }
+            if (changes.isEmpty()) {
+                chunk.finish(slot, file, Status.UNCHANGED, null);
+                return;
+            }
+            File key = file.getAbsoluteFile();
+            if (pendingFiles.contains(key) || chunk.files.contains(key)) {
+                // файл уже правится предыдущей строкой: строка переходит в новую пачку,
+                // которая начнется после записи всех предыдущих
+                chunk.size--;
+                submitPart(chunk);
+                while (!pending.isEmpty()) {
+                    emit();
+                }
+                chunk = new Chunk();
+                current = chunk;
+                slot = chunk.add(line);
+            }
+            chunk.addJob(slot, key, new TagWriteJob(file, changes));
+        }
+
+        // правка полей из значений строки; пустая ячейка удаляет поле только при clearEmpty
+        private TagChanges changes(String[] row) throws IOException {
+            TagChanges changes = new TagChanges();
+            if (isSet(row[TITLE])) {
+                changes.setTitle(row[TITLE]);
+            }
+            if (isSet(row[ARTIST])) {
+                changes.setArtist(row[ARTIST]);
+            }
+            if (isSet(row[ALBUM])) {
+                changes.setAlbum(row[ALBUM]);
+            }
+            if (isSet(row[GENRE])) {
+                changes.setGenre(row[GENRE]);
+            }
+            if (isSet(row[YEAR])) {
+                changes.setYear(row[YEAR].trim());
+            }
+            if (isSet(row[BPM])) {
+                String bpm = row[BPM].trim();
+                if (bpm.isEmpty()) {
+                    changes.setBpm(0);
+                } else if (BPM_VALUE.matcher(bpm).matches()) {
+                    changes.setBpm(Integer.valueOf(bpm));
+                } else {
+                    throw new IllegalArgumentException("Invalid bpm: " + row[BPM]);
+                }
+            }
+            if (isSet(row[COVER])) {
+                changes.setCoverArt(row[COVER].isEmpty() ? null : cover(row[COVER]));
+            }
+            return changes;
+        }
+
+        // относительные пути в таблице считаются от ее каталога
+        private File resolve(String path) {
+            File file = new File(path);
+            File directory = sheet.getParentFile();
+            return file.isAbsolute() || directory == null ? file : new File(directory, path);
+        }
+
+        private boolean isSet(String value) {
+            return value != null && (clearEmpty || !value.isEmpty());
+        }
+
+        private CoverArt cover(String path) throws IOException {
+            CoverArt cover = covers.get(path);
+            if (cover == null) {
+                File image = resolve(path);
+                if (!image.isFile()) {
+                    throw new IOException("No such cover image: " + path);
+                }
+                cover = CoverArt.fromImageFile(image);
+                covers.put(path, cover);
+            }
+            return cover;
+        }
+
+        // номер файла библиотеки с такими тегами; -1 - таких файлов несколько, -2 - искать не по чему,
+        // -3 - не найден. ключи - колонки match_*, а без них - artist и title самой строки
+        private int findByTags(String[] row) throws Exception {
+            String[] key = new String[3];
+            boolean byMatchColumns = notEmpty(row[MATCH_TITLE]) || notEmpty(row[MATCH_ARTIST])
+                    || notEmpty(row[MATCH_ALBUM]);
+            if (byMatchColumns) {
+                key[0] = row[MATCH_TITLE];
+                key[1] = row[MATCH_ARTIST];
+                key[2] = row[MATCH_ALBUM];
+            } else if (notEmpty(row[TITLE]) && notEmpty(row[ARTIST])) {
+                key[0] = row[TITLE];
+                key[1] = row[ARTIST];
+            } else {
+                return -2;
+            }
+            int mask = 0;
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < key.length; i++) {
+                if (notEmpty(key[i])) {
+                    mask |= 1 << i;
+                    text.append(matchKey(key[i])).append('\n');
+                }
+            }
+            Integer index = tagIndex(mask).get(text.toString());
+            return index != null ? index : -3;
+        }
+
+        private Map<String, Integer> tagIndex(int mask) throws Exception {
+            Map<String, Integer> index = tagIndexes.get(mask);
+            if (index != null) {
+                return index;
+            }
+            if (libraryTags == null) {
+                libraryTags = readLibraryTags();
+            }
+            index = new HashMap<>(libraryTags.length * 2);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < libraryTags.length; i++) {
+                String[] tags = libraryTags[i];
+                if (tags == null) {
+                    continue;
+                }
+                text.setLength(0);
+                for (int j = 0; j < tags.length; j++) {
+                    if ((mask & 1 << j) != 0) {
+                        text.append(tags[j]).append('\n');
+                    }
+                }
+                int file = i;
+                index.merge(text.toString(), file, (a, b) -> -1);
+            }
+            tagIndexes.put(mask, index);
+            return index;
+        }
+
+        // title, artist и album файлов библиотеки в виде ключей поиска; читаются параллельно,
+        // обычно из кэша или индекса тегов. null - файл не читается
+        private String[][] readLibraryTags() throws Exception {
+            String[][] tags = new String[library.size()][];
+            List<Future<?>> parts = new ArrayList<>();
+            int step = Math.max(1, (library.size() + threads - 1) / threads);
+            for (int start = 0; start < library.size(); start += step) {
+                int from = start;
+                int to = Math.min(library.size(), start + step);
+                parts.add(pool().submit(() -> {
+                    for (int i = from; i < to && !cancelled.get(); i++) {
+                        try {
+                            MP3Metadata metadata = tagService.readMetadataCached(library.get(i));
+                            tags[i] = new String[]{matchKey(metadata.getTitle()), matchKey(metadata.getArtist()),
+                                    matchKey(metadata.getAlbum())};
+                        } catch (Exception e) {
+                            // нечитаемый файл просто ни с чем не совпадет
+                        }
+                    }
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+            return tags;
+        }
+
+        // отправляет пачку в запись и, если пачек в работе слишком много, ждет самую старую
+        private void submit(Chunk chunk) throws InterruptedException {
+            submitPart(chunk);
+            while (pending.size() > MAX_PENDING_CHUNKS) {
+                emit();
+            }
+        }
+
+        private void submitPart(Chunk chunk) {
+            if (chunk.size == 0 || chunk.submitted) {
+                return;
+            }
+            chunk.submitted = true;
+            pendingFiles.addAll(chunk.files);
+            synchronized (pending) {
+                pending.add(chunk);
+                if (chunk.jobs.isEmpty()) {
+                    chunk.done.countDown();
+                } else if (dryRun) {
+                    chunk.runDry();
+                } else {
+                    chunk.batch = writer.submit(chunk.jobs, chunk, recording);
+                    // cancel() мог пройти по pending раньше, чем пачка в него попала
+                    if (cancelled.get()) {
+                        chunk.batch.cancel();
+                    }
+                }
+            }
+        }
+
+        // дожидается самой старой пачки и отдает ее строки в listener по порядку
+        private void emit() throws InterruptedException {
+            Chunk chunk;
+            synchronized (pending) {
+                chunk = pending.peek();
+            }
+            chunk.done.await();
+            synchronized (pending) {
+                pending.poll();
+            }
+            pendingFiles.removeAll(chunk.files);
+            for (int i = 0; i < chunk.size; i++) {
+                Status status = chunk.statuses[i];
+                if (status == null) {
+                    // запись отменена до начала
+                    continue;
+                }
+                if (status == Status.OK || status == Status.DRY_RUN) {
+                    written.incrementAndGet();
+                } else if (status == Status.UNCHANGED) {
+                    unchanged.incrementAndGet();
+                } else {
+                    problems.incrementAndGet();
+                }
+                processed.incrementAndGet();
+                listener.rowFinished(chunk.lines[i], chunk.targets[i], status, chunk.errors[i]);
+            }
+        }
+
+        // пачка строк таблицы: итоги по строкам и задачи записи для сопоставленных
+        private final class Chunk implements BatchProgressListener {
+
+            private final int[] lines = new int[CHUNK_SIZE];
+            private final File[] targets = new File[CHUNK_SIZE];
+            private final Status[] statuses = new Status[CHUNK_SIZE];
+            private final String[] errors = new String[CHUNK_SIZE];
+            private int size;
+            private final List<TagWriteJob> jobs = new ArrayList<>();
+            private final Set<File> files = new HashSet<>();
+            // задача записи -> номер строки в пачке
+            private final Map<TagWriteJob, Integer> slots = new IdentityHashMap<>();
+            private final CountDownLatch done = new CountDownLatch(1);
+            private boolean submitted;
+            private BatchTagWriter.Batch batch;
+
+            private int add(int line) {
+                lines[size] = line;
+                return size++;
+            }
+
+            private void finish(int slot, File file, Status status, String error) {
+                targets[slot] = file;
+                statuses[slot] = status;
+                errors[slot] = error;
+            }
+
+            private void addJob(int slot, File key, TagWriteJob job) {
+                targets[slot] = job.getInputFile();
+                jobs.add(job);
+                files.add(key);
+                slots.put(job, slot);
+            }
+
+            // сверка без записи: изменился бы файл или нет
+            private void runDry() {
+                AtomicInteger remaining = new AtomicInteger(jobs.size());
+                for (TagWriteJob job : jobs) {
+                    pool().execute(() -> {
+                        try {
+                            if (!cancelled.get()) {
+                                TagChanges changes = job.getChanges();
+                                MP3Metadata current = tagService.readMetadataCached(job.getInputFile());
+                                boolean changed = changes.diff(current, changes.getCoverArt()) != null;
+                                finish(slots.get(job), job.getInputFile(),
+                                        changed ? Status.DRY_RUN : Status.UNCHANGED, null);
+                            }
+                        } catch (Exception e) {
+                            finish(slots.get(job), job.getInputFile(), Status.ERROR, message(e));
+                        } finally {
+                            if (remaining.decrementAndGet() == 0) {
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void jobCompleted(TagWriteJob job, int completed, int total) {
+                finish(slots.get(job), job.getInputFile(), Status.OK, null);
+            }
+
+            @Override
+            public void jobSkipped(TagWriteJob job, int completed, int total) {
+                finish(slots.get(job), job.getInputFile(), Status.UNCHANGED, null);
+            }
+
+            @Override
+            public void jobFailed(TagWriteJob job, Exception error, int completed, int total) {
+                finish(slots.get(job), job.getInputFile(), Status.ERROR, message(error));
+            }
+
+            @Override
+            public void batchFinished(int succeeded, int failed, boolean cancelled) {
+                done.countDown();
+            }
+        }
+    }
+
+    private static boolean notEmpty(String value) {
+        return value != null && !value.trim().isEmpty();
+    }
+
+    // теги сравниваются без учета регистра и пробелов по краям
+    private static String matchKey(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static String message(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,383 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.AudioProperties;
+import com.mp3editor.model.CoverArt;
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// постоянный индекс библиотеки на диске: список открытых файлов и их теги
+// с отпечатком (размер + время изменения). формат - журнал только с дозаписью,
+// последняя запись для пути побеждает; при разрастании журнал сжимается в снимок
+public class TagIndex implements Closeable {
+
+    // "MPIX" и версия формата. в версии 2 добавлены свойства звука; из журнала версии 1
+    // берется только список файлов, а теги перечитываются заново
+    private static final int MAGIC = 0x4D504958;
+    private static final int FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION_WITHOUT_AUDIO = 1;
+
+    // типы записей журнала
+    private static final byte OP_ADD = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_REMOVE = 3;
+
+    // биты присутствующих полей в записи OP_PUT
+    private static final int HAS_TITLE = 1;
+    private static final int HAS_ARTIST = 1 << 1;
+    private static final int HAS_ALBUM = 1 << 2;
+    private static final int HAS_GENRE = 1 << 3;
+    private static final int HAS_YEAR = 1 << 4;
+    private static final int HAS_BPM = 1 << 5;
+    private static final int HAS_COVER = 1 << 6;
+    private static final int HAS_AUDIO = 1 << 7;
+
+    // биты свойств звука
+    private static final int AUDIO_VBR = 1;
+    private static final int AUDIO_ESTIMATED = 1 << 1;
+
+    // журнал сжимается, когда мертвых записей становится больше живых (но не раньше этого порога)
+    private static final int COMPACTION_THRESHOLD = 10_000;
+
+    private final File indexFile;
+    // путь -> запись, в порядке добавления в библиотеку
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private DataOutputStream log;
+    private int logRecords;
+
+    private TagIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    // расположение индекса по умолчанию: ~/.mp3editor/tag-index.bin
+    public static File defaultLocation() {
+        return new File(new File(System.getProperty("user.home"), ".mp3editor"), "tag-index.bin");
+    }
+
+    // открывает индекс, загружая журнал целиком; оборванный хвост (падение при записи) отбрасывается
+    public static TagIndex open(File indexFile) throws IOException {
+        TagIndex index = new TagIndex(indexFile);
+        File directory = indexFile.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        if (indexFile.exists()) {
+            index.load();
+        }
+        // после загрузки переписываем журнал снимком, если в нем много мусора или битый хвост
+        if (!indexFile.exists() || index.logRecords > Math.max(COMPACTION_THRESHOLD, 2 * index.entries.size())
+                || index.logRecords < 0) {
+            index.compact();
+        } else {
+            index.log = openLog(indexFile, true);
+        }
+        return index;
+    }
+
+    // файлы библиотеки в порядке добавления
+    public synchronized List<File> files() {
+        List<File> files = new ArrayList<>(entries.size());
+        for (String path : entries.keySet()) {
+            files.add(new File(path));
+        }
+        return files;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean contains(File file) {
+        return entries.containsKey(file.getAbsolutePath());
+    }
+
+    // теги файла, если отпечаток совпадает с текущим состоянием на диске; иначе null
+    public synchronized MP3Metadata get(File file, long length, long lastModified) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null || entry.metadata == null
+                || entry.length != length || entry.lastModified != lastModified) {
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    // отмечает файл как часть библиотеки, теги будут прочитаны позже
+    public synchronized void addFile(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        // после close() индекс не меняется: фоновые задачи могут еще дописывать теги
+        if (log == null || entries.containsKey(path)) {
+            return;
+        }
+        entries.put(path, new Entry(0, 0, null));
+        log.writeByte(OP_ADD);
+        log.writeUTF(path);
+        recordWritten();
+    }
+
+    // отмечает несколько файлов как часть библиотеки одной блокировкой
+    public synchronized void addFiles(Collection<File> files) throws IOException {
+        for (File file : files) {
+            addFile(file);
+        }
+    }
+
+    // запоминает теги файла библиотеки вместе с отпечатком; файлы вне библиотеки игнорируются
+    public synchronized void put(File file, long length, long lastModified, MP3Metadata metadata) throws IOException {
+        String path = file.getAbsolutePath();
+        if (log == null || !entries.containsKey(path)) {
+            return;
+        }
+        // в индекс кладем только ссылку на обложку внутри самого файла;
+        // файл с обложкой в памяти при следующем запуске просто перечитается
+        CoverArt cover = metadata.getCoverArt();
+        if (cover != null && (cover.getFile() == null || !path.equals(cover.getFile().getAbsolutePath()))) {
+            return;
+        }
+        // запись собираем заранее, чтобы ошибка сериализации не оставила в журнале обрывок
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(OP_PUT);
+            out.writeUTF(path);
+            writeEntry(out, length, lastModified, metadata);
+        } catch (UTFDataFormatException e) {
+            // строка длиннее 64 кб - такой файл просто не индексируем
+            return;
+        }
+        entries.put(path, new Entry(length, lastModified, metadata));
+        record.writeTo(log);
+        recordWritten();
+    }
+
+    // убирает файл из библиотеки
+    public synchronized void remove(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        if (log == null || entries.remove(path) == null) {
+            return;
+        }
+        log.writeByte(OP_REMOVE);
+        log.writeUTF(path);
+        recordWritten();
+    }
+
+    // убирает несколько файлов из библиотеки одной блокировкой
+    public synchronized void removeFiles(Collection<File> files) throws IOException {
+        for (File file : files) {
+            remove(file);
+        }
+    }
+
+    // сбрасывает буфер журнала на диск
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void recordWritten() throws IOException {
+        logRecords++;
+        if (logRecords > Math.max(COMPACTION_THRESHOLD, 2 * entries.size())) {
+            log.close();
+            log = null;
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                // снимок не записан: продолжаем дописывать старый журнал, а сжатие повторим,
+                // когда он вырастет еще раз, а не на каждой следующей записи
+                logRecords = entries.size();
+                if (log == null) {
+                    try {
+                        log = openLog(indexFile, true);
+                    } catch (IOException reopen) {
+                        // журнал недоступен - дальше индекс работает как закрытый
+                        e.addSuppressed(reopen);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    // загружает журнал в память
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(indexFile.toPath()), 64 * 1024))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_AUDIO) {
+                // чужой формат - начинаем с пустого индекса
+                entries.clear();
+                logRecords = -1;
+                return;
+            }
+            boolean withoutAudio = version == FORMAT_VERSION_WITHOUT_AUDIO;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String path = in.readUTF();
+                if (op == OP_ADD) {
+                    entries.putIfAbsent(path, new Entry(0, 0, null));
+                } else if (op == OP_PUT) {
+                    Entry entry = readEntry(in, new File(path));
+                    // в старом формате нет свойств звука: оставляем файл, теги прочитаются заново
+                    entries.put(path, withoutAudio ? new Entry(0, 0, null) : entry);
+                } else if (op == OP_REMOVE) {
+                    entries.remove(path);
+                } else {
+                    throw new EOFException("Unknown record type " + op);
+                }
+                logRecords++;
+            }
+            if (withoutAudio) {
+                // дописывать новые записи в журнал старого формата нельзя - он переписывается снимком
+                logRecords = -1;
+            }
+        } catch (EOFException e) {
+            // журнал оборван на середине записи - все полные записи уже загружены
+            logRecords = -1;
+        }
+    }
+
+    // переписывает журнал снимком текущего состояния через временный файл
+    private void compact() throws IOException {
+        Path target = indexFile.toPath();
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), indexFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = openLog(temp.toFile(), false)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    if (entry.metadata == null) {
+                        out.writeByte(OP_ADD);
+                        out.writeUTF(item.getKey());
+                    } else {
+                        out.writeByte(OP_PUT);
+                        out.writeUTF(item.getKey());
+                        writeEntry(out, entry.length, entry.lastModified, entry.metadata);
+                    }
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        logRecords = entries.size();
+        log = openLog(indexFile, true);
+    }
+
+    private static DataOutputStream openLog(File file, boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 64 * 1024));
+    }
+
+    private static void writeEntry(DataOutputStream out, long length, long lastModified,
+                                   MP3Metadata metadata) throws IOException {
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        CoverArt cover = metadata.getCoverArt();
+        int flags = (metadata.getTitle() != null ? HAS_TITLE : 0)
+                | (metadata.getArtist() != null ? HAS_ARTIST : 0)
+                | (metadata.getAlbum() != null ? HAS_ALBUM : 0)
+                | (metadata.getGenre() != null ? HAS_GENRE : 0)
+                | (metadata.getYear() != null ? HAS_YEAR : 0)
+                | (metadata.getBpm() != null ? HAS_BPM : 0)
+                | (cover != null ? HAS_COVER : 0)
+                | (metadata.getAudio() != null ? HAS_AUDIO : 0);
+        out.writeByte(flags);
+        if (metadata.getTitle() != null) out.writeUTF(metadata.getTitle());
+        if (metadata.getArtist() != null) out.writeUTF(metadata.getArtist());
+        if (metadata.getAlbum() != null) out.writeUTF(metadata.getAlbum());
+        if (metadata.getGenre() != null) out.writeUTF(metadata.getGenre());
+        if (metadata.getYear() != null) out.writeUTF(metadata.getYear());
+        if (metadata.getBpm() != null) out.writeInt(metadata.getBpm());
+        if (cover != null) {
+            // только положение изображения в самом mp3, без байтов
+            out.writeLong(cover.getOffset());
+            out.writeInt(cover.getLength());
+            out.writeUTF(cover.getMimeType());
+        }
+        AudioProperties audio = metadata.getAudio();
+        if (audio != null) {
+            out.writeLong(audio.getDurationMillis());
+            out.writeInt(audio.getBitrate());
+            out.writeInt(audio.getSampleRate());
+            out.writeByte(audio.getChannelMode().ordinal());
+            out.writeByte((audio.isVbr() ? AUDIO_VBR : 0) | (audio.isEstimated() ? AUDIO_ESTIMATED : 0));
+        }
+    }
+
+    private static Entry readEntry(DataInputStream in, File file) throws IOException {
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        int flags = in.readByte();
+        MP3Metadata metadata = new MP3Metadata();
+        if ((flags & HAS_TITLE) != 0) metadata.setTitle(in.readUTF());
+        if ((flags & HAS_ARTIST) != 0) metadata.setArtist(in.readUTF());
+        if ((flags & HAS_ALBUM) != 0) metadata.setAlbum(in.readUTF());
+        if ((flags & HAS_GENRE) != 0) metadata.setGenre(in.readUTF());
+        if ((flags & HAS_YEAR) != 0) metadata.setYear(in.readUTF());
+        if ((flags & HAS_BPM) != 0) metadata.setBpm(in.readInt());
+        if ((flags & HAS_COVER) != 0) {
+            long offset = in.readLong();
+            int coverLength = in.readInt();
+            String mimeType = in.readUTF();
+            metadata.setCoverArt(CoverArt.fromFile(file, offset, coverLength, mimeType, length, lastModified));
+        }
+        if ((flags & HAS_AUDIO) != 0) {
+            long durationMillis = in.readLong();
+            int bitrate = in.readInt();
+            int sampleRate = in.readInt();
+            int channelMode = in.readByte();
+            int audioFlags = in.readByte();
+            AudioProperties.ChannelMode[] modes = AudioProperties.ChannelMode.values();
+            if (channelMode < 0 || channelMode >= modes.length) {
+                throw new EOFException("Unknown channel mode " + channelMode);
+            }
+            metadata.setAudio(new AudioProperties(durationMillis, bitrate, sampleRate, modes[channelMode],
+                    (audioFlags & AUDIO_VBR) != 0, (audioFlags & AUDIO_ESTIMATED) != 0));
+        }
+        return new Entry(length, lastModified, metadata);
+    }
+
+    private static final class Entry {
+
+        private final long length;
+        private final long lastModified;
+        // null - файл в библиотеке, но теги еще не читались
+        private final MP3Metadata metadata;
+
+        private Entry(long length, long lastModified, MP3Metadata metadata) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.mp3editor.service;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// метрики операций с тегами: гистограммы задержек, байты, попадания в кэш, очереди и ошибки по причинам.
+// выключены по умолчанию; выключенные стоят одного чтения volatile флага на операцию - start() отдает 0,
+// и record() сразу возвращается. счетчики на LongAdder, так что параллельные потоки записи
+// не соревнуются за одну ячейку. доступны через jmx и периодической сводкой в java.util.logging
+public class TagMetrics implements TagMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(TagMetrics.class.getName());
+
+    // период сводки в лог по умолчанию
+    public static final long DEFAULT_LOG_PERIOD_SECONDS = 60;
+    // сколько самых медленных файлов помнить
+    private static final int SLOWEST_FILES = 10;
+
+    public enum Operation {
+        // разбор тегов файла с диска (промахи кэша)
+        PARSE("parse"),
+        // подготовка обложки к записи: чтение байтов, уменьшение и пережатие
+        COVER("cover"),
+        // сборка id3v1 трейлера и его запись на место
+        ID3V1_SYNC("id3v1-sync"),
+        // запись тегов файла целиком
+        SAVE("save");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final MetadataCache cache;
+    private volatile boolean enabled;
+
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+    private final Map<String, Histogram> locations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    // самые медленные операции по убыванию; порог - время последней, пока список полон
+    private final List<SlowFile> slowest = new ArrayList<>();
+    private volatile long slowestThreshold;
+
+    private ScheduledExecutorService logger;
+    private ObjectName objectName;
+
+    TagMetrics(MetadataCache cache) {
+        this.cache = cache;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // начало операции: текущее время или 0, если метрики выключены
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // конец операции, начатой start(); file - для сводки по расположению и списка медленных, может быть null
+    public void record(Operation operation, long start, File file) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        latencies[operation.ordinal()].record(nanos);
+        if (file != null) {
+            locations.computeIfAbsent(location(file), key -> new Histogram()).record(nanos);
+            if (nanos > slowestThreshold) {
+                offerSlowest(new SlowFile(nanos, operation, file));
+            }
+        }
+    }
+
+    public void recordFailure(Operation operation, Throwable error) {
+        if (!enabled) {
+            return;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        failures.computeIfAbsent(operation.getLabel() + ": " + cause.getClass().getSimpleName(),
+                key -> new LongAdder()).increment();
+    }
+
+    public void addBytesRead(long bytes) {
+        if (enabled) {
+            bytesRead.add(bytes);
+        }
+    }
+
+    public void addBytesWritten(long bytes) {
+        if (enabled) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    // очередь пула, глубина которой попадет в метрики; опрашивается только при чтении метрик
+    public void registerQueue(String name, IntSupplier depth) {
+        queues.put(name, depth);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> result = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.getLabel(), latencies[operation.ordinal()].snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLocationLatencies() {
+        Map<String, LatencySnapshot> result = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : locations.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getSlowestFiles() {
+        List<String> result = new ArrayList<>();
+        synchronized (slowest) {
+            for (SlowFile slow : slowest) {
+                result.add(String.format(Locale.ROOT, "%.1f ms %s %s",
+                        slow.nanos / 1e6, slow.operation.getLabel(), slow.file.getPath()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cache.getHits();
+        long total = hits + cache.getMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, IntSupplier> entry : queues.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsInt());
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder("Tag metrics:");
+        for (Map.Entry<String, LatencySnapshot> entry : getLatencies().entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                summary.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        summary.append(String.format(Locale.ROOT, "%n  bytes read %d, written %d; cache %d entries, hit rate %.1f%%",
+                getBytesRead(), getBytesWritten(), getCacheSize(), getCacheHitRate() * 100));
+        Map<String, Integer> queueDepths = getQueueDepths();
+        if (!queueDepths.isEmpty()) {
+            summary.append("\n  queued ").append(queueDepths);
+        }
+        Map<String, Long> failureCounts = getFailures();
+        if (!failureCounts.isEmpty()) {
+            summary.append("\n  failures ").append(failureCounts);
+        }
+        for (Map.Entry<String, LatencySnapshot> entry : getLocationLatencies().entrySet()) {
+            summary.append("\n  at ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        List<String> slowFiles = getSlowestFiles();
+        if (!slowFiles.isEmpty()) {
+            summary.append("\n  slowest:");
+            for (String slow : slowFiles) {
+                summary.append("\n    ").append(slow);
+            }
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : latencies) {
+            histogram.reset();
+        }
+        locations.clear();
+        failures.clear();
+        bytesRead.reset();
+        bytesWritten.reset();
+        synchronized (slowest) {
+            slowest.clear();
+            slowestThreshold = 0;
+        }
+    }
+
+    // регистрирует метрики в платформенном MBeanServer под именем com.mp3editor:type=TagMetrics,name=<name>
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.mp3editor:type=TagMetrics,name=" + ObjectName.quote(name));
+        try {
+            server.registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            // другой сервис с тем же именем: оставляем первый
+            return;
+        }
+        this.objectName = objectName;
+    }
+
+    // раз в periodSeconds пишет сводку в лог на уровне INFO
+    public synchronized void startLogging(long periodSeconds) {
+        if (periodSeconds < 1) {
+            throw new IllegalArgumentException("Log period must be positive: " + periodSeconds);
+        }
+        if (logger != null) {
+            logger.shutdownNow();
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("tag-metrics"));
+        logger.scheduleAtFixedRate(() -> LOGGER.info(getSummary()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // останавливает сводки в лог и снимает регистрацию в jmx
+    public synchronized void close() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Cannot unregister " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void offerSlowest(SlowFile candidate) {
+        synchronized (slowest) {
+            int index = 0;
+            while (index < slowest.size() && slowest.get(index).nanos >= candidate.nanos) {
+                index++;
+            }
+            if (index >= SLOWEST_FILES) {
+                return;
+            }
+            slowest.add(index, candidate);
+            if (slowest.size() > SLOWEST_FILES) {
+                slowest.remove(slowest.size() - 1);
+            }
+            if (slowest.size() == SLOWEST_FILES) {
+                slowestThreshold = slowest.get(slowest.size() - 1).nanos;
+            }
+        }
+    }
+
+    // расположение файла для сводки: корень и два каталога верхнего уровня (D:\Music, /mnt/nas).
+    // точное устройство (FileStore) на каждой операции стоило бы дороже самой метрики
+    private static String location(File file) {
+        Path path = file.getAbsoluteFile().toPath();
+        Path root = path.getRoot();
+        int depth = Math.min(2, path.getNameCount() - 1);
+        if (depth <= 0) {
+            return root != null ? root.toString() : ".";
+        }
+        Path prefix = path.subpath(0, depth);
+        return root != null ? root.resolve(prefix).toString() : prefix.toString();
+    }
+
+    // сводка гистограммы на момент чтения; перцентили - верхние границы корзин (точность около 25%)
+    public static final class LatencySnapshot {
+
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p95Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        private LatencySnapshot(long count, double meanMillis, double p50Millis, double p95Millis,
+                                double p99Millis, double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    count, meanMillis, p50Millis, p95Millis, p99Millis, maxMillis);
+        }
+    }
+
+    // логарифмическая гистограмма в микросекундах: 4 корзины на каждую степень двойки.
+    // запись - одно сложение в LongAdder корзины, без блокировок и выделения памяти
+    private static final class Histogram {
+
+        // 2^40 мкс - около 12 дней, дальше все попадает в последнюю корзину
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - 1) * 4 + 4;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[bucket(micros)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+        }
+
+        LatencySnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return new LatencySnapshot(0, 0, 0, 0, 0, 0);
+            }
+            double max = maxNanos.get() / 1e6;
+            return new LatencySnapshot(total, totalNanos.sum() / 1e6 / Math.max(1, count.sum()),
+                    Math.min(max, percentile(counts, total, 0.50)),
+                    Math.min(max, percentile(counts, total, 0.95)),
+                    Math.min(max, percentile(counts, total, 0.99)), max);
+        }
+
+        // верхняя граница корзины, в которую попадает перцентиль, в миллисекундах
+        private static double percentile(long[] counts, long total, double fraction) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i) / 1000.0;
+                }
+            }
+            return upperBound(counts.length - 1) / 1000.0;
+        }
+
+        // 0-3 мкс - по корзине на значение, дальше 4 корзины на степень двойки
+        private static int bucket(long micros) {
+            if (micros < 4) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (micros >>> (exponent - 2)) & 3;
+            return (exponent - 1) * 4 + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket + 1;
+            }
+            int exponent = bucket / 4 + 1;
+            int sub = bucket % 4;
+            return (long) (5 + sub) << (exponent - 2);
+        }
+    }
+
+    private static final class SlowFile {
+
+        private final long nanos;
+        private final Operation operation;
+        private final File file;
+
+        private SlowFile(long nanos, Operation operation, File file) {
+            this.nanos = nanos;
+            this.operation = operation;
+            this.file = file;
+        }
+    }
+}
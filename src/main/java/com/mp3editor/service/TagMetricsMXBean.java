@@ -0,0 +1,44 @@
+package com.mp3editor.service;
+
+import java.util.List;
+import java.util.Map;
+
+// метрики чтения и записи тегов в jmx (jconsole, VisualVM): com.mp3editor:type=TagMetrics
+public interface TagMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    // задержки по операциям: parse, cover, id3v1-sync, save
+    Map<String, TagMetrics.LatencySnapshot> getLatencies();
+
+    // задержки чтения и записи по расположению файлов (диск и каталог верхнего уровня)
+    Map<String, TagMetrics.LatencySnapshot> getLocationLatencies();
+
+    // самые медленные операции над отдельными файлами: "время операция путь"
+    List<String> getSlowestFiles();
+
+    // ошибки по операции и классу исключения: "save: AccessDeniedException" -> число
+    Map<String, Long> getFailures();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    int getCacheSize();
+
+    // задачи, ожидающие своей очереди в пулах чтения и записи
+    Map<String, Integer> getQueueDepths();
+
+    // текстовая сводка, та же, что уходит в лог
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,418 @@
+package com.mp3editor.service;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// потоковое чтение таблицы тегов: csv с заголовком в первой строке или json lines (объект на строку).
+// в памяти всегда одна запись, так что таблица на сотни тысяч строк читается с постоянным
+// расходом памяти. колонки сопоставляются по имени без учета регистра, пробелов и подчеркиваний
+// ("Match Artist", "match_artist" и "matchArtist" - одна колонка), остальные пропускаются
+abstract class TagSheetReader implements Closeable {
+
+    private final Map<String, Integer> columns;
+    private final int width;
+    final BufferedReader in;
+    int line;
+    private int recordLine;
+    private String error;
+
+    // columns: нормализованное имя колонки -> номер значения в строке; width - длина строки
+    private TagSheetReader(BufferedReader in, Map<String, Integer> columns, int width) {
+        this.in = in;
+        this.columns = columns;
+        this.width = width;
+    }
+
+    // формат определяется по расширению, а для неизвестного - по первому символу файла
+    static TagSheetReader open(File file, Map<String, Integer> columns, int width) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()),
+                StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            // метка порядка байтов, которую ставит excel
+            in.mark(1);
+            if (in.read() != '\uFEFF') {
+                in.reset();
+            }
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            boolean json;
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+                json = true;
+            } else if (name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".txt")) {
+                json = false;
+            } else {
+                in.mark(4096);
+                int c;
+                do {
+                    c = in.read();
+                } while (c >= 0 && Character.isWhitespace(c));
+                in.reset();
+                json = c == '{';
+            }
+            return json ? new JsonLinesReader(in, columns, width) : new CsvReader(in, columns, width);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // нормализованное имя колонки: нижний регистр, только буквы и цифры
+    static String normalize(String name) {
+        StringBuilder result = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(Character.toLowerCase(c));
+            }
+        }
+        return result.toString();
+    }
+
+    // следующая запись: значения в порядке колонок или null в конце файла. null в значении -
+    // колонки нет в записи, пустая строка - колонка есть, но пуста (в json - null)
+    String[] next() throws IOException {
+        error = null;
+        String[] row = new String[width];
+        if (!read(row)) {
+            return null;
+        }
+        return row;
+    }
+
+    // строка файла, с которой началась последняя запись
+    int getLine() {
+        return recordLine;
+    }
+
+    // ошибка разбора последней записи; ее значения тогда пусты
+    String getError() {
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    abstract boolean read(String[] row) throws IOException;
+
+    void startRecord() {
+        recordLine = line;
+    }
+
+    void fail(String message, String[] row) {
+        error = message;
+        Arrays.fill(row, null);
+    }
+
+    int column(String name) {
+        Integer index = columns.get(normalize(name));
+        return index != null ? index : -1;
+    }
+
+    // csv по rfc 4180: значения в кавычках могут содержать разделитель и переводы строк.
+    // разделитель - запятая, точка с запятой или табуляция, какой чаще встречается в заголовке
+    // (русский excel сохраняет csv через точку с запятой)
+    private static final class CsvReader extends TagSheetReader {
+
+        private final char delimiter;
+        // номер колонки файла -> номер значения в строке, -1 - колонка не нужна
+        private final int[] mapping;
+        private final List<String> cells = new ArrayList<>();
+        private final StringBuilder cell = new StringBuilder();
+
+        private CsvReader(BufferedReader in, Map<String, Integer> columns, int width) throws IOException {
+            super(in, columns, width);
+            this.delimiter = detectDelimiter(in);
+            line = 1;
+            if (!readRecord()) {
+                this.mapping = new int[0];
+                return;
+            }
+            this.mapping = new int[cells.size()];
+            for (int i = 0; i < mapping.length; i++) {
+                mapping[i] = column(cells.get(i));
+            }
+        }
+
+        @Override
+        boolean read(String[] row) throws IOException {
+            // пустые строки между записями пропускаем
+            do {
+                if (!readRecord()) {
+                    return false;
+                }
+            } while (cells.size() == 1 && cells.get(0).isEmpty());
+            int count = Math.min(cells.size(), mapping.length);
+            for (int i = 0; i < count; i++) {
+                if (mapping[i] >= 0) {
+                    row[mapping[i]] = cells.get(i);
+                }
+            }
+            return true;
+        }
+
+        // читает одну запись в cells; false в конце файла
+        private boolean readRecord() throws IOException {
+            cells.clear();
+            cell.setLength(0);
+            int c = in.read();
+            if (c < 0) {
+                return false;
+            }
+            startRecord();
+            boolean quoted = false;
+            // после закрывающей кавычки текст до разделителя дописывается как есть
+            boolean wasQuoted = false;
+            while (true) {
+                if (c < 0) {
+                    cells.add(cell.toString());
+                    return true;
+                }
+                if (quoted) {
+                    if (c == '"') {
+                        in.mark(1);
+                        if (in.read() == '"') {
+                            cell.append('"');
+                        } else {
+                            in.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            line++;
+                        }
+                        cell.append((char) c);
+                    }
+                } else if (c == '"' && cell.length() == 0 && !wasQuoted) {
+                    quoted = true;
+                    wasQuoted = true;
+                } else if (c == delimiter) {
+                    cells.add(cell.toString());
+                    cell.setLength(0);
+                    wasQuoted = false;
+                } else if (c == '\n' || c == '\r') {
+                    if (c == '\r') {
+                        in.mark(1);
+                        if (in.read() != '\n') {
+                            in.reset();
+                        }
+                    }
+                    line++;
+                    cells.add(cell.toString());
+                    return true;
+                } else {
+                    cell.append((char) c);
+                }
+                c = in.read();
+            }
+        }
+
+        private static char detectDelimiter(BufferedReader in) throws IOException {
+            in.mark(64 * 1024);
+            int commas = 0;
+            int semicolons = 0;
+            int tabs = 0;
+            boolean quoted = false;
+            for (int i = 0; i < 64 * 1024; i++) {
+                int c = in.read();
+                if (c < 0 || (!quoted && (c == '\n' || c == '\r'))) {
+                    break;
+                }
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && c == ',') {
+                    commas++;
+                } else if (!quoted && c == ';') {
+                    semicolons++;
+                } else if (!quoted && c == '\t') {
+                    tabs++;
+                }
+            }
+            in.reset();
+            if (semicolons > commas && semicolons >= tabs) {
+                return ';';
+            }
+            return tabs > commas ? '\t' : ',';
+        }
+    }
+
+    // json lines: на каждой строке плоский объект, значения - строки, числа, true/false или null.
+    // строка с ошибкой не останавливает чтение - она возвращается пустой с сообщением в getError()
+    private static final class JsonLinesReader extends TagSheetReader {
+
+        private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+
+        private String text;
+        private int position;
+
+        private JsonLinesReader(BufferedReader in, Map<String, Integer> columns, int width) {
+            super(in, columns, width);
+        }
+
+        @Override
+        boolean read(String[] row) throws IOException {
+            do {
+                text = in.readLine();
+                if (text == null) {
+                    return false;
+                }
+                line++;
+            } while (text.isBlank());
+            startRecord();
+            position = 0;
+            try {
+                parseObject(row);
+            } catch (IllegalArgumentException e) {
+                fail(e.getMessage(), row);
+            }
+            return true;
+        }
+
+        private void parseObject(String[] row) {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peekChar() == '}') {
+                position++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = parseString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    String value = parseValue();
+                    int index = column(key);
+                    if (index >= 0) {
+                        row[index] = value;
+                    }
+                    skipWhitespace();
+                    char c = nextChar();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw new IllegalArgumentException("Expected ',' or '}' at column " + position);
+                    }
+                }
+            }
+            skipWhitespace();
+            if (position < text.length()) {
+                throw new IllegalArgumentException("Unexpected text after the object at column " + (position + 1));
+            }
+        }
+
+        // null в json - пустое значение, числа и true/false - их текст
+        private String parseValue() {
+            char c = peekChar();
+            if (c == '"') {
+                return parseString();
+            }
+            if (c == '{' || c == '[') {
+                throw new IllegalArgumentException("Nested objects and arrays are not supported");
+            }
+            int start = position;
+            while (position < text.length() && ",}] \t".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("null")) {
+                return "";
+            }
+            if (literal.equals("true") || literal.equals("false") || NUMBER.matcher(literal).matches()) {
+                return literal;
+            }
+            throw new IllegalArgumentException("Invalid value at column " + (start + 1));
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = null;
+            int start = position;
+            while (true) {
+                char c = nextChar();
+                if (c == '"') {
+                    return value != null ? value.toString() : text.substring(start, position - 1);
+                }
+                if (c != '\\') {
+                    if (value != null) {
+                        value.append(c);
+                    }
+                    continue;
+                }
+                // экранирование: строку собираем только если оно встретилось
+                if (value == null) {
+                    value = new StringBuilder(text.substring(start, position - 1));
+                }
+                char escaped = nextChar();
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw new IllegalArgumentException("Invalid \\u escape at column " + position);
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid \\u escape at column " + position);
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        // \" \\ \/
+                        value.append(escaped);
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private char peekChar() {
+            if (position >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of line");
+            }
+            return text.charAt(position);
+        }
+
+        private char nextChar() {
+            char c = peekChar();
+            position++;
+            return c;
+        }
+
+        private void expect(char expected) {
+            if (nextChar() != expected) {
+                throw new IllegalArgumentException("Expected '" + expected + "' at column " + position);
+            }
+        }
+    }
+}
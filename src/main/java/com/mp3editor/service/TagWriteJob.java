@@ -0,0 +1,56 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+
+import java.io.File;
+
+// одна задача пакетной записи: откуда читать, куда сохранить и какие теги записать -
+// либо готовые метаданные, либо правка части полей, которая сверяется с тегами файла при записи
+public class TagWriteJob {
+
+    private final File inputFile;
+    private final File outputFile;
+    private final MP3Metadata metadata;
+    private final TagChanges changes;
+
+    public TagWriteJob(File inputFile, File outputFile, MP3Metadata metadata) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.metadata = metadata;
+        this.changes = null;
+    }
+
+    // правка файла на месте; файл, в котором все поля уже совпадают, пропускается
+    public TagWriteJob(File file, TagChanges changes) {
+        this.inputFile = file;
+        this.outputFile = file;
+        this.metadata = null;
+        this.changes = changes;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    // null для задачи с правкой полей
+    public MP3Metadata getMetadata() {
+        return metadata;
+    }
+
+    // null для задачи с готовыми метаданными
+    public TagChanges getChanges() {
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return "TagWriteJob{" +
+                "inputFile=" + inputFile +
+                ", outputFile=" + outputFile +
+                '}';
+    }
+}
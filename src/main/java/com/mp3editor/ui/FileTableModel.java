@@ -0,0 +1,449 @@
+package com.mp3editor.ui;
+
+import com.mp3editor.model.AudioProperties;
+import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.service.MP3TagService;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// модель таблицы файлов библиотеки: файлы в порядке добавления плюс хэш-индекс
+// канонический путь -> позиция, поэтому проверка дубликатов и поиск файла не зависят от размера списка.
+// теги для колонок читаются лениво страницами: только для видимых строк и соседних страниц,
+// прочитанное хранится в ограниченном lru, так что память не растет с размером библиотеки.
+// фильтр (результат поиска) показывает подмножество файлов; номера строк в методах модели -
+// номера видимых строк таблицы. все методы вызываются только из потока swing
+class FileTableModel extends AbstractTableModel {
+
+    static final int FILE_COLUMN = 0;
+    static final int TITLE_COLUMN = 1;
+    static final int ARTIST_COLUMN = 2;
+    static final int ALBUM_COLUMN = 3;
+    static final int YEAR_COLUMN = 4;
+    static final int BPM_COLUMN = 5;
+    static final int LENGTH_COLUMN = 6;
+    static final int BITRATE_COLUMN = 7;
+
+    private static final String[] COLUMN_NAMES = {"File", "Title", "Artist", "Album", "Year", "BPM", "Length", "Bitrate"};
+
+    // строк в странице, которая читается одной фоновой задачей
+    static final int PAGE_SIZE = 128;
+    // сколько строк с тегами держать в памяти (несколько экранов вокруг видимой области)
+    private static final int MAX_LOADED_ROWS = 64 * PAGE_SIZE;
+    // метка файла, теги которого прочитать не удалось - чтобы не читать его на каждой перерисовке
+    private static final MP3Metadata UNREADABLE = new MP3Metadata();
+
+    private final MP3TagService tagService;
+
+    private final List<File> files = new ArrayList<>();
+    // ключи файлов по тем же позициям, что и в files
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    // позиции показанных файлов по возрастанию; null - фильтра нет, показаны все
+    private int[] filter;
+    // файлы, подходящие под фильтр (результат поиска)
+    private Set<File> filterMatches;
+
+    // ключ файла -> прочитанные теги; accessOrder = true, вытесняются давно не показанные строки
+    private final LinkedHashMap<String, MP3Metadata> loaded = new LinkedHashMap<String, MP3Metadata>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MP3Metadata> eldest) {
+            return size() > MAX_LOADED_ROWS;
+        }
+    };
+
+    // очередь страниц на чтение: видимые в начале, соседние для упреждения в конце
+    private final Deque<Integer> queue = new ArrayDeque<>();
+    private final Set<Integer> queued = new HashSet<>();
+    // страница, которая читается сейчас; одновременно читается одна, остальные ждут в очереди
+    private boolean loading;
+    // видимые строки; страницы, далекие от них к моменту чтения, пропускаются
+    private int firstVisibleRow;
+    private int lastVisibleRow = -1;
+
+    FileTableModel(MP3TagService tagService) {
+        this.tagService = tagService;
+    }
+
+    @Override
+    public int getRowCount() {
+        return filter != null ? filter.length : files.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == BPM_COLUMN ? Integer.class : String.class;
+    }
+
+    // значение ячейки; если теги строки еще не прочитаны - пусто, а ее страница ставится в очередь
+    @Override
+    public Object getValueAt(int row, int column) {
+        int position = positionOf(row);
+        if (column == FILE_COLUMN) {
+            return files.get(position).getName();
+        }
+        MP3Metadata metadata = loaded.get(keys.get(position));
+        if (metadata == null) {
+            requestPage(row / PAGE_SIZE, true);
+            return null;
+        }
+        switch (column) {
+            case TITLE_COLUMN:
+                return metadata.getTitle();
+            case ARTIST_COLUMN:
+                return metadata.getArtist();
+            case ALBUM_COLUMN:
+                return metadata.getAlbum();
+            case YEAR_COLUMN:
+                return metadata.getYear();
+            case BPM_COLUMN:
+                return metadata.getBpm();
+            case LENGTH_COLUMN:
+                // длительность vbr файла без заголовка - оценка по выборке фреймов
+                AudioProperties audio = metadata.getAudio();
+                if (audio == null) {
+                    return null;
+                }
+                return audio.isEstimated() ? "~" + audio.formatDuration() : audio.formatDuration();
+            case BITRATE_COLUMN:
+                audio = metadata.getAudio();
+                if (audio == null) {
+                    return null;
+                }
+                return audio.isVbr() ? audio.getBitrate() + " VBR" : Integer.toString(audio.getBitrate());
+            default:
+                return null;
+        }
+    }
+
+    // файл строки
+    public File getFile(int row) {
+        return files.get(positionOf(row));
+    }
+
+    // строка файла в таблице или -1, если файла нет или он скрыт фильтром
+    public int indexOf(File file) {
+        Integer position = positions.get(keyOf(file));
+        return position != null ? rowOf(position) : -1;
+    }
+
+    // общее число файлов, включая скрытые фильтром
+    public int getFileCount() {
+        return files.size();
+    }
+
+    // все файлы списка, включая скрытые фильтром
+    public List<File> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    public boolean isFiltered() {
+        return filter != null;
+    }
+
+    // показывает только файлы из matches; null снимает фильтр
+    public void setFilter(Set<File> matches) {
+        filterMatches = matches;
+        filter = matches != null ? buildFilter(0, new int[0]) : null;
+        // номера страниц относятся к прежним строкам
+        queue.clear();
+        queued.clear();
+        fireTableDataChanged();
+    }
+
+    public boolean contains(File file) {
+        return positions.containsKey(keyOf(file));
+    }
+
+    // сообщает модели видимую область таблицы: ее страницы читаются первыми, соседние - следом
+    public void setVisibleRows(int firstRow, int lastRow) {
+        firstVisibleRow = firstRow;
+        lastVisibleRow = lastRow;
+        if (lastRow < firstRow) {
+            return;
+        }
+        int firstPage = firstRow / PAGE_SIZE;
+        int lastPage = lastRow / PAGE_SIZE;
+        for (int page = firstPage; page <= lastPage; page++) {
+            requestPage(page, true);
+        }
+        requestPage(firstPage - 1, false);
+        requestPage(lastPage + 1, false);
+    }
+
+    // забывает прочитанные теги файла (например, после записи) - строка перечитается при показе
+    public void invalidate(File file) {
+        String key = keyOf(file);
+        Integer position = positions.get(key);
+        if (loaded.remove(key) != null && position != null) {
+            int row = rowOf(position);
+            if (row >= 0) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+    }
+
+    // забывает прочитанные теги нескольких файлов (например, измененных другой программой);
+    // таблице уходит одно событие на диапазон от первой до последней затронутой строки
+    public void invalidate(Collection<File> changedFiles) {
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (File file : changedFiles) {
+            String key = keyOf(file);
+            Integer position = positions.get(key);
+            if (loaded.remove(key) != null && position != null) {
+                int row = rowOf(position);
+                if (row >= 0) {
+                    firstRow = Math.min(firstRow, row);
+                    lastRow = Math.max(lastRow, row);
+                }
+            }
+        }
+        if (lastRow >= 0) {
+            fireTableRowsUpdated(firstRow, lastRow);
+        }
+    }
+
+    // добавляет файл в конец списка
+    public void addFile(File file) {
+        addFiles(Collections.singletonList(file));
+    }
+
+    // добавляет несколько файлов одним событием, пропуская уже добавленные
+    public void addFiles(Collection<File> newFiles) {
+        int firstIndex = files.size();
+        for (File file : newFiles) {
+            String key = keyOf(file);
+            if (!positions.containsKey(key)) {
+                positions.put(key, files.size());
+                files.add(file);
+                keys.add(key);
+            }
+        }
+        if (files.size() == firstIndex) {
+            return;
+        }
+        if (filter == null) {
+            // уведомляем таблицу о добавлении сразу всего диапазона
+            fireTableRowsInserted(firstIndex, files.size() - 1);
+            return;
+        }
+        // при фильтре показываются только подходящие из новых файлов
+        int firstRow = filter.length;
+        filter = buildFilter(firstIndex, filter);
+        if (filter.length > firstRow) {
+            fireTableRowsInserted(firstRow, filter.length - 1);
+        }
+    }
+
+    // удаляет файл из списка
+    public void removeFile(File file) {
+        removeFiles(Collections.singletonList(file));
+    }
+
+    // удаляет несколько файлов за один проход по списку; каждый непрерывный
+    // диапазон удаленных строк - одно событие
+    public void removeFiles(Collection<File> removedFiles) {
+        boolean[] removed = new boolean[files.size()];
+        int count = 0;
+        for (File file : removedFiles) {
+            String key = keyOf(file);
+            Integer position = positions.remove(key);
+            if (position != null) {
+                removed[position] = true;
+                loaded.remove(key);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        // сдвигаем оставшиеся файлы к началу и обновляем их позиции в индексе
+        int size = files.size();
+        int target = 0;
+        for (int source = 0; source < size; source++) {
+            if (removed[source]) {
+                continue;
+            }
+            if (target != source) {
+                files.set(target, files.get(source));
+                keys.set(target, keys.get(source));
+                positions.put(keys.get(target), target);
+            }
+            target++;
+        }
+        files.subList(target, size).clear();
+        keys.subList(target, size).clear();
+        // номера страниц после сдвига указывают на другие строки - очередь строится заново при показе
+        queue.clear();
+        queued.clear();
+
+        if (filter != null) {
+            // позиции сдвинулись - фильтр строится заново, таблица перерисовывается целиком
+            filter = buildFilter(0, new int[0]);
+            fireTableDataChanged();
+            return;
+        }
+
+        // события идут с конца, чтобы индексы еще не сообщенных диапазонов оставались верными
+        int end = size - 1;
+        while (end >= 0) {
+            if (!removed[end]) {
+                end--;
+                continue;
+            }
+            int start = end;
+            while (start > 0 && removed[start - 1]) {
+                start--;
+            }
+            fireTableRowsDeleted(start, end);
+            end = start - 1;
+        }
+    }
+
+    // ставит страницу в очередь: видимую - в начало, упреждающую - в конец
+    private void requestPage(int page, boolean visible) {
+        if (page < 0 || page * PAGE_SIZE >= getRowCount()) {
+            return;
+        }
+        if (!queued.add(page)) {
+            if (visible) {
+                // страница уже ждет в хвосте как упреждающая - поднимаем ее вперед
+                queue.remove(page);
+                queue.addFirst(page);
+            }
+            return;
+        }
+        if (visible) {
+            queue.addFirst(page);
+        } else {
+            queue.addLast(page);
+        }
+        loadNextPage();
+    }
+
+    // запускает чтение следующей нужной страницы, если сейчас ничего не читается
+    private void loadNextPage() {
+        while (!loading && !queue.isEmpty()) {
+            int page = queue.pollFirst();
+            queued.remove(page);
+            if (!isNearVisible(page)) {
+                // пользователь уже пролистал дальше
+                continue;
+            }
+            int from = page * PAGE_SIZE;
+            int to = Math.min(getRowCount(), from + PAGE_SIZE);
+            List<File> pageFiles = new ArrayList<>();
+            List<String> pageKeys = new ArrayList<>();
+            for (int row = from; row < to; row++) {
+                int position = positionOf(row);
+                if (!loaded.containsKey(keys.get(position))) {
+                    pageFiles.add(files.get(position));
+                    pageKeys.add(keys.get(position));
+                }
+            }
+            if (pageFiles.isEmpty()) {
+                continue;
+            }
+            loading = true;
+            tagService.readMetadataAsync(pageFiles).whenComplete((result, error) ->
+                    SwingUtilities.invokeLater(() -> pageLoaded(pageKeys, result)));
+        }
+    }
+
+    // раскладывает прочитанные теги по строкам и перерисовывает затронутый диапазон
+    private void pageLoaded(List<String> pageKeys, List<MP3Metadata> result) {
+        loading = false;
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (int i = 0; i < pageKeys.size(); i++) {
+            String key = pageKeys.get(i);
+            Integer position = positions.get(key);
+            if (position == null) {
+                // файл удалили из списка, пока читалась страница
+                continue;
+            }
+            MP3Metadata metadata = result != null ? result.get(i) : null;
+            loaded.put(key, metadata != null ? metadata : UNREADABLE);
+            int row = rowOf(position);
+            if (row >= 0) {
+                firstRow = Math.min(firstRow, row);
+                lastRow = Math.max(lastRow, row);
+            }
+        }
+        if (lastRow >= 0) {
+            fireTableRowsUpdated(firstRow, lastRow);
+        }
+        loadNextPage();
+    }
+
+    // страница видима или соседняя с видимыми
+    private boolean isNearVisible(int page) {
+        if (lastVisibleRow < firstVisibleRow) {
+            // таблица еще не показана - читаем то, о чем спросили
+            return true;
+        }
+        return page >= firstVisibleRow / PAGE_SIZE - 1 && page <= lastVisibleRow / PAGE_SIZE + 1;
+    }
+
+    // позиция файла в полном списке по номеру строки таблицы
+    private int positionOf(int row) {
+        return filter != null ? filter[row] : row;
+    }
+
+    // номер строки таблицы по позиции файла или -1, если файл скрыт фильтром
+    private int rowOf(int position) {
+        if (filter == null) {
+            return position;
+        }
+        int row = Arrays.binarySearch(filter, position);
+        return row >= 0 ? row : -1;
+    }
+
+    // дополняет filter подходящими позициями начиная с from (позиции идут по возрастанию)
+    private int[] buildFilter(int from, int[] filter) {
+        int[] result = Arrays.copyOf(filter, filter.length + Math.min(files.size() - from, filterMatches.size()));
+        int count = filter.length;
+        for (int position = from; position < files.size(); position++) {
+            if (filterMatches.contains(files.get(position))) {
+                result[count++] = position;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // ключ файла - канонический путь, чтобы разные записи одного пути считались одним файлом
+    private static String keyOf(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
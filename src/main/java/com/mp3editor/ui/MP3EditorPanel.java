@@ -1,9 +1,27 @@
 package com.mp3editor.ui;
 
+import com.mp3editor.model.CoverArt;
 import com.mp3editor.model.MP3Metadata;
+import com.mp3editor.model.ReplayGain;
+import com.mp3editor.service.BatchProgressListener;
+import com.mp3editor.service.BatchTagWriter;
+import com.mp3editor.service.BpmDetector;
+import com.mp3editor.service.DuplicateFinder;
+import com.mp3editor.service.EditHistory;
+import com.mp3editor.service.FingerprintStore;
+import com.mp3editor.service.FolderScanner;
+import com.mp3editor.service.LibraryWatcher;
+import com.mp3editor.service.LibrarySearchIndex;
+import com.mp3editor.service.LoudnessAnalyzer;
 import com.mp3editor.service.MP3TagService;
+import com.mp3editor.service.TagChanges;
+import com.mp3editor.service.TagImporter;
+import com.mp3editor.service.TagIndex;
+import com.mp3editor.service.TagMetrics;
+import com.mp3editor.service.TagWriteJob;
 
 // все компоненты swing для создания интерфейса
+import javax.management.JMException;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -11,9 +29,15 @@ import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 // компоненты awt для компоновки интерфейса
@@ -21,12 +45,28 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.GridLayout;
+import java.awt.Point;
+import java.awt.Rectangle;
 
 // стандартные классы java
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // классы для изменения внешнего вида диалогов выбора файлов
 import javax.swing.LookAndFeel;
@@ -38,17 +78,51 @@ import javax.swing.SwingUtilities;
 
 public class MP3EditorPanel extends JPanel {
 
+    private static final String METRICS_PROPERTY = "mp3editor.metrics";
+    // сколько при закрытии окна ждать файлы, которые уже пишутся (сетевой диск может быть медленным)
+    private static final long SHUTDOWN_WRITE_TIMEOUT_SECONDS = 60;
+
     // компоненты для работы с обложкой
     private JButton chooseCoverButton;
     private JLabel coverLabel;
-    private byte[] selectedCoverData;
+    private CoverArt selectedCover;
 
     // сервис для работы с mp3 тегами
     private final MP3TagService tagService = new MP3TagService();
-
-    // компоненты левой панели - список выбранных mp3 файлов
-    private JList<File> fileList;
-    private FileListModel fileListModel;
+    // пакетная запись тегов в фоновых потоках
+    private final BatchTagWriter batchWriter = new BatchTagWriter(tagService);
+    // параллельный поиск mp3 файлов в каталогах
+    private final FolderScanner folderScanner = new FolderScanner();
+    // определение темпа по звуку в фоновых потоках
+    private final BpmDetector bpmDetector = new BpmDetector();
+    // поиск одинаковых записей по звуку; отпечатки сохраняются между запусками
+    private final DuplicateFinder duplicateFinder = new DuplicateFinder(tagService);
+    // анализ громкости для replaygain в фоновых потоках
+    private final LoudnessAnalyzer loudnessAnalyzer = new LoudnessAnalyzer(tagService);
+    // импорт тегов из таблицы csv или json lines через тот же пакетный writer
+    private final TagImporter tagImporter = new TagImporter(tagService, batchWriter);
+
+    // постоянный индекс библиотеки (список файлов и их теги между запусками); null если недоступен
+    private TagIndex tagIndex;
+    // поиск по тегам библиотеки в памяти
+    private final LibrarySearchIndex searchIndex = new LibrarySearchIndex();
+    // наблюдение за каталогами библиотеки: правки и удаления другими программами; null если недоступно
+    private LibraryWatcher libraryWatcher;
+    // история правок для отмены и повтора; null если недоступна
+    private EditHistory editHistory;
+
+    // компоненты левой панели - таблица файлов библиотеки с их тегами
+    private JTable fileTable;
+    private FileTableModel fileTableModel;
+
+    // строка поиска: фильтр применяется после паузы в наборе, а пока он включен -
+    // пересчитывается раз в секунду, если индекс изменился (теги дочитаны или записаны)
+    private JTextField searchField;
+    private Timer searchTimer;
+    private Timer filterRefreshTimer;
+    private long filterVersion;
+    // выделение восстанавливается после смены фильтра - форму при этом не перечитываем
+    private boolean restoringSelection;
 
     // текстовые поля для редактирования тегов
     private JTextField titleField;
@@ -57,9 +131,32 @@ public class MP3EditorPanel extends JPanel {
     private JTextField genreField;
     private JTextField yearField;
     private JTextField bpmField;
+    private JButton detectBpmButton;
 
     // кнопка сохранения изменений
     private JButton saveButton;
+    // отмена и повтор правок, список истории
+    private JButton undoButton;
+    private JButton redoButton;
+    private JButton historyButton;
+
+    // прогресс текущей записи и кнопка ее отмены
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private BatchTagWriter.Batch currentBatch;
+    private FolderScanner.Scan currentScan;
+    private DuplicateFinder.Search currentDuplicateSearch;
+    private LoudnessAnalyzer.Analysis currentLoudnessAnalysis;
+    private TagImporter.Import currentImport;
+
+    // фоновое чтение тегов для текущего выбранного файла (или всех выделенных)
+    private CompletableFuture<?> pendingLoad;
+
+    // поля, которые пользователь изменил после загрузки формы: при сохранении нескольких
+    // файлов применяются только они. программное заполнение формы их не отмечает
+    private final Set<JTextField> dirtyFields = new HashSet<>();
+    private boolean coverDirty;
+    private boolean fillingForm;
 
     public MP3EditorPanel() {
         // задаем основной layout - левая и правая панели
@@ -74,6 +171,168 @@ public class MP3EditorPanel extends JPanel {
         // размещаем панели: слева список файлов, справа форма редактирования
         add(leftPanel, BorderLayout.WEST);
         add(rightPanel, BorderLayout.CENTER);
+
+        // восстанавливаем библиотеку прошлого запуска
+        tagService.setSearchIndex(searchIndex);
+        startMetrics();
+        startLibraryWatcher();
+        openTagIndex();
+        openEditHistory();
+    }
+
+    // -Dmp3editor.metrics=N включает метрики чтения и записи: jmx и сводка в лог каждые N секунд
+    // (0 - только jmx). без свойства метрики выключены и почти ничего не стоят
+    private void startMetrics() {
+        Long period = Long.getLong(METRICS_PROPERTY);
+        if (period == null) {
+            return;
+        }
+        TagMetrics metrics = tagService.getMetrics();
+        metrics.setEnabled(true);
+        try {
+            metrics.registerMBean("gui");
+        } catch (JMException e) {
+            Logger.getLogger(MP3EditorPanel.class.getName()).log(Level.WARNING, "Cannot register metrics MBean", e);
+        }
+        if (period > 0) {
+            metrics.startLogging(period);
+        }
+    }
+
+    // запускает наблюдение за файлами библиотеки; без него список просто не замечает чужих изменений
+    private void startLibraryWatcher() {
+        try {
+            libraryWatcher = LibraryWatcher.start(tagService, (changed, deleted) ->
+                    SwingUtilities.invokeLater(() -> onLibraryChanged(changed, deleted)));
+        } catch (IOException e) {
+            libraryWatcher = null;
+        }
+    }
+
+    // добавляет файлы под наблюдение (вызывается из любого потока)
+    private void watchFiles(List<File> files) {
+        if (libraryWatcher != null) {
+            libraryWatcher.addFiles(files);
+        }
+    }
+
+    // файлы библиотеки изменены или удалены другой программой. кэш и индексы уже обновлены
+    // наблюдателем; здесь обновляются таблица и форма
+    private void onLibraryChanged(List<File> changed, List<File> deleted) {
+        List<File> selectedFiles = getSelectedFiles();
+        if (!deleted.isEmpty()) {
+            // удаленные файлы уходят из таблицы пачкой: одно событие на диапазон строк
+            fileTableModel.removeFiles(deleted);
+            if (getSelectedFiles().isEmpty() && !selectedFiles.isEmpty()) {
+                clearForm();
+                return;
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        fileTableModel.invalidate(changed);
+
+        // выбранный файл изменен: форма перечитывается, только если в ней нет несохраненных правок
+        if (!dirtyFields.isEmpty() || coverDirty || Collections.disjoint(selectedFiles, new HashSet<>(changed))) {
+            return;
+        }
+        List<File> current = getSelectedFiles();
+        if (current.size() > 1) {
+            loadCommonMetadataToForm(current);
+        } else if (current.size() == 1) {
+            loadMetadataToForm(current.get(0));
+        }
+    }
+
+    // открывает историю правок; без нее сохранение работает как раньше, только без отмены
+    private void openEditHistory() {
+        try {
+            editHistory = EditHistory.open(EditHistory.defaultLocation());
+        } catch (IOException e) {
+            editHistory = null;
+        }
+        updateHistoryButtons();
+    }
+
+    // открывает индекс библиотеки и сразу показывает сохраненный список файлов;
+    // сверка с диском идет в фоне, перечитываются только измененные файлы
+    private void openTagIndex() {
+        try {
+            tagIndex = TagIndex.open(TagIndex.defaultLocation());
+        } catch (IOException e) {
+            // без индекса приложение работает как раньше, просто без восстановления списка
+            tagIndex = null;
+            return;
+        }
+        tagService.setTagIndex(tagIndex);
+        List<File> files = tagIndex.files();
+        searchIndex.addFiles(files);
+        fileTableModel.addFiles(files);
+        // наблюдение включается до сверки, чтобы не пропустить изменения, сделанные во время нее
+        watchFiles(files);
+
+        tagService.refreshIndexAsync().thenAccept(missing -> SwingUtilities.invokeLater(() -> {
+            // файлы, удаленные с диска с прошлого запуска, убираем из списка
+            fileTableModel.removeFiles(missing);
+            if (libraryWatcher != null) {
+                libraryWatcher.removeFiles(missing);
+            }
+        }));
+    }
+
+    // закрывает индекс библиотеки; вызывается при закрытии окна
+    public void shutdown() {
+        searchTimer.stop();
+        filterRefreshTimer.stop();
+        // потоки записи - daemon, и jvm завершилась бы посреди записи файла: отменяем еще
+        // не начатые записи и ждем начатые, пока история правок и индексы еще открыты
+        stopWrites();
+        bpmDetector.shutdown();
+        duplicateFinder.shutdown();
+        loudnessAnalyzer.shutdown();
+        tagImporter.shutdown();
+        // останавливает пул tag-io и снимает регистрацию метрик
+        tagService.shutdown();
+        if (libraryWatcher != null) {
+            try {
+                libraryWatcher.close();
+            } catch (IOException e) {
+                // потоки наблюдения - daemon и не мешают завершению
+            }
+        }
+        if (editHistory != null) {
+            try {
+                editHistory.close();
+            } catch (IOException e) {
+                // полные записи истории уже на диске, оборванная отбросится при загрузке
+            }
+        }
+        if (tagIndex != null) {
+            try {
+                tagIndex.close();
+            } catch (IOException e) {
+                // индекс будет восстановлен из журнала при следующем запуске
+            }
+        }
+    }
+
+    private void stopWrites() {
+        if (currentImport != null) {
+            currentImport.cancel();
+        }
+        if (currentBatch != null) {
+            currentBatch.cancel();
+        }
+        batchWriter.shutdown();
+        try {
+            if (!batchWriter.awaitTermination(SHUTDOWN_WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.getLogger(MP3EditorPanel.class.getName()).warning(
+                        "Tag writes did not finish in " + SHUTDOWN_WRITE_TIMEOUT_SECONDS + " s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     // создает левую панель со списком mp3 файлов и кнопками управления
@@ -82,50 +341,166 @@ public class MP3EditorPanel extends JPanel {
         // рамка с заголовком "mp3 files"
         panel.setBorder(BorderFactory.createTitledBorder("MP3 files"));
 
-        // создаем модель данных для списка файлов
-        fileListModel = new FileListModel();
-        // создаем сам список файлов
-        fileList = new JList<>(fileListModel);
-        // разрешаем выбор только одного файла за раз
-        fileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-
-        // обработчик выбора файла в списке
-        fileList.addListSelectionListener(e -> {
+        // модель таблицы читает теги только для видимых строк
+        fileTableModel = new FileTableModel(tagService);
+        fileTable = new JTable(fileTableModel);
+        // можно выделить несколько файлов, например для удаления из списка
+        fileTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        fileTable.setFillsViewportHeight(true);
+        fileTable.getColumnModel().getColumn(FileTableModel.YEAR_COLUMN).setPreferredWidth(45);
+        fileTable.getColumnModel().getColumn(FileTableModel.BPM_COLUMN).setPreferredWidth(40);
+        fileTable.getColumnModel().getColumn(FileTableModel.LENGTH_COLUMN).setPreferredWidth(50);
+        fileTable.getColumnModel().getColumn(FileTableModel.BITRATE_COLUMN).setPreferredWidth(60);
+
+        // обработчик выбора файла в таблице
+        fileTable.getSelectionModel().addListSelectionListener(e -> {
             // игнорируем промежуточные события при удержании мыши
-            if (!e.getValueIsAdjusting()) {
-                File selectedFile = fileList.getSelectedValue();
-                if (selectedFile != null) {
+            if (!e.getValueIsAdjusting() && !restoringSelection) {
+                List<File> selectedFiles = getSelectedFiles();
+                if (selectedFiles.size() > 1) {
+                    // несколько файлов: в форме общие значения, сохраняются только измененные поля
+                    loadCommonMetadataToForm(selectedFiles);
+                } else if (selectedFiles.size() == 1) {
                     // загружаем теги выбранного файла в форму редактирования
-                    loadMetadataToForm(selectedFile);
+                    loadMetadataToForm(selectedFiles.get(0));
                 }
             }
         });
 
-        // обертка со скролбаром для списка файлов
-        JScrollPane scrollPane = new JScrollPane(fileList);
-        // фиксированная ширина панели со списком
-        scrollPane.setPreferredSize(new Dimension(300, 0));
+        // обертка со скролбаром для таблицы файлов
+        JScrollPane scrollPane = new JScrollPane(fileTable);
+        // ширина панели с таблицей; строки у таблицы одной высоты, поэтому рисуются только видимые
+        scrollPane.setPreferredSize(new Dimension(520, 0));
+        // при прокрутке и изменении размера сообщаем модели видимые строки
+        scrollPane.getViewport().addChangeListener(e -> updateVisibleRows());
 
         // кнопка добавления файлов
         JButton addFilesButton = new JButton("Add files");
         addFilesButton.addActionListener(e -> openFileChooserAndAddFiles());
 
+        // кнопка рекурсивного добавления каталогов
+        JButton addFolderButton = new JButton("Add folder");
+        addFolderButton.addActionListener(e -> openFolderChooserAndScan());
+
         // кнопка удаления выбранного файла из списка
         JButton removeFileButton = new JButton("Remove selected");
-        removeFileButton.addActionListener(e -> removeSelectedFile());
+        removeFileButton.addActionListener(e -> removeSelectedFiles());
+
+        // кнопка поиска одинаковых записей среди всех файлов списка
+        JButton findDuplicatesButton = new JButton("Find duplicates");
+        findDuplicatesButton.addActionListener(e -> findDuplicates());
+
+        // кнопка расчета replaygain для выделенных файлов (или всех, если ничего не выделено)
+        JButton replayGainButton = new JButton("ReplayGain");
+        replayGainButton.addActionListener(e -> analyzeLoudness());
+
+        // кнопка импорта тегов из таблицы
+        JButton importButton = new JButton("Import tags");
+        importButton.addActionListener(e -> importTagSheet());
 
         // панель для размещения кнопок
         JPanel buttonsPanel = new JPanel();
         buttonsPanel.add(addFilesButton);
+        buttonsPanel.add(addFolderButton);
         buttonsPanel.add(removeFileButton);
+        buttonsPanel.add(findDuplicatesButton);
+        buttonsPanel.add(replayGainButton);
+        buttonsPanel.add(importButton);
+
+        // строка поиска над таблицей
+        searchField = new JTextField();
+        searchField.setToolTipText("<html>Words match title, artist, album, genre, year and file name<br>"
+                + "\"word\" - whole word only<br>year:1990-1999, bpm:120-130 - ranges</html>");
+        searchTimer = new Timer(150, e -> applySearchFilter());
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
 
-        // размещаем компоненты: список по центру, кнопки снизу
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
+        filterRefreshTimer = new Timer(1000, e -> {
+            if (fileTableModel.isFiltered() && searchIndex.getVersion() != filterVersion) {
+                applySearchFilter();
+            }
+        });
+        filterRefreshTimer.start();
+
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+
+        // размещаем компоненты: поиск сверху, список по центру, кнопки снизу
+        panel.add(searchPanel, BorderLayout.NORTH);
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.add(buttonsPanel, BorderLayout.SOUTH);
 
         return panel;
     }
 
+    // фильтрует таблицу по строке поиска, сохраняя выделение файлов, которые остались видны
+    private void applySearchFilter() {
+        List<File> selected = getSelectedFiles();
+        filterVersion = searchIndex.getVersion();
+        Set<File> matches = searchIndex.search(searchField.getText());
+        fileTableModel.setFilter(matches);
+
+        restoringSelection = true;
+        try {
+            for (File file : selected) {
+                int row = fileTableModel.indexOf(file);
+                if (row >= 0) {
+                    fileTable.addRowSelectionInterval(row, row);
+                }
+            }
+        } finally {
+            restoringSelection = false;
+        }
+        updateVisibleRows();
+    }
+
+    // передает модели диапазон строк, которые сейчас видны в таблице
+    private void updateVisibleRows() {
+        Rectangle visible = fileTable.getVisibleRect();
+        int firstRow = fileTable.rowAtPoint(visible.getLocation());
+        if (firstRow < 0) {
+            fileTableModel.setVisibleRows(0, -1);
+            return;
+        }
+        int lastRow = fileTable.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+        if (lastRow < 0) {
+            lastRow = fileTable.getRowCount() - 1;
+        }
+        fileTableModel.setVisibleRows(fileTable.convertRowIndexToModel(firstRow),
+                fileTable.convertRowIndexToModel(lastRow));
+    }
+
+    // файл первой выделенной строки или null
+    private File getSelectedFile() {
+        int row = fileTable.getSelectedRow();
+        return row >= 0 ? fileTableModel.getFile(fileTable.convertRowIndexToModel(row)) : null;
+    }
+
+    // файлы всех выделенных строк
+    private List<File> getSelectedFiles() {
+        int[] rows = fileTable.getSelectedRows();
+        List<File> files = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            files.add(fileTableModel.getFile(fileTable.convertRowIndexToModel(row)));
+        }
+        return files;
+    }
+
     // создает правую панель с формой редактирования тегов
     private JPanel createTagEditorPanel() {
         JPanel panel = new JPanel(new GridBagLayout());
@@ -145,6 +520,9 @@ public class MP3EditorPanel extends JPanel {
         genreField = new JTextField(25);
         yearField = new JTextField(25);
         bpmField = new JTextField(25);
+        for (JTextField field : Arrays.asList(titleField, artistField, albumField, genreField, yearField, bpmField)) {
+            trackChanges(field);
+        }
 
         int row = 0;
 
@@ -156,6 +534,14 @@ public class MP3EditorPanel extends JPanel {
         addLabelAndField(panel, gbc, row++, "Year:", yearField);
         addLabelAndField(panel, gbc, row++, "BPM:", bpmField);
 
+        // кнопка определения темпа по звуку - под полем bpm
+        detectBpmButton = new JButton("Detect BPM");
+        detectBpmButton.addActionListener(e -> detectBpmForSelectedFile());
+        gbc.gridx = 1;
+        gbc.gridy = row++;
+        gbc.gridwidth = 1;
+        panel.add(detectBpmButton, gbc);
+
         // статусная надпись для обложки
         coverLabel = new JLabel("No cover selected");
         // кнопка выбора изображения обложки
@@ -187,9 +573,45 @@ public class MP3EditorPanel extends JPanel {
         gbc.gridx = 0;
         gbc.gridy = ++row;
         gbc.gridwidth = 2;
-        gbc.weighty = 1.0;
         panel.add(saveButton, gbc);
 
+        // отмена и повтор последних правок и список всей истории
+        undoButton = new JButton("Undo");
+        undoButton.addActionListener(e -> undoLastChange());
+        redoButton = new JButton("Redo");
+        redoButton.addActionListener(e -> redoLastChange());
+        historyButton = new JButton("History");
+        historyButton.addActionListener(e -> showHistory());
+
+        JPanel historyPanel = new JPanel(new GridLayout(1, 3, 5, 0));
+        historyPanel.add(undoButton);
+        historyPanel.add(redoButton);
+        historyPanel.add(historyButton);
+
+        gbc.gridx = 0;
+        gbc.gridy = ++row;
+        gbc.gridwidth = 2;
+        panel.add(historyPanel, gbc);
+
+        // полоса прогресса записи и кнопка отмены
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> cancelCurrentBatch());
+
+        JPanel progressPanel = new JPanel(new BorderLayout(5, 0));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+
+        // строка прогресса забирает оставшееся место по вертикали
+        gbc.gridx = 0;
+        gbc.gridy = ++row;
+        gbc.gridwidth = 2;
+        gbc.weighty = 1.0;
+        panel.add(progressPanel, gbc);
+
         return panel;
     }
 
@@ -211,9 +633,9 @@ public class MP3EditorPanel extends JPanel {
                  InstantiationException |
                  IllegalAccessException |
                  UnsupportedLookAndFeelException e) {
-//            // логируем ошибку смены стиля, но не прерываем работу
-//            Logger.getLogger(MP3EditorPanel.class.getName())
-//                    .log(Level.WARNING, "Cannot set native look and feel", e);
+            // логируем ошибку смены стиля, но не прерываем работу
+            Logger.getLogger(MP3EditorPanel.class.getName())
+                    .log(Level.WARNING, "Cannot set native look and feel", e);
         }
 
         try {
@@ -240,11 +662,12 @@ public class MP3EditorPanel extends JPanel {
         if (result == JFileChooser.APPROVE_OPTION) {
             File imageFile = fileChooser.getSelectedFile();
             try {
-                // читаем весь файл изображения в массив байтов
-                selectedCoverData = java.nio.file.Files.readAllBytes(imageFile.toPath());
+                // изображение не читаем целиком - оно будет скопировано потоком при сохранении
+                selectedCover = CoverArt.fromImageFile(imageFile);
+                coverDirty = true;
                 // обновляем статус с именем файла и размером
                 coverLabel.setText("Cover selected: " + imageFile.getName() +
-                        " (" + selectedCoverData.length + " bytes)");
+                        " (" + selectedCover.getLength() + " bytes)");
                 // подсказка при наведении мыши
                 coverLabel.setToolTipText("Click to preview");
             } catch (Exception ex) {
@@ -257,6 +680,32 @@ public class MP3EditorPanel extends JPanel {
         }
     }
 
+    // отмечает поле измененным, когда его правит пользователь
+    private void trackChanges(JTextField field) {
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                changed();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                changed();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                changed();
+            }
+
+            private void changed() {
+                if (!fillingForm) {
+                    dirtyFields.add(field);
+                }
+            }
+        });
+    }
+
     // размещает label и текстовое поле в одной строке сетки
     private void addLabelAndField(JPanel panel, GridBagConstraints gbc, int row, String labelText, JTextField field) {
         // первый столбец - подпись
@@ -283,58 +732,529 @@ public class MP3EditorPanel extends JPanel {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             // добавляем все выбранные файлы в список
-            File[] files = fileChooser.getSelectedFiles();
-            for (File file : files) {
-                fileListModel.addFile(file);
+            List<File> files = Arrays.asList(fileChooser.getSelectedFiles());
+            searchIndex.addFiles(files);
+            fileTableModel.addFiles(files);
+            watchFiles(files);
+            if (tagIndex != null) {
+                try {
+                    tagIndex.addFiles(files);
+                } catch (IOException e) {
+                    // индекс - только ускорение следующего запуска
+                }
+            }
+            // теги для поиска дочитываются в фоне
+            tagService.indexMetadataAsync(files);
+        }
+    }
+
+    // открывает диалог выбора каталогов и рекурсивно добавляет все найденные mp3 файлы
+    private void openFolderChooserAndScan() {
+        if (currentScan != null) {
+            return;
+        }
+        JFileChooser fileChooser = createNativeWindowsFileChooser(JFileChooser.OPEN_DIALOG);
+        fileChooser.setDialogTitle("Add folder");
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fileChooser.setMultiSelectionEnabled(true);
+
+        int result = fileChooser.showOpenDialog(this);
+        if (result != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        progressBar.setIndeterminate(true);
+        progressBar.setString("Scanning...");
+        cancelButton.setEnabled(true);
+
+        // пачки приходят из потоков обхода: индекс пополняем там же, а список - в потоке swing
+        FolderScanner.Scan scan = folderScanner.scan(Arrays.asList(fileChooser.getSelectedFiles()), chunk -> {
+            searchIndex.addFiles(chunk);
+            watchFiles(chunk);
+            if (tagIndex != null) {
+                try {
+                    tagIndex.addFiles(chunk);
+                } catch (IOException e) {
+                    // индекс - только ускорение следующего запуска
+                }
+            }
+            tagService.indexMetadataAsync(chunk);
+            SwingUtilities.invokeLater(() -> {
+                fileTableModel.addFiles(chunk);
+                if (currentScan != null) {
+                    progressBar.setString("Scanning... " + currentScan.getFound() + " files found");
+                }
+            });
+        });
+        currentScan = scan;
+
+        scan.completion().whenComplete((found, error) -> SwingUtilities.invokeLater(() -> {
+            currentScan = null;
+            progressBar.setIndeterminate(false);
+            progressBar.setValue(0);
+            progressBar.setString((scan.isCancelled() ? "Scan cancelled: " : "Scan finished: ")
+                    + scan.getFound() + " files found");
+            cancelButton.setEnabled(isBackgroundTaskRunning());
+            if (tagIndex != null) {
+                try {
+                    tagIndex.flush();
+                } catch (IOException e) {
+                    // индекс - только ускорение следующего запуска
+                }
             }
+        }));
+    }
+
+    // ищет одинаковые записи среди всех файлов списка. отпечатки считаются в фоне по файлу на ядро,
+    // повторный поиск декодирует только новые и измененные файлы
+    private void findDuplicates() {
+        if (currentDuplicateSearch != null || fileTableModel.getFileCount() < 2) {
+            return;
         }
+        List<File> files = fileTableModel.getFiles();
+        progressBar.setMaximum(files.size());
+        progressBar.setValue(0);
+        progressBar.setString("Fingerprinting 0 / " + files.size());
+        cancelButton.setEnabled(true);
+
+        DuplicateFinder.Search search = duplicateFinder.find(files, FingerprintStore.defaultLocation(),
+                processed -> SwingUtilities.invokeLater(() -> {
+                    if (currentDuplicateSearch != null) {
+                        progressBar.setValue(processed);
+                        progressBar.setString("Fingerprinting " + processed + " / " + files.size());
+                    }
+                }));
+        currentDuplicateSearch = search;
+        search.completion().whenComplete((groups, error) -> SwingUtilities.invokeLater(() ->
+                onDuplicatesFound(search, groups, error)));
     }
 
-    // удаляет выбранный файл из списка
-    private void removeSelectedFile() {
-        File selected = fileList.getSelectedValue();
-        if (selected != null) {
-            fileListModel.removeFile(selected);
+    // показывает найденные группы и предлагает выделить лишние копии (все файлы группы, кроме первого)
+    private void onDuplicatesFound(DuplicateFinder.Search search, List<List<File>> groups, Throwable error) {
+        currentDuplicateSearch = null;
+        progressBar.setValue(0);
+        progressBar.setString((search.isCancelled() ? "Duplicate search cancelled: " : "Duplicate search finished: ")
+                + search.getProcessed() + " files checked");
+        cancelButton.setEnabled(isBackgroundTaskRunning());
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            JOptionPane.showMessageDialog(this,
+                    "Error searching for duplicates: " + cause.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (groups.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "No duplicates found among " + search.getProcessed() + " files.",
+                    "Duplicates",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        int copies = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            if (i > 0) {
+                text.append("\n");
+            }
+            for (File file : groups.get(i)) {
+                text.append(file.getAbsolutePath()).append("\n");
+            }
+            copies += groups.get(i).size() - 1;
+        }
+        JTextArea area = new JTextArea(text.toString(), 15, 60);
+        area.setEditable(false);
+        Object[] options = {"Select copies", "Close"};
+        int choice = JOptionPane.showOptionDialog(this,
+                new Object[]{groups.size() + " recordings have " + copies + " extra copies:", new JScrollPane(area)},
+                "Duplicates",
+                JOptionPane.DEFAULT_OPTION,
+                JOptionPane.INFORMATION_MESSAGE,
+                null,
+                options,
+                options[0]);
+        if (choice != 0) {
+            return;
+        }
+        // выделяем копии в таблице, чтобы их можно было сразу убрать из списка
+        fileTable.clearSelection();
+        for (List<File> group : groups) {
+            for (File file : group.subList(1, group.size())) {
+                int row = fileTableModel.indexOf(file);
+                if (row >= 0) {
+                    fileTable.addRowSelectionInterval(row, row);
+                }
+            }
+        }
+    }
+
+    // считает громкость выделенных файлов в фоне и записывает значения replaygain пакетом
+    // (без истории правок - такой пакет не отменяется кнопкой undo).
+    // альбомы определяются полем album; сохранение тегов на время анализа выключено,
+    // чтобы запись результатов не пересеклась с другим пакетом
+    private void analyzeLoudness() {
+        if (isWriting() || fileTableModel.getFileCount() == 0) {
+            return;
+        }
+        List<File> selected = getSelectedFiles();
+        List<File> files = selected.isEmpty() ? fileTableModel.getFiles() : selected;
+        saveButton.setEnabled(false);
+        progressBar.setMaximum(files.size());
+        progressBar.setValue(0);
+        progressBar.setString("Analyzing loudness 0 / " + files.size());
+        cancelButton.setEnabled(true);
+
+        LoudnessAnalyzer.Analysis analysis = loudnessAnalyzer.analyze(files,
+                processed -> SwingUtilities.invokeLater(() -> {
+                    if (currentLoudnessAnalysis != null) {
+                        progressBar.setValue(processed);
+                        progressBar.setString("Analyzing loudness " + processed + " / " + files.size());
+                    }
+                }));
+        currentLoudnessAnalysis = analysis;
+        updateHistoryButtons();
+        // задачи записи собираются в фоне: для каждой нужны текущие теги файла
+        analysis.completion()
+                .thenApply(this::replayGainJobs)
+                .whenComplete((jobs, error) -> SwingUtilities.invokeLater(() ->
+                        onLoudnessAnalyzed(analysis, jobs, error)));
+    }
+
+    // задачи записи replaygain. остальные поля не задаются и остаются как есть, а обложку
+    // writer всегда пересобирает, поэтому собственная обложка файла передается ссылкой
+    private List<TagWriteJob> replayGainJobs(Map<File, ReplayGain> gains) {
+        List<TagWriteJob> jobs = new ArrayList<>(gains.size());
+        for (Map.Entry<File, ReplayGain> gain : gains.entrySet()) {
+            File file = gain.getKey();
+            MP3Metadata metadata = new MP3Metadata();
+            try {
+                metadata.setCoverArt(tagService.readMetadataCached(file).getCoverArt());
+            } catch (Exception e) {
+                // теги не читаются - запись этого файла все равно не удалась бы
+                continue;
+            }
+            metadata.setReplayGain(gain.getValue());
+            jobs.add(new TagWriteJob(file, file, metadata));
+        }
+        return jobs;
+    }
+
+    // запускает запись посчитанных значений или сообщает, почему записывать нечего
+    private void onLoudnessAnalyzed(LoudnessAnalyzer.Analysis analysis, List<TagWriteJob> jobs, Throwable error) {
+        currentLoudnessAnalysis = null;
+        updateHistoryButtons();
+        progressBar.setValue(0);
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) {
+            saveButton.setEnabled(true);
+            cancelButton.setEnabled(isBackgroundTaskRunning());
+            progressBar.setString("Loudness analysis cancelled: nothing written");
+            return;
+        }
+        if (cause != null) {
+            saveButton.setEnabled(true);
+            cancelButton.setEnabled(isBackgroundTaskRunning());
+            progressBar.setString("");
+            JOptionPane.showMessageDialog(this,
+                    "Error analyzing loudness: " + cause.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (jobs.isEmpty()) {
+            saveButton.setEnabled(true);
+            cancelButton.setEnabled(isBackgroundTaskRunning());
+            progressBar.setString("");
+            JOptionPane.showMessageDialog(this,
+                    "No audio to measure in " + analysis.getTotal() + " files.",
+                    "ReplayGain",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        // в историю пакет не пишется: правка хранит только текстовые поля, bpm и обложку, так что
+        // пакет из одних replaygain фреймов попал бы в нее пустым, а undo отменило бы предыдущий пакет
+        startBatch(jobs, null);
+    }
+
+    // применяет к файлам таблицу тегов csv или json lines. строки с путем правят этот файл,
+    // строки без пути ищутся среди файлов списка по тегам. импорт записывается в историю
+    // одним пакетом и отменяется кнопкой undo
+    private void importTagSheet() {
+        if (isWriting()) {
+            return;
+        }
+        JFileChooser fileChooser = createNativeWindowsFileChooser(JFileChooser.OPEN_DIALOG);
+        fileChooser.setDialogTitle("Import tags from sheet");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("CSV or JSON lines", "csv", "tsv", "txt", "jsonl", "ndjson", "json"));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File sheet = fileChooser.getSelectedFile();
+        int answer = JOptionPane.showConfirmDialog(this,
+                "Apply tags from " + sheet.getName() + " to the files it lists?\n"
+                        + "Rows are matched by the path column, or by artist and title among the files in the list.\n"
+                        + "Empty cells keep the current value. The files are modified in place.",
+                "Import tags",
+                JOptionPane.OK_CANCEL_OPTION);
+        if (answer != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        saveButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setString("Importing");
+        // записанные файлы, которые таблица должна перечитать; ошибки показываются в конце
+        List<File> written = Collections.synchronizedList(new ArrayList<>());
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        tagImporter.setLibrary(fileTableModel.getFiles());
+        TagImporter.Import job = tagImporter.start(sheet, recording("Import " + sheet.getName()),
+                (line, file, status, error) -> {
+                    if (status == TagImporter.Status.OK) {
+                        written.add(file);
+                    } else if (error != null) {
+                        failures.add("line " + line + ": " + error);
+                    }
+                });
+        currentImport = job;
+        updateHistoryButtons();
+        // прогресс обновляем по таймеру, а не на каждую строку таблицы
+        Timer progressTimer = new Timer(250, e -> progressBar.setString("Importing: " + job.getProcessed() + " rows"));
+        progressTimer.start();
+        job.completion().whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            progressTimer.stop();
+            onImportFinished(job, written, failures, error);
+        }));
+    }
+
+    // показывает итог импорта и перечитывает записанные файлы
+    private void onImportFinished(TagImporter.Import job, List<File> written, List<String> failures, Throwable error) {
+        currentImport = null;
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(0);
+        progressBar.setString("");
+        saveButton.setEnabled(true);
+        cancelButton.setEnabled(isBackgroundTaskRunning());
+        updateHistoryButtons();
+
+        fileTableModel.invalidate(written);
+        List<File> selectedFiles = getSelectedFiles();
+        if (selectedFiles.size() > 1) {
+            loadCommonMetadataToForm(selectedFiles);
+        } else if (selectedFiles.size() == 1) {
+            loadMetadataToForm(selectedFiles.get(0));
+        }
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause != null && !(cause instanceof CancellationException)) {
+            JOptionPane.showMessageDialog(this,
+                    "Error importing tags: " + cause.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        StringBuilder message = new StringBuilder(cause != null ? "Import cancelled.\n" : "");
+        message.append(job.getProcessed()).append(" rows: ").append(job.getWritten()).append(" files updated, ")
+                .append(job.getUnchanged()).append(" already up to date, ")
+                .append(job.getProblems()).append(" not applied.");
+        // показываем не больше 10 ошибок, чтобы диалог поместился на экран
+        synchronized (failures) {
+            for (String failure : failures.subList(0, Math.min(10, failures.size()))) {
+                message.append("\n").append(failure);
+            }
+        }
+        if (failures.size() > 10) {
+            message.append("\n... and ").append(failures.size() - 10).append(" more");
+        }
+        JOptionPane.showMessageDialog(this,
+                message.toString(),
+                "Import tags",
+                job.getProblems() > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // удаляет выбранные файлы из списка
+    private void removeSelectedFiles() {
+        List<File> selected = getSelectedFiles();
+        if (!selected.isEmpty()) {
+            fileTableModel.removeFiles(selected);
+            searchIndex.removeFiles(selected);
+            if (libraryWatcher != null) {
+                libraryWatcher.removeFiles(selected);
+            }
+            if (tagIndex != null) {
+                try {
+                    tagIndex.removeFiles(selected);
+                } catch (IOException e) {
+                    // индекс - только ускорение следующего запуска
+                }
+            }
             // очищаем форму редактирования
             clearForm();
         }
     }
 
-    // загружает текущие теги выбранного файла в форму редактирования
+    // загружает текущие теги выбранного файла в форму редактирования.
+    // чтение идет в фоне; если пользователь успел выбрать другой файл, результат отбрасывается
     private void loadMetadataToForm(File file) {
+        // предыдущее чтение больше не нужно - если оно еще не началось, оно не выполнится
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+        }
+        coverLabel.setText("Loading...");
+
+        CompletableFuture<MP3Metadata> load = tagService.readMetadataAsync(file);
+        pendingLoad = load;
+        load.whenComplete((metadata, error) -> SwingUtilities.invokeLater(() -> {
+            // устаревший результат: выбран уже другой файл
+            if (pendingLoad != load || !file.equals(getSelectedFile())) {
+                return;
+            }
+            pendingLoad = null;
+            if (error != null) {
+                if (!(error instanceof CancellationException)) {
+                    // показываем ошибку чтения тегов
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    coverLabel.setText("No cover");
+                    JOptionPane.showMessageDialog(this,
+                            "Error reading tags: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+                return;
+            }
+            showMetadata(metadata);
+        }));
+    }
+
+    // загружает в форму значения, общие для всех выделенных файлов; поля, где файлы
+    // расходятся, остаются пустыми и без правки пользователя при сохранении не трогаются
+    private void loadCommonMetadataToForm(List<File> files) {
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+        }
+        coverLabel.setText("Loading...");
+
+        CompletableFuture<List<MP3Metadata>> load = tagService.readMetadataAsync(files);
+        pendingLoad = load;
+        load.whenComplete((list, error) -> SwingUtilities.invokeLater(() -> {
+            if (pendingLoad != load) {
+                return;
+            }
+            pendingLoad = null;
+            if (error != null) {
+                coverLabel.setText("");
+                return;
+            }
+            MP3Metadata common = null;
+            for (MP3Metadata metadata : list) {
+                // нечитаемые файлы не влияют на общие значения
+                if (metadata != null) {
+                    common = common == null ? copyText(metadata) : commonValues(common, metadata);
+                }
+            }
+            showMetadata(common != null ? common : new MP3Metadata());
+            selectedCover = null;
+            coverLabel.setText(files.size() + " files selected - each keeps its own cover unless a new one is chosen");
+        }));
+    }
+
+    private static MP3Metadata copyText(MP3Metadata metadata) {
+        return new MP3Metadata(metadata.getTitle(), metadata.getArtist(), metadata.getAlbum(),
+                metadata.getGenre(), metadata.getYear(), metadata.getBpm());
+    }
+
+    // поля, которые совпадают в обоих наборах; остальные - null
+    private static MP3Metadata commonValues(MP3Metadata a, MP3Metadata b) {
+        return new MP3Metadata(common(a.getTitle(), b.getTitle()), common(a.getArtist(), b.getArtist()),
+                common(a.getAlbum(), b.getAlbum()), common(a.getGenre(), b.getGenre()),
+                common(a.getYear(), b.getYear()),
+                a.getBpm() != null && a.getBpm().equals(b.getBpm()) ? a.getBpm() : null);
+    }
+
+    private static String common(String a, String b) {
+        return a != null && a.equals(b) ? a : null;
+    }
+
+    // заполняет форму прочитанными метаданными
+    private void showMetadata(MP3Metadata metadata) {
+        // заполняем текстовые поля; это не правка пользователя
+        fillingForm = true;
         try {
-            // читаем метаданные файла через сервис
-            MP3Metadata metadata = tagService.readMetadata(file);
-            // заполняем текстовые поля
             titleField.setText(metadata.getTitle());
             artistField.setText(metadata.getArtist());
             albumField.setText(metadata.getAlbum());
             genreField.setText(metadata.getGenre());
             yearField.setText(metadata.getYear());
             bpmField.setText(metadata.getBpm() != null ? metadata.getBpm().toString() : "");
+        } finally {
+            fillingForm = false;
+        }
+        dirtyFields.clear();
+        coverDirty = false;
+
+        // обрабатываем обложку
+        CoverArt cover = metadata.getCoverArt();
+        if (cover != null && cover.getLength() > 0) {
+            selectedCover = cover;
+            coverLabel.setText("Cover: " + cover.getLength() + " bytes");
+        } else {
+            selectedCover = null;
+            coverLabel.setText("No cover");
+        }
+    }
 
-            // обрабатываем обложку
-            byte[] cover = metadata.getCoverArt();
-            if (cover != null && cover.length > 0) {
-                selectedCoverData = cover;
-                coverLabel.setText("Cover: " + cover.length + " bytes");
-            } else {
-                selectedCoverData = null;
-                coverLabel.setText("No cover");
-            }
-        } catch (Exception ex) {
-            // показываем ошибку чтения тегов
+    // определяет темп выбранного файла в фоне и подставляет его в поле bpm; сохраняется он вместе с тегами
+    private void detectBpmForSelectedFile() {
+        File selectedFile = getSelectedFile();
+        if (selectedFile == null) {
             JOptionPane.showMessageDialog(this,
-                    "Error reading tags: " + ex.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE);
+                    "Please select a file from the list.",
+                    "No file selected",
+                    JOptionPane.WARNING_MESSAGE);
+            return;
         }
+        detectBpmButton.setEnabled(false);
+        detectBpmButton.setText("Detecting...");
+
+        bpmDetector.detectAsync(selectedFile).whenComplete((bpm, error) -> SwingUtilities.invokeLater(() -> {
+            detectBpmButton.setEnabled(true);
+            detectBpmButton.setText("Detect BPM");
+            // пока шел анализ, пользователь выбрал другой файл - результат к форме не относится
+            if (!selectedFile.equals(getSelectedFile())) {
+                return;
+            }
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                JOptionPane.showMessageDialog(this,
+                        "Error analysing audio: " + cause.getMessage(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (bpm == null) {
+                JOptionPane.showMessageDialog(this,
+                        "Could not detect a steady beat in this file.",
+                        "BPM not detected",
+                        JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            bpmField.setText(bpm.toString());
+        }));
     }
 
     // сохраняет измененные теги в новый mp3 файл
     private void saveTagsForSelectedFile() {
+        List<File> selectedFiles = getSelectedFiles();
+        if (selectedFiles.size() > 1) {
+            saveChangedFieldsForSelectedFiles(selectedFiles);
+            return;
+        }
+
         // проверяем что файл выбран
-        File selectedFile = fileList.getSelectedValue();
+        File selectedFile = getSelectedFile();
         if (selectedFile == null) {
             JOptionPane.showMessageDialog(this,
                     "Please select a file from the list.",
@@ -352,56 +1272,20 @@ public class MP3EditorPanel extends JPanel {
         metadata.setYear(yearField.getText());
 
         // валидация года
-        String yearText = yearField.getText();
-        if (yearText != null && !yearText.isBlank()) {
-            String trimmedYear = yearText.trim();
-
-            // проверяем что введено ровно 4 цифры
-            if (!trimmedYear.matches("\\d{4}")) {
-                JOptionPane.showMessageDialog(this,
-                        "Year must be a 4-digit number (e.g. 2024).",
-                        "Invalid year",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
-            }
-
-            int yearValue = Integer.parseInt(trimmedYear);
-
-            // проверяем разумный диапазон дат
-            if (yearValue < 1400 || yearValue > 2099) {
-                JOptionPane.showMessageDialog(this,
-                        "Year must be between 1400 and 2099.",
-                        "Invalid year",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
-            }
-
-            // сохраняем валидный год
-            metadata.setYear(trimmedYear);
-        } else {
-            metadata.setYear(null);
+        if (!validateYear()) {
+            return;
         }
+        // сохраняем валидный год; пустое поле удаляет год, как и пустые текстовые поля
+        metadata.setYear(yearField.getText().trim());
 
         // сохраняем выбранную обложку
-        metadata.setCoverArt(selectedCoverData);
-
-        // валидация bpm
-        String bpmText = bpmField.getText();
-        if (bpmText != null && !bpmText.isBlank()) {
-            String trimmed = bpmText.trim();
-
-            // проверяем что введены только цифры
-            if (!trimmed.matches("\\d+")) {
-                JOptionPane.showMessageDialog(this,
-                        "BPM must contain digits only (0-9).",
-                        "Invalid BPM",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
-            }
+        metadata.setCoverArt(selectedCover);
 
-            // преобразуем в число
-            metadata.setBpm(Integer.parseInt(trimmed));
+        // валидация bpm; пустое поле удаляет bpm, как и пустые текстовые поля
+        if (!validateBpm()) {
+            return;
         }
+        metadata.setBpm(parseBpmField());
 
         // показываем диалог сохранения нового файла
         JFileChooser fileChooser = createNativeWindowsFileChooser(JFileChooser.SAVE_DIALOG);
@@ -418,19 +1302,354 @@ public class MP3EditorPanel extends JPanel {
 
         File outputFile = fileChooser.getSelectedFile();
 
+        // сохраняем изменения в фоне, чтобы окно не зависало на медленном диске
+        startBatch(Collections.singletonList(new TagWriteJob(selectedFile, outputFile, metadata)),
+                recording("Save " + selectedFile.getName()));
+    }
+
+    // применяет к выделенным файлам только измененные в форме поля, правя файлы на месте.
+    // сверка с тегами каждого файла идет в потоках записи: совпадающие файлы не пишутся,
+    // а в остальных заменяются только отличающиеся фреймы
+    private void saveChangedFieldsForSelectedFiles(List<File> files) {
+        TagChanges changes = new TagChanges();
+        if (dirtyFields.contains(titleField)) {
+            changes.setTitle(titleField.getText());
+        }
+        if (dirtyFields.contains(artistField)) {
+            changes.setArtist(artistField.getText());
+        }
+        if (dirtyFields.contains(albumField)) {
+            changes.setAlbum(albumField.getText());
+        }
+        if (dirtyFields.contains(genreField)) {
+            changes.setGenre(genreField.getText());
+        }
+        if (dirtyFields.contains(yearField)) {
+            if (!validateYear()) {
+                return;
+            }
+            changes.setYear(yearField.getText().trim());
+        }
+        if (dirtyFields.contains(bpmField)) {
+            if (!validateBpm()) {
+                return;
+            }
+            changes.setBpm(parseBpmField());
+        }
+        if (coverDirty) {
+            changes.setCoverArt(selectedCover);
+        }
+        if (changes.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "No fields were changed.",
+                    "Nothing to save",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        int answer = JOptionPane.showConfirmDialog(this,
+                "Apply the changed fields to " + files.size() + " files?\nThe files are modified in place.",
+                "Save tags",
+                JOptionPane.OK_CANCEL_OPTION);
+        if (answer != JOptionPane.OK_OPTION) {
+            return;
+        }
+        List<TagWriteJob> jobs = new ArrayList<>(files.size());
+        for (File file : files) {
+            jobs.add(new TagWriteJob(file, changes));
+        }
+        startBatch(jobs, recording("Save " + files.size() + " files"));
+    }
+
+    // проверяет поле года: пусто или 4 цифры в разумном диапазоне
+    private boolean validateYear() {
+        String yearText = yearField.getText();
+        if (yearText == null || yearText.isBlank()) {
+            return true;
+        }
+        String trimmedYear = yearText.trim();
+
+        // проверяем что введено ровно 4 цифры
+        if (!trimmedYear.matches("\\d{4}")) {
+            JOptionPane.showMessageDialog(this,
+                    "Year must be a 4-digit number (e.g. 2024).",
+                    "Invalid year",
+                    JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+
+        int yearValue = Integer.parseInt(trimmedYear);
+
+        // проверяем разумный диапазон дат
+        if (yearValue < 1400 || yearValue > 2099) {
+            JOptionPane.showMessageDialog(this,
+                    "Year must be between 1400 and 2099.",
+                    "Invalid year",
+                    JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        return true;
+    }
+
+    // проверяет поле bpm: пусто или только цифры
+    private boolean validateBpm() {
+        String bpmText = bpmField.getText();
+        if (bpmText != null && !bpmText.isBlank() && !bpmText.trim().matches("\\d+")) {
+            JOptionPane.showMessageDialog(this,
+                    "BPM must contain digits only (0-9).",
+                    "Invalid BPM",
+                    JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        return true;
+    }
+
+    // значение проверенного поля bpm; пустое поле - 0 (удалить)
+    private int parseBpmField() {
+        String bpmText = bpmField.getText();
+        return bpmText != null && !bpmText.isBlank() ? Integer.parseInt(bpmText.trim()) : 0;
+    }
+
+    // новый пакет в истории правок или null, если история недоступна
+    private EditHistory.Recording recording(String description) {
+        return editHistory != null ? editHistory.record(description) : null;
+    }
+
+    // отменяет последний пакет правок: файлам возвращаются старые значения измененных полей
+    private void undoLastChange() {
+        if (editHistory == null || isWriting()) {
+            return;
+        }
         try {
-            // сохраняем изменения через сервис
-            tagService.writeMetadata(selectedFile, outputFile, metadata);
-            // сообщаем об успешном сохранении с полным путем
+            EditHistory.Recording undo = editHistory.undo();
+            if (undo != null) {
+                startBatch(undo.getJobs(), undo);
+            }
+        } catch (IOException e) {
+            showHistoryError(e);
+        }
+    }
+
+    // повторяет последний отмененный пакет
+    private void redoLastChange() {
+        if (editHistory == null || isWriting()) {
+            return;
+        }
+        try {
+            EditHistory.Recording redo = editHistory.redo();
+            if (redo != null) {
+                startBatch(redo.getJobs(), redo);
+            }
+        } catch (IOException e) {
+            showHistoryError(e);
+        }
+    }
+
+    // показывает историю правок, новые сверху. выбранный пакет можно откатить целиком:
+    // откат записывается новым пакетом и сам отменяется кнопкой undo
+    private void showHistory() {
+        if (editHistory == null) {
+            return;
+        }
+        List<EditHistory.Change> changes = editHistory.getChanges();
+        Collections.reverse(changes);
+        if (changes.isEmpty()) {
             JOptionPane.showMessageDialog(this,
-                    "Tags saved successfully to:\n" + outputFile.getAbsolutePath(),
-                    "Success",
+                    "No edits recorded yet.",
+                    "History",
                     JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception ex) {
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        String[] items = new String[changes.size()];
+        for (int i = 0; i < items.length; i++) {
+            EditHistory.Change change = changes.get(i);
+            items[i] = format.format(new Date(change.getTime())) + "  " + change.getDescription()
+                    + " (" + change.getFileCount() + (change.getFileCount() == 1 ? " file)" : " files)")
+                    + (change.isUndone() ? " - undone" : "");
+        }
+        JList<String> list = new JList<>(items);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setSelectedIndex(0);
+        JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setPreferredSize(new Dimension(480, 300));
+
+        Object[] options = {"Revert selected", "Close"};
+        int answer = JOptionPane.showOptionDialog(this, scrollPane, "History",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+        int index = list.getSelectedIndex();
+        if (answer != 0 || index < 0 || isWriting()) {
+            return;
+        }
+        EditHistory.Change change = changes.get(index);
+        if (change.isUndone()) {
             JOptionPane.showMessageDialog(this,
-                    "Error saving tags: " + ex.getMessage(),
+                    "This change is already undone.",
+                    "History",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        try {
+            EditHistory.Recording revert = editHistory.revert(change);
+            startBatch(revert.getJobs(), revert);
+        } catch (IOException e) {
+            showHistoryError(e);
+        }
+    }
+
+    private void showHistoryError(IOException e) {
+        JOptionPane.showMessageDialog(this,
+                "Error reading edit history: " + e.getMessage(),
+                "Error",
+                JOptionPane.ERROR_MESSAGE);
+    }
+
+    // идет запись или анализ, результат которого будет записан: второй пакет не запускаем
+    private boolean isWriting() {
+        return currentBatch != null || currentLoudnessAnalysis != null || currentImport != null;
+    }
+
+    // кнопки отмены и повтора активны, когда есть что отменять и ничего не пишется
+    private void updateHistoryButtons() {
+        EditHistory.Change undo = editHistory != null ? editHistory.getUndoTarget() : null;
+        EditHistory.Change redo = editHistory != null ? editHistory.getRedoTarget() : null;
+        undoButton.setEnabled(undo != null && !isWriting());
+        undoButton.setToolTipText(undo != null ? "Undo: " + undo.getDescription() : null);
+        redoButton.setEnabled(redo != null && !isWriting());
+        redoButton.setToolTipText(redo != null ? "Redo: " + redo.getDescription() : null);
+        historyButton.setEnabled(editHistory != null);
+    }
+
+    // запускает пакетную запись и отображает ее прогресс в панели.
+    // recording - сторона истории правок у пакета (null - без истории)
+    private void startBatch(List<TagWriteJob> jobs, EditHistory.Recording recording) {
+        saveButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        updateProgress(0, jobs.size());
+
+        // ошибки копим здесь, а показываем одним сообщением в конце
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger skipped = new AtomicInteger();
+
+        BatchProgressListener listener = new BatchProgressListener() {
+            @Override
+            public void jobCompleted(TagWriteJob job, int completed, int total) {
+                SwingUtilities.invokeLater(() -> updateProgress(completed, total));
+            }
+
+            @Override
+            public void jobSkipped(TagWriteJob job, int completed, int total) {
+                skipped.incrementAndGet();
+                SwingUtilities.invokeLater(() -> updateProgress(completed, total));
+            }
+
+            @Override
+            public void jobFailed(TagWriteJob job, Exception error, int completed, int total) {
+                failures.add(job.getInputFile().getName() + ": " + error.getMessage());
+                SwingUtilities.invokeLater(() -> updateProgress(completed, total));
+            }
+
+            @Override
+            public void batchFinished(int succeeded, int failed, boolean cancelled) {
+                SwingUtilities.invokeLater(() -> onBatchFinished(jobs, succeeded, skipped.get(), cancelled, failures));
+            }
+        };
+        currentBatch = batchWriter.submit(jobs, listener, recording);
+        updateHistoryButtons();
+    }
+
+    // обновляет полосу прогресса (вызывается в потоке swing)
+    private void updateProgress(int completed, int total) {
+        progressBar.setMaximum(total);
+        progressBar.setValue(completed);
+        progressBar.setString(completed + " / " + total);
+    }
+
+    // отменяет еще не начатые задачи текущего пакета и текущий обход каталогов
+    private void cancelCurrentBatch() {
+        if (currentBatch != null) {
+            currentBatch.cancel();
+        }
+        if (currentScan != null) {
+            currentScan.cancel();
+        }
+        if (currentDuplicateSearch != null) {
+            currentDuplicateSearch.cancel();
+        }
+        if (currentLoudnessAnalysis != null) {
+            currentLoudnessAnalysis.cancel();
+        }
+        if (currentImport != null) {
+            currentImport.cancel();
+        }
+        cancelButton.setEnabled(false);
+    }
+
+    // идет ли что-то, что отменяет кнопка cancel
+    private boolean isBackgroundTaskRunning() {
+        return currentBatch != null || currentScan != null || currentDuplicateSearch != null
+                || currentLoudnessAnalysis != null || currentImport != null;
+    }
+
+    // показывает итог пакетной записи и возвращает кнопки в исходное состояние
+    private void onBatchFinished(List<TagWriteJob> jobs, int succeeded, int skipped, boolean cancelled,
+                                 List<String> failures) {
+        currentBatch = null;
+        saveButton.setEnabled(true);
+        cancelButton.setEnabled(isBackgroundTaskRunning());
+        updateHistoryButtons();
+
+        // колонки таблицы для записанных файлов перечитаются при следующем показе
+        for (TagWriteJob job : jobs) {
+            fileTableModel.invalidate(job.getOutputFile());
+        }
+
+        // если перезаписан выбранный файл, ссылка на его обложку устарела - перечитываем теги
+        List<File> selectedFiles = getSelectedFiles();
+        File selectedFile = getSelectedFile();
+        if (selectedFiles.size() > 1) {
+            loadCommonMetadataToForm(selectedFiles);
+        } else if (selectedFile != null) {
+            for (TagWriteJob job : jobs) {
+                if (selectedFile.equals(job.getOutputFile())) {
+                    loadMetadataToForm(selectedFile);
+                    break;
+                }
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            // показываем не больше 10 ошибок, чтобы диалог поместился на экран
+            StringBuilder message = new StringBuilder("Error saving tags:");
+            synchronized (failures) {
+                for (String failure : failures.subList(0, Math.min(10, failures.size()))) {
+                    message.append("\n").append(failure);
+                }
+            }
+            if (failures.size() > 10) {
+                message.append("\n... and ").append(failures.size() - 10).append(" more");
+            }
+            JOptionPane.showMessageDialog(this,
+                    message.toString(),
                     "Error",
                     JOptionPane.ERROR_MESSAGE);
+        } else if (cancelled) {
+            JOptionPane.showMessageDialog(this,
+                    "Saving cancelled: " + succeeded + " of " + jobs.size() + " files saved.",
+                    "Cancelled",
+                    JOptionPane.WARNING_MESSAGE);
+        } else if (jobs.size() == 1) {
+            // сообщаем об успешном сохранении с полным путем
+            JOptionPane.showMessageDialog(this,
+                    "Tags saved successfully to:\n" + jobs.get(0).getOutputFile().getAbsolutePath(),
+                    "Success",
+                    JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(this,
+                    "Tags saved successfully to " + succeeded + " files."
+                            + (skipped > 0 ? "\n" + skipped + " files already had these tags and were not touched." : ""),
+                    "Success",
+                    JOptionPane.INFORMATION_MESSAGE);
         }
     }
 
@@ -447,51 +1666,25 @@ public class MP3EditorPanel extends JPanel {
 
     // очищает все поля формы редактирования
     private void clearForm() {
-        titleField.setText("");
-        artistField.setText("");
-        albumField.setText("");
-        genreField.setText("");
-        yearField.setText("");
-        bpmField.setText("");
-        selectedCoverData = null;
-        coverLabel.setText("No cover selected");
-    }
-
-    // внутренняя модель данных для списка файлов JList
-    private static class FileListModel extends javax.swing.AbstractListModel<File> {
-
-        private final List<File> files = new ArrayList<>();
-
-        // возвращает количество файлов в списке
-        @Override
-        public int getSize() {
-            return files.size();
-        }
-
-        // возвращает файл по индексу
-        @Override
-        public File getElementAt(int index) {
-            return files.get(index);
-        }
-
-        // добавляет файл в конец списка
-        public void addFile(File file) {
-            if (!files.contains(file)) {
-                files.add(file);
-                int index = files.size() - 1;
-                // уведомляем JList об добавлении элемента
-                fireIntervalAdded(this, index, index);
-            }
+        // результат незавершенного чтения больше не нужен
+        if (pendingLoad != null) {
+            pendingLoad.cancel(false);
+            pendingLoad = null;
         }
-
-        // удаляет файл из списка
-        public void removeFile(File file) {
-            int index = files.indexOf(file);
-            if (index >= 0) {
-                files.remove(index);
-                // уведомляем JList об удалении элемента
-                fireIntervalRemoved(this, index, index);
-            }
+        fillingForm = true;
+        try {
+            titleField.setText("");
+            artistField.setText("");
+            albumField.setText("");
+            genreField.setText("");
+            yearField.setText("");
+            bpmField.setText("");
+        } finally {
+            fillingForm = false;
         }
+        dirtyFields.clear();
+        coverDirty = false;
+        selectedCover = null;
+        coverLabel.setText("No cover selected");
     }
 }
@@ -5,6 +5,8 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import java.awt.BorderLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 public class MainFrame extends JFrame {
 
@@ -35,6 +37,14 @@ public class MainFrame extends JFrame {
 
         // добавляем меню в верхнюю часть окна
         setJMenuBar(createMenuBar());
+
+        // перед выходом дописываем начатые файлы и сохраняем индекс библиотеки
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                editorPanel.shutdown();
+            }
+        });
     }
 
     // создает и настраивает главное меню приложения
@@ -49,7 +59,10 @@ public class MainFrame extends JFrame {
         JMenuItem exitItem = new JMenuItem("Exit");
 
         // при нажатии на "Exit" завершаем работу приложения
-        exitItem.addActionListener(e -> System.exit(0));
+        exitItem.addActionListener(e -> {
+            editorPanel.shutdown();
+            System.exit(0);
+        });
 
         // добавляем пункт "Exit" в меню "File"
         fileMenu.add(exitItem);
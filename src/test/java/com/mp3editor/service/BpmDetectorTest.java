@@ -0,0 +1,82 @@
+package com.mp3editor.service;
+
+import javazoom.jl.decoder.Obuffer;
+import javazoom.jl.decoder.SampleBuffer;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// темп синтетического щелчкового трека, поданного фреймами так, как их отдает декодер jlayer
+public class BpmDetectorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    // отсчетов на канал в одном фрейме layer III
+    private static final int FRAME_SAMPLES = 1152;
+    private static final int SECONDS = 16;
+
+    @Test
+    public void stereoClickTrackTempo() {
+        assertEquals(120, estimate(clicks(120), 2), 1.0);
+        assertEquals(96, estimate(clicks(96), 2), 1.0);
+        assertEquals(150, estimate(clicks(150), 2), 1.0);
+    }
+
+    @Test
+    public void monoAndStereoGiveSameTempo() {
+        short[] track = clicks(128);
+        assertEquals(128, estimate(track, 1), 1.0);
+        assertEquals(estimate(track, 1), estimate(track, 2), 0.5);
+    }
+
+    @Test
+    public void downmixAveragesInterleavedChannels() {
+        SampleBuffer output = new SampleBuffer(SAMPLE_RATE, 2);
+        output.append(0, (short) 100);
+        output.append(1, (short) 300);
+        output.append(0, (short) -200);
+        output.append(1, (short) 0);
+        short[] mono = new short[Obuffer.OBUFFERSIZE];
+
+        assertEquals(2, PcmDownmix.downmix(output, mono));
+        assertEquals(200, mono[0]);
+        assertEquals(-100, mono[1]);
+    }
+
+    // раскладывает трек по фреймам декодера (в стерео каналы чередуются), сводит их в моно
+    // и оценивает темп по огибающей
+    private static double estimate(short[] track, int channels) {
+        BpmDetector.OnsetEnvelope envelope = new BpmDetector.OnsetEnvelope(SAMPLE_RATE);
+        short[] mono = new short[Obuffer.OBUFFERSIZE];
+        SampleBuffer output = new SampleBuffer(SAMPLE_RATE, channels);
+        for (int start = 0; start < track.length; start += FRAME_SAMPLES) {
+            output.clear_buffer();
+            for (int i = start; i < Math.min(track.length, start + FRAME_SAMPLES); i++) {
+                output.append(0, track[i]);
+                if (channels == 2) {
+                    // правый канал тише, чтобы сведение не сводилось к копированию одного канала
+                    output.append(1, (short) (track[i] / 2));
+                }
+            }
+            envelope.add(mono, PcmDownmix.downmix(output, mono));
+        }
+        return BpmDetector.estimateTempo(envelope.values, envelope.length, envelope.rate());
+    }
+
+    // щелчки затухающего шума на каждую долю
+    private static short[] clicks(int bpm) {
+        short[] track = new short[SAMPLE_RATE * SECONDS];
+        Random random = new Random(bpm);
+        double period = 60.0 * SAMPLE_RATE / bpm;
+        int clickLength = SAMPLE_RATE / 100;
+        for (double beat = 0; beat < track.length; beat += period) {
+            int start = (int) Math.round(beat);
+            for (int i = 0; i < clickLength && start + i < track.length; i++) {
+                double decay = Math.exp(-5.0 * i / clickLength);
+                track[start + i] = (short) (20000 * decay * (2 * random.nextDouble() - 1));
+            }
+        }
+        return track;
+    }
+}
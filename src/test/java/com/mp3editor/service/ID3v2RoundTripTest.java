@@ -0,0 +1,429 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.Mp3File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// собственный разбор и сборка id3v2: теги из синтетических фреймов пишутся сервисом
+// и читаются обратно нашим парсером и mp3agic
+public class ID3v2RoundTripTest {
+
+    // mpeg1 layer 3, 128 кбит/с, 44.1 кГц
+    private static final int FRAME_LENGTH = 417;
+    private static final int FRAME_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MP3TagService service;
+
+    @Before
+    public void setUp() {
+        service = new MP3TagService();
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void v22TagIsUpgradedToV24() throws Exception {
+        byte[] body = concat(
+                v22Frame("TT2", text("Old Title")),
+                v22Frame("TP1", text("Old Artist")),
+                v22Frame("TAL", text("Old Album")),
+                v22Frame("TYE", text("1999")),
+                v22Frame("TBP", text("120")));
+        File file = createFile(tag(2, 0, body, 64, false));
+
+        MP3Metadata before = service.readMetadataFast(file);
+        assertEquals("Old Title", before.getTitle());
+        assertEquals("Old Artist", before.getArtist());
+        assertEquals("1999", before.getYear());
+        assertEquals(Integer.valueOf(120), before.getBpm());
+
+        service.writeMetadataInPlace(file, album("New Album"));
+
+        assertEquals(4, readTagBytes(file)[3]);
+        MP3Metadata after = service.readMetadataFast(file);
+        assertEquals("Old Title", after.getTitle());
+        assertEquals("Old Artist", after.getArtist());
+        assertEquals("New Album", after.getAlbum());
+        assertEquals("1999", after.getYear());
+        assertEquals(Integer.valueOf(120), after.getBpm());
+        ID3v2 reference = mp3agic(file);
+        assertEquals("4.0", reference.getVersion());
+        assertEquals("Old Title", reference.getTitle());
+        assertEquals("New Album", reference.getAlbum());
+        // в v2.4 год лежит в tdrc, mp3agic отдает его как время записи
+        assertEquals("1999", ((ID3v24Tag) reference).getRecordingTime());
+        assertAudioIntact(file);
+    }
+
+    @Test
+    public void v23UnsynchronisedTagMatchesMp3agic() throws Exception {
+        // 0xFF в тексте: после десинхронизации за ним идет вставленный 0x00
+        String title = "Cafÿ Title";
+        byte[] body = concat(
+                v23Frame("TIT2", 0, 0, text(title)),
+                v23Frame("TPE1", 0, 0, text("Artist")));
+        File file = createFile(tag(3, ID3TagReader.UNSYNCHRONISATION_FLAG, unsynchronise(body), 32, false));
+
+        MP3Metadata before = service.readMetadataFast(file);
+        assertEquals(title, before.getTitle());
+        assertEquals(mp3agic(file).getTitle(), before.getTitle());
+        assertEquals(mp3agic(file).getArtist(), before.getArtist());
+
+        service.writeMetadataInPlace(file, album("New Album"));
+
+        MP3Metadata after = service.readMetadataFast(file);
+        assertEquals(title, after.getTitle());
+        assertEquals("Artist", after.getArtist());
+        assertEquals("New Album", after.getAlbum());
+        assertEquals(mp3agic(file).getTitle(), after.getTitle());
+        assertEquals(mp3agic(file).getAlbum(), after.getAlbum());
+        assertAudioIntact(file);
+    }
+
+    @Test
+    public void extendedHeaderIsSkippedAndNotCopied() throws Exception {
+        // расширенный заголовок v2.3: размер без своих 4 байтов, флаги и размер padding
+        byte[] extended = {0, 0, 0, 6, 0, 0, 0, 0, 0, 0};
+        byte[] v23 = concat(extended, v23Frame("TIT2", 0, 0, text("Title 3")));
+        File file3 = createFile("v23.mp3", tag(3, ID3TagReader.EXTENDED_HEADER_FLAG, v23, 32, false));
+        // расширенный заголовок v2.4: synchsafe размер вместе с собой, число байтов флагов, флаги
+        byte[] extended4 = {0, 0, 0, 6, 1, 0};
+        byte[] v24 = concat(extended4, v24Frame("TIT2", 0, 0, text("Title 4")));
+        File file4 = createFile("v24.mp3", tag(4, ID3TagReader.EXTENDED_HEADER_FLAG, v24, 32, false));
+
+        // mp3agic 0.9.1 начинает фреймы с самого расширенного заголовка, поэтому исходный тег
+        // сверяем с ожидаемыми значениями, а mp3agic - только после записи
+        assertEquals("Title 3", service.readMetadataFast(file3).getTitle());
+        assertEquals("Title 4", service.readMetadataFast(file4).getTitle());
+
+        for (File file : new File[]{file3, file4}) {
+            service.writeMetadataInPlace(file, album("New Album"));
+            byte[] tag = readTagBytes(file);
+            assertEquals(0, tag[5] & ID3TagReader.EXTENDED_HEADER_FLAG);
+            assertEquals("New Album", service.readMetadataFast(file).getAlbum());
+            assertEquals(mp3agic(file).getTitle(), service.readMetadataFast(file).getTitle());
+            assertEquals("New Album", mp3agic(file).getAlbum());
+            assertAudioIntact(file);
+        }
+    }
+
+    @Test
+    public void footerTagIsRewrittenWithoutFooter() throws Exception {
+        byte[] body = concat(v24Frame("TIT2", 0, 0, text("Title")), v24Frame("TPE1", 0, 0, text("Artist")));
+        // у тега с футером padding запрещен
+        File file = createFile(tag(4, ID3TagReader.FOOTER_FLAG, body, 0, true));
+
+        // футер mp3agic 0.9.1 ищет без учета заголовка и считает такой тег битым,
+        // поэтому сверяемся с ним только после записи
+        assertEquals("Title", service.readMetadataFast(file).getTitle());
+        assertEquals("Artist", service.readMetadataFast(file).getArtist());
+
+        service.writeMetadataInPlace(file, album("New Album"));
+
+        byte[] tag = readTagBytes(file);
+        assertEquals(0, tag[5] & ID3TagReader.FOOTER_FLAG);
+        MP3Metadata after = service.readMetadataFast(file);
+        assertEquals("Title", after.getTitle());
+        assertEquals("Artist", after.getArtist());
+        assertEquals("New Album", after.getAlbum());
+        assertEquals("Title", mp3agic(file).getTitle());
+        assertEquals("New Album", mp3agic(file).getAlbum());
+        assertAudioIntact(file);
+    }
+
+    @Test
+    public void frameFlagsAreDecoded() throws Exception {
+        // v2.4: десинхронизированный фрейм с индикатором длины
+        String title = "Unsync ÿ Title";
+        byte[] titlePayload = text(title);
+        byte[] unsynchronised = concat(synchsafe(titlePayload.length), unsynchronise(titlePayload));
+        // v2.4: сжатый фрейм, индикатор длины обязателен
+        byte[] artistPayload = text("Compressed Artist");
+        byte[] compressed = concat(synchsafe(artistPayload.length), deflate(artistPayload));
+        byte[] body = concat(
+                v24Frame("TIT2", 0, 0x02 | 0x01, unsynchronised),
+                v24Frame("TPE1", 0, 0x08 | 0x01, compressed),
+                v24Frame("TALB", 0, 0x01, concat(synchsafe(text("Album").length), text("Album"))));
+        File file4 = createFile("v24.mp3", tag(4, 0, body, 32, false));
+
+        MP3Metadata metadata = service.readMetadataFast(file4);
+        assertEquals(title, metadata.getTitle());
+        assertEquals("Compressed Artist", metadata.getArtist());
+        assertEquals("Album", metadata.getAlbum());
+
+        // v2.3: сжатый фрейм, перед данными их размер после распаковки
+        byte[] compressed3 = concat(ByteBuffer.allocate(4).putInt(artistPayload.length).array(), deflate(artistPayload));
+        File file3 = createFile("v23.mp3", tag(3, 0, v23Frame("TPE1", 0, 0x80, compressed3), 32, false));
+        assertEquals("Compressed Artist", service.readMetadataFast(file3).getArtist());
+    }
+
+    @Test
+    public void unknownFramesAreCopiedAndDiscardableFramesDropped() throws Exception {
+        byte[] comment = v23Frame("COMM", 0, 0, concat(new byte[]{0, 'e', 'n', 'g', 0}, ascii("Comment")));
+        byte[] priv = v23Frame("PRIV", 0, 0, concat(ascii("owner"), new byte[]{0, 1, 2, (byte) 0xFF, 0}));
+        byte[] grouped = v23Frame("TXXX", 0, 0x20, concat(new byte[]{7}, text("Grouped")));
+        byte[] discarded = v23Frame("TXXX", 0x80, 0, concat(new byte[]{0}, ascii("gone"), new byte[]{0}, ascii("x")));
+        byte[] body = concat(v23Frame("TIT2", 0, 0, text("Title")), comment, priv, grouped, discarded);
+        File file = createFile(tag(3, 0, body, 64, false));
+
+        service.writeMetadataInPlace(file, album("New Album"));
+
+        byte[] tag = readTagBytes(file);
+        assertEquals(3, tag[3]);
+        assertTrue(contains(tag, comment));
+        assertTrue(contains(tag, priv));
+        assertTrue(contains(tag, grouped));
+        assertFalse(contains(tag, discarded));
+        assertEquals("Title", service.readMetadataFast(file).getTitle());
+        ID3v2 reference = mp3agic(file);
+        assertEquals("New Album", reference.getAlbum());
+        assertEquals("Comment", reference.getComment());
+
+        // то же для v2.4, где флаг удаления при изменении тега - 0x40
+        byte[] comment4 = v24Frame("COMM", 0, 0, concat(new byte[]{0, 'e', 'n', 'g', 0}, ascii("Comment")));
+        byte[] discarded4 = v24Frame("PRIV", 0x40, 0, concat(ascii("gone"), new byte[]{0, 1}));
+        File file4 = createFile("v24.mp3",
+                tag(4, 0, concat(v24Frame("TIT2", 0, 0, text("Title")), comment4, discarded4), 64, false));
+        service.writeMetadataInPlace(file4, album("New Album"));
+        byte[] tag4 = readTagBytes(file4);
+        assertTrue(contains(tag4, comment4));
+        assertFalse(contains(tag4, discarded4));
+        assertEquals("Comment", mp3agic(file4).getComment());
+    }
+
+    @Test
+    public void newTagThatFillsTheRegionIsWrittenInPlace() throws Exception {
+        // старый тег: tit2 "abc" и 20 байт padding. новый tit2 длиннее на 20 символов займет
+        // область целиком, на 21 - уже не поместится. в обоих случаях в конец дописывается id3v1
+        int padding = 20;
+        String exact = "abc" + repeat('x', padding);
+        File inPlace = createFile("exact.mp3", tag(3, 0, v23Frame("TIT2", 0, 0, text("abc")), padding, false));
+        long length = inPlace.length();
+        assertTrue(ID3TagWriter.fitsInPlace(regionLength(inPlace), false, buildTag(inPlace, exact), null));
+
+        service.writeMetadataInPlace(inPlace, title(exact));
+
+        assertEquals(length + ID3TagReader.ID3V1_LENGTH, inPlace.length());
+        assertEquals(regionLength(createFile("original.mp3",
+                tag(3, 0, v23Frame("TIT2", 0, 0, text("abc")), padding, false))), regionLength(inPlace));
+        assertEquals(exact, service.readMetadataFast(inPlace).getTitle());
+        assertEquals(exact, mp3agic(inPlace).getTitle());
+        assertAudioIntact(inPlace);
+
+        String tooLong = exact + "y";
+        File rewritten = createFile("long.mp3", tag(3, 0, v23Frame("TIT2", 0, 0, text("abc")), padding, false));
+        assertFalse(ID3TagWriter.fitsInPlace(regionLength(rewritten), false, buildTag(rewritten, tooLong), null));
+
+        service.writeMetadataInPlace(rewritten, title(tooLong));
+
+        assertEquals(length + 1 + service.getPaddingReserve() + ID3TagReader.ID3V1_LENGTH, rewritten.length());
+        assertEquals(tooLong, service.readMetadataFast(rewritten).getTitle());
+        assertEquals(tooLong, mp3agic(rewritten).getTitle());
+        assertAudioIntact(rewritten);
+    }
+
+    @Test
+    public void fileWithoutTagGetsV24Tag() throws Exception {
+        File file = createFile(new byte[0]);
+        assertNull(service.readMetadataFast(file).getTitle());
+
+        MP3Metadata metadata = title("Fresh");
+        metadata.setBpm(128);
+        service.writeMetadataInPlace(file, metadata);
+
+        assertEquals(4, readTagBytes(file)[3]);
+        assertEquals("Fresh", service.readMetadataFast(file).getTitle());
+        assertEquals(Integer.valueOf(128), service.readMetadataFast(file).getBpm());
+        assertEquals("Fresh", mp3agic(file).getTitle());
+        assertEquals(128, mp3agic(file).getBPM());
+        assertAudioIntact(file);
+    }
+
+    // --- сборка синтетических тегов ---
+
+    private static MP3Metadata album(String album) {
+        MP3Metadata metadata = new MP3Metadata();
+        metadata.setAlbum(album);
+        return metadata;
+    }
+
+    private static MP3Metadata title(String title) {
+        MP3Metadata metadata = new MP3Metadata();
+        metadata.setTitle(title);
+        return metadata;
+    }
+
+    // текстовые данные фрейма в iso-8859-1
+    private static byte[] text(String value) {
+        return concat(new byte[]{0}, value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] v22Frame(String id, byte[] data) {
+        return concat(ascii(id), new byte[]{(byte) (data.length >> 16), (byte) (data.length >> 8), (byte) data.length},
+                data);
+    }
+
+    private static byte[] v23Frame(String id, int statusFlags, int formatFlags, byte[] data) {
+        return concat(ascii(id), ByteBuffer.allocate(4).putInt(data.length).array(),
+                new byte[]{(byte) statusFlags, (byte) formatFlags}, data);
+    }
+
+    private static byte[] v24Frame(String id, int statusFlags, int formatFlags, byte[] data) {
+        return concat(ascii(id), synchsafe(data.length), new byte[]{(byte) statusFlags, (byte) formatFlags}, data);
+    }
+
+    // заголовок, тело, padding и (для v2.4) футер
+    private static byte[] tag(int majorVersion, int flags, byte[] body, int padding, boolean footer) {
+        byte[] size = synchsafe(body.length + padding);
+        byte[] header = concat(ascii("ID3"), new byte[]{(byte) majorVersion, 0, (byte) flags}, size);
+        byte[] tag = concat(header, body, new byte[padding]);
+        if (footer) {
+            tag = concat(tag, ascii("3DI"), new byte[]{(byte) majorVersion, 0, (byte) flags}, size);
+        }
+        return tag;
+    }
+
+    private static byte[] synchsafe(int value) {
+        byte[] bytes = new byte[4];
+        ID3TagWriter.packSynchsafe(value, bytes, 0);
+        return bytes;
+    }
+
+    // после каждого 0xFF, за которым идет 0x00 или байт 111xxxxx, вставляется 0x00
+    private static byte[] unsynchronise(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if (data[i] == (byte) 0xFF && (i + 1 == data.length || data[i + 1] == 0 || (data[i + 1] & 0xE0) == 0xE0)) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static boolean contains(byte[] array, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= array.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (array[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // --- файлы и проверки ---
+
+    private File createFile(byte[] tag) throws IOException {
+        return createFile("track.mp3", tag);
+    }
+
+    private File createFile(String name, byte[] tag) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), concat(tag, audio()));
+        return file;
+    }
+
+    private static byte[] audio() {
+        byte[] audio = new byte[FRAME_LENGTH * FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            audio[i * FRAME_LENGTH] = (byte) 0xFF;
+            audio[i * FRAME_LENGTH + 1] = (byte) 0xFB;
+            audio[i * FRAME_LENGTH + 2] = (byte) 0x90;
+            // номер фрейма в данных, чтобы сдвиг или обрезка аудио были заметны
+            audio[i * FRAME_LENGTH + 4] = (byte) i;
+        }
+        return audio;
+    }
+
+    private static int regionLength(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ID3v2FrameReader.read(channel, false).regionLength;
+        }
+    }
+
+    private static byte[] buildTag(File file, String title) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ID3TagWriter.buildTag(ID3v2FrameReader.read(channel, true), title(title));
+        }
+    }
+
+    // область тега целиком, с заголовком и padding
+    private static byte[] readTagBytes(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        return Arrays.copyOf(bytes, regionLength(file));
+    }
+
+    // аудио сразу за тегом и совпадает байт в байт
+    private static void assertAudioIntact(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int start = regionLength(file);
+        byte[] audio = audio();
+        assertArrayEquals(audio, Arrays.copyOfRange(bytes, start, start + audio.length));
+    }
+
+    private static ID3v2 mp3agic(File file) throws Exception {
+        Mp3File mp3 = new Mp3File(file);
+        assertTrue(mp3.hasId3v2Tag());
+        return mp3.getId3v2Tag();
+    }
+}
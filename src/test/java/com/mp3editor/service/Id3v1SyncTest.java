@@ -0,0 +1,120 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+import com.mpatric.mp3agic.ID3v1;
+import com.mpatric.mp3agic.ID3v1Tag;
+import com.mpatric.mp3agic.ID3v23Tag;
+import com.mpatric.mp3agic.Mp3File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// частичная запись метаданных (null - оставить поле) не должна стирать остальные поля id3v1
+public class Id3v1SyncTest {
+
+    // mpeg1 layer 3, 128 кбит/с, 44.1 кГц
+    private static final int FRAME_LENGTH = 417;
+    private static final int FRAME_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MP3TagService service;
+
+    @Before
+    public void setUp() {
+        service = new MP3TagService();
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void partialWriteInPlaceKeepsOtherId3v1Fields() throws Exception {
+        File file = createFile();
+        service.writeMetadataInPlace(file, albumOnly());
+        assertId3v1(file, "New Album");
+    }
+
+    @Test
+    public void partialRewriteKeepsOtherId3v1Fields() throws Exception {
+        File file = createFile();
+        File output = new File(folder.getRoot(), "copy.mp3");
+        service.writeMetadata(file, output, albumOnly());
+        assertId3v1(output, "New Album");
+    }
+
+    @Test
+    public void emptyStringClearsId3v1Field() throws Exception {
+        File file = createFile();
+        MP3Metadata metadata = new MP3Metadata();
+        metadata.setYear("");
+        service.writeMetadataInPlace(file, metadata);
+        ID3v1 tag = new Mp3File(file).getId3v1Tag();
+        assertEquals("Old Title", tag.getTitle());
+        assertEquals("", nullToEmpty(tag.getYear()));
+    }
+
+    private static MP3Metadata albumOnly() {
+        MP3Metadata metadata = new MP3Metadata();
+        metadata.setAlbum("New Album");
+        return metadata;
+    }
+
+    private static void assertId3v1(File file, String album) throws Exception {
+        Mp3File mp3 = new Mp3File(file);
+        assertTrue(mp3.hasId3v1Tag());
+        ID3v1 tag = mp3.getId3v1Tag();
+        assertEquals("Old Title", tag.getTitle());
+        assertEquals("Old Artist", tag.getArtist());
+        assertEquals(album, tag.getAlbum());
+        assertEquals("1999", tag.getYear());
+        // id3v2 тоже сохранил нетронутые поля
+        assertEquals("Old Title", mp3.getId3v2Tag().getTitle());
+        assertEquals(album, mp3.getId3v2Tag().getAlbum());
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    // тишина из одинаковых mpeg фреймов с тегами id3v2 и id3v1
+    private File createFile() throws Exception {
+        ID3v23Tag id3v2 = new ID3v23Tag();
+        id3v2.setTitle("Old Title");
+        id3v2.setArtist("Old Artist");
+        id3v2.setAlbum("Old Album");
+        id3v2.setYear("1999");
+        ID3v1Tag id3v1 = new ID3v1Tag();
+        id3v1.setTitle("Old Title");
+        id3v1.setArtist("Old Artist");
+        id3v1.setAlbum("Old Album");
+        id3v1.setYear("1999");
+
+        File file = folder.newFile("track.mp3");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write(id3v2.toBytes());
+            byte[] frame = new byte[FRAME_LENGTH];
+            frame[0] = (byte) 0xFF;
+            frame[1] = (byte) 0xFB;
+            frame[2] = (byte) 0x90;
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                out.write(frame);
+            }
+            out.write(id3v1.toBytes());
+        }
+        return file;
+    }
+}
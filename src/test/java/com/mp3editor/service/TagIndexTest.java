@@ -0,0 +1,86 @@
+package com.mp3editor.service;
+
+import com.mp3editor.model.MP3Metadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// журнал индекса: записи после close() и после неудачного сжатия не должны падать
+public class TagIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesAfterCloseAreIgnored() throws Exception {
+        File indexFile = new File(folder.getRoot(), "index.bin");
+        File track = new File(folder.getRoot(), "a.mp3");
+        TagIndex index = TagIndex.open(indexFile);
+        index.addFile(track);
+        index.close();
+
+        // фоновые задачи чтения и наблюдатель могут писать в индекс после закрытия окна
+        index.addFile(new File(folder.getRoot(), "b.mp3"));
+        index.put(track, 1, 1, new MP3Metadata("Title", null, null, null, null, null));
+        index.remove(track);
+        index.flush();
+
+        TagIndex reopened = TagIndex.open(indexFile);
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.contains(track));
+        assertNull(reopened.get(track, 1, 1));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsEntries() throws Exception {
+        File indexFile = new File(folder.getRoot(), "index.bin");
+        TagIndex index = TagIndex.open(indexFile);
+        File track = new File(folder.getRoot(), "a.mp3");
+        index.addFile(track);
+        // перезапись тегов одного файла раздувает журнал до сжатия
+        for (int i = 0; i < 25_000; i++) {
+            index.put(track, i, i, new MP3Metadata("Title " + i, null, null, null, null, null));
+        }
+        index.close();
+
+        TagIndex reopened = TagIndex.open(indexFile);
+        assertEquals(1, reopened.size());
+        assertEquals("Title 24999", reopened.get(track, 24_999, 24_999).getTitle());
+        reopened.close();
+    }
+
+    @Test
+    public void failedCompactionDoesNotBreakLaterWrites() throws Exception {
+        File directory = folder.newFolder("index");
+        File indexFile = new File(directory, "index.bin");
+        TagIndex index = TagIndex.open(indexFile);
+        // без каталога временный файл снимка не создать
+        assertTrue(indexFile.delete());
+        assertTrue(directory.delete());
+
+        File track = new File(folder.getRoot(), "a.mp3");
+        index.addFile(track);
+        try {
+            // перезапись тегов одного файла доводит журнал до сжатия
+            for (int i = 0; i < 10_001; i++) {
+                index.put(track, i, i, new MP3Metadata("Title " + i, null, null, null, null, null));
+            }
+            fail("Compaction without a directory must fail");
+        } catch (IOException e) {
+            // ожидаемо
+        }
+        // журнал не переоткрыть, индекс дальше работает как закрытый, без исключений
+        index.addFile(new File(folder.getRoot(), "next.mp3"));
+        index.flush();
+        index.close();
+    }
+}